@@ -60,6 +60,13 @@ public class DefaultImportListener implements ImportListener {
         out.println(String.format("%1$s created: %2$s", toText(entityType), id(entityName, entityId)));
     }
 
+    @Override
+    public void progress(long recordCount, long elapsedMillis) {
+        double recordsPerSecond = elapsedMillis > 0 ? recordCount * 1000d / elapsedMillis : 0;
+        out.println(String.format("Imported %1$d records in %2$.1f s (%3$.0f records/s)", recordCount,
+                elapsedMillis / 1000d, recordsPerSecond));
+    }
+
     private String id(String entityName, String entityId) {
         if (entityName != null) {
             return entityName;
@@ -29,5 +29,14 @@ public interface ImportListener {
 
     void updated(EntityType entityType, String entityName, String entityId, long version);
 
-    void created(EntityType entityType, String entityName, String entityId);    
+    void created(EntityType entityType, String entityName, String entityId);
+
+    /**
+     * Reports the progress of the import of records. This is called periodically during the import, and once
+     * when all records have been imported.
+     *
+     * @param recordCount the number of records imported so far
+     * @param elapsedMillis the time since the start of the import of the records
+     */
+    void progress(long recordCount, long elapsedMillis);
 }
@@ -25,19 +25,37 @@ import org.lilyproject.tools.import_.json.*;
 import org.lilyproject.util.concurrent.WaitPolicy;
 import org.lilyproject.util.json.JsonFormat;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Imports field types, record types and records from a JSON file.
+ *
+ * <p>Records are handled in a pipelined fashion: the reading thread only splits the records array in batches
+ * of raw JSON text, the parsing and importing of the records is done by the worker threads. The number of
+ * batches waiting to be processed is limited, so memory usage stays bounded for large files.</p>
+ */
 public class JsonImport {
     private Namespaces namespaces = new NamespacesImpl();
     private Repository repository;
     private TypeManager typeManager;
     private ImportListener importListener;
     private int threadCount;
+    private int batchSize;
     private ThreadPoolExecutor executor;
     private volatile boolean errorHappened = false;
+    private final AtomicLong recordCount = new AtomicLong();
+    private long recordsStartTime;
+    private long lastProgressReport;
+    private final Object progressLock = new Object();
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    private static final long PROGRESS_INTERVAL = 10000;
 
     public static void load(Repository repository, InputStream is, boolean schemaOnly, int threadCount) throws Exception {
         load(repository, new DefaultImportListener(), is, schemaOnly, threadCount);
@@ -62,10 +80,18 @@ public class JsonImport {
     }
 
     public JsonImport(Repository repository, ImportListener importListener, int threadCount) {
+        this(repository, importListener, threadCount, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param batchSize the number of records handed over to a worker thread at once
+     */
+    public JsonImport(Repository repository, ImportListener importListener, int threadCount, int batchSize) {
         this.importListener = new SynchronizedImportListener(importListener);
         this.repository = repository;
         this.typeManager = repository.getTypeManager();
         this.threadCount = threadCount;
+        this.batchSize = batchSize;
     }
 
     public void load(InputStream is, boolean schemaOnly) throws Exception {
@@ -77,7 +103,8 @@ public class JsonImport {
         try {
             namespaces = new NamespacesImpl();
 
-            JsonParser jp = JsonFormat.JSON_FACTORY_NON_STD.createJsonParser(is);
+            RecordingReader reader = new RecordingReader(new InputStreamReader(is, "UTF-8"));
+            JsonParser jp = JsonFormat.JSON_FACTORY_NON_STD.createJsonParser(reader);
 
             JsonToken current;
             current = jp.nextToken();
@@ -88,6 +115,7 @@ public class JsonImport {
             }
 
             while (jp.nextToken() != JsonToken.END_OBJECT && !errorHappened) {
+                reader.discardBefore(jp.getTokenLocation().getCharOffset());
                 String fieldName = jp.getCurrentName();
                 current = jp.nextToken(); // move from field name to field value
                 if (fieldName.equals("namespaces")) {
@@ -102,6 +130,7 @@ public class JsonImport {
                         startExecutor();
                         while (jp.nextToken() != JsonToken.END_ARRAY && !errorHappened) {
                             pushTask(new FieldTypeImportTask(jp.readValueAsTree()));
+                            reader.discardBefore(jp.getTokenLocation().getCharOffset());
                         }
                         waitTasksFinished();
                     } else {
@@ -113,6 +142,7 @@ public class JsonImport {
                         startExecutor();
                         while (jp.nextToken() != JsonToken.END_ARRAY && !errorHappened) {
                             pushTask(new RecordTypeImportTask(jp.readValueAsTree()));
+                            reader.discardBefore(jp.getTokenLocation().getCharOffset());
                         }
                         waitTasksFinished();
                     } else {
@@ -123,10 +153,25 @@ public class JsonImport {
                     if (!schemaOnly) {
                         if (current == JsonToken.START_ARRAY) {
                             startExecutor();
+                            startProgress();
+                            List<String> batch = new ArrayList<String>(batchSize);
                             while (jp.nextToken() != JsonToken.END_ARRAY && !errorHappened) {
-                                pushTask(new RecordImportTask(jp.readValueAsTree()));
+                                String record = readRawObject(jp, reader);
+                                if (record == null) {
+                                    handleImportError(new ImportException("Record should be specified as object node."));
+                                    break;
+                                }
+                                batch.add(record);
+                                if (batch.size() >= batchSize) {
+                                    pushTask(new RecordBatchImportTask(batch));
+                                    batch = new ArrayList<String>(batchSize);
+                                }
+                            }
+                            if (!batch.isEmpty() && !errorHappened) {
+                                pushTask(new RecordBatchImportTask(batch));
                             }
                             waitTasksFinished();
+                            reportProgress(true);
                         } else {
                             System.out.println("Error: records property should be an array. Skipping.");
                             jp.skipChildren();
@@ -145,6 +190,31 @@ public class JsonImport {
         }
     }
 
+    /**
+     * Skips over the object at the current position of the parser, and returns its raw text. This leaves
+     * the more expensive parsing of the object to the worker threads. Returns null if the current value is
+     * not an object.
+     */
+    private String readRawObject(JsonParser jp, RecordingReader reader) throws IOException {
+        if (jp.getCurrentToken() != JsonToken.START_OBJECT) {
+            jp.skipChildren();
+            return null;
+        }
+
+        long start = jp.getTokenLocation().getCharOffset();
+        jp.skipChildren();
+        // The current location points at or just after the closing brace, take some margin and cut the
+        // text at the last closing brace (which can be followed by nothing else than whitespace, a comma
+        // or the start of a comment).
+        long end = jp.getCurrentLocation().getCharOffset() + 2;
+        String text = reader.getText(start, end);
+        reader.discardBefore(start);
+
+        int objectStart = text.indexOf('{');
+        int objectEnd = text.lastIndexOf('}');
+        return text.substring(objectStart, objectEnd + 1);
+    }
+
     public void readNamespaces(ObjectNode node) throws JsonFormatException {
         // We don't expect the namespaces to be modified since we're reading rather than writing, still wrap it
         // to make sure they are really not modified.
@@ -307,6 +377,22 @@ public class JsonImport {
         return record;
     }
 
+    private void startProgress() {
+        recordCount.set(0);
+        recordsStartTime = System.currentTimeMillis();
+        lastProgressReport = recordsStartTime;
+    }
+
+    private void reportProgress(boolean force) {
+        synchronized (progressLock) {
+            long now = System.currentTimeMillis();
+            if (force || now - lastProgressReport >= PROGRESS_INTERVAL) {
+                lastProgressReport = now;
+                importListener.progress(recordCount.get(), now - recordsStartTime);
+            }
+        }
+    }
+
     private void handleImportError(Throwable throwable) {
         // In case of an error, we want to stop the import asap. Since it's multi-threaded, it can
         // be that there are still a few operations done before it's done.
@@ -374,19 +460,27 @@ public class JsonImport {
         }
     }
 
-    private class RecordImportTask implements Runnable {
-        private JsonNode json;
+    private class RecordBatchImportTask implements Runnable {
+        private List<String> records;
 
-        public RecordImportTask(JsonNode json) {
-            this.json = json;
+        public RecordBatchImportTask(List<String> records) {
+            this.records = records;
         }
 
         @Override
         public void run() {
             try {
-                importRecord(json);
+                for (String record : records) {
+                    if (errorHappened) {
+                        return;
+                    }
+                    importRecord(JsonFormat.deserializeNonStd(record));
+                    recordCount.incrementAndGet();
+                }
             } catch (Throwable t) {
                 handleImportError(t);
+            } finally {
+                reportProgress(false);
             }
         }
     }
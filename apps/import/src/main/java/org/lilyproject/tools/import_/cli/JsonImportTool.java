@@ -29,6 +29,7 @@ import java.util.*;
 public class JsonImportTool extends BaseZkCliTool {
     private Option schemaOnlyOption;
     private Option workersOption;
+    private Option batchSizeOption;
     private LilyClient lilyClient;
 
     @Override
@@ -57,6 +58,15 @@ public class JsonImportTool extends BaseZkCliTool {
                 .create("w");
         options.add(workersOption);
 
+        batchSizeOption = OptionBuilder
+                .withArgName("count")
+                .hasArg()
+                .withDescription("Number of records handed to a worker at once (default: "
+                        + JsonImport.DEFAULT_BATCH_SIZE + ")")
+                .withLongOpt("batch-size")
+                .create("b");
+        options.add(batchSizeOption);
+
         schemaOnlyOption = OptionBuilder
                 .withDescription("Only import the field types and record types, not the records.")
                 .withLongOpt("schema-only")
@@ -73,6 +83,7 @@ public class JsonImportTool extends BaseZkCliTool {
             return result;
 
         int workers = OptionUtil.getIntOption(cmd, workersOption, 1);
+        int batchSize = OptionUtil.getIntOption(cmd, batchSizeOption, JsonImport.DEFAULT_BATCH_SIZE);
 
         if (cmd.getArgList().size() < 1) {
             System.out.println("No import file specified!");
@@ -82,13 +93,16 @@ public class JsonImportTool extends BaseZkCliTool {
         boolean schemaOnly = cmd.hasOption(schemaOnlyOption.getOpt());
 
         lilyClient = new LilyClient(zkConnectionString, zkSessionTimeout);
+        // Send each record to the Lily server running next to the region server which stores it
+        lilyClient.setRegionAwareRouting(true);
 
         for (String arg : (List<String>)cmd.getArgList()) {
             System.out.println("----------------------------------------------------------------------");
             System.out.println("Importing " + arg);
             InputStream is = new FileInputStream(arg);
             try {
-                JsonImport.load(lilyClient.getRepository(), is, schemaOnly, workers);
+                new JsonImport(lilyClient.getRepository(), new DefaultImportListener(), workers, batchSize)
+                        .load(is, schemaOnly);
             } finally {
                 Closer.close(is);
             }
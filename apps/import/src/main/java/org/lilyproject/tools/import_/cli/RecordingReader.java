@@ -0,0 +1,73 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.tools.import_.cli;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * A Reader which keeps the characters it has read, so that the raw text between two character offsets
+ * reported by a JsonParser reading from it can be retrieved.
+ *
+ * <p>The kept characters should be released regularly using {@link #discardBefore}.
+ */
+class RecordingReader extends Reader {
+    private final Reader delegate;
+    private final StringBuilder buffer = new StringBuilder();
+    /** The offset in the stream of the first character in the buffer. */
+    private long bufferOffset = 0;
+
+    RecordingReader(Reader delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        int count = delegate.read(cbuf, off, len);
+        if (count > 0) {
+            buffer.append(cbuf, off, count);
+        }
+        return count;
+    }
+
+    /**
+     * Returns the text between the given offsets, which should not have been discarded yet. The end offset
+     * is limited to the characters read so far.
+     */
+    String getText(long start, long end) {
+        if (start < bufferOffset) {
+            throw new IllegalStateException("Text at offset " + start + " has already been discarded.");
+        }
+        int bufferEnd = (int)Math.min(end - bufferOffset, buffer.length());
+        return buffer.substring((int)(start - bufferOffset), bufferEnd);
+    }
+
+    /**
+     * Releases the characters before the given offset.
+     */
+    void discardBefore(long offset) {
+        int count = (int)Math.min(offset - bufferOffset, buffer.length());
+        if (count > 0) {
+            buffer.delete(0, count);
+            bufferOffset += count;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+}
@@ -35,4 +35,9 @@ public class SynchronizedImportListener implements ImportListener {
     public synchronized void created(EntityType entityType, String entityName, String entityId) {
         delegate.created(entityType, entityName, entityId);
     }
+
+    @Override
+    public synchronized void progress(long recordCount, long elapsedMillis) {
+        delegate.progress(recordCount, elapsedMillis);
+    }
 }
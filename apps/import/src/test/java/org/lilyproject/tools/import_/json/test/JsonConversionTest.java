@@ -47,6 +47,7 @@ import org.lilyproject.repository.api.RepositoryException;
 import org.lilyproject.repository.api.ReturnFields;
 import org.lilyproject.repository.api.Scope;
 import org.lilyproject.repository.api.TypeManager;
+import org.lilyproject.repository.api.filter.FieldExistsFilter;
 import org.lilyproject.repository.api.filter.FieldValueFilter;
 import org.lilyproject.repository.api.filter.RecordFilterList;
 import org.lilyproject.repository.api.filter.RecordIdPrefixFilter;
@@ -54,6 +55,7 @@ import org.lilyproject.repository.api.filter.RecordTypeFilter;
 import org.lilyproject.repository.api.filter.RecordVariantFilter;
 import org.lilyproject.repository.impl.id.IdGeneratorImpl;
 import org.lilyproject.repotestfw.RepositorySetup;
+import org.lilyproject.tools.import_.cli.DefaultImportListener;
 import org.lilyproject.tools.import_.cli.JsonImport;
 import org.lilyproject.tools.import_.json.JsonFormatException;
 import org.lilyproject.tools.import_.json.NamespacesImpl;
@@ -122,6 +124,24 @@ public class JsonConversionTest {
         assertEquals(new Integer(55), record1.getField(new QName("import2", "f2")));
     }
 
+    /**
+     * Tests that the records are correctly split into batches of raw text, with multiple workers.
+     */
+    @Test
+    public void testBatchedImport() throws Exception {
+        new JsonImport(repository, new DefaultImportListener(), 3, 2)
+                .load(getClass().getResourceAsStream("batchimporttest.json"), false);
+
+        QName textField = new QName("batchimport", "text");
+        IdGenerator idGenerator = repository.getIdGenerator();
+        assertEquals("plain", repository.read(idGenerator.fromString("USER.batch1")).getField(textField));
+        assertEquals("with } and { braces", repository.read(idGenerator.fromString("USER.batch2")).getField(textField));
+        assertEquals("with \"escaped\" quotes }",
+                repository.read(idGenerator.fromString("USER.batch3")).getField(textField));
+        assertEquals("multi-line", repository.read(idGenerator.fromString("USER.batch4")).getField(textField));
+        assertEquals("last", repository.read(idGenerator.fromString("USER.batch5")).getField(textField));
+    }
+
     private byte[] scanToBytes(RecordScan scan) throws RepositoryException, InterruptedException, IOException {
         return JsonFormat.serializeAsBytes(
                 writer.toJson(scan, new WriteOptions(), new NamespacesImpl(false), repository));
@@ -213,6 +233,27 @@ public class JsonConversionTest {
                 node.get("recordFilter").get("recordType").getTextValue());
     }
 
+    @Test
+    public void testScanFieldExistsFilter() throws Exception {
+        QName field = new QName("ns", "stringField");
+
+        RecordScan scan = new RecordScan();
+        scan.setRecordFilter(new FieldExistsFilter(field));
+
+        byte[] data = scanToBytes(scan);
+        RecordScan parsedScan = scanFromBytes(data);
+
+        assertNotNull(parsedScan.getRecordFilter());
+        assertTrue(parsedScan.getRecordFilter() instanceof FieldExistsFilter);
+        assertEquals(field, ((FieldExistsFilter) parsedScan.getRecordFilter()).getField());
+
+        // Check json
+        JsonNode node = new ObjectMapper().readTree(data);
+        assertEquals("org.lilyproject.repository.api.filter.FieldExistsFilter",
+                node.get("recordFilter").get("@class").getTextValue());
+        assertEquals("{ns}stringField", node.get("recordFilter").get("field").getTextValue());
+    }
+
     @Test
     public void testScanRecordIdPrefixFilter() throws Exception {
         IdGenerator idGenerator = new IdGeneratorImpl();
@@ -39,6 +39,7 @@ import org.codehaus.jackson.JsonToken;
 import org.codehaus.jackson.node.ObjectNode;
 import org.joda.time.DateTime;
 import org.lilyproject.cli.OptionUtil;
+import org.lilyproject.client.BalancingConf;
 import org.lilyproject.client.NoServersException;
 import org.lilyproject.repository.api.FieldType;
 import org.lilyproject.repository.api.QName;
@@ -68,6 +69,9 @@ public class Tester extends BaseRepositoryTestTool {
     private long startTime;
     private int failureCount = 0;
     private Option iterationsOption;
+    private Option latencyAwareOption;
+    private Option hedgedReadsOption;
+    private Option regionAwareRoutingOption;
     private int nrOfIterations;
     private TestActionFactory testActionFactory = new TestActionFactory();
     private List<TestAction> workersTestActions[] = null;
@@ -118,6 +122,27 @@ public class Tester extends BaseRepositoryTestTool {
                 .create("i");
         options.add(iterationsOption);
 
+        latencyAwareOption = OptionBuilder
+                .withDescription("Balance requests over the Lily servers based on their response times")
+                .withLongOpt("latency-aware")
+                .create("la");
+        options.add(latencyAwareOption);
+
+        hedgedReadsOption = OptionBuilder
+                .withArgName("percentile")
+                .hasOptionalArg()
+                .withDescription("Send slow reads to a second Lily server, after the given percentile of the"
+                        + " recent read times (default 0.95)")
+                .withLongOpt("hedged-reads")
+                .create("hr");
+        options.add(hedgedReadsOption);
+
+        regionAwareRoutingOption = OptionBuilder
+                .withDescription("Send record mutations to the Lily server on the host of the record's region")
+                .withLongOpt("region-aware-routing")
+                .create("rr");
+        options.add(regionAwareRoutingOption);
+
         return options;
     }
 
@@ -137,6 +162,7 @@ public class Tester extends BaseRepositoryTestTool {
         }
 
         setupLily();
+        setupBalancing(cmd);
 
         setupMetrics();
 
@@ -167,6 +193,27 @@ public class Tester extends BaseRepositoryTestTool {
         return 0;
     }
 
+    /**
+     * Configures the way the client balances requests, so that the effect of the different modes
+     * on the response times can be compared.
+     */
+    private void setupBalancing(CommandLine cmd) {
+        BalancingConf balancingConf = lilyClient.getBalancingConf();
+        balancingConf.setLatencyAware(cmd.hasOption(latencyAwareOption.getOpt()));
+        if (cmd.hasOption(hedgedReadsOption.getOpt())) {
+            balancingConf.setHedgedReads(true);
+            String percentile = cmd.getOptionValue(hedgedReadsOption.getOpt());
+            if (percentile != null) {
+                balancingConf.setHedgePercentile(Double.parseDouble(percentile));
+            }
+        }
+        lilyClient.setRegionAwareRouting(cmd.hasOption(regionAwareRoutingOption.getOpt()));
+
+        System.out.println("Latency-aware balancing: " + balancingConf.getLatencyAware() + ", hedged reads: "
+                + (balancingConf.getHedgedReads() ? balancingConf.getHedgePercentile() : "no")
+                + ", region-aware routing: " + lilyClient.getRegionAwareRouting());
+    }
+
     private void loadConfig(InputStream is)
             throws JsonParseException, IOException, JsonFormatException, RepositoryException, ImportConflictException,
             ImportException, InterruptedException, SecurityException, IllegalArgumentException, NoSuchMethodException,
@@ -16,6 +16,7 @@
 package org.lilyproject.avro;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 
@@ -23,8 +24,10 @@ import org.apache.avro.AvroRemoteException;
 import org.lilyproject.indexer.Indexer;
 import org.lilyproject.indexer.IndexerException;
 import org.lilyproject.repository.api.Record;
+import org.lilyproject.repository.api.RecordId;
 import org.lilyproject.repository.api.Repository;
 import org.lilyproject.repository.api.RepositoryException;
+import org.lilyproject.repository.api.SchemaId;
 import org.lilyproject.repository.api.TypeBucket;
 import org.lilyproject.repository.api.TypeManager;
 
@@ -79,6 +82,22 @@ public class AvroLilyImpl implements AvroLily {
         }
     }
 
+    @Override
+    public Object deleteRecords(List<ByteBuffer> recordIds) throws AvroRepositoryException, AvroInterruptedException {
+        try {
+            List<RecordId> ids = new ArrayList<RecordId>(recordIds.size());
+            for (ByteBuffer recordId : recordIds) {
+                ids.add(converter.convertAvroRecordId(recordId));
+            }
+            repository.delete(ids);
+            return null;
+        } catch (RepositoryException e) {
+            throw converter.convert(e);
+        } catch (InterruptedException e) {
+            throw converter.convert(e);
+        }
+    }
+
     @Override
     public ByteBuffer update(ByteBuffer record, boolean updateVersion, boolean useLatestRecordType,
                              List<AvroMutationCondition> conditions) throws AvroRemoteException {
@@ -288,6 +307,22 @@ public class AvroLilyImpl implements AvroLily {
         }
     }
 
+    @Override
+    public AvroFieldAndRecordTypes getTypesByIdWithoutCache(List<AvroSchemaId> avroIds)
+            throws AvroRepositoryException, AvroInterruptedException {
+        try {
+            List<SchemaId> ids = new ArrayList<SchemaId>(avroIds.size());
+            for (AvroSchemaId avroId : avroIds) {
+                ids.add(converter.convert(avroId));
+            }
+            return converter.convertFieldAndRecordTypes(typeManager.getTypesWithoutCache(ids));
+        } catch (RepositoryException e) {
+            throw converter.convert(e);
+        } catch (InterruptedException e) {
+            throw converter.convert(e);
+        }
+    }
+
     @Override
     public List<String> getVariants(ByteBuffer recordId) throws AvroRepositoryException, AvroInterruptedException {
         try {
@@ -22,6 +22,7 @@ import java.util.Map;
 import org.lilyproject.bytes.api.DataInput;
 import org.lilyproject.bytes.api.DataOutput;
 import org.lilyproject.bytes.impl.DataOutputImpl;
+import org.lilyproject.repository.api.FieldType;
 import org.lilyproject.repository.api.FieldTypes;
 import org.lilyproject.repository.api.IdGenerator;
 import org.lilyproject.repository.api.IdRecord;
@@ -29,6 +30,7 @@ import org.lilyproject.repository.api.IdentityRecordStack;
 import org.lilyproject.repository.api.QName;
 import org.lilyproject.repository.api.Record;
 import org.lilyproject.repository.api.RecordException;
+import org.lilyproject.repository.api.RecordTypeNotFoundException;
 import org.lilyproject.repository.api.Repository;
 import org.lilyproject.repository.api.RepositoryException;
 import org.lilyproject.repository.api.ResponseStatus;
@@ -41,13 +43,21 @@ import org.lilyproject.repository.impl.IdRecordImpl;
 /**
  * (De)serialization of Record objects from/to bytes.
  *
+ * <p>The compact format, written by {@link #writeCompact}, refers to field types and record types by their
+ * id instead of by their name, the type manager serves as dictionary to map them back to names. This is
+ * considerably smaller, but can only be read back against the same repository. The read methods support
+ * both formats.</p>
+ *
  * <p>TODO: idea for further improvement: the namespaces of the QName's could be stored just once
  * and mapped to a short prefix, giving some compression.</p>
  */
 public class RecordAsBytesConverter {
     private static final byte NULL_MARKER = 0;
     private static final byte NOT_NULL_MARKER = 1;
+    private static final byte TYPE_ID_MARKER = 2;
     private static final int VERSION_1 = 1;
+    /** The compact format, using type ids instead of names. */
+    private static final int VERSION_2 = 2;
 
     public static final byte[] write(Record record, Repository repository)
             throws RepositoryException, InterruptedException {
@@ -58,8 +68,23 @@ public class RecordAsBytesConverter {
 
     public static final void write(Record record, DataOutput output, Repository repository)
             throws RepositoryException, InterruptedException {
+        write(record, output, repository, false);
+    }
+
+    /**
+     * Writes the record in the compact format, see the class description.
+     */
+    public static final void writeCompact(Record record, DataOutput output, Repository repository)
+            throws RepositoryException, InterruptedException {
+        write(record, output, repository, true);
+    }
+
+    private static final void write(Record record, DataOutput output, Repository repository, boolean useTypeIds)
+            throws RepositoryException, InterruptedException {
+        TypeManager typeManager = repository.getTypeManager();
+
         // Write serialization format version
-        output.writeShort(VERSION_1);
+        output.writeShort(useTypeIds ? VERSION_2 : VERSION_1);
 
         // Write ID or null
         writeNullOrBytes(record.getId() != null ? record.getId().toBytes() : null, output);
@@ -70,12 +95,16 @@ public class RecordAsBytesConverter {
         // Write record type info for each scope (all parts can be null)
         // This assumes the Scope enum stays stable!
         for (Scope scope : Scope.values()) {
-            writeNullOrQName(record.getRecordTypeName(scope), output);
+            if (useTypeIds) {
+                writeNullOrRecordTypeRef(record.getRecordTypeName(scope), output, typeManager);
+            } else {
+                writeNullOrQName(record.getRecordTypeName(scope), output);
+            }
             writeNullOrVLong(record.getRecordTypeVersion(scope), output);
         }
 
         // Write the fields array
-        FieldTypes fieldTypes = repository.getTypeManager().getFieldTypesSnapshot();
+        FieldTypes fieldTypes = typeManager.getFieldTypesSnapshot();
         output.writeVInt(record.getFields().size());
         for (Map.Entry<QName, Object> entry : record.getFields().entrySet()) {
             if (entry.getKey() == null) {
@@ -85,10 +114,16 @@ public class RecordAsBytesConverter {
                 throw new IllegalArgumentException("Record contains field with null value.");
             }
 
-            ValueType valueType = fieldTypes.getFieldType(entry.getKey()).getValueType();
+            FieldType fieldType = fieldTypes.getFieldType(entry.getKey());
+            ValueType valueType = fieldType.getValueType();
 
-            writeQName(entry.getKey(), output);
-            output.writeUTF(valueType.getName());
+            if (useTypeIds) {
+                // the value type follows from the field type
+                writeBytes(fieldType.getId().getBytes(), output);
+            } else {
+                writeQName(entry.getKey(), output);
+                output.writeUTF(valueType.getName());
+            }
             try {
                 valueType.write(entry.getValue(), output, new IdentityRecordStack());
             } catch (Exception e) {
@@ -99,7 +134,19 @@ public class RecordAsBytesConverter {
         // Write the fields to delete
         output.writeVInt(record.getFieldsToDelete().size());
         for (QName name : record.getFieldsToDelete()) {
-            writeQName(name, output);
+            if (useTypeIds) {
+                // fields to delete don't necessarily exist, hence fall back to the name
+                FieldType fieldType = fieldTypes.getFieldTypeByNameReturnNull(name);
+                if (fieldType != null) {
+                    output.writeByte(TYPE_ID_MARKER);
+                    writeBytes(fieldType.getId().getBytes(), output);
+                } else {
+                    output.writeByte(NOT_NULL_MARKER);
+                    writeQName(name, output);
+                }
+            } else {
+                writeQName(name, output);
+            }
         }
 
 
@@ -121,18 +168,30 @@ public class RecordAsBytesConverter {
 
     public static final Record read(DataInput input, Repository repository)
             throws RepositoryException, InterruptedException {
+        return read(readVersion(input), input, repository);
+    }
+
+    private static final int readVersion(DataInput input) {
         // Read & check version
         int version = input.readShort();
-        if (version != VERSION_1) {
+        if (version != VERSION_1 && version != VERSION_2) {
             throw new RuntimeException("Unsupported record serialization version: " + version);
         }
+        return version;
+    }
+
+    private static final Record read(int version, DataInput input, Repository repository)
+            throws RepositoryException, InterruptedException {
+        boolean useTypeIds = version == VERSION_2;
+        TypeManager typeManager = repository.getTypeManager();
+        IdGenerator idGenerator = repository.getIdGenerator();
 
         Record record = repository.newRecord();
 
         // Read ID
         byte[] idBytes = readNullOrBytes(input);
         if (idBytes != null) {
-            record.setId(repository.getIdGenerator().fromBytes(idBytes));
+            record.setId(idGenerator.fromBytes(idBytes));
         }
 
         // Read version
@@ -140,18 +199,27 @@ public class RecordAsBytesConverter {
 
         // Read record types for each scope
         for (Scope scope : Scope.values()) {
-            QName recordType = readNullOrQName(input);
+            QName recordType = useTypeIds ? readNullOrRecordTypeRef(input, typeManager, idGenerator)
+                    : readNullOrQName(input);
             Long rtVersion = readNullOrVLong(input);
             record.setRecordType(scope, recordType, rtVersion);
         }
 
         // Read fields array
-        TypeManager typeManager = repository.getTypeManager();
+        FieldTypes fieldTypes = useTypeIds ? typeManager.getFieldTypesSnapshot() : null;
         int size = input.readVInt();
         for (int i = 0; i < size; i++) {
-            QName name = readQName(input);
-            String valueTypeName = input.readUTF();
-            ValueType valueType = typeManager.getValueType(valueTypeName);
+            QName name;
+            ValueType valueType;
+            if (useTypeIds) {
+                FieldType fieldType = fieldTypes.getFieldType(idGenerator.getSchemaId(readBytes(input)));
+                name = fieldType.getName();
+                valueType = fieldType.getValueType();
+            } else {
+                name = readQName(input);
+                String valueTypeName = input.readUTF();
+                valueType = typeManager.getValueType(valueTypeName);
+            }
             Object value = valueType.read(input);
             record.setField(name, value);
         }
@@ -159,7 +227,13 @@ public class RecordAsBytesConverter {
         // Read fields to delete
         size = input.readVInt();
         for (int i = 0; i < size; i++) {
-            record.getFieldsToDelete().add(readQName(input));
+            QName name;
+            if (useTypeIds && input.readByte() == TYPE_ID_MARKER) {
+                name = fieldTypes.getFieldType(idGenerator.getSchemaId(readBytes(input))).getName();
+            } else {
+                name = readQName(input);
+            }
+            record.getFieldsToDelete().add(name);
         }
 
         // Read transient attributes
@@ -189,12 +263,27 @@ public class RecordAsBytesConverter {
 
     public static final void writeIdRecord(IdRecord record, DataOutput output, Repository repository)
             throws RepositoryException, InterruptedException {
-        write(record, output, repository);
+        writeIdRecord(record, output, repository, false);
+    }
+
+    /**
+     * Writes the IdRecord in the compact format, see the class description.
+     */
+    public static final void writeIdRecordCompact(IdRecord record, DataOutput output, Repository repository)
+            throws RepositoryException, InterruptedException {
+        writeIdRecord(record, output, repository, true);
+    }
+
+    private static final void writeIdRecord(IdRecord record, DataOutput output, Repository repository,
+            boolean useTypeIds) throws RepositoryException, InterruptedException {
+        write(record, output, repository, useTypeIds);
 
         output.writeVInt(record.getFieldIdToNameMapping().size());
         for (Map.Entry<SchemaId, QName> entry : record.getFieldIdToNameMapping().entrySet()) {
             writeBytes(entry.getKey().getBytes(), output);
-            writeQName(entry.getValue(), output);
+            if (!useTypeIds) {
+                writeQName(entry.getValue(), output);
+            }
         }
 
         for (Scope scope : Scope.values()) {
@@ -205,17 +294,19 @@ public class RecordAsBytesConverter {
 
     public static final IdRecord readIdRecord(DataInput input, Repository repository)
             throws RepositoryException, InterruptedException {
-        Record record = read(input, repository);
+        int version = readVersion(input);
+        Record record = read(version, input, repository);
 
         IdGenerator idGenerator = repository.getIdGenerator();
+        FieldTypes fieldTypes = version == VERSION_2 ? repository.getTypeManager().getFieldTypesSnapshot() : null;
 
         int size = input.readVInt();
         Map<SchemaId, QName> idToQNameMapping = new HashMap<SchemaId, QName>();
         for (int i = 0; i < size; i++) {
             byte[] schemaIdBytes = readBytes(input);
-            QName name = readQName(input);
-
             SchemaId schemaId = idGenerator.getSchemaId(schemaIdBytes);
+            QName name = fieldTypes != null ? fieldTypes.getFieldType(schemaId).getName() : readQName(input);
+
             idToQNameMapping.put(schemaId, name);
         }
 
@@ -260,6 +351,46 @@ public class RecordAsBytesConverter {
         }
     }
 
+    /**
+     * Writes a reference to a record type by id, or by name if there is no record type with this name.
+     */
+    private static final void writeNullOrRecordTypeRef(QName name, DataOutput output, TypeManager typeManager)
+            throws RepositoryException, InterruptedException {
+        if (name == null) {
+            output.writeByte(NULL_MARKER);
+            return;
+        }
+
+        SchemaId id = null;
+        try {
+            id = typeManager.getRecordTypeByName(name, null).getId();
+        } catch (RecordTypeNotFoundException e) {
+            // write the name instead
+        }
+
+        if (id != null) {
+            output.writeByte(TYPE_ID_MARKER);
+            writeBytes(id.getBytes(), output);
+        } else {
+            output.writeByte(NOT_NULL_MARKER);
+            writeQName(name, output);
+        }
+    }
+
+    private static final QName readNullOrRecordTypeRef(DataInput input, TypeManager typeManager,
+            IdGenerator idGenerator)
+            throws RepositoryException, InterruptedException {
+        byte marker = input.readByte();
+        if (marker == NULL_MARKER) {
+            return null;
+        } else if (marker == TYPE_ID_MARKER) {
+            SchemaId id = idGenerator.getSchemaId(readBytes(input));
+            return typeManager.getRecordTypeById(id, null).getName();
+        } else {
+            return readQName(input);
+        }
+    }
+
     private static final void writeBytes(byte[] bytes, DataOutput output) {
         output.writeVInt(bytes.length);
         output.writeBytes(bytes);
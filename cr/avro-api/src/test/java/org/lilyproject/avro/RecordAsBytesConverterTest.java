@@ -0,0 +1,124 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.avro;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import org.easymock.IMocksControl;
+import org.junit.Before;
+import org.junit.Test;
+import org.lilyproject.avro.repository.RecordAsBytesConverter;
+import org.lilyproject.bytes.impl.DataInputImpl;
+import org.lilyproject.bytes.impl.DataOutputImpl;
+import org.lilyproject.repository.api.FieldType;
+import org.lilyproject.repository.api.FieldTypes;
+import org.lilyproject.repository.api.IdGenerator;
+import org.lilyproject.repository.api.QName;
+import org.lilyproject.repository.api.Record;
+import org.lilyproject.repository.api.RecordTypeNotFoundException;
+import org.lilyproject.repository.api.Repository;
+import org.lilyproject.repository.api.SchemaId;
+import org.lilyproject.repository.api.Scope;
+import org.lilyproject.repository.api.TypeManager;
+import org.lilyproject.repository.api.ValueType;
+import org.lilyproject.repository.impl.FieldTypeImpl;
+import org.lilyproject.repository.impl.RecordImpl;
+import org.lilyproject.repository.impl.RecordTypeImpl;
+import org.lilyproject.repository.impl.id.IdGeneratorImpl;
+import org.lilyproject.repository.impl.id.SchemaIdImpl;
+import org.lilyproject.repository.impl.valuetype.StringValueType;
+
+import static org.easymock.EasyMock.createControl;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RecordAsBytesConverterTest {
+    private IMocksControl control;
+    private Repository repository;
+    private TypeManager typeManager;
+    private FieldTypes fieldTypes;
+
+    private QName fieldName = new QName("ns", "field");
+    private FieldType fieldType;
+    private QName recordTypeName = new QName("ns", "rt");
+    private SchemaId recordTypeId = new SchemaIdImpl(UUID.randomUUID());
+
+    @Before
+    public void setUp() throws Exception {
+        control = createControl();
+        repository = control.createMock(Repository.class);
+        typeManager = control.createMock(TypeManager.class);
+        fieldTypes = control.createMock(FieldTypes.class);
+
+        ValueType valueType = new StringValueType();
+        IdGenerator idGenerator = new IdGeneratorImpl();
+        fieldType = new FieldTypeImpl(new SchemaIdImpl(UUID.randomUUID()), valueType, fieldName, Scope.VERSIONED);
+
+        repository.getTypeManager();
+        expectLastCall().andReturn(typeManager).anyTimes();
+        repository.newRecord();
+        expectLastCall().andReturn(new RecordImpl()).anyTimes();
+        repository.getIdGenerator();
+        expectLastCall().andReturn(idGenerator).anyTimes();
+        typeManager.getFieldTypesSnapshot();
+        expectLastCall().andReturn(fieldTypes).anyTimes();
+        typeManager.getValueType("STRING");
+        expectLastCall().andReturn(valueType).anyTimes();
+        typeManager.getRecordTypeByName(recordTypeName, null);
+        expectLastCall().andReturn(new RecordTypeImpl(recordTypeId, recordTypeName)).anyTimes();
+        typeManager.getRecordTypeById(recordTypeId, null);
+        expectLastCall().andReturn(new RecordTypeImpl(recordTypeId, recordTypeName)).anyTimes();
+        fieldTypes.getFieldType(fieldName);
+        expectLastCall().andReturn(fieldType).anyTimes();
+        fieldTypes.getFieldType(fieldType.getId());
+        expectLastCall().andReturn(fieldType).anyTimes();
+        fieldTypes.getFieldTypeByNameReturnNull(fieldName);
+        expectLastCall().andReturn(fieldType).anyTimes();
+    }
+
+    @Test
+    public void testCompactRoundTrip() throws Exception {
+        QName unknownRecordType = new QName("ns", "unknown");
+        typeManager.getRecordTypeByName(unknownRecordType, null);
+        expectLastCall().andThrow(new RecordTypeNotFoundException(unknownRecordType, null)).anyTimes();
+        QName unknownField = new QName("devnull", "fieldToDelete");
+        fieldTypes.getFieldTypeByNameReturnNull(unknownField);
+        expectLastCall().andReturn(null).anyTimes();
+        control.replay();
+
+        Record record = new RecordImpl();
+        record.setId(repository.getIdGenerator().newRecordId());
+        record.setRecordType(Scope.NON_VERSIONED, recordTypeName, 1L);
+        record.setRecordType(Scope.VERSIONED, unknownRecordType, 2L);
+        record.setField(fieldName, "aValue");
+        record.addFieldsToDelete(Arrays.asList(fieldName, unknownField));
+
+        DataOutputImpl compactOutput = new DataOutputImpl();
+        RecordAsBytesConverter.writeCompact(record, compactOutput, repository);
+        Record compactRecord = RecordAsBytesConverter.read(new DataInputImpl(compactOutput.toByteArray()), repository);
+        assertEquals(record, compactRecord);
+        assertEquals(record.getFieldsToDelete(), compactRecord.getFieldsToDelete());
+
+        // The compact format is smaller, and both formats can be read
+        DataOutputImpl output = new DataOutputImpl();
+        RecordAsBytesConverter.write(record, output, repository);
+        assertTrue(compactOutput.toByteArray().length < output.toByteArray().length);
+        assertEquals(record, RecordAsBytesConverter.read(new DataInputImpl(output.toByteArray()), repository));
+        control.verify();
+    }
+}
@@ -22,9 +22,41 @@ import java.io.IOException;
 import org.apache.hadoop.hbase.filter.WritableByteArrayComparable;
 import org.apache.hadoop.hbase.util.Bytes;
 
+/**
+ * Checks if a blob field contains one of a number of blob keys: the comparison gives 0 (equal) if any of the
+ * blob keys occurs in the field value. The blob field can be a multivalue and / or hierarchical field.
+ *
+ * <p>The field value is walked once, without copying anything: the blob keys are located using their length
+ * prefix, blob keys of a length that none of the searched keys has are skipped without comparing them, and
+ * the rest of each blob is skipped using the length prefixes of its media type and name.</p>
+ *
+ * <p>IMPORTANT: This implementation depends on the byte encodings from ValueTypeImpl, BlobValueType,
+ * ListValueType, PathValueType and DataOutputImpl. Any changes there have an impact on this implementation.</p>
+ */
 public class ContainsValueComparator extends WritableByteArrayComparable {
+    private static final byte DELETED_FLAG = 1;
+
+    /**
+     * Version of the Writable format, written first, so that the format can evolve.
+     */
+    private static final byte FORMAT_VERSION = 1;
+
+    /**
+     * Position returned when one of the blob keys was found.
+     */
+    private static final int FOUND = -1;
+
+    /**
+     * Position returned when the value is not encoded as expected.
+     */
+    private static final int INVALID = -2;
+
+    private int nestingLevel;
+    private byte[][] blobKeys;
+
     private byte[] nestingLevelAndValue;
-    private int offset;
+    private int minKeyLength;
+    private int maxKeyLength;
 
     /**
      * Nullary constructor, for Writable
@@ -34,11 +66,35 @@ public class ContainsValueComparator extends WritableByteArrayComparable {
     }
     
     /**
-     * Constructor.
-     * 
+     * @param nestingLevelAndValue the nesting level of the value type of the field (an int), followed by the
+     *                             blob key to search for
      */
     public ContainsValueComparator(byte[] nestingLevelAndValue) {
-        this.nestingLevelAndValue = nestingLevelAndValue;
+        this(Bytes.toInt(nestingLevelAndValue), Bytes.tail(nestingLevelAndValue,
+                nestingLevelAndValue.length - Bytes.SIZEOF_INT));
+    }
+
+    /**
+     * @param nestingLevel the nesting level of the value type of the field
+     * @param blobKeys the blob keys to search for, the comparison matches if any of them occurs in the field
+     */
+    public ContainsValueComparator(int nestingLevel, byte[]... blobKeys) {
+        if (blobKeys.length == 0) {
+            throw new IllegalArgumentException("At least one blob key is required");
+        }
+        this.nestingLevel = nestingLevel;
+        this.blobKeys = blobKeys;
+        init();
+    }
+
+    private void init() {
+        nestingLevelAndValue = Bytes.add(Bytes.toBytes(nestingLevel), blobKeys[0]);
+        minKeyLength = Integer.MAX_VALUE;
+        maxKeyLength = 0;
+        for (byte[] blobKey : blobKeys) {
+            minKeyLength = Math.min(minKeyLength, blobKey.length);
+            maxKeyLength = Math.max(maxKeyLength, blobKey.length);
+        }
     }
 
     @Override
@@ -48,97 +104,120 @@ public class ContainsValueComparator extends WritableByteArrayComparable {
 
     @Override
     public void readFields(DataInput in) throws IOException {
-        nestingLevelAndValue = Bytes.readByteArray(in);
+        byte version = in.readByte();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported ContainsValueComparator format version: " + version);
+        }
+        nestingLevel = in.readInt();
+        blobKeys = new byte[in.readInt()][];
+        for (int i = 0; i < blobKeys.length; i++) {
+            blobKeys[i] = Bytes.readByteArray(in);
+        }
+        init();
     }
 
     @Override
     public void write(DataOutput out) throws IOException {
-        Bytes.writeByteArray(out, nestingLevelAndValue);
+        out.writeByte(FORMAT_VERSION);
+        out.writeInt(nestingLevel);
+        out.writeInt(blobKeys.length);
+        for (byte[] blobKey : blobKeys) {
+            Bytes.writeByteArray(out, blobKey);
+        }
     }
 
     @Override
-    /**
-     * Checks if a blob key (ourStoreKey) is contained in the blob field (theirValue).
-     * The blob field can be a multivalue and / or hierarchical field.
-     * 
-     * <p>IMPORTANT: This implementation depends on the byte encodings from ValueTypeImpl, BlobValueType and DataOutputImpl.
-     *               Any changes there have an impact on this implementation. 
-     */
     public int compareTo(byte[] theirValue) {
-        byte[] ourStoreKey = Bytes.tail(nestingLevelAndValue, nestingLevelAndValue.length-Bytes.SIZEOF_INT);
-        if (theirValue == null && ourStoreKey == null)
-            return 0;
-        if (theirValue.length == 0 && ourStoreKey.length == 0)
-            return 0;
-        if (theirValue.length < ourStoreKey.length)
+        if (theirValue == null || theirValue.length < 1 + minKeyLength) {
             return -1;
-        if (theirValue[0] == (byte)(1)) { // First byte indicates if it was deleted or not
+        }
+        if (theirValue[0] == DELETED_FLAG) { // First byte indicates if it was deleted or not
             return -1;
         }
 
-        int nestingLevel = Bytes.toInt(nestingLevelAndValue);
-        offset = 1;
-        
-        return compareBlob(nestingLevel, ourStoreKey, theirValue);
-    }
-    
-    private int compareBlob(int nestingLevel, byte[] ourStoreKey, byte[] theirValue) {
-        int compareTo = -1;
-        if (0 == nestingLevel) {
-            compareTo = compareBlob(ourStoreKey, theirValue);
-            if (0 == compareTo)
-                return 0;
-            skipRestOfBlob(theirValue);
-        } else {
-            int count = readInt(theirValue); // Number of elements in the list or path
-            for (int i = 0; i < count; i++) {
-                compareTo = compareBlob(nestingLevel-1, ourStoreKey, theirValue);
-                if (0 == compareTo)
-                    return 0;
-            }
-        }
-        return compareTo;
+        return find(theirValue, 1, nestingLevel) == FOUND ? 0 : -1;
     }
-    
+
     /**
-     * Compares the value of the blob with ourStoreKey
+     * Searches the blob keys in the value at the given position.
+     *
+     * @return the position after the value, or FOUND or INVALID
      */
-    private int compareBlob(byte[] ourStoreKey, byte[] theirValue) {
-        offset++; // Skip the encoding byte. Currently there is only one encoding version so we can ignore it.
-        int blobValueLength = readVInt(theirValue); // Length of the blob value
-        int compareTo = Bytes.compareTo(ourStoreKey, 0, ourStoreKey.length, theirValue, offset , blobValueLength);
-        offset += blobValueLength;
-        return compareTo;
+    private int find(byte[] value, int pos, int nestingLevel) {
+        if (nestingLevel == 0) {
+            return findInBlob(value, pos);
+        }
+
+        // The number of elements in the list or path
+        if (pos + Bytes.SIZEOF_INT > value.length) {
+            return INVALID;
+        }
+        int count = Bytes.toInt(value, pos);
+        pos += Bytes.SIZEOF_INT;
+        for (int i = 0; i < count && pos >= 0; i++) {
+            pos = find(value, pos, nestingLevel - 1);
+        }
+        return pos;
     }
-    
-    /**
-     * Skips the rest of the blob (media type, blob size, name) and puts the offset to the next value to be read
-     */
-    private void skipRestOfBlob(byte[] theirValue) {
-        int mediaTypeLength = readInt(theirValue); // Length of the blob media type (offset = offset + blobvaluelength_size + blobvalue_size)
-        offset += mediaTypeLength;
-        offset += 8; // Blob size (long)
-        int nameLength = readInt(theirValue); // Length of the blob name (offset = offset + blobvaluelength_size + blobvalue_size + mediaTypeLength_size + mediaType_size + blobsize_long)
-        offset += nameLength;
+
+    private int findInBlob(byte[] value, int pos) {
+        pos++; // Skip the encoding byte. Currently there is only one encoding version so we can ignore it.
+
+        // The blob key, prefixed with its length as vint
+        int keyLength = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (pos >= value.length || shift > 28) {
+                return INVALID;
+            }
+            byte b = value[pos++];
+            keyLength |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (keyLength > value.length - pos) {
+            return INVALID;
+        }
+        if (keyLength >= minKeyLength && keyLength <= maxKeyLength && matches(value, pos, keyLength)) {
+            return FOUND;
+        }
+        pos += keyLength;
+
+        // The rest of the blob: media type, size (long) and name
+        pos = skipUTF(value, pos);
+        if (pos < 0 || pos + Bytes.SIZEOF_LONG > value.length) {
+            return INVALID;
+        }
+        pos += Bytes.SIZEOF_LONG;
+        return skipUTF(value, pos);
     }
-    
-    private int readInt(byte[] bytes) {
-        return ((bytes[offset++] & 0xFF) << 24) | ((bytes[offset++] & 0xFF) << 16)
-        | ((bytes[offset++] & 0xFF) << 8) | (bytes[offset++] & 0xFF);
+
+    private boolean matches(byte[] value, int offset, int length) {
+        for (byte[] blobKey : blobKeys) {
+            // Comparing the last byte first quickly rejects most keys of the same length
+            if (blobKey.length == length && (length == 0 || blobKey[length - 1] == value[offset + length - 1]) &&
+                    Bytes.compareTo(blobKey, 0, length, value, offset, length) == 0) {
+                return true;
+            }
+        }
+        return false;
     }
-    
+
     /**
-     * Reads an int stored in variable-length format. Reads between one and
-     * five bytes. Smaller values take fewer bytes. Negative numbers are not
-     * supported.
+     * Skips a string written by DataOutputImpl.writeUTF, which starts with its length as int, -1 for null.
      */
-     public int readVInt(byte[] bytes) {
-         byte b = bytes[offset++];
-         int i = b & 0x7F;
-         for (int shift = 7; (b & 0x80) != 0; shift += 7) {
-             b = bytes[offset++];
-             i |= (b & 0x7F) << shift;
-         }
-         return i;
-     }
+    private static int skipUTF(byte[] value, int pos) {
+        if (pos + Bytes.SIZEOF_INT > value.length) {
+            return INVALID;
+        }
+        int length = Bytes.toInt(value, pos);
+        pos += Bytes.SIZEOF_INT;
+        if (length > 0) {
+            if (length > value.length - pos) {
+                return INVALID;
+            }
+            pos += length;
+        }
+        return pos;
+    }
 }
@@ -3,16 +3,14 @@ package org.lilyproject.hbaseext;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.SortedMap;
 
-import com.google.common.base.Predicate;
-import com.google.common.collect.Maps;
+import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.filter.FilterBase;
-import org.lilyproject.bytes.impl.DataInputImpl;
-import org.lilyproject.repository.api.RecordId;
-import org.lilyproject.repository.impl.id.IdGeneratorImpl;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.lilyproject.bytes.impl.DataOutputImpl;
 import org.lilyproject.util.ArgumentValidator;
 
 /**
@@ -21,19 +19,51 @@ import org.lilyproject.util.ArgumentValidator;
  * ones). If the value of the variant property is specified, it has to match exactly. If the value is
  * <code>null</code>, any value will match.
  *
+ * <p>The row keys are matched on their encoded form, without decoding them into record ids. When the master record
+ * id is specified, rows before its variants are skipped using a seek hint, and the scan ends once past them. When
+ * no variant properties are specified, i.e. only master records are requested, the variants of a master record are
+ * skipped using a seek hint to the next master record.</p>
  *
+ * <p>The seek hints are only an optimization: the rows they skip are rejected by {@link #filterRowKey} as well,
+ * so that this filter can be used on its own and in any {@link org.apache.hadoop.hbase.filter.FilterList}. Since
+ * HBase does not call {@link #filterKeyValue} for rows rejected by their key, the hints are only followed when
+ * this filter is evaluated through a {@link LilyScanFilter}.</p>
  */
 public class LilyRecordVariantFilter extends FilterBase {
+    // The identifier bytes of the record id types, see IdGeneratorImpl.IdType
+    private static final byte USER_ID_TYPE = 0;
+    private static final byte UUID_ID_TYPE = 1;
+    private static final int UUID_MASTER_LENGTH = 17;
+
     private Map<String, String> variantProperties;
-    private final IdGeneratorImpl idGenerator = new IdGeneratorImpl();
+    private byte[] masterRecordId;
+
+    // The variant properties in the form they are encoded in the row keys
+    private byte[][] names;
+    private byte[][] values;
+
+    private boolean filterAllRemaining;
+    // The state of the current row
+    private boolean filterRow;
+    private KeyValue nextKeyHint;
 
     /**
      * @param variantProperties the variant properties that the records should have
      */
     public LilyRecordVariantFilter(final Map<String, String> variantProperties) {
+        this(null, variantProperties);
+    }
+
+    /**
+     * @param masterRecordId the encoded master record id of the records, can be null
+     * @param variantProperties the variant properties that the records should have
+     */
+    public LilyRecordVariantFilter(byte[] masterRecordId, final Map<String, String> variantProperties) {
         ArgumentValidator.notNull(variantProperties, "variantProperties");
 
+        this.masterRecordId = masterRecordId;
         this.variantProperties = variantProperties;
+        encodeVariantProperties();
     }
 
     public LilyRecordVariantFilter() {
@@ -44,42 +74,225 @@ public class LilyRecordVariantFilter extends FilterBase {
         return variantProperties;
     }
 
+    public byte[] getMasterRecordId() {
+        return masterRecordId;
+    }
+
+    private void encodeVariantProperties() {
+        names = new byte[variantProperties.size()][];
+        values = new byte[variantProperties.size()][];
+        int i = 0;
+        for (Map.Entry<String, String> variantProperty : variantProperties.entrySet()) {
+            names[i] = encode(variantProperty.getKey());
+            values[i] = variantProperty.getValue() != null ? encode(variantProperty.getValue()) : null;
+            i++;
+        }
+    }
+
+    private static byte[] encode(String string) {
+        // Same encoding as used for the variant properties of record ids
+        DataOutputImpl output = new DataOutputImpl(string.length() + 4);
+        output.writeUTF(string, false);
+        return output.toByteArray();
+    }
+
+    @Override
+    public void reset() {
+        filterRow = false;
+        nextKeyHint = null;
+    }
+
+    @Override
+    public boolean filterAllRemaining() {
+        return filterAllRemaining;
+    }
+
     public boolean filterRowKey(byte[] buffer, int offset, int length) {
         // note: return value true means it is NOT a result of the scanner, false otherwise
+        filterRow = rejectRowKey(buffer, offset, length);
+        return filterRow;
+    }
+
+    /**
+     * Returns true if the current row, which was rejected by {@link #filterRowKey}, can be skipped using the seek
+     * hint of {@link #filterKeyValue}.
+     */
+    boolean hasNextKeyHint() {
+        return nextKeyHint != null;
+    }
+
+    private boolean rejectRowKey(byte[] buffer, int offset, int length) {
+        if (buffer == null || length == 0)
+            return true;
+
+        int end = offset + length;
 
-        if (buffer == null)
+        // Determine where the master record id ends and the variant properties start
+        int masterEnd;
+        int variantStart;
+        byte idType = buffer[offset];
+        if (idType == USER_ID_TYPE) {
+            masterEnd = indexOf(buffer, offset + 1, end, (byte)0);
+            // the variant properties follow a separator byte
+            variantStart = masterEnd < end ? masterEnd + 1 : -1;
+        } else if (idType == UUID_ID_TYPE) {
+            masterEnd = Math.min(offset + UUID_MASTER_LENGTH, end);
+            variantStart = masterEnd < end ? masterEnd : -1;
+        } else {
             return true;
+        }
 
-        final RecordId recordId = idGenerator.fromBytes(new DataInputImpl(buffer, offset, length));
+        if (masterRecordId != null) {
+            int cmp = Bytes.compareTo(buffer, offset, masterEnd - offset, masterRecordId, 0, masterRecordId.length);
+            if (cmp < 0) {
+                // Let filterKeyValue skip to the first row of the master record
+                nextKeyHint = KeyValue.createFirstOnRow(masterRecordId);
+                return true;
+            } else if (cmp > 0) {
+                // The rows of the master record are sorted together, so there are no further matches
+                filterAllRemaining = true;
+                return true;
+            }
+        }
 
-        final SortedMap<String, String> recordVariantProperties = recordId.getVariantProperties();
+        if (variantStart == -1) {
+            // a master record
+            return names.length != 0;
+        }
 
-        // check if the record has all expected variant properties
-        if (containsAllExpectedDimensions(recordVariantProperties) &&
-                hasSameValueForValuedDimensions(recordVariantProperties)) {
+        if (names.length == 0) {
+            // None of the variants of this master record will match, skip to the next master record
+            byte[] nextMaster = prefixSuccessor(buffer, offset, variantStart - offset);
+            if (nextMaster == null) {
+                filterAllRemaining = true;
+                return true;
+            }
+            nextKeyHint = KeyValue.createFirstOnRow(nextMaster);
+            return true;
+        }
 
-            // check if the record doesn't have other variant properties
-            return variantProperties.size() != recordVariantProperties.size();
-        } else return true;
+        return !matchVariantProperties(buffer, variantStart, end);
     }
 
-    private boolean containsAllExpectedDimensions(Map<String, String> recordVariantProperties) {
-        return recordVariantProperties.keySet().containsAll(this.variantProperties.keySet());
+    /**
+     * Checks that the encoded variant properties have exactly the expected names, and the expected values
+     * for those that have one.
+     */
+    private boolean matchVariantProperties(byte[] buffer, int pos, int end) {
+        int matched = 0;
+        while (pos < end) {
+            int nameLength = readVInt(buffer, pos, end);
+            if (nameLength < 0) {
+                return false;
+            }
+            pos += vIntSize(nameLength);
+            int namePos = pos;
+            pos += nameLength;
+            if (pos >= end) {
+                return false;
+            }
+
+            int valueLength = readVInt(buffer, pos, end);
+            if (valueLength < 0) {
+                return false;
+            }
+            pos += vIntSize(valueLength);
+            int valuePos = pos;
+            pos += valueLength;
+            if (pos > end) {
+                return false;
+            }
+
+            int index = indexOfName(buffer, namePos, nameLength);
+            if (index == -1) {
+                // a variant property which was not asked for
+                return false;
+            }
+            if (values[index] != null &&
+                    Bytes.compareTo(values[index], 0, values[index].length, buffer, valuePos, valueLength) != 0) {
+                return false;
+            }
+            matched++;
+        }
+
+        // the names in a record id are unique, so this means all expected variant properties are present
+        return matched == names.length;
+    }
+
+    private int indexOfName(byte[] buffer, int offset, int length) {
+        for (int i = 0; i < names.length; i++) {
+            if (Bytes.compareTo(names[i], 0, names[i].length, buffer, offset, length) == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public ReturnCode filterKeyValue(KeyValue ignored) {
+        if (nextKeyHint != null) {
+            return ReturnCode.SEEK_NEXT_USING_HINT;
+        }
+        return filterRow ? ReturnCode.NEXT_ROW : ReturnCode.INCLUDE;
+    }
+
+    @Override
+    public boolean filterRow() {
+        return filterRow;
     }
 
-    private boolean hasSameValueForValuedDimensions(Map<String, String> variantProperties) {
-        return variantProperties.entrySet().containsAll(getValuedDimensions().entrySet());
+    @Override
+    public KeyValue getNextKeyHint(KeyValue currentKV) {
+        return nextKeyHint;
     }
 
-    private Map<String, String> getValuedDimensions() {
-        return Maps.filterValues(variantProperties, new Predicate<String>() {
-            @Override
-            public boolean apply(String input) {
-                return input != null;
+    private static int indexOf(byte[] buffer, int start, int end, byte b) {
+        for (int i = start; i < end; i++) {
+            if (buffer[i] == b) {
+                return i;
             }
-        });
+        }
+        return end;
+    }
+
+    /**
+     * Reads a vint as written by {@link DataOutputImpl#writeVInt}, returns -1 if it is not complete.
+     */
+    private static int readVInt(byte[] buffer, int pos, int end) {
+        int value = 0;
+        for (int shift = 0; pos < end && shift < 32; shift += 7) {
+            byte b = buffer[pos++];
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        return -1;
+    }
+
+    private static int vIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
     }
 
+    /**
+     * Returns the smallest row key which is larger than all row keys starting with the given prefix, or null
+     * if there is none.
+     */
+    private static byte[] prefixSuccessor(byte[] buffer, int offset, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (buffer[offset + i] != (byte)0xFF) {
+                byte[] successor = Arrays.copyOfRange(buffer, offset, offset + i + 1);
+                successor[i]++;
+                return successor;
+            }
+        }
+        return null;
+    }
 
     public void write(DataOutput out) throws IOException {
         out.writeInt(variantProperties.size());
@@ -87,6 +300,10 @@ public class LilyRecordVariantFilter extends FilterBase {
             out.writeUTF(variantProperty.getKey());
             out.writeUTF(variantProperty.getValue() != null ? variantProperty.getValue() : "\u0000");
         }
+        out.writeBoolean(masterRecordId != null);
+        if (masterRecordId != null) {
+            Bytes.writeByteArray(out, masterRecordId);
+        }
     }
 
     public void readFields(DataInput in) throws IOException {
@@ -97,6 +314,7 @@ public class LilyRecordVariantFilter extends FilterBase {
             final String value = in.readUTF();
             variantProperties.put(key, value.equals("\u0000") ? null : value);
         }
+        masterRecordId = in.readBoolean() ? Bytes.readByteArray(in) : null;
+        encodeVariantProperties();
     }
 }
-
@@ -0,0 +1,337 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.hbaseext;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.filter.FilterBase;
+import org.apache.hadoop.hbase.util.Bytes;
+
+/**
+ * HBase filter which evaluates, in one pass over a row of the record table, the conditions on a Lily record
+ * that can be checked on that row alone: that the row is a real record (i.e. not deleted), its non-versioned
+ * record type, its variant properties and the existence of fields. It also leaves out the columns which are
+ * not needed to build the requested records.
+ *
+ * <p>The variant properties are checked on the row key by a {@link LilyRecordVariantFilter}, so rows of other
+ * variants are rejected without reading their cells. The other conditions are checked on the cells as they
+ * pass: the system columns sort before the field columns, so a row of another record type is abandoned before
+ * any of its fields are read, and a row missing a field is abandoned as soon as a column sorting after that
+ * field is seen.</p>
+ *
+ * <p>This filter is meant to be the top-level filter of the scan, so that the seek hints of the variant filter
+ * are followed. When combined with other filters in a {@link org.apache.hadoop.hbase.filter.FilterList}, it
+ * should be the last one, since the columns it leaves out are not passed to the filters following it.</p>
+ */
+public class LilyScanFilter extends FilterBase {
+    // The column family and columns of the record table, see LilyHBaseSchema
+    private static final byte[] DATA_FAMILY = Bytes.toBytes("data");
+    private static final byte SYSTEM_PREFIX = (byte)1;
+    private static final byte DATA_PREFIX = (byte)2;
+    private static final byte[] DELETED = Bytes.add(new byte[] {SYSTEM_PREFIX}, Bytes.toBytes("deleted"));
+    private static final byte[] NON_VERSIONED_RT_ID = Bytes.add(new byte[] {SYSTEM_PREFIX}, Bytes.toBytes("nv-rt"));
+    private static final byte[] NON_VERSIONED_RT_VERSION =
+            Bytes.add(new byte[] {SYSTEM_PREFIX}, Bytes.toBytes("nv-rtv"));
+    private static final byte[] TRUE = Bytes.toBytes(true);
+    private static final byte DELETE_FLAG = (byte)1;
+    private static final byte[][] EMPTY = new byte[0][];
+
+    private byte[] recordTypeId;
+    private byte[] recordTypeVersion;
+    private LilyRecordVariantFilter variantFilter;
+    // The column qualifiers of the fields the records should have, sorted
+    private byte[][] requiredFields = EMPTY;
+    // The column qualifiers to return, sorted, null to return all columns
+    private byte[][] returnedColumns;
+    private boolean returnAllFields;
+
+    // The state of the current row
+    private boolean filterRow;
+    private boolean deletedFound;
+    private boolean recordTypeFound;
+    private boolean recordTypeVersionFound;
+    private int nextRequiredField;
+
+    public LilyScanFilter() {
+    }
+
+    /**
+     * Sets the non-versioned record type the records should have.
+     *
+     * @param recordTypeId the encoded id of the record type, null for any record type
+     * @param version the version of the record type, null for any version
+     */
+    public void setRecordType(byte[] recordTypeId, Long version) {
+        this.recordTypeId = recordTypeId;
+        this.recordTypeVersion = version != null ? Bytes.toBytes(version) : null;
+    }
+
+    public boolean hasRecordType() {
+        return recordTypeId != null || recordTypeVersion != null;
+    }
+
+    /**
+     * Sets the filter on the record id of the records, can be null.
+     */
+    public void setVariantFilter(LilyRecordVariantFilter variantFilter) {
+        this.variantFilter = variantFilter;
+    }
+
+    public LilyRecordVariantFilter getVariantFilter() {
+        return variantFilter;
+    }
+
+    /**
+     * Adds a field the records should have, i.e. which has a value that is not a delete marker.
+     *
+     * @param qualifier the column qualifier of the field
+     */
+    public void addRequiredField(byte[] qualifier) {
+        Set<byte[]> fields = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+        for (byte[] field : requiredFields) {
+            fields.add(field);
+        }
+        fields.add(qualifier);
+        requiredFields = fields.toArray(new byte[fields.size()][]);
+    }
+
+    public byte[][] getRequiredFields() {
+        return requiredFields;
+    }
+
+    /**
+     * Sets the columns to return. By default all columns are returned.
+     *
+     * @param columns the column qualifiers to return
+     * @param allFields true to return the columns of all fields as well
+     */
+    public void setReturnedColumns(Collection<byte[]> columns, boolean allFields) {
+        Set<byte[]> sorted = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+        sorted.addAll(columns);
+        this.returnedColumns = sorted.toArray(new byte[sorted.size()][]);
+        this.returnAllFields = allFields;
+    }
+
+    @Override
+    public void reset() {
+        if (variantFilter != null) {
+            variantFilter.reset();
+        }
+        filterRow = false;
+        deletedFound = false;
+        recordTypeFound = false;
+        recordTypeVersionFound = false;
+        nextRequiredField = 0;
+    }
+
+    @Override
+    public boolean filterAllRemaining() {
+        return variantFilter != null && variantFilter.filterAllRemaining();
+    }
+
+    @Override
+    public boolean filterRowKey(byte[] buffer, int offset, int length) {
+        if (variantFilter != null && variantFilter.filterRowKey(buffer, offset, length)) {
+            // HBase does not call filterKeyValue for rows rejected here, so the rows which can be skipped using
+            // the seek hint of the variant filter are only rejected there, and in filterRow
+            return !variantFilter.hasNextKeyHint();
+        }
+        return false;
+    }
+
+    @Override
+    public ReturnCode filterKeyValue(KeyValue kv) {
+        if (filterRow) {
+            return ReturnCode.NEXT_ROW;
+        }
+
+        if (variantFilter != null) {
+            ReturnCode variantCode = variantFilter.filterKeyValue(kv);
+            if (variantCode != ReturnCode.INCLUDE) {
+                return variantCode;
+            }
+        }
+
+        if (!kv.matchingFamily(DATA_FAMILY)) {
+            return ReturnCode.INCLUDE;
+        }
+
+        byte[] buffer = kv.getBuffer();
+        int qualifierOffset = kv.getQualifierOffset();
+        int qualifierLength = kv.getQualifierLength();
+        if (qualifierLength == 0) {
+            return ReturnCode.INCLUDE;
+        }
+
+        // Only the first (most recent) cell of each column is evaluated
+        if (buffer[qualifierOffset] == SYSTEM_PREFIX) {
+            if (!deletedFound && equals(DELETED, buffer, qualifierOffset, qualifierLength)) {
+                deletedFound = true;
+                if (equals(TRUE, buffer, kv.getValueOffset(), kv.getValueLength())) {
+                    return rejectRow();
+                }
+            } else if (recordTypeId != null && !recordTypeFound &&
+                    equals(NON_VERSIONED_RT_ID, buffer, qualifierOffset, qualifierLength)) {
+                recordTypeFound = true;
+                if (!equals(recordTypeId, buffer, kv.getValueOffset(), kv.getValueLength())) {
+                    return rejectRow();
+                }
+            } else if (recordTypeVersion != null && !recordTypeVersionFound &&
+                    equals(NON_VERSIONED_RT_VERSION, buffer, qualifierOffset, qualifierLength)) {
+                recordTypeVersionFound = true;
+                if (!equals(recordTypeVersion, buffer, kv.getValueOffset(), kv.getValueLength())) {
+                    return rejectRow();
+                }
+            }
+        } else {
+            // All system columns sort before this one
+            if (!systemColumnsMatched()) {
+                return rejectRow();
+            }
+
+            if (nextRequiredField < requiredFields.length) {
+                byte[] requiredField = requiredFields[nextRequiredField];
+                int cmp = Bytes.compareTo(requiredField, 0, requiredField.length, buffer, qualifierOffset,
+                        qualifierLength);
+                if (cmp < 0) {
+                    // The required field sorts before this column, so the row does not have it
+                    return rejectRow();
+                } else if (cmp == 0) {
+                    if (kv.getValueLength() == 0 || buffer[kv.getValueOffset()] == DELETE_FLAG) {
+                        return rejectRow();
+                    }
+                    nextRequiredField++;
+                }
+            }
+        }
+
+        return isReturned(buffer, qualifierOffset, qualifierLength) ? ReturnCode.INCLUDE : ReturnCode.SKIP;
+    }
+
+    private ReturnCode rejectRow() {
+        filterRow = true;
+        return ReturnCode.NEXT_ROW;
+    }
+
+    private boolean systemColumnsMatched() {
+        // As with filterIfMissing on the former real records filter, rows without a deleted flag are rejected:
+        // these are left by a lock taken on a not-yet-existing row when the record creation failed
+        return deletedFound && (recordTypeId == null || recordTypeFound) &&
+                (recordTypeVersion == null || recordTypeVersionFound);
+    }
+
+    private boolean isReturned(byte[] buffer, int offset, int length) {
+        if (returnedColumns == null || (returnAllFields && buffer[offset] == DATA_PREFIX)) {
+            return true;
+        }
+        int low = 0;
+        int high = returnedColumns.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = Bytes.compareTo(returnedColumns[mid], 0, returnedColumns[mid].length, buffer, offset, length);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean equals(byte[] expected, byte[] buffer, int offset, int length) {
+        return Bytes.compareTo(expected, 0, expected.length, buffer, offset, length) == 0;
+    }
+
+    @Override
+    public boolean filterRow() {
+        // Checks the conditions of which no columns were seen, e.g. for rows without any fields
+        return filterRow || !systemColumnsMatched() || nextRequiredField < requiredFields.length ||
+                (variantFilter != null && variantFilter.filterRow());
+    }
+
+    @Override
+    public KeyValue getNextKeyHint(KeyValue currentKV) {
+        return variantFilter != null ? variantFilter.getNextKeyHint(currentKV) : null;
+    }
+
+    public void write(DataOutput out) throws IOException {
+        writeNullableByteArray(out, recordTypeId);
+        writeNullableByteArray(out, recordTypeVersion);
+        out.writeBoolean(variantFilter != null);
+        if (variantFilter != null) {
+            variantFilter.write(out);
+        }
+        writeByteArrays(out, requiredFields);
+        out.writeBoolean(returnedColumns != null);
+        if (returnedColumns != null) {
+            writeByteArrays(out, returnedColumns);
+            out.writeBoolean(returnAllFields);
+        }
+    }
+
+    public void readFields(DataInput in) throws IOException {
+        recordTypeId = readNullableByteArray(in);
+        recordTypeVersion = readNullableByteArray(in);
+        if (in.readBoolean()) {
+            variantFilter = new LilyRecordVariantFilter();
+            variantFilter.readFields(in);
+        } else {
+            variantFilter = null;
+        }
+        requiredFields = readByteArrays(in);
+        if (in.readBoolean()) {
+            returnedColumns = readByteArrays(in);
+            returnAllFields = in.readBoolean();
+        } else {
+            returnedColumns = null;
+            returnAllFields = false;
+        }
+    }
+
+    private static void writeNullableByteArray(DataOutput out, byte[] bytes) throws IOException {
+        out.writeBoolean(bytes != null);
+        if (bytes != null) {
+            Bytes.writeByteArray(out, bytes);
+        }
+    }
+
+    private static byte[] readNullableByteArray(DataInput in) throws IOException {
+        return in.readBoolean() ? Bytes.readByteArray(in) : null;
+    }
+
+    private static void writeByteArrays(DataOutput out, byte[][] arrays) throws IOException {
+        out.writeInt(arrays.length);
+        for (byte[] array : arrays) {
+            Bytes.writeByteArray(out, array);
+        }
+    }
+
+    private static byte[][] readByteArrays(DataInput in) throws IOException {
+        byte[][] arrays = new byte[in.readInt()][];
+        for (int i = 0; i < arrays.length; i++) {
+            arrays[i] = Bytes.readByteArray(in);
+        }
+        return arrays;
+    }
+}
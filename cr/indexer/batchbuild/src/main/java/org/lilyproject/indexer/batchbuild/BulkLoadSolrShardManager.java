@@ -0,0 +1,126 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.batchbuild;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.solr.client.solrj.response.UpdateResponse;
+import org.apache.solr.common.SolrInputDocument;
+import org.lilyproject.indexer.engine.SolrClientException;
+import org.lilyproject.indexer.engine.SolrShardManager;
+import org.lilyproject.indexer.engine.SolrUpdateClient;
+import org.lilyproject.indexer.model.sharding.ShardSelector;
+import org.lilyproject.indexer.model.sharding.ShardSelectorException;
+import org.lilyproject.repository.api.RecordId;
+
+/**
+ * SolrShardManager for bulk load mode: rather than sending documents to Solr, they are written to the
+ * map output, keyed on the name of the shard they belong to.
+ *
+ * <p>Since the shards are built from scratch, deletes are ignored. The built shards are meant to replace the
+ * indexes of the Solr shards, see {@link ShardIndexingReducer}.
+ */
+public class BulkLoadSolrShardManager implements SolrShardManager {
+    private final ShardSelector selector;
+    private final Map<String, SolrUpdateClient> clients = new HashMap<String, SolrUpdateClient>();
+
+    public BulkLoadSolrShardManager(ShardSelector selector,
+            TaskInputOutputContext<?, ?, Text, SolrInputDocumentWritable> context) {
+        this.selector = selector;
+        for (String shardName : selector.getShards()) {
+            clients.put(shardName, new MapOutputSolrClient(shardName, context));
+        }
+    }
+
+    @Override
+    public SolrUpdateClient getSolrClient(RecordId recordId) throws ShardSelectorException {
+        return clients.get(selector.getShard(recordId));
+    }
+
+    private static class MapOutputSolrClient implements SolrUpdateClient {
+        private final Text shardName;
+        private final TaskInputOutputContext<?, ?, Text, SolrInputDocumentWritable> context;
+
+        public MapOutputSolrClient(String shardName,
+                TaskInputOutputContext<?, ?, Text, SolrInputDocumentWritable> context) {
+            this.shardName = new Text(shardName);
+            this.context = context;
+        }
+
+        @Override
+        public String getDescription() {
+            return "map output for shard " + shardName;
+        }
+
+        @Override
+        public UpdateResponse add(SolrInputDocument doc) throws SolrClientException, InterruptedException {
+            // The mapper indexes records on multiple threads, the context is not thread safe
+            synchronized (context) {
+                try {
+                    context.write(shardName, new SolrInputDocumentWritable(doc));
+                } catch (IOException e) {
+                    throw new SolrClientException(getDescription(), e);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public UpdateResponse add(Collection<SolrInputDocument> docs) throws SolrClientException,
+                InterruptedException {
+            for (SolrInputDocument doc : docs) {
+                add(doc);
+            }
+            return null;
+        }
+
+        @Override
+        public UpdateResponse deleteById(String id) {
+            return null;
+        }
+
+        @Override
+        public UpdateResponse deleteById(List<String> ids) {
+            return null;
+        }
+
+        @Override
+        public UpdateResponse deleteByQuery(String query) {
+            return null;
+        }
+
+        @Override
+        public UpdateResponse commit(boolean waitFlush, boolean waitSearcher) {
+            return null;
+        }
+
+        @Override
+        public UpdateResponse commit() {
+            return null;
+        }
+
+        @Override
+        public UpdateResponse optimize(boolean waitFlush, boolean waitSearcher) {
+            return null;
+        }
+    }
+}
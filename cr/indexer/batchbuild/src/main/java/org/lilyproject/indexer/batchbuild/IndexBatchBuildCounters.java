@@ -16,5 +16,6 @@
 package org.lilyproject.indexer.batchbuild;
 
 public enum IndexBatchBuildCounters {
-    NUM_FAILED_RECORDS
+    NUM_FAILED_RECORDS,
+    NUM_BULK_LOADED_DOCUMENTS
 }
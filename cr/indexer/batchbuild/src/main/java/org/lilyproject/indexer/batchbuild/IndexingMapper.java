@@ -29,12 +29,15 @@ import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.hbase.client.Result;
-import org.apache.hadoop.hbase.io.ImmutableBytesWritable;
+import org.apache.hadoop.io.Text;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.lilyproject.client.LilyClient;
 import org.lilyproject.indexer.derefmap.DerefMap;
 import org.lilyproject.indexer.derefmap.DerefMapHbaseImpl;
+import org.lilyproject.indexer.engine.ContentExtractor;
+import org.lilyproject.indexer.engine.ContentExtractorConfig;
+import org.lilyproject.indexer.engine.ExtractedContentCache;
+import org.lilyproject.indexer.engine.HBaseExtractedContentCache;
 import org.lilyproject.indexer.engine.IndexLocker;
 import org.lilyproject.indexer.engine.Indexer;
 import org.lilyproject.indexer.engine.IndexerMetrics;
@@ -53,12 +56,20 @@ import org.lilyproject.mapreduce.RecordIdWritable;
 import org.lilyproject.repository.api.IdRecord;
 import org.lilyproject.repository.api.RecordId;
 import org.lilyproject.repository.api.Repository;
+import org.lilyproject.util.hbase.HBaseTableFactoryImpl;
 import org.lilyproject.util.io.Closer;
 import org.lilyproject.util.zookeeper.ZkUtil;
 import org.lilyproject.util.zookeeper.ZooKeeperItf;
 
-public class IndexingMapper extends IdRecordMapper<ImmutableBytesWritable, Result> {
+/**
+ * Indexes records during a batch index build.
+ *
+ * <p>By default, the documents are sent to the Solr shards. In bulk load mode, they are instead written to the
+ * map output, partitioned per shard, so that {@link ShardIndexingReducer} can build the shard indexes offline.
+ */
+public class IndexingMapper extends IdRecordMapper<Text, SolrInputDocumentWritable> {
     private Indexer indexer;
+    private DerefMapHbaseImpl bulkLoadDerefMap;
     private MultiThreadedHttpConnectionManager connectionManager;
     private IndexLocker indexLocker;
     private ZooKeeperItf zk;
@@ -103,29 +114,58 @@ public class IndexingMapper extends IdRecordMapper<ImmutableBytesWritable, Resul
                 shardSelector = DefaultShardSelectorBuilder.createDefaultSelector(solrShards);
             }
 
-            connectionManager = new MultiThreadedHttpConnectionManager();
-            connectionManager.getParams().setDefaultMaxConnectionsPerHost(5);
-            connectionManager.getParams().setMaxTotalConnections(50);
-            HttpClient httpClient = new HttpClient(connectionManager);
+            String indexName = jobConf.get("org.lilyproject.indexer.batchbuild.indexname");
 
-            SolrClientConfig solrConfig = new SolrClientConfig();
-            solrConfig.setRequestWriter(jobConf.get("org.lilyproject.indexer.batchbuild.requestwriter", null));
-            solrConfig.setResponseParser(jobConf.get("org.lilyproject.indexer.batchbuild.responseparser", null));
+            boolean bulkLoad = jobConf.getBoolean("org.lilyproject.indexer.batchbuild.bulk", false);
 
-            String indexName = jobConf.get("org.lilyproject.indexer.batchbuild.indexname");
+            SolrShardManager solrShardMgr;
+            if (bulkLoad) {
+                solrShardMgr = new BulkLoadSolrShardManager(shardSelector, context);
+            } else {
+                connectionManager = new MultiThreadedHttpConnectionManager();
+                connectionManager.getParams().setDefaultMaxConnectionsPerHost(5);
+                connectionManager.getParams().setMaxTotalConnections(50);
+                HttpClient httpClient = new HttpClient(connectionManager);
+
+                SolrClientConfig solrConfig = new SolrClientConfig();
+                solrConfig.setRequestWriter(jobConf.get("org.lilyproject.indexer.batchbuild.requestwriter", null));
+                solrConfig.setResponseParser(jobConf.get("org.lilyproject.indexer.batchbuild.responseparser", null));
 
-            SolrShardManager solrShardMgr = new SolrShardManagerImpl(indexName, solrShards, shardSelector, httpClient,
-                    solrConfig);
+                solrShardMgr = new SolrShardManagerImpl(indexName, solrShards, shardSelector, httpClient,
+                        solrConfig);
+            }
 
-            boolean enableLocking =
+            // In bulk load mode, no one else is writing to the shards being built, so there is no need for locking
+            boolean enableLocking = !bulkLoad &&
                     Boolean.parseBoolean(jobConf.get("org.lilyproject.indexer.batchbuild.enableLocking"));
 
             indexLocker = new IndexLocker(zk, enableLocking);
 
-            final DerefMap derefMap = DerefMapHbaseImpl.create(indexName, LilyClient.getHBaseConfiguration(zk),
-                    repository.getIdGenerator());
+            Configuration hbaseConf = LilyClient.getHBaseConfiguration(zk);
+
+            // When the deref map has been cleared before the build, new entries can be written blindly and in batches
+            boolean derefMapCleared = jobConf.getBoolean("org.lilyproject.indexer.batchbuild.derefmap.cleared", false);
+
+            final DerefMap derefMap;
+            if (derefMapCleared) {
+                bulkLoadDerefMap = DerefMapHbaseImpl.createForBulkLoad(indexName, hbaseConf,
+                        repository.getIdGenerator(), 1000);
+                derefMap = bulkLoadDerefMap;
+            } else {
+                derefMap = DerefMapHbaseImpl.create(indexName, hbaseConf, repository.getIdGenerator());
+            }
+
+            // Extraction runs on the mapping threads, but makes use of the texts already extracted by the
+            // indexer workers (or by previous batch builds)
+            boolean enableExtractedContentCache = Boolean.parseBoolean(
+                    jobConf.get("org.lilyproject.indexer.batchbuild.enableExtractedContentCache", "true"));
+            ExtractedContentCache extractedContentCache = enableExtractedContentCache ?
+                    new HBaseExtractedContentCache(new HBaseTableFactoryImpl(hbaseConf)) : null;
+            ContentExtractor contentExtractor = new ContentExtractor(new ContentExtractorConfig(),
+                    extractedContentCache);
+
             indexer = new Indexer(indexName, indexerConf, repository, solrShardMgr, indexLocker,
-                    new IndexerMetrics(indexName), derefMap);
+                    new IndexerMetrics(indexName), derefMap, null, contentExtractor);
 
             int workers = getIntProp("org.lilyproject.indexer.batchbuild.threads", 5, jobConf);
 
@@ -163,6 +203,10 @@ public class IndexingMapper extends IdRecordMapper<ImmutableBytesWritable, Resul
             log.error("Executor did not finish outstanding work within the foreseen timeout.");
         }
 
+        if (bulkLoadDerefMap != null) {
+            bulkLoadDerefMap.flush();
+        }
+
         Closer.close(connectionManager);
         Closer.close(repository);
         log.info("Shutdown lily client");
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.batchbuild;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.CoreDescriptor;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrResourceLoader;
+
+/**
+ * Builds the index of a Solr shard locally, using an embedded Solr, from the documents produced by the
+ * {@link IndexingMapper} in bulk load mode.
+ *
+ * <p>The resulting index directory is written to the job output directory, in a subdirectory named after
+ * the shard. From there, it should be copied over the index of the target Solr shard, while the core is
+ * unloaded or Solr is stopped. It should not be merged into the existing index using the CoreAdmin
+ * mergeindexes action: merging does not replace documents with the same id, so every document that was
+ * already indexed would end up twice in the index.
+ *
+ * <p>The Solr home directory (containing conf/schema.xml and conf/solrconfig.xml) is read from the location
+ * specified in the job configuration, it should correspond to the configuration of the target shards.
+ */
+public class ShardIndexingReducer extends Reducer<Text, SolrInputDocumentWritable, NullWritable, NullWritable> {
+    private File localSolrHome;
+    private int batchSize;
+    private boolean optimize;
+    private final Log log = LogFactory.getLog(getClass());
+
+    @Override
+    protected void setup(Context context) throws IOException, InterruptedException {
+        super.setup(context);
+
+        Configuration conf = context.getConfiguration();
+
+        String solrHome = conf.get("org.lilyproject.indexer.batchbuild.bulk.solrhome");
+        if (solrHome == null) {
+            throw new IOException("Missing property in jobconf: org.lilyproject.indexer.batchbuild.bulk.solrhome");
+        }
+
+        // The working directory of the task is a local, task-specific directory
+        localSolrHome = new File("solrhome").getAbsoluteFile();
+        Path solrHomePath = new Path(solrHome);
+        solrHomePath.getFileSystem(conf).copyToLocalFile(solrHomePath, new Path(localSolrHome.getAbsolutePath()));
+
+        batchSize = conf.getInt("org.lilyproject.indexer.batchbuild.bulk.batchsize", 1000);
+        optimize = conf.getBoolean("org.lilyproject.indexer.batchbuild.bulk.optimize", true);
+    }
+
+    @Override
+    protected void reduce(Text shard, Iterable<SolrInputDocumentWritable> documents, Context context)
+            throws IOException, InterruptedException {
+        String shardName = shard.toString();
+        File dataDir = new File("data-" + shardName).getAbsoluteFile();
+
+        log.info("Building index for shard " + shardName + " in " + dataDir);
+
+        CoreContainer container = new CoreContainer(new SolrResourceLoader(localSolrHome.getAbsolutePath()));
+        try {
+            CoreDescriptor descriptor = new CoreDescriptor(container, shardName, localSolrHome.getAbsolutePath());
+            descriptor.setDataDir(dataDir.getAbsolutePath());
+            SolrCore core = container.create(descriptor);
+            container.register(shardName, core, false);
+            EmbeddedSolrServer solr = new EmbeddedSolrServer(container, shardName);
+
+            List<SolrInputDocument> batch = new ArrayList<SolrInputDocument>(batchSize);
+            for (SolrInputDocumentWritable document : documents) {
+                // readFields creates a new document each time, so we can hold on to it
+                batch.add(document.getDocument());
+                if (batch.size() >= batchSize) {
+                    solr.add(batch);
+                    context.getCounter(IndexBatchBuildCounters.NUM_BULK_LOADED_DOCUMENTS).increment(batch.size());
+                    batch.clear();
+                    context.progress();
+                }
+            }
+
+            if (!batch.isEmpty()) {
+                solr.add(batch);
+                context.getCounter(IndexBatchBuildCounters.NUM_BULK_LOADED_DOCUMENTS).increment(batch.size());
+            }
+
+            solr.commit(true, true);
+            if (optimize) {
+                context.setStatus("Optimizing index of shard " + shardName);
+                solr.optimize(true, true);
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Error building index for shard " + shardName, e);
+        } finally {
+            container.shutdown();
+        }
+
+        // Copy the index to the task output, it will be moved to the job output directory when the task succeeds
+        Path target = new Path(FileOutputFormat.getWorkOutputPath(context), shardName);
+        FileSystem fs = target.getFileSystem(context.getConfiguration());
+        context.setStatus("Copying index of shard " + shardName + " to " + target);
+        fs.copyFromLocalFile(new Path(new File(dataDir, "index").getAbsolutePath()), target);
+
+        log.info("Index for shard " + shardName + " written to " + target);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.batchbuild;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Partitioner;
+
+/**
+ * Sends all documents of one Solr shard to the same reducer, in bulk load mode. The map output key
+ * is the shard name.
+ *
+ * <p>The shards are numbered in the order of their names, so with as many reducers as there are shards,
+ * each reducer builds exactly one shard.
+ */
+public class ShardPartitioner extends Partitioner<Text, SolrInputDocumentWritable> implements Configurable {
+    private Configuration conf;
+    private List<String> shardNames;
+
+    @Override
+    public void setConf(Configuration conf) {
+        this.conf = conf;
+        this.shardNames = getShardNames(conf);
+    }
+
+    @Override
+    public Configuration getConf() {
+        return conf;
+    }
+
+    @Override
+    public int getPartition(Text shardName, SolrInputDocumentWritable document, int numPartitions) {
+        int shardIndex = Collections.binarySearch(shardNames, shardName.toString());
+        if (shardIndex < 0) {
+            throw new RuntimeException("Unknown shard: " + shardName);
+        }
+        return shardIndex % numPartitions;
+    }
+
+    /**
+     * Returns the names of the shards configured on the batch build job, in sorted order.
+     */
+    static List<String> getShardNames(Configuration conf) {
+        List<String> shardNames = new ArrayList<String>();
+        for (int i = 1; true; i++) {
+            String shardName = conf.get("org.lilyproject.indexer.batchbuild.solrshard.name." + i);
+            if (shardName == null)
+                break;
+            shardNames.add(shardName);
+        }
+        Collections.sort(shardNames);
+        return shardNames;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.batchbuild;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.SolrInputField;
+import org.apache.solr.common.util.JavaBinCodec;
+
+/**
+ * Writable for a SolrInputDocument, used to pass the documents built by the {@link IndexingMapper} to
+ * the {@link ShardIndexingReducer} in bulk load mode.
+ *
+ * <p>The document is serialized with Solr's javabin format, as a list of the document boost followed by
+ * the name, boost and values of each field.
+ */
+public class SolrInputDocumentWritable implements Writable {
+    private SolrInputDocument document;
+
+    public SolrInputDocumentWritable() {
+    }
+
+    public SolrInputDocumentWritable(SolrInputDocument document) {
+        this.document = document;
+    }
+
+    public SolrInputDocument getDocument() {
+        return document;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        List<Object> data = new ArrayList<Object>(1 + document.size() * 3);
+        data.add(document.getDocumentBoost());
+        for (SolrInputField field : document) {
+            data.add(field.getName());
+            data.add(field.getBoost());
+            data.add(field.getValues() != null ? new ArrayList<Object>(field.getValues()) : new ArrayList<Object>());
+        }
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        new JavaBinCodec().marshal(data, bos);
+
+        out.writeInt(bos.size());
+        out.write(bos.toByteArray());
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+
+        List<Object> data = (List<Object>)new JavaBinCodec().unmarshal(new ByteArrayInputStream(bytes));
+
+        document = new SolrInputDocument();
+        document.setDocumentBoost((Float)data.get(0));
+        for (int i = 1; i < data.size(); i += 3) {
+            String name = (String)data.get(i);
+            float boost = (Float)data.get(i + 1);
+            for (Object value : (List<Object>)data.get(i + 2)) {
+                document.addField(name, value);
+            }
+            if (document.getField(name) != null) {
+                document.getField(name).setBoost(boost);
+            }
+        }
+    }
+}
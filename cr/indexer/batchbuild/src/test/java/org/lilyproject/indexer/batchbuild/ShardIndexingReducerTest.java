@@ -0,0 +1,108 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.batchbuild;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputCommitter;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ShardIndexingReducerTest {
+    private File outputDir;
+
+    @Before
+    public void setUp() throws Exception {
+        outputDir = new File(System.getProperty("java.io.tmpdir"), "lily-shardindexingreducertest");
+        cleanUp();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cleanUp();
+    }
+
+    private void cleanUp() throws Exception {
+        // The reducer works in the current directory, as it would in the working directory of its task
+        FileUtils.deleteDirectory(new File("solrhome"));
+        FileUtils.deleteDirectory(new File("data-shard1"));
+        FileUtils.deleteDirectory(outputDir);
+    }
+
+    @Test
+    public void testReduce() throws Exception {
+        File solrHome = new File(getClass().getResource("solrhome").toURI());
+
+        Configuration conf = new Configuration();
+        conf.set("org.lilyproject.indexer.batchbuild.bulk.solrhome", solrHome.getAbsolutePath());
+        // A batch size which does not divide the number of documents, so that a partial batch remains
+        conf.setInt("org.lilyproject.indexer.batchbuild.bulk.batchsize", 2);
+        conf.setBoolean("org.lilyproject.indexer.batchbuild.bulk.optimize", false);
+
+        FileOutputCommitter committer = mock(FileOutputCommitter.class);
+        when(committer.getWorkPath()).thenReturn(new Path(outputDir.getAbsolutePath()));
+        Counter counter = mock(Counter.class);
+
+        Reducer.Context context = mock(Reducer.Context.class);
+        when(context.getConfiguration()).thenReturn(conf);
+        when(context.getOutputCommitter()).thenReturn(committer);
+        when(context.getCounter(any(Enum.class))).thenReturn(counter);
+
+        List<SolrInputDocumentWritable> documents = new ArrayList<SolrInputDocumentWritable>();
+        for (int i = 0; i < 3; i++) {
+            SolrInputDocument document = new SolrInputDocument();
+            document.addField("id", "doc" + i);
+            document.addField("title", "title " + i);
+            documents.add(new SolrInputDocumentWritable(document));
+        }
+
+        ShardIndexingReducer reducer = new ShardIndexingReducer();
+        reducer.setup(context);
+        reducer.reduce(new Text("shard1"), documents, context);
+
+        verify(counter).increment(2);
+        verify(counter).increment(1);
+
+        // The index of the shard is in the task output, named after the shard
+        File indexDir = new File(outputDir, "shard1");
+        assertTrue(indexDir.isDirectory());
+        IndexReader reader = IndexReader.open(FSDirectory.open(indexDir));
+        try {
+            assertEquals(3, reader.numDocs());
+        } finally {
+            reader.close();
+        }
+    }
+}
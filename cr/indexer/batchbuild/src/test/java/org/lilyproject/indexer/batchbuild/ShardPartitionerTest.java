@@ -0,0 +1,72 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.batchbuild;
+
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Text;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ShardPartitionerTest {
+    @Test
+    public void testShardNamesAreSorted() throws Exception {
+        Configuration conf = createConf("shard3", "shard1", "shard2");
+
+        assertEquals(Arrays.asList("shard1", "shard2", "shard3"), ShardPartitioner.getShardNames(conf));
+        assertEquals(0, ShardPartitioner.getShardNames(new Configuration(false)).size());
+    }
+
+    @Test
+    public void testGetPartition() throws Exception {
+        ShardPartitioner partitioner = new ShardPartitioner();
+        partitioner.setConf(createConf("shard3", "shard1", "shard2"));
+
+        // With one reducer per shard, each shard goes to its own reducer
+        assertEquals(0, partitioner.getPartition(new Text("shard1"), null, 3));
+        assertEquals(1, partitioner.getPartition(new Text("shard2"), null, 3));
+        assertEquals(2, partitioner.getPartition(new Text("shard3"), null, 3));
+
+        // With fewer reducers, the shards are divided over them
+        assertEquals(0, partitioner.getPartition(new Text("shard1"), null, 2));
+        assertEquals(1, partitioner.getPartition(new Text("shard2"), null, 2));
+        assertEquals(0, partitioner.getPartition(new Text("shard3"), null, 2));
+    }
+
+    @Test
+    public void testUnknownShard() throws Exception {
+        ShardPartitioner partitioner = new ShardPartitioner();
+        partitioner.setConf(createConf("shard1", "shard2"));
+
+        try {
+            partitioner.getPartition(new Text("shard4"), null, 2);
+            fail("Expected an exception for an unknown shard");
+        } catch (RuntimeException e) {
+            // expected
+        }
+    }
+
+    private Configuration createConf(String... shardNames) {
+        Configuration conf = new Configuration(false);
+        for (int i = 0; i < shardNames.length; i++) {
+            conf.set("org.lilyproject.indexer.batchbuild.solrshard.name." + (i + 1), shardNames[i]);
+        }
+        return conf;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.batchbuild;
+
+import java.util.Arrays;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SolrInputDocumentWritableTest {
+    @Test
+    public void testRoundTrip() throws Exception {
+        SolrInputDocument document = new SolrInputDocument();
+        document.setDocumentBoost(2.5f);
+        document.addField("id", "USER.doc1");
+        document.addField("title", "first title", 1.5f);
+        document.addField("title", "second title");
+        document.addField("count", 42L);
+
+        SolrInputDocument result = roundTrip(document);
+
+        assertEquals(2.5f, result.getDocumentBoost(), 0f);
+        assertEquals(3, result.size());
+        assertEquals("USER.doc1", result.getFieldValue("id"));
+        assertEquals(Arrays.<Object>asList("first title", "second title"), result.getFieldValues("title"));
+        assertEquals(1.5f, result.getField("title").getBoost(), 0f);
+        assertEquals(1.0f, result.getField("id").getBoost(), 0f);
+        assertEquals(42L, result.getFieldValue("count"));
+    }
+
+    @Test
+    public void testEmptyDocument() throws Exception {
+        SolrInputDocument result = roundTrip(new SolrInputDocument());
+
+        assertEquals(1.0f, result.getDocumentBoost(), 0f);
+        assertEquals(0, result.size());
+    }
+
+    @Test
+    public void testReuse() throws Exception {
+        // Hadoop reuses writables, reading a document should not keep the fields of the previous one
+        SolrInputDocument document1 = new SolrInputDocument();
+        document1.addField("id", "doc1");
+        document1.addField("title", "title1");
+        SolrInputDocument document2 = new SolrInputDocument();
+        document2.addField("id", "doc2");
+
+        DataOutputBuffer out = new DataOutputBuffer();
+        new SolrInputDocumentWritable(document1).write(out);
+        new SolrInputDocumentWritable(document2).write(out);
+
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(out.getData(), out.getLength());
+        SolrInputDocumentWritable writable = new SolrInputDocumentWritable();
+        writable.readFields(in);
+        SolrInputDocument result1 = writable.getDocument();
+        writable.readFields(in);
+        SolrInputDocument result2 = writable.getDocument();
+
+        assertEquals("doc1", result1.getFieldValue("id"));
+        assertEquals(2, result1.size());
+        assertEquals("doc2", result2.getFieldValue("id"));
+        assertEquals(1, result2.size());
+    }
+
+    private SolrInputDocument roundTrip(SolrInputDocument document) throws Exception {
+        DataOutputBuffer out = new DataOutputBuffer();
+        new SolrInputDocumentWritable(document).write(out);
+
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(out.getData(), out.getLength());
+        SolrInputDocumentWritable result = new SolrInputDocumentWritable();
+        result.readFields(in);
+        return result.getDocument();
+    }
+}
@@ -1,8 +1,10 @@
 package org.lilyproject.indexer.derefmap;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -38,6 +40,16 @@ public class DerefMapHbaseImpl implements DerefMap {
 
     private DerefMapSerializationUtil serializationUtil;
 
+    /**
+     * If > 0, the deref map is in bulk load mode: existing dependencies are not looked up, and new entries are
+     * buffered and written in batches of this size.
+     */
+    private int bulkLoadBufferSize;
+
+    private final List<IndexEntry> forwardBuffer = new ArrayList<IndexEntry>();
+
+    private final List<IndexEntry> backwardBuffer = new ArrayList<IndexEntry>();
+
     /**
      * Private constructor. Clients should use static factory methods {@link #delete(String,
      * org.apache.hadoop.conf.Configuration)} and {@link #create(String, org.apache.hadoop.conf.Configuration,
@@ -86,6 +98,24 @@ public class DerefMapHbaseImpl implements DerefMap {
         return new DerefMapHbaseImpl(indexName, hbaseConfiguration, idGenerator);
     }
 
+    /**
+     * Create a DerefMap for bulk loading the dependencies of all records, as done by a batch index build which
+     * starts from an empty (cleared) deref map.
+     *
+     * <p>The returned DerefMap does not look up the existing dependencies of a record when updating them, so it
+     * does not remove dependencies which are no longer valid. The new entries are buffered and written in batches,
+     * they only become visible after the buffer is full or {@link #flush()} is called.
+     *
+     * @param bufferSize number of entries to buffer before writing them to HBase
+     */
+    public static DerefMapHbaseImpl createForBulkLoad(final String indexName, final Configuration hbaseConfiguration,
+                                                      final IdGenerator idGenerator, int bufferSize)
+            throws IndexNotFoundException, IOException, InterruptedException {
+        DerefMapHbaseImpl derefMap = new DerefMapHbaseImpl(indexName, hbaseConfiguration, idGenerator);
+        derefMap.bulkLoadBufferSize = Math.max(bufferSize, 1);
+        return derefMap;
+    }
+
     /**
      * Delete a DerefMap. This will delete the corresponding hbase tables.
      *
@@ -113,6 +143,11 @@ public class DerefMapHbaseImpl implements DerefMap {
     public void updateDependencies(RecordId dependantRecordId, SchemaId dependantVtagId,
                                    Map<DependencyEntry, Set<SchemaId>> newDependencyEntries)
             throws IOException {
+        if (bulkLoadBufferSize > 0) {
+            addDependenciesBuffered(dependantRecordId, dependantVtagId, newDependencyEntries);
+            return;
+        }
+
         final Set<DependencyEntry> existingEntries = findDependencies(dependantRecordId, dependantVtagId);
 
         // Figure out what changed
@@ -148,6 +183,45 @@ public class DerefMapHbaseImpl implements DerefMap {
         }
     }
 
+    private void addDependenciesBuffered(RecordId dependantRecordId, SchemaId dependantVtagId,
+                                         Map<DependencyEntry, Set<SchemaId>> newDependencyEntries)
+            throws IOException {
+        final IndexEntry fwdEntry =
+                createForwardEntry(dependantRecordId, dependantVtagId, newDependencyEntries.keySet());
+
+        final List<IndexEntry> bwdEntries = new ArrayList<IndexEntry>(newDependencyEntries.size());
+        for (Map.Entry<DependencyEntry, Set<SchemaId>> added : newDependencyEntries.entrySet()) {
+            bwdEntries.add(createBackwardEntry(added.getKey().getDependency(), dependantRecordId, dependantVtagId,
+                    added.getValue(), added.getKey().getMoreDimensionedVariants()));
+        }
+
+        synchronized (forwardBuffer) {
+            forwardBuffer.add(fwdEntry);
+            backwardBuffer.addAll(bwdEntries);
+
+            if (forwardBuffer.size() + backwardBuffer.size() >= bulkLoadBufferSize) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Writes the buffered entries, only relevant for deref maps created by
+     * {@link #createForBulkLoad(String, Configuration, IdGenerator, int)}.
+     */
+    public void flush() throws IOException {
+        synchronized (forwardBuffer) {
+            if (!forwardBuffer.isEmpty()) {
+                forwardDerefIndex.addEntries(forwardBuffer);
+                forwardBuffer.clear();
+            }
+            if (!backwardBuffer.isEmpty()) {
+                backwardDerefIndex.addEntries(backwardBuffer);
+                backwardBuffer.clear();
+            }
+        }
+    }
+
     private Set<DependencyEntry> figureOutRemovedDependencies(Collection<DependencyEntry> newDependencies,
                                                               Set<DependencyEntry> existingDependencies) {
         final Set<DependencyEntry> removed = new HashSet<DependencyEntry>();
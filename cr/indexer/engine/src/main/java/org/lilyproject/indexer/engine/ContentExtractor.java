@@ -0,0 +1,247 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.engine;
+
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.apache.tika.sax.BodyContentHandler;
+import org.apache.tika.sax.WriteOutContentHandler;
+import org.lilyproject.repository.api.Blob;
+import org.lilyproject.repository.api.FieldType;
+import org.lilyproject.repository.api.Record;
+import org.lilyproject.repository.api.Repository;
+import org.lilyproject.util.concurrent.CustomThreadFactory;
+import org.lilyproject.util.io.Closer;
+
+/**
+ * Extracts the text content of blobs using Tika.
+ *
+ * <p>Extraction can be performed on a separate, bounded pool of threads, so that the extraction time of a
+ * single document can be limited. Extracted texts can be stored in an {@link ExtractedContentCache}, so that
+ * the same blob is only parsed once, also across reindexes.
+ *
+ * <p>One instance can be shared by multiple indexers.
+ */
+public class ContentExtractor {
+    private final Log log = LogFactory.getLog(getClass());
+
+    private final Parser tikaParser = new AutoDetectParser();
+
+    private final ContentExtractorConfig config;
+
+    private final ExtractedContentCache cache;
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Creates a content extractor which extracts on the calling thread without caching.
+     */
+    public ContentExtractor() {
+        this(new ContentExtractorConfig(), null);
+    }
+
+    /**
+     * @param cache optional
+     */
+    public ContentExtractor(ContentExtractorConfig config, ExtractedContentCache cache) {
+        this.config = config;
+        this.cache = cache;
+
+        if (config.getThreads() > 0) {
+            executor = new ThreadPoolExecutor(config.getThreads(), config.getThreads(), 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(config.getQueueSize()),
+                    new CustomThreadFactory("content-extraction", null, true));
+        } else {
+            executor = null;
+        }
+    }
+
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Extracts the text of the blob which is stored in the given field of the record.
+     *
+     * @param indexes the position of the blob in case of LIST or PATH fields
+     * @return null if there is no text or the extraction failed
+     */
+    public String extract(Blob blob, Record record, FieldType fieldType, int[] indexes, Repository repository)
+            throws InterruptedException {
+        return extract(blob, record, fieldType, indexes, repository, null);
+    }
+
+    /**
+     * Extracts the text of the blob which is stored in the given field of the record.
+     *
+     * @param indexes the position of the blob in case of LIST or PATH fields
+     * @param status optional, marked incomplete when the blob is not extracted for a temporary reason
+     * @return null if there is no text or the extraction failed
+     */
+    public String extract(Blob blob, Record record, FieldType fieldType, int[] indexes, Repository repository,
+            ExtractionStatus status) throws InterruptedException {
+
+        if (config.getMaxBlobSize() >= 0 && blob.getSize() != null && blob.getSize() > config.getMaxBlobSize()) {
+            if (log.isInfoEnabled()) {
+                log.info("Blob extraction: blob size " + blob.getSize() + " exceeds limit, not extracted. Field '"
+                        + fieldType.getName() + "', record '" + record.getId() + "'.");
+            }
+            return null;
+        }
+
+        if (cache != null) {
+            try {
+                String text = cache.get(blob, config.getWriteLimit());
+                if (text != null) {
+                    return text.length() > 0 ? text : null;
+                }
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                log.warn("Error reading from extracted content cache. Field '" + fieldType.getName() +
+                        "', record '" + record.getId() + "'.", e);
+            }
+        }
+
+        Extraction extraction = new Extraction(blob, record, fieldType, indexes, repository);
+        String text = executor != null ? extractOnExecutor(extraction, status) : extraction.call();
+
+        if (text == null) {
+            return null;
+        }
+
+        // Only complete extractions (up to the write limit) give a text, so it can be cached
+        if (cache != null) {
+            try {
+                cache.put(blob, config.getWriteLimit(), text);
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                log.warn("Error writing to extracted content cache. Field '" + fieldType.getName() +
+                        "', record '" + record.getId() + "'.", e);
+            }
+        }
+
+        return text.length() > 0 ? text : null;
+    }
+
+    private String extractOnExecutor(Extraction extraction, ExtractionStatus status) throws InterruptedException {
+        Future<String> future;
+        try {
+            future = executor.submit(extraction);
+        } catch (RejectedExecutionException e) {
+            // All extraction threads are busy and the queue is full. Extracting on the calling thread would
+            // not be bounded by the timeout, so the blob is skipped.
+            log.warn("Blob extraction: queue full, blob not extracted. Field '" + extraction.fieldType.getName()
+                    + "', record '" + extraction.record.getId() + "'.");
+            markIncomplete(status);
+            return null;
+        }
+
+        try {
+            return future.get(config.getTimeout(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // The text extracted so far is not used: the extraction might still be writing to it
+            future.cancel(true);
+            log.warn("Blob extraction: timeout of " + config.getTimeout() + "ms reached, blob not extracted. Field '"
+                    + extraction.fieldType.getName() + "', record '" + extraction.record.getId() + "'.");
+            markIncomplete(status);
+            return null;
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            log.error("Error extracting blob content. Field '" + extraction.fieldType.getName() + "', record '"
+                    + extraction.record.getId() + "'.", e.getCause());
+            markIncomplete(status);
+            return null;
+        }
+    }
+
+    private void markIncomplete(ExtractionStatus status) {
+        if (status != null) {
+            status.setIncomplete();
+        }
+    }
+
+    private class Extraction implements Callable<String> {
+        private final Blob blob;
+        private final Record record;
+        private final FieldType fieldType;
+        private final int[] indexes;
+        private final Repository repository;
+        private final WriteOutContentHandler woh = new WriteOutContentHandler(config.getWriteLimit());
+        private final BodyContentHandler ch = new BodyContentHandler(woh);
+
+        Extraction(Blob blob, Record record, FieldType fieldType, int[] indexes, Repository repository) {
+            this.blob = blob;
+            this.record = record;
+            this.fieldType = fieldType;
+            this.indexes = indexes;
+            this.repository = repository;
+        }
+
+        @Override
+        public String call() {
+            InputStream is = null;
+
+            try {
+                is = repository.getInputStream(record, fieldType.getName(), indexes);
+
+                Metadata metadata = new Metadata();
+                metadata.add(Metadata.CONTENT_TYPE, blob.getMediaType());
+                if (blob.getName() != null)
+                    metadata.add(Metadata.RESOURCE_NAME_KEY, blob.getName());
+
+                ParseContext parseContext = new ParseContext();
+
+                tikaParser.parse(is, ch, metadata, parseContext);
+            } catch (Throwable t) {
+                if (woh.isWriteLimitReached(t)) {
+                    // ok, we'll just add use the partial result
+                    if (log.isInfoEnabled()) {
+                        log.info("Blob extraction: write limit reached. Field '" + fieldType.getName() +
+                                "', record '" + record.getId() + "'.");
+                    }
+                } else {
+                    log.error("Error extracting blob content. Field '" + fieldType.getName() + "', record '"
+                            + record.getId() + "'.", t);
+                    return null;
+                }
+            } finally {
+                Closer.close(is);
+            }
+
+            return ch.toString();
+        }
+    }
+}
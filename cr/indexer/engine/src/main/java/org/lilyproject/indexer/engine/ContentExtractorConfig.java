@@ -0,0 +1,101 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.engine;
+
+/**
+ * Configuration of the {@link ContentExtractor}.
+ */
+public class ContentExtractorConfig {
+    private int threads = 0;
+    private int queueSize = 100;
+    private long timeout = 60000;
+    private int writeLimit = 500 * 1000;
+    private long maxBlobSize = -1;
+    private boolean enableCache = false;
+
+    public ContentExtractorConfig() {
+
+    }
+
+    /**
+     * Number of threads on which content extraction is performed. If 0, extraction runs on the calling
+     * thread, and the timeout is not applied.
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Maximum number of extractions waiting for a thread. When the queue is full, the blob is not
+     * extracted, rather than extracting it on the calling thread without a time limit.
+     */
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Maximum time, in milliseconds, to wait for the extraction of one blob. When it is reached, the
+     * extraction is cancelled and the blob gives no text.
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Maximum number of characters extracted from one blob (Tika default: 100K).
+     */
+    public int getWriteLimit() {
+        return writeLimit;
+    }
+
+    public void setWriteLimit(int writeLimit) {
+        this.writeLimit = writeLimit;
+    }
+
+    /**
+     * Blobs larger than this size (in bytes) are not extracted. A negative value means no limit.
+     */
+    public long getMaxBlobSize() {
+        return maxBlobSize;
+    }
+
+    public void setMaxBlobSize(long maxBlobSize) {
+        this.maxBlobSize = maxBlobSize;
+    }
+
+    /**
+     * Should the extracted content be stored in, and read from, the persistent extracted content cache?
+     */
+    public boolean getEnableCache() {
+        return enableCache;
+    }
+
+    public void setEnableCache(boolean enableCache) {
+        this.enableCache = enableCache;
+    }
+}
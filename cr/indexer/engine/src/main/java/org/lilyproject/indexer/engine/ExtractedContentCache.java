@@ -0,0 +1,35 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.engine;
+
+import java.io.IOException;
+
+import org.lilyproject.repository.api.Blob;
+
+/**
+ * Stores the text extracted from blobs. Blobs are immutable, so the extracted text for a blob never changes,
+ * except through the limit on the number of extracted characters, which is therefore part of the key.
+ */
+public interface ExtractedContentCache {
+    /**
+     * @param writeLimit the maximum number of characters extracted from the blob
+     * @return null if there is no text stored for the blob, an empty string if the blob was previously found
+     *         not to contain any text
+     */
+    String get(Blob blob, int writeLimit) throws IOException, InterruptedException;
+
+    void put(Blob blob, int writeLimit, String text) throws IOException, InterruptedException;
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.engine;
+
+/**
+ * Tells whether the content extractions done while evaluating an index field were complete.
+ *
+ * <p>A blob which is not extracted for a temporary reason (the extraction queue is full, the timeout is
+ * reached or the extraction failed unexpectedly) gives no text, just like a blob without text. Such an
+ * evaluation is marked incomplete, so that its result is not reused for the same field value later on.
+ */
+public class ExtractionStatus {
+    private boolean incomplete;
+
+    public void setIncomplete() {
+        incomplete = true;
+    }
+
+    public boolean isIncomplete() {
+        return incomplete;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.engine;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.client.Get;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.lilyproject.repository.api.Blob;
+import org.lilyproject.util.hbase.HBaseTableFactory;
+
+/**
+ * {@link ExtractedContentCache} stored in an HBase table.
+ *
+ * <p>The row key is a hash of the blob value (the blob key), its media type and the write limit. Since the
+ * text does not depend on the index, the table is shared by all indexes.
+ *
+ * <p>Rows are not removed when blobs are deleted.
+ */
+public class HBaseExtractedContentCache implements ExtractedContentCache {
+    private static final byte[] TABLE_NAME = Bytes.toBytes("extractedcontent");
+    private static final byte[] DATA_CF = Bytes.toBytes("data");
+    private static final byte[] TEXT_COLUMN = Bytes.toBytes("text");
+
+    private final HTableInterface table;
+
+    public HBaseExtractedContentCache(HBaseTableFactory tableFactory) throws IOException {
+        HTableDescriptor tableDescriptor = new HTableDescriptor(TABLE_NAME);
+        tableDescriptor.addFamily(new HColumnDescriptor(DATA_CF));
+        this.table = tableFactory.getTable(tableDescriptor);
+    }
+
+    @Override
+    public String get(Blob blob, int writeLimit) throws IOException {
+        if (blob.getValue() == null) {
+            return null;
+        }
+
+        Get get = new Get(rowKey(blob, writeLimit));
+        get.addColumn(DATA_CF, TEXT_COLUMN);
+        Result result = table.get(get);
+
+        byte[] text = result.getValue(DATA_CF, TEXT_COLUMN);
+        return text != null ? Bytes.toString(text) : null;
+    }
+
+    @Override
+    public void put(Blob blob, int writeLimit, String text) throws IOException {
+        if (blob.getValue() == null) {
+            return;
+        }
+
+        Put put = new Put(rowKey(blob, writeLimit));
+        put.add(DATA_CF, TEXT_COLUMN, Bytes.toBytes(text));
+        table.put(put);
+    }
+
+    private byte[] rowKey(Blob blob, int writeLimit) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        digest.update(blob.getValue());
+        if (blob.getMediaType() != null) {
+            digest.update(Bytes.toBytes(blob.getMediaType()));
+        }
+        digest.update(Bytes.toBytes(writeLimit));
+        return digest.digest();
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.engine;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import org.lilyproject.util.ObjectUtils;
+
+/**
+ * Remembers, per index document, the values to which the index fields evaluated the last time the document
+ * was built, together with the record field value they were computed from.
+ *
+ * <p>This allows incremental building of Solr documents: when a record is updated, index fields of which
+ * the input field value did not change take their value from this cache, so that only the index fields
+ * depending on the changed fields are evaluated again. This matters most for content extraction of blobs.
+ *
+ * <p>Only index fields which are a direct function of one field of the indexed record itself are cached
+ * (thus no dereferenced values). Since reuse is decided by comparing the input field values, an outdated
+ * entry (e.g. because the record was updated through another Lily node) never leads to outdated index
+ * content, it is simply not reused.
+ *
+ * <p>The cache is bounded by the total number of characters of the cached values.
+ */
+public class IndexFieldValueCache {
+    private final Cache<String, DocumentValues> cache;
+
+    /**
+     * @param maxChars maximum total length of the cached index field values
+     */
+    public IndexFieldValueCache(long maxChars) {
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxChars)
+                .weigher(new Weigher<String, DocumentValues>() {
+                    @Override
+                    public int weigh(String key, DocumentValues value) {
+                        return value.weight;
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Takes the cached values of a document out of the cache. Taking them out, rather than just getting them,
+     * avoids that concurrent builds of the same document would share state.
+     *
+     * @return null if nothing is cached for the document
+     */
+    public DocumentValues take(String documentKey) {
+        return cache.asMap().remove(documentKey);
+    }
+
+    public void put(String documentKey, DocumentValues values) {
+        cache.put(documentKey, values);
+    }
+
+    public void invalidate(String documentKey) {
+        cache.invalidate(documentKey);
+    }
+
+    /**
+     * The evaluated index field values of one index document.
+     */
+    public static class DocumentValues {
+        private final Map<Object, CachedValue> values = new HashMap<Object, CachedValue>();
+        private int weight;
+
+        /**
+         * Returns the cached evaluation result for the given index field, if it was evaluated from the
+         * same input value.
+         *
+         * @param key identifies the index field within the document, this can be the index field
+         *            definition itself
+         * @return null if there is no usable cached result
+         */
+        public CachedValue get(Object key, Object input) {
+            CachedValue cachedValue = values.get(key);
+            if (cachedValue != null && ObjectUtils.safeEquals(cachedValue.input, input)) {
+                return cachedValue;
+            }
+            return null;
+        }
+
+        public void put(Object key, Object input, List<String> result) {
+            CachedValue previous = values.put(key, new CachedValue(input, result));
+            if (previous != null) {
+                weight -= weigh(previous.result);
+            }
+            weight += weigh(result);
+        }
+
+        private int weigh(List<String> result) {
+            int weight = 1;
+            if (result != null) {
+                for (String value : result) {
+                    weight += value.length();
+                }
+            }
+            return weight;
+        }
+    }
+
+    public static class CachedValue {
+        private final Object input;
+        private final List<String> result;
+
+        private CachedValue(Object input, List<String> result) {
+            this.input = input;
+            this.result = result;
+        }
+
+        /**
+         * The evaluated values, can be null.
+         */
+        public List<String> getResult() {
+            return result;
+        }
+    }
+}
@@ -16,6 +16,7 @@
 package org.lilyproject.indexer.engine;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -44,6 +45,7 @@ import org.lilyproject.repository.api.Repository;
 import org.lilyproject.repository.api.RepositoryException;
 import org.lilyproject.repository.api.SchemaId;
 import org.lilyproject.repository.api.Scope;
+import org.lilyproject.rowlog.api.MessagePriority;
 import org.lilyproject.rowlog.api.RowLog;
 import org.lilyproject.rowlog.api.RowLogException;
 import org.lilyproject.rowlog.api.RowLogMessage;
@@ -152,11 +154,18 @@ public class IndexUpdater implements RowLogMessageListener {
             }
 
             if (event.getType().equals(INDEX)) {
+                List<RowLogMessage> coalescedMessages = coalesceIndexMessages(msg, event);
                 if (log.isDebugEnabled()) {
-                    log.debug(String.format("Record %1$s: reindex requested for these vtags: %2$s", recordId,
-                            indexer.vtagSetToNameString(event.getVtagsToIndex())));
+                    log.debug(String.format("Record %1$s: reindex requested for these vtags: %2$s, " +
+                            "handling %3$s other reindex messages", recordId,
+                            indexer.vtagSetToNameString(event.getVtagsToIndex()), coalescedMessages.size()));
                 }
                 index(recordId, event.getVtagsToIndex());
+
+                for (RowLogMessage coalescedMessage : coalescedMessages) {
+                    rowLog.messageDone(coalescedMessage, subscriptionId);
+                }
+                metrics.coalescedIndexMessages.inc(coalescedMessages.size());
             } else if (event.getType().equals(DELETE)) {
                 // Record is deleted: delete its index entry. We do not check for a matching index case, since
                 // we can't (record is not available anymore), and besides IndexAwareMQFeeder takes care of sending us
@@ -439,7 +448,8 @@ public class IndexUpdater implements RowLogMessageListener {
 
         //
         // Now add an index message to each of the found referrers, their actual indexing
-        // will be triggered by the message queue.
+        // will be triggered by the message queue. Since one update can cause many referrers to be
+        // reindexed, these messages get a low priority, so that they don't delay other updates.
         //
         for (RecordId referrer : referrersAndVTags.keySet()) {
 
@@ -452,7 +462,7 @@ public class IndexUpdater implements RowLogMessageListener {
             // TODO how will this behave if the row was meanwhile deleted?
             try {
                 rowLog.putMessage(referrer.toBytes(), null, payload.toJsonBytes(), null,
-                        Collections.singletonList(subscriptionId));
+                        Collections.singletonList(subscriptionId), MessagePriority.LOW);
             } catch (Exception e) {
                 // We failed to put the message: this is pretty important since it means the record's index
                 // won't get updated, therefore log as error, but after this we continue with the next one.
@@ -462,6 +472,49 @@ public class IndexUpdater implements RowLogMessageListener {
         }
     }
 
+    /**
+     * Merges the vtags of the other reindex messages which are waiting for the same record into the event, so
+     * that the record is indexed only once for all of them. When many linked records change in a short time,
+     * the updates of denormalized data put many reindex messages for the same record.
+     *
+     * <p>This relies on the rowlog processor never dispatching two messages of the same row at the same time,
+     * so none of the merged messages is being processed. The index operation reads the current state of the
+     * record, which is as recent as the one the merged messages would have read.</p>
+     *
+     * @return the merged messages, which should be marked as done once the record is indexed
+     */
+    private List<RowLogMessage> coalesceIndexMessages(RowLogMessage msg, RecordEvent event) throws RowLogException {
+        List<RowLogMessage> coalescedMessages = new ArrayList<RowLogMessage>();
+        for (RowLogMessage pendingMsg : rowLog.getMessages(msg.getRowKey(), subscriptionId)) {
+            if (pendingMsg.getSeqNr() == msg.getSeqNr()) {
+                continue;
+            }
+
+            byte[] payload = rowLog.getPayload(pendingMsg);
+            if (payload == null) {
+                // The message has been processed meanwhile
+                continue;
+            }
+
+            RecordEvent pendingEvent;
+            try {
+                pendingEvent = new RecordEvent(payload, idGenerator);
+            } catch (IOException e) {
+                // Leave it to be processed (and fail) on its own
+                log.warn("Failed to read payload of message " + pendingMsg, e);
+                continue;
+            }
+
+            if (pendingEvent.getType().equals(INDEX) && pendingEvent.getVtagsToIndex() != null) {
+                for (SchemaId vtag : pendingEvent.getVtagsToIndex()) {
+                    event.addVTagToIndex(vtag);
+                }
+                coalescedMessages.add(pendingMsg);
+            }
+        }
+        return coalescedMessages;
+    }
+
     private Set<SchemaId> toFields(Set<FieldType> fieldTypes) {
         return new HashSet<SchemaId>(Collections2.transform(fieldTypes, new Function<FieldType, SchemaId>() {
             @Override
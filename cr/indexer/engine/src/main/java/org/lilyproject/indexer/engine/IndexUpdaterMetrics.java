@@ -43,6 +43,12 @@ public class IndexUpdaterMetrics implements Updater {
      * */
     public MetricsTimeVaryingLong errors = new MetricsTimeVaryingLong("errors", registry);
 
+    /**
+     * The number of reindex messages which were handled together with another reindex message of the same record.
+     */
+    public MetricsTimeVaryingLong coalescedIndexMessages = new MetricsTimeVaryingLong("coalescedIndexMessages",
+            registry);
+
     public IndexUpdaterMetrics(String indexName) {
         this.indexName = indexName;
         context = MetricsUtil.getContext("indexUpdater");
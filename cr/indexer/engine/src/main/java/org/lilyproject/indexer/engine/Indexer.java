@@ -28,9 +28,7 @@ import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrInputDocument;
 import org.lilyproject.indexer.derefmap.DependencyEntry;
 import org.lilyproject.indexer.derefmap.DerefMap;
-import org.lilyproject.indexer.model.indexerconf.DynamicFieldNameTemplateResolver;
-import org.lilyproject.indexer.model.indexerconf.DynamicIndexField;
-import org.lilyproject.indexer.model.indexerconf.DynamicIndexField.DynamicIndexFieldMatch;
+import org.lilyproject.indexer.model.indexerconf.DynamicIndexFieldMatcher.ResolvedDynamicIndexField;
 import org.lilyproject.indexer.model.indexerconf.IndexCase;
 import org.lilyproject.indexer.model.indexerconf.IndexerConf;
 import org.lilyproject.indexer.model.sharding.ShardSelectorException;
@@ -42,7 +40,6 @@ import org.lilyproject.repository.api.Repository;
 import org.lilyproject.repository.api.RepositoryException;
 import org.lilyproject.repository.api.SchemaId;
 import org.lilyproject.repository.api.TypeManager;
-import org.lilyproject.repository.api.ValueType;
 import org.lilyproject.repository.api.VersionNotFoundException;
 import org.lilyproject.util.repo.SystemFields;
 import org.lilyproject.util.repo.VTaggedRecord;
@@ -70,10 +67,26 @@ public class Indexer {
      */
     private DerefMap derefMap;
 
+    /**
+     * Values of index fields from previous builds of documents, used to avoid re-evaluating index fields
+     * whose input did not change. Is <code>null</code> when incremental document building is disabled.
+     */
+    private IndexFieldValueCache fieldValueCache;
+
     private Log log = LogFactory.getLog(getClass());
 
     public Indexer(String indexName, IndexerConf conf, Repository repository, SolrShardManager solrShardMgr,
                    IndexLocker indexLocker, IndexerMetrics metrics, DerefMap derefMap) {
+        this(indexName, conf, repository, solrShardMgr, indexLocker, metrics, derefMap, null, null);
+    }
+
+    /**
+     * @param fieldValueCache optional, enables incremental building of Solr documents
+     * @param contentExtractor optional, if null blob content is extracted on the calling thread without caching
+     */
+    public Indexer(String indexName, IndexerConf conf, Repository repository, SolrShardManager solrShardMgr,
+                   IndexLocker indexLocker, IndexerMetrics metrics, DerefMap derefMap,
+                   IndexFieldValueCache fieldValueCache, ContentExtractor contentExtractor) {
         this.indexName = indexName;
         this.conf = conf;
         this.repository = repository;
@@ -81,9 +94,11 @@ public class Indexer {
         this.indexLocker = indexLocker;
         this.typeManager = repository.getTypeManager();
         this.systemFields = SystemFields.getInstance(typeManager, repository.getIdGenerator());
-        this.valueEvaluator = new ValueEvaluator(conf);
+        this.valueEvaluator = new ValueEvaluator(conf,
+                contentExtractor != null ? contentExtractor : new ContentExtractor());
         this.metrics = metrics;
         this.derefMap = derefMap;
+        this.fieldValueCache = fieldValueCache;
     }
 
     public IndexerConf getConf() {
@@ -203,12 +218,26 @@ public class Indexer {
         // deref-values which can change from vtag to vtag, so we could optimize this by only
         // evaluating those after the first run, but again because we want to maintain order and
         // because a deref-field could share the same name with a non-deref field, we simply
-        // re-evaluate all fields for each vtag.
+        // re-evaluate all fields for each vtag. When the field value cache is enabled, the values of the
+        // index fields which only depend on this record are however reused across the vtags.
+        IndexFieldValueCache.DocumentValues lastFieldValues = null;
         for (SchemaId vtag : vtags) {
+            String indexId = getIndexId(record.getId(), vtag);
 
             SolrDocumentBuilder solrDocumentBuilder =
                     new SolrDocumentBuilder(repository, getConf().getRecordFilter(), systemFields, valueEvaluator,
-                            record, getIndexId(record.getId(), vtag), vtag, version);
+                            record, indexId, vtag, version);
+
+            IndexFieldValueCache.DocumentValues fieldValues = null;
+            if (fieldValueCache != null) {
+                IndexFieldValueCache.DocumentValues previousFieldValues = fieldValueCache.take(indexId);
+                if (previousFieldValues == null) {
+                    previousFieldValues = lastFieldValues;
+                }
+                fieldValues = new IndexFieldValueCache.DocumentValues();
+                solrDocumentBuilder.setFieldValueCache(previousFieldValues, fieldValues);
+                lastFieldValues = fieldValues;
+            }
 
             // By convention/definition, we first evaluate the static index fields and then the dynamic ones
 
@@ -223,21 +252,9 @@ public class Indexer {
             if (!conf.getDynamicFields().isEmpty()) {
                 for (Map.Entry<SchemaId, Object> field : record.getFieldsById().entrySet()) {
                     FieldType fieldType = typeManager.getFieldTypeById(field.getKey());
-                    for (DynamicIndexField dynField : conf.getDynamicFields()) {
-                        DynamicIndexFieldMatch match = dynField.matches(fieldType);
-                        if (match.match) {
-                            String fieldName = evalName(dynField, match, fieldType);
-
-                            List<String> values = valueEvaluator.format(record, fieldType, dynField.extractContext(),
-                                    dynField.getFormatter(), repository);
-
-                            solrDocumentBuilder.addField(fieldName, values);
-
-                            if (!dynField.getContinue()) {
-                                // stop on first match, unless continue attribute is true
-                                break;
-                            }
-                        }
+                    for (ResolvedDynamicIndexField dynField : conf.getDynamicFieldMatches(fieldType)) {
+                        List<String> values = solrDocumentBuilder.evalDynamicField(dynField, fieldType);
+                        solrDocumentBuilder.addField(dynField.getFieldName(), values);
                     }
                 }
             }
@@ -251,7 +268,7 @@ public class Indexer {
                 // because with deref-expressions we are never sure) that we did.
 
                 // There can be a previous entry in the index which we should try to delete
-                solrShardMgr.getSolrClient(record.getId()).deleteById(getIndexId(record.getId(), vtag));
+                solrShardMgr.getSolrClient(record.getId()).deleteById(indexId);
                 metrics.deletesById.inc();
 
                 if (log.isDebugEnabled())
@@ -267,6 +284,11 @@ public class Indexer {
                 solrShardMgr.getSolrClient(record.getId()).add(solrDoc);
                 metrics.adds.inc();
 
+                if (fieldValueCache != null) {
+                    fieldValueCache.put(indexId, fieldValues);
+                    metrics.reusedFieldValues.inc(solrDocumentBuilder.getReusedValueCount());
+                }
+
                 if (log.isDebugEnabled()) {
                     log.debug(String.format("Record %1$s, vtag %2$s: indexed, doc = %3$s", record.getId(),
                             safeLoadTagName(vtag), solrDoc));
@@ -298,52 +320,6 @@ public class Indexer {
         }
     }
 
-    // FIXME: merge with SolrDocumentBuilder.resolve(NameTemplate()?
-    private String evalName(DynamicIndexField dynField, DynamicIndexFieldMatch match, FieldType fieldType) {
-        // Calculate the name, then add the value
-        Map<String, Object> nameContext = new HashMap<String, Object>();
-        nameContext.put("namespace", fieldType.getName().getNamespace());
-        nameContext.put("name", fieldType.getName().getName());
-
-        ValueType valueType = fieldType.getValueType();
-        nameContext.put("type", formatValueTypeName(valueType));
-        nameContext.put("baseType", valueType.getBaseName().toLowerCase());
-
-        // If there's no nested value type, revert to the current value type. This is practical for dynamic
-        // fields that match on types like "*,LIST<+>".
-        ValueType nestedValueType = valueType.getNestedValueType() != null ? valueType.getNestedValueType() : valueType;
-        nameContext.put("nestedType", formatValueTypeName(nestedValueType));
-        nameContext.put("nestedBaseType", nestedValueType.getBaseName().toLowerCase());
-
-        nameContext.put("deepestNestedBaseType", valueType.getDeepestValueType().getBaseName().toLowerCase());
-
-        boolean isList = valueType.getBaseName().equals("LIST");
-        nameContext.put("multiValue", isList);
-        nameContext.put("list", isList);
-
-        if (match.nameMatch != null) {
-            nameContext.put("nameMatch", match.nameMatch);
-        }
-        if (match.namespaceMatch != null) {
-            nameContext.put("namespaceMatch", match.namespaceMatch);
-        }
-        String fieldName = dynField.getNameTemplate().format(new DynamicFieldNameTemplateResolver(nameContext));
-        return fieldName;
-    }
-
-    private String formatValueTypeName(ValueType valueType) {
-        StringBuilder builder = new StringBuilder();
-
-        while (valueType != null) {
-            if (builder.length() > 0)
-                builder.append("_");
-            builder.append(valueType.getBaseName().toLowerCase());
-            valueType = valueType.getNestedValueType();
-        }
-
-        return builder.toString();
-    }
-
     /**
      * Deletes all index entries (for all vtags) for the given record.
      *
@@ -355,6 +331,12 @@ public class Indexer {
         solrShardMgr.getSolrClient(recordId)
                 .deleteByQuery("lily.id:" + ClientUtils.escapeQueryChars(recordId.toString()));
         metrics.deletesByQuery.inc();
+
+        if (fieldValueCache != null) {
+            for (SchemaId vtag : conf.getVtags()) {
+                fieldValueCache.invalidate(getIndexId(recordId, vtag));
+            }
+        }
     }
 
     /**
@@ -365,6 +347,10 @@ public class Indexer {
         verifyLock(recordId);
         solrShardMgr.getSolrClient(recordId).deleteById(getIndexId(recordId, vtag));
         metrics.deletesByQuery.inc();
+
+        if (fieldValueCache != null) {
+            fieldValueCache.invalidate(getIndexId(recordId, vtag));
+        }
     }
 
     private Map<Long, Set<SchemaId>> getVtagsByVersion(Set<SchemaId> vtagsToIndex, Map<SchemaId, Long> vtags) {
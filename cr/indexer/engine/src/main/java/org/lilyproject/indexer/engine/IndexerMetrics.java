@@ -44,6 +44,8 @@ public class IndexerMetrics implements Updater {
 
     public MetricsTimeVaryingLong deletesByQuery = new MetricsTimeVaryingLong("deletesByQuery", registry);
 
+    public MetricsTimeVaryingLong reusedFieldValues = new MetricsTimeVaryingLong("reusedFieldValues", registry);
+
     public IndexerMetrics(String indexName) {
         this.indexName = indexName;
         context = MetricsUtil.getContext("indexer");
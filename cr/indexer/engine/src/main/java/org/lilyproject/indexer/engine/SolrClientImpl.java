@@ -30,9 +30,19 @@ public class SolrClientImpl implements SolrClient {
 
     private String description;
 
+    private SolrClientMetrics metrics;
+
     public SolrClientImpl(SolrServer solrServer, String description) {
+        this(solrServer, description, null);
+    }
+
+    /**
+     * @param metrics optional, if not null the duration and size of the requests are recorded
+     */
+    public SolrClientImpl(SolrServer solrServer, String description, SolrClientMetrics metrics) {
         this.solrServer = solrServer;
         this.description = description;
+        this.metrics = metrics;
     }
 
     @Override
@@ -42,73 +52,125 @@ public class SolrClientImpl implements SolrClient {
 
     @Override
     public UpdateResponse add(SolrInputDocument doc) throws SolrClientException {
+        batchSize(1);
+        long before = System.currentTimeMillis();
         try {
             return solrServer.add(doc);
         } catch (Exception e) {
             throw new SolrClientException(description, e);
+        } finally {
+            requestDone(before);
         }
     }
 
     @Override
     public UpdateResponse add(Collection<SolrInputDocument> docs) throws SolrClientException {
+        batchSize(docs.size());
+        long before = System.currentTimeMillis();
         try {
             return solrServer.add(docs);
         } catch (Exception e) {
             throw new SolrClientException(description, e);
+        } finally {
+            requestDone(before);
         }
     }
 
     @Override
     public UpdateResponse deleteById(List<String> ids) throws SolrClientException {
+        batchSize(ids.size());
+        long before = System.currentTimeMillis();
         try {
             return solrServer.deleteById(ids);
         } catch (Exception e) {
             throw new SolrClientException(description, e);
+        } finally {
+            requestDone(before);
         }
     }
 
     @Override
     public UpdateResponse deleteById(String id) throws SolrClientException {
+        batchSize(1);
+        long before = System.currentTimeMillis();
         try {
             return solrServer.deleteById(id);
         } catch (Exception e) {
             throw new SolrClientException(description, e);
+        } finally {
+            requestDone(before);
         }
     }
 
     @Override
     public UpdateResponse deleteByQuery(String query) throws SolrClientException {
+        long before = System.currentTimeMillis();
         try {
             return solrServer.deleteByQuery(query);
         } catch (Exception e) {
             throw new SolrClientException(description, e);
+        } finally {
+            requestDone(before);
         }
     }
 
     @Override
     public UpdateResponse commit(boolean waitFlush, boolean waitSearcher) throws SolrClientException {
+        long before = System.currentTimeMillis();
         try {
             return solrServer.commit(waitFlush, waitSearcher);
         } catch (Exception e) {
             throw new SolrClientException(description, e);
+        } finally {
+            requestDone(before);
         }
     }
 
     @Override
     public UpdateResponse commit() throws SolrClientException {
+        long before = System.currentTimeMillis();
         try {
             return solrServer.commit();
         } catch (Exception e) {
             throw new SolrClientException(description, e);
+        } finally {
+            requestDone(before);
         }
     }
 
     @Override
     public QueryResponse query(SolrParams params) throws SolrClientException {
+        long before = System.currentTimeMillis();
         try {
             return solrServer.query(params);
         } catch (Exception e) {
             throw new SolrClientException(description, e);
+        } finally {
+            requestDone(before);
+        }
+    }
+
+    @Override
+    public UpdateResponse optimize(boolean waitFlush, boolean waitSearcher) throws SolrClientException {
+        long before = System.currentTimeMillis();
+        try {
+            return solrServer.optimize(waitFlush, waitSearcher);
+        } catch (Exception e) {
+            throw new SolrClientException(description, e);
+        } finally {
+            requestDone(before);
+        }
+    }
+
+    private void batchSize(int size) {
+        if (metrics != null) {
+            metrics.batchSize.inc(size);
+        }
+    }
+
+    private void requestDone(long before) {
+        if (metrics != null) {
+            metrics.requests.inc(System.currentTimeMillis() - before);
         }
     }
 }
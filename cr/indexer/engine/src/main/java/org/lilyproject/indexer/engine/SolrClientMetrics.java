@@ -22,6 +22,7 @@ import org.apache.hadoop.metrics.Updater;
 import org.apache.hadoop.metrics.util.MetricsBase;
 import org.apache.hadoop.metrics.util.MetricsRegistry;
 import org.apache.hadoop.metrics.util.MetricsTimeVaryingLong;
+import org.apache.hadoop.metrics.util.MetricsTimeVaryingRate;
 import org.lilyproject.util.hbase.metrics.MBeanUtil;
 import org.lilyproject.util.hbase.metrics.MetricsDynamicMBeanBase;
 
@@ -37,6 +38,18 @@ public class SolrClientMetrics implements Updater {
     /** Counts number of times a Solr operation has been retried because of connection-related problems. */
     public MetricsTimeVaryingLong retries = new MetricsTimeVaryingLong("retries", registry);
 
+    /** Duration of the HTTP requests to the Solr shard (add, delete, commit, optimize, query). */
+    public MetricsTimeVaryingRate requests = new MetricsTimeVaryingRate("requests", registry);
+
+    /** Number of documents (or ids, for deletes) sent per add or delete request. */
+    public MetricsTimeVaryingRate batchSize = new MetricsTimeVaryingRate("batch_size", registry);
+
+    /**
+     * Time that requests which are sent to all shards in parallel (commit, optimize) waited before being
+     * executed.
+     */
+    public MetricsTimeVaryingRate queueTime = new MetricsTimeVaryingRate("queue_time", registry);
+
     public SolrClientMetrics(String indexName, String shardName) {
         this.recordName = indexName + "_" + shardName;
         context = MetricsUtil.getContext("solrClient");
@@ -32,7 +32,10 @@ import org.apache.solr.common.SolrInputDocument;
 import org.lilyproject.indexer.derefmap.DependencyEntry;
 import org.lilyproject.indexer.derefmap.DerefMapUtil;
 import org.lilyproject.indexer.model.indexerconf.Dep;
+import org.lilyproject.indexer.model.indexerconf.DynamicIndexField;
+import org.lilyproject.indexer.model.indexerconf.DynamicIndexFieldMatcher.ResolvedDynamicIndexField;
 import org.lilyproject.indexer.model.indexerconf.FieldTemplatePart;
+import org.lilyproject.indexer.model.indexerconf.FieldValue;
 import org.lilyproject.indexer.model.indexerconf.IndexRecordFilter;
 import org.lilyproject.indexer.model.indexerconf.IndexUpdateBuilder;
 import org.lilyproject.indexer.model.indexerconf.LiteralTemplatePart;
@@ -43,6 +46,7 @@ import org.lilyproject.indexer.model.indexerconf.RecordContext;
 import org.lilyproject.indexer.model.indexerconf.TemplatePart;
 import org.lilyproject.indexer.model.indexerconf.Value;
 import org.lilyproject.indexer.model.indexerconf.VariantPropertyTemplatePart;
+import org.lilyproject.repository.api.FieldType;
 import org.lilyproject.repository.api.IdRecord;
 import org.lilyproject.repository.api.QName;
 import org.lilyproject.repository.api.Record;
@@ -51,6 +55,7 @@ import org.lilyproject.repository.api.Repository;
 import org.lilyproject.repository.api.RepositoryException;
 import org.lilyproject.repository.api.SchemaId;
 import org.lilyproject.repository.api.TypeManager;
+import org.lilyproject.util.Pair;
 import org.lilyproject.util.repo.SystemFields;
 
 public class SolrDocumentBuilder implements IndexUpdateBuilder {
@@ -75,6 +80,11 @@ public class SolrDocumentBuilder implements IndexUpdateBuilder {
     private SchemaId vtag;
     private long version;
 
+    private final IdRecord record;
+    private IndexFieldValueCache.DocumentValues previousValues;
+    private IndexFieldValueCache.DocumentValues currentValues;
+    private int reusedValueCount;
+
     public SolrDocumentBuilder(Repository repository, IndexRecordFilter indexRecordFilter, SystemFields systemFields,
                                ValueEvaluator valueEvaluator, IdRecord record, String key, SchemaId vtag, long version) {
         this.repository = repository;
@@ -82,6 +92,7 @@ public class SolrDocumentBuilder implements IndexUpdateBuilder {
         this.systemFields = systemFields;
         this.typeManager = repository.getTypeManager();
         this.valueEvaluator = valueEvaluator;
+        this.record = record;
         this.recordId = record.getId();
         this.key = key;
         this.vtag = vtag;
@@ -102,6 +113,27 @@ public class SolrDocumentBuilder implements IndexUpdateBuilder {
         });
     }
 
+    /**
+     * Enables incremental evaluation: index fields which are evaluated from the same record field value as
+     * the last time this document was built take their values from previousValues. All values of index
+     * fields that are eligible for reuse are collected into currentValues, except for those of which a
+     * content extraction was incomplete.
+     *
+     * @param previousValues optional
+     */
+    public void setFieldValueCache(IndexFieldValueCache.DocumentValues previousValues,
+            IndexFieldValueCache.DocumentValues currentValues) {
+        this.previousValues = previousValues;
+        this.currentValues = currentValues;
+    }
+
+    /**
+     * Returns the number of index field values that were taken over from the previous build of the document.
+     */
+    public int getReusedValueCount() {
+        return reusedValueCount;
+    }
+
     public boolean isEmptyDocument() {
         return emptyDocument;
     }
@@ -122,9 +154,70 @@ public class SolrDocumentBuilder implements IndexUpdateBuilder {
 
     @Override
     public List<String> eval(Value value) throws RepositoryException, InterruptedException {
+        // Only values which are a direct function of a field of the record being indexed are eligible for reuse,
+        // dereferenced values can change without this record changing. Note that evaluating a field value of
+        // the record itself does not introduce dependencies, so skipping the evaluation is safe.
+        if (currentValues != null && value instanceof FieldValue && getRecordContext().record == record) {
+            QName fieldName = value.getTargetFieldType().getName();
+            if (!systemFields.isSystemField(fieldName) && record.hasField(fieldName)) {
+                Object input = record.getField(fieldName);
+                IndexFieldValueCache.CachedValue cachedValue = reuse(value, input);
+                if (cachedValue != null) {
+                    return cachedValue.getResult();
+                }
+
+                // A value with an incomplete content extraction is not kept, so that the extraction is retried
+                ExtractionStatus extractionStatus = new ExtractionStatus();
+                List<String> result = valueEvaluator.eval(value, this, extractionStatus);
+                if (!extractionStatus.isIncomplete()) {
+                    currentValues.put(value, input, result);
+                }
+                return result;
+            }
+        }
+
         return valueEvaluator.eval(value, this);
     }
 
+    /**
+     * Evaluates a dynamic index field for a field of the record being indexed.
+     */
+    public List<String> evalDynamicField(ResolvedDynamicIndexField dynField, FieldType fieldType)
+            throws InterruptedException {
+        DynamicIndexField dynamicIndexField = dynField.getDynamicIndexField();
+
+        Object cacheKey = null;
+        Object input = null;
+        if (currentValues != null) {
+            cacheKey = new Pair<DynamicIndexField, SchemaId>(dynamicIndexField, fieldType.getId());
+            input = record.getField(fieldType.getName());
+            IndexFieldValueCache.CachedValue cachedValue = reuse(cacheKey, input);
+            if (cachedValue != null) {
+                return cachedValue.getResult();
+            }
+        }
+
+        ExtractionStatus extractionStatus = new ExtractionStatus();
+        List<String> result = valueEvaluator.format(record, fieldType, dynamicIndexField.extractContext(),
+                dynamicIndexField.getFormatter(), repository, extractionStatus);
+
+        if (currentValues != null && !extractionStatus.isIncomplete()) {
+            currentValues.put(cacheKey, input, result);
+        }
+
+        return result;
+    }
+
+    private IndexFieldValueCache.CachedValue reuse(Object cacheKey, Object input) {
+        IndexFieldValueCache.CachedValue cachedValue =
+                previousValues != null ? previousValues.get(cacheKey, input) : null;
+        if (cachedValue != null) {
+            currentValues.put(cacheKey, input, cachedValue.getResult());
+            reusedValueCount++;
+        }
+        return cachedValue;
+    }
+
     @Override
     public void addField(String fieldName, List<String> values) throws InterruptedException, RepositoryException {
         if (values != null) {
@@ -19,5 +19,5 @@ import org.lilyproject.indexer.model.sharding.ShardSelectorException;
 import org.lilyproject.repository.api.RecordId;
 
 public interface SolrShardManager {
-    SolrClient getSolrClient(RecordId recordId) throws ShardSelectorException;
+    SolrUpdateClient getSolrClient(RecordId recordId) throws ShardSelectorException;
 }
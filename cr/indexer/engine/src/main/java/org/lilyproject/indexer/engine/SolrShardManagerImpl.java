@@ -33,6 +33,15 @@ import org.lilyproject.repository.api.RecordId;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.lilyproject.util.concurrent.CustomThreadFactory;
 
 public class SolrShardManagerImpl implements SolrShardManager {
     /** Key = shard name, Value = Solr URL */
@@ -42,6 +51,12 @@ public class SolrShardManagerImpl implements SolrShardManager {
     private HttpClient httpClient;
     private RequestWriter requestWriter;
     private ResponseParser responseParser;
+    /** Set if there is only one shard, in which case the shard selector does not need to be consulted. */
+    private SolrClient singleShardClient;
+    /** Executes requests which go to all shards, created upon first use. */
+    private ExecutorService allShardsExecutor;
+
+    private static final long DEFAULT_ALL_SHARDS_TIMEOUT = 10 * 60 * 1000L;
 
     public SolrShardManagerImpl(String indexName, Map<String, String> shards, ShardSelector selector, HttpClient httpClient,
             SolrClientConfig solrClientConfig) throws MalformedURLException {
@@ -90,12 +105,106 @@ public class SolrShardManagerImpl implements SolrShardManager {
     }
 
     /**
-     * This method is only meant for use by test cases.
+     * Commits all shards, in parallel.
      */
     public void commit(boolean waitFlush, boolean waitSearcher) throws SolrClientException, InterruptedException {
-        for (SolrClientHandle client : shardConnections.values()) {
-            client.solrClient.commit(waitFlush, waitSearcher);
+        commit(waitFlush, waitSearcher, DEFAULT_ALL_SHARDS_TIMEOUT);
+    }
+
+    /**
+     * Commits all shards, in parallel.
+     *
+     * @param timeout maximum time in ms to wait for all shards together
+     */
+    public void commit(final boolean waitFlush, final boolean waitSearcher, long timeout)
+            throws SolrClientException, InterruptedException {
+        executeOnAllShards(new ShardRequest() {
+            @Override
+            public void execute(SolrClient solrClient) throws SolrClientException, InterruptedException {
+                solrClient.commit(waitFlush, waitSearcher);
+            }
+        }, timeout);
+    }
+
+    /**
+     * Optimizes all shards, in parallel.
+     *
+     * @param timeout maximum time in ms to wait for all shards together
+     */
+    public void optimize(final boolean waitFlush, final boolean waitSearcher, long timeout)
+            throws SolrClientException, InterruptedException {
+        executeOnAllShards(new ShardRequest() {
+            @Override
+            public void execute(SolrClient solrClient) throws SolrClientException, InterruptedException {
+                solrClient.optimize(waitFlush, waitSearcher);
+            }
+        }, timeout);
+    }
+
+    private void executeOnAllShards(final ShardRequest request, long timeout)
+            throws SolrClientException, InterruptedException {
+
+        if (shardConnections.size() == 1) {
+            request.execute(singleShardClient);
+            return;
+        }
+
+        ExecutorService executor = getAllShardsExecutor();
+
+        Map<String, Future<Void>> futures = new HashMap<String, Future<Void>>();
+        final long submitTime = System.currentTimeMillis();
+        for (final Map.Entry<String, SolrClientHandle> shard : shardConnections.entrySet()) {
+            futures.put(shard.getKey(), executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    shard.getValue().solrClientMetrics.queueTime.inc(System.currentTimeMillis() - submitTime);
+                    request.execute(shard.getValue().solrClient);
+                    return null;
+                }
+            }));
         }
+
+        // All requests share the same timeout
+        long deadline = submitTime + timeout;
+        SolrClientException firstError = null;
+        try {
+            for (Map.Entry<String, Future<Void>> future : futures.entrySet()) {
+                try {
+                    future.getValue().get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+                } catch (ExecutionException e) {
+                    if (firstError == null) {
+                        firstError = e.getCause() instanceof SolrClientException ? (SolrClientException)e.getCause()
+                                : new SolrClientException(shards.get(future.getKey()), e.getCause());
+                    }
+                } catch (TimeoutException e) {
+                    if (firstError == null) {
+                        firstError = new SolrClientException(shards.get(future.getKey()),
+                                new Exception("Request to shard " + future.getKey() + " did not finish within " +
+                                        timeout + "ms."));
+                    }
+                }
+            }
+        } finally {
+            for (Future<Void> future : futures.values()) {
+                future.cancel(true);
+            }
+        }
+
+        if (firstError != null) {
+            throw firstError;
+        }
+    }
+
+    private synchronized ExecutorService getAllShardsExecutor() {
+        if (allShardsExecutor == null) {
+            allShardsExecutor = Executors.newFixedThreadPool(shardConnections.size(),
+                    new CustomThreadFactory("solr-shards", null, true));
+        }
+        return allShardsExecutor;
+    }
+
+    private interface ShardRequest {
+        void execute(SolrClient solrClient) throws SolrClientException, InterruptedException;
     }
 
     /**
@@ -112,15 +221,23 @@ public class SolrShardManagerImpl implements SolrShardManager {
             solr.setRequestWriter(requestWriter);
             solr.setParser(responseParser);
             SolrClientMetrics metrics = new SolrClientMetrics(indexName, shard.getKey());
-            SolrClient solrClient = new SolrClientImpl(solr, shard.getValue());
+            SolrClient solrClient = new SolrClientImpl(solr, shard.getValue(), metrics);
             if (blockOnIOProblem) {
                 solrClient = RetryingSolrClient.wrap(solrClient, metrics);
             }
             shardConnections.put(shard.getKey(), new SolrClientHandle(solrClient, metrics));
         }
+
+        if (shardConnections.size() == 1) {
+            singleShardClient = shardConnections.values().iterator().next().solrClient;
+        }
     }
 
     public SolrClient getSolrClient(RecordId recordId) throws ShardSelectorException {
+        if (singleShardClient != null) {
+            return singleShardClient;
+        }
+
         String shardName = selector.getShard(recordId);
         return shardConnections.get(shardName).solrClient;
     }
@@ -136,6 +253,12 @@ public class SolrShardManagerImpl implements SolrShardManager {
     }
 
     public void shutdown() {
+        synchronized (this) {
+            if (allShardsExecutor != null) {
+                allShardsExecutor.shutdownNow();
+            }
+        }
+
         if (shardConnections != null) {
             for (SolrClientHandle client : shardConnections.values()) {
                 client.solrClientMetrics.shutdown();
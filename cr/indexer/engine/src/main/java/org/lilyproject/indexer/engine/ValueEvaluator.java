@@ -15,7 +15,6 @@
  */
 package org.lilyproject.indexer.engine;
 
-import java.io.InputStream;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -26,12 +25,6 @@ import com.google.common.collect.Lists;
 import com.google.common.primitives.Ints;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.tika.metadata.Metadata;
-import org.apache.tika.parser.AutoDetectParser;
-import org.apache.tika.parser.ParseContext;
-import org.apache.tika.parser.Parser;
-import org.apache.tika.sax.BodyContentHandler;
-import org.apache.tika.sax.WriteOutContentHandler;
 import org.lilyproject.indexer.model.indexerconf.DerefValue;
 import org.lilyproject.indexer.model.indexerconf.FieldValue;
 import org.lilyproject.indexer.model.indexerconf.Follow;
@@ -46,7 +39,6 @@ import org.lilyproject.repository.api.FieldType;
 import org.lilyproject.repository.api.Record;
 import org.lilyproject.repository.api.Repository;
 import org.lilyproject.repository.api.RepositoryException;
-import org.lilyproject.util.io.Closer;
 import org.lilyproject.util.repo.SystemFields;
 
 /**
@@ -59,11 +51,16 @@ public class ValueEvaluator {
 
     private SystemFields systemFields;
 
-    private Parser tikaParser = new AutoDetectParser();
+    private ContentExtractor contentExtractor;
 
     public ValueEvaluator(IndexerConf conf) {
+        this(conf, new ContentExtractor());
+    }
+
+    public ValueEvaluator(IndexerConf conf, ContentExtractor contentExtractor) {
         this.conf = conf;
         this.systemFields = conf.getSystemFields();
+        this.contentExtractor = contentExtractor;
     }
 
     /**
@@ -72,6 +69,16 @@ public class ValueEvaluator {
      */
     public List<String> eval(Value valueDef, IndexUpdateBuilder indexUpdateBuilder)
             throws RepositoryException, InterruptedException {
+        return eval(valueDef, indexUpdateBuilder, null);
+    }
+
+    /**
+     * Evaluates a value for a given record & vtag.
+     * @param extractionStatus optional, marked incomplete when a blob is not extracted for a temporary reason
+     * @return null if there is no value
+     */
+    public List<String> eval(Value valueDef, IndexUpdateBuilder indexUpdateBuilder,
+            ExtractionStatus extractionStatus) throws RepositoryException, InterruptedException {
 
         List<IndexValue> indexValues = evalValue(valueDef, indexUpdateBuilder);
 
@@ -80,7 +87,7 @@ public class ValueEvaluator {
 
         Repository repository = indexUpdateBuilder.getRepository();
         if (valueDef.extractContent()) {
-            return extractContent(indexValues, repository);
+            return extractContent(indexValues, repository, extractionStatus);
         }
 
         Formatter formatter = conf.getFormatters().getFormatter(valueDef.getFormatter());
@@ -95,6 +102,18 @@ public class ValueEvaluator {
      */
     public List<String> format(Record record, FieldType fieldType, boolean extractContent, String formatterName,
             Repository repository) throws InterruptedException {
+        return format(record, fieldType, extractContent, formatterName, repository, null);
+    }
+
+    /**
+     * Direct 'evaluation' (content extraction, formatting) of a given field
+     * from a record. Should only be called if the field is present in the
+     * record.
+     *
+     * @param extractionStatus optional, marked incomplete when a blob is not extracted for a temporary reason
+     */
+    public List<String> format(Record record, FieldType fieldType, boolean extractContent, String formatterName,
+            Repository repository, ExtractionStatus extractionStatus) throws InterruptedException {
         Object value = record.getField(fieldType.getName());
 
         List<IndexValue> indexValues;
@@ -110,7 +129,7 @@ public class ValueEvaluator {
         }
 
         if (fieldType.getValueType().getDeepestValueType().getBaseName().equals("BLOB") && extractContent) {
-            return extractContent(indexValues, repository);
+            return extractContent(indexValues, repository, extractionStatus);
         }
 
         Formatter formatter = conf.getFormatters().getFormatter(formatterName);
@@ -118,7 +137,8 @@ public class ValueEvaluator {
         return formatter.format(indexValues, repository);
     }
 
-    private List<String> extractContent(List<IndexValue> indexValues, Repository repository) {
+    private List<String> extractContent(List<IndexValue> indexValues, Repository repository,
+            ExtractionStatus extractionStatus) throws InterruptedException {
         // At this point we can be sure the value will be a blob, this is
         // validated during
         // the construction of the indexer conf.
@@ -133,67 +153,33 @@ public class ValueEvaluator {
             if (indexValue.listIndex != null)
                 indexes.addLast(indexValue.listIndex);
 
-            extractContent(indexValue.value, indexes, indexValue.record, indexValue.fieldType, result, repository);
+            extractContent(indexValue.value, indexes, indexValue.record, indexValue.fieldType, result, repository,
+                    extractionStatus);
         }
 
         return result.isEmpty() ? null : result;
     }
 
     private void extractContent(Object value, Deque<Integer> indexes, Record record, FieldType fieldType,
-            List<String> result, Repository repository) {
+            List<String> result, Repository repository, ExtractionStatus extractionStatus) throws InterruptedException {
 
         if (value instanceof List) { // this covers both LIST and PATH types
             List values = (List) value;
             for (int i = 0; i < values.size(); i++) {
                 indexes.addLast(i);
-                extractContent(values.get(i), indexes, record, fieldType, result, repository);
+                extractContent(values.get(i), indexes, record, fieldType, result, repository, extractionStatus);
                 indexes.removeLast();
             }
         } else {
-            extractContent(value, record, fieldType, Ints.toArray(indexes), result, repository);
+            extractContent(value, record, fieldType, Ints.toArray(indexes), result, repository, extractionStatus);
         }
     }
 
     private void extractContent(Object value, Record record, FieldType fieldType, int[] indexes, List<String> result,
-            Repository repository) {
-
-        Blob blob = (Blob) value;
-        InputStream is = null;
-
-        // TODO make write limit configurable
-        WriteOutContentHandler woh = new WriteOutContentHandler(500 * 1000); // 500K limit (Tika default: 100K)
-        BodyContentHandler ch = new BodyContentHandler(woh);
-
-        try {
-            is = repository.getInputStream(record, fieldType.getName(), indexes);
-
-            Metadata metadata = new Metadata();
-            metadata.add(Metadata.CONTENT_TYPE, blob.getMediaType());
-            if (blob.getName() != null)
-                metadata.add(Metadata.RESOURCE_NAME_KEY, blob.getName());
-
-            ParseContext parseContext = new ParseContext();
-
-            tikaParser.parse(is, ch, metadata, parseContext);
-        } catch (Throwable t) {
-            if (woh.isWriteLimitReached(t)) {
-                // ok, we'll just add use the partial result
-                if (log.isInfoEnabled()) {
-                    log.info("Blob extraction: write limit reached. Field '" + fieldType.getName() + "', record '"
-                            + record.getId() + "'.");
-                }
-            } else {
-                log.error(
-                        "Error extracting blob content. Field '" + fieldType.getName() + "', record '" + record.getId()
-                                + "'.", t);
-                return;
-            }
-        } finally {
-            Closer.close(is);
-        }
+            Repository repository, ExtractionStatus extractionStatus) throws InterruptedException {
 
-        String text = ch.toString();
-        if (text.length() > 0)
+        String text = contentExtractor.extract((Blob)value, record, fieldType, indexes, repository, extractionStatus);
+        if (text != null)
             result.add(text);
     }
 
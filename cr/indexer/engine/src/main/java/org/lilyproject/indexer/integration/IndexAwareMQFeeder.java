@@ -25,6 +25,7 @@ import org.lilyproject.indexer.model.util.IndexesInfo;
 import org.lilyproject.repository.api.Record;
 import org.lilyproject.repository.api.RecordId;
 import org.lilyproject.repository.api.Repository;
+import org.lilyproject.rowlog.api.MessagePriority;
 import org.lilyproject.rowlog.api.RowLog;
 import org.lilyproject.rowlog.api.RowLogException;
 import org.lilyproject.rowlog.api.RowLogMessage;
@@ -83,8 +84,19 @@ public class IndexAwareMQFeeder implements RowLogMessageListener {
             filterSubscriptions(subscriptionIds, indexInfos, message, recordEvent);
         }
 
+        // Bulk updates can ask for low priority with the attribute lily.mq.priority=low, so that they don't
+        // delay the processing of interactive updates. Low priority messages can be processed after newer
+        // messages of the same record. This is fine for creates and updates, since the indexer indexes the
+        // current state of the record, but a delete processed after the record was created again would remove
+        // the new record from the index, so deletes always keep the normal priority.
+        MessagePriority priority = message.getPriority();
+        if (recordEvent.getType() != RecordEvent.Type.DELETE && recordEvent.hasAttributes() &&
+                "low".equals(recordEvent.getAttributes().get("lily.mq.priority"))) {
+            priority = MessagePriority.LOW;
+        }
+
         // Add event to the MQ
-        return addMessageToMQ(message, subscriptionIds);
+        return addMessageToMQ(message, subscriptionIds, priority);
     }
 
     private RecordEvent getRecordEvent(RowLogMessage message) {
@@ -167,7 +179,7 @@ public class IndexAwareMQFeeder implements RowLogMessageListener {
     /**
      * Add message to the MQ, this is the code from the original MessageQueueFeeder.
      */
-    private boolean addMessageToMQ(RowLogMessage message, List<String> subscriptionIds)
+    private boolean addMessageToMQ(RowLogMessage message, List<String> subscriptionIds, MessagePriority priority)
             throws InterruptedException {
         Exception lastException = null;
         // When an exception occurs, we retry to put the message.
@@ -177,7 +189,7 @@ public class IndexAwareMQFeeder implements RowLogMessageListener {
         for (int i = 0; i < 50; i++) {
             try {
                 messageQueue.putMessage(message.getRowKey(), message.getData(), message.getPayload(), null,
-                        subscriptionIds);
+                        subscriptionIds, priority);
                 return true;
             } catch (RowLogException e) {
                 lastException = e;
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.engine.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+import org.lilyproject.indexer.engine.ContentExtractor;
+import org.lilyproject.indexer.engine.ContentExtractorConfig;
+import org.lilyproject.indexer.engine.ExtractedContentCache;
+import org.lilyproject.indexer.engine.ExtractionStatus;
+import org.lilyproject.repository.api.Blob;
+import org.lilyproject.repository.api.FieldType;
+import org.lilyproject.repository.api.QName;
+import org.lilyproject.repository.api.Record;
+import org.lilyproject.repository.api.Repository;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ContentExtractorTest {
+    private final Record record = stub(Record.class, null);
+    private final FieldType fieldType = stub(FieldType.class, new QName("ns", "blobField"));
+
+    @Test
+    public void testCacheHit() throws Exception {
+        ContentExtractorConfig config = new ContentExtractorConfig();
+        MemoryCache cache = new MemoryCache();
+        ContentExtractor extractor = new ContentExtractor(config, cache);
+        Blob blob = new Blob(Bytes.toBytes("blobkey"), "text/plain", 11L, "test.txt");
+        CountingRepository repository = new CountingRepository(new ByteArrayInputStream(Bytes.toBytes("hello world")));
+
+        // The first extraction parses the blob and stores the text
+        ExtractionStatus status = new ExtractionStatus();
+        assertEquals("hello world",
+                extractor.extract(blob, record, fieldType, null, repository.proxy(), status).trim());
+        assertFalse(status.isIncomplete());
+        assertEquals(1, repository.reads.get());
+        assertEquals(1, cache.texts.size());
+
+        // The second one is served from the cache
+        assertEquals("hello world", extractor.extract(blob, record, fieldType, null, repository.proxy()).trim());
+        assertEquals(1, repository.reads.get());
+
+        // The text depends on the write limit, so with another limit the blob is parsed again
+        config.setWriteLimit(5);
+        repository.inputStream = new ByteArrayInputStream(Bytes.toBytes("hello world"));
+        assertEquals("hello", extractor.extract(blob, record, fieldType, null, repository.proxy()).trim());
+        assertEquals(2, repository.reads.get());
+        assertEquals(2, cache.texts.size());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        ContentExtractorConfig config = new ContentExtractorConfig();
+        config.setThreads(1);
+        config.setTimeout(100);
+        MemoryCache cache = new MemoryCache();
+        ContentExtractor extractor = new ContentExtractor(config, cache);
+        try {
+            Blob blob = new Blob(Bytes.toBytes("blobkey"), "text/plain", 11L, "test.txt");
+            BlockingInputStream inputStream = new BlockingInputStream();
+            CountingRepository repository = new CountingRepository(inputStream);
+
+            long before = System.currentTimeMillis();
+            ExtractionStatus status = new ExtractionStatus();
+            assertNull(extractor.extract(blob, record, fieldType, null, repository.proxy(), status));
+            assertTrue(System.currentTimeMillis() - before < 5000);
+
+            // Unlike a blob without text, the result is marked incomplete
+            assertTrue(status.isIncomplete());
+
+            // The extraction was cancelled, and nothing was cached
+            assertTrue(inputStream.interrupted.await(5, TimeUnit.SECONDS));
+            assertTrue(cache.texts.isEmpty());
+        } finally {
+            extractor.shutdown();
+        }
+    }
+
+    private static <T> T stub(Class<T> clazz, final Object name) {
+        return clazz.cast(Proxy.newProxyInstance(ContentExtractorTest.class.getClassLoader(), new Class[] {clazz},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getName")) {
+                            return name;
+                        } else if (method.getName().equals("toString")) {
+                            return String.valueOf(name);
+                        }
+                        return null;
+                    }
+                }));
+    }
+
+    private static class CountingRepository implements InvocationHandler {
+        private final AtomicInteger reads = new AtomicInteger();
+        private volatile InputStream inputStream;
+
+        CountingRepository(InputStream inputStream) {
+            this.inputStream = inputStream;
+        }
+
+        Repository proxy() {
+            return (Repository)Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] {Repository.class},
+                    this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            if (method.getName().equals("getInputStream")) {
+                reads.incrementAndGet();
+                return inputStream;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Input stream which blocks until the reading thread is interrupted.
+     */
+    private static class BlockingInputStream extends InputStream {
+        private final CountDownLatch interrupted = new CountDownLatch(1);
+
+        @Override
+        public int read() throws IOException {
+            try {
+                Thread.sleep(60000);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+                throw new IOException("interrupted");
+            }
+            return -1;
+        }
+    }
+
+    private static class MemoryCache implements ExtractedContentCache {
+        private final Map<String, String> texts = new HashMap<String, String>();
+
+        @Override
+        public synchronized String get(Blob blob, int writeLimit) {
+            return texts.get(key(blob, writeLimit));
+        }
+
+        @Override
+        public synchronized void put(Blob blob, int writeLimit, String text) {
+            texts.put(key(blob, writeLimit), text);
+        }
+
+        private String key(Blob blob, int writeLimit) {
+            return Bytes.toStringBinary(blob.getValue()) + "/" + writeLimit;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.engine.test;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.lilyproject.indexer.engine.IndexFieldValueCache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class IndexFieldValueCacheTest {
+    @Test
+    public void testReuseOnlyForSameInput() {
+        IndexFieldValueCache cache = new IndexFieldValueCache(1000);
+
+        IndexFieldValueCache.DocumentValues values = new IndexFieldValueCache.DocumentValues();
+        List<String> result = Collections.singletonList("extracted text");
+        values.put("field1", "input1", result);
+        values.put("field2", "input2", null);
+        cache.put("doc1", values);
+
+        IndexFieldValueCache.DocumentValues previous = cache.take("doc1");
+        assertNotNull(previous);
+        // taking removes the values from the cache
+        assertNull(cache.take("doc1"));
+
+        assertEquals(result, previous.get("field1", "input1").getResult());
+        assertNull(previous.get("field1", "other input"));
+        assertNull(previous.get("field3", "input1"));
+
+        // a null result is cached as well
+        assertNotNull(previous.get("field2", "input2"));
+        assertNull(previous.get("field2", "input2").getResult());
+    }
+
+    @Test
+    public void testSizeBound() {
+        IndexFieldValueCache cache = new IndexFieldValueCache(100);
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 80; i++) {
+            text.append('x');
+        }
+
+        for (int i = 0; i < 10; i++) {
+            IndexFieldValueCache.DocumentValues values = new IndexFieldValueCache.DocumentValues();
+            values.put("field", "input", Collections.singletonList(text.toString()));
+            cache.put("doc" + i, values);
+        }
+
+        int cached = 0;
+        for (int i = 0; i < 10; i++) {
+            if (cache.take("doc" + i) != null)
+                cached++;
+        }
+
+        assertEquals(1, cached);
+    }
+}
@@ -1,5 +1,14 @@
 package org.lilyproject.indexer.engine.test;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
 import org.apache.commons.io.IOUtils;
 import org.apache.hadoop.thirdparty.guava.common.collect.Sets;
 import org.apache.solr.client.solrj.SolrQuery;
@@ -10,6 +19,9 @@ import org.junit.Before;
 import org.junit.Test;
 import org.lilyproject.hadooptestfw.TestHelper;
 import org.lilyproject.indexer.IndexerException;
+import org.lilyproject.indexer.engine.ContentExtractor;
+import org.lilyproject.indexer.engine.ContentExtractorConfig;
+import org.lilyproject.indexer.engine.IndexFieldValueCache;
 import org.lilyproject.indexer.engine.IndexLocker;
 import org.lilyproject.indexer.engine.Indexer;
 import org.lilyproject.indexer.engine.IndexerApiImpl;
@@ -19,6 +31,7 @@ import org.lilyproject.indexer.engine.SolrClientException;
 import org.lilyproject.indexer.engine.SolrShardManagerImpl;
 import org.lilyproject.indexer.model.indexerconf.IndexerConf;
 import org.lilyproject.indexer.model.indexerconf.IndexerConfBuilder;
+import org.lilyproject.repository.api.Blob;
 import org.lilyproject.repository.api.FieldType;
 import org.lilyproject.repository.api.QName;
 import org.lilyproject.repository.api.Record;
@@ -87,11 +100,16 @@ public class IndexerApiTest {
     }
 
     public void changeIndexUpdater(String confName) throws Exception {
+        changeIndexUpdater(confName, repository, null, null);
+    }
+
+    public void changeIndexUpdater(String confName, Repository indexerRepository,
+            IndexFieldValueCache fieldValueCache, ContentExtractor contentExtractor) throws Exception {
         INDEXER_CONF = IndexerConfBuilder.build(IndexerTest.class.getResourceAsStream(confName), repository);
         IndexLocker indexLocker = new IndexLocker(repoSetup.getZk(), false);
         Indexer indexer =
-                new Indexer("test", INDEXER_CONF, repository, solrShardManager, indexLocker, new IndexerMetrics("test"),
-                        null);
+                new Indexer("test", INDEXER_CONF, indexerRepository, solrShardManager, indexLocker,
+                        new IndexerMetrics("test"), null, fieldValueCache, contentExtractor);
         indexerRegistry.register(indexer);
     }
 
@@ -154,13 +172,60 @@ public class IndexerApiTest {
         indexerApi.indexOn(record.getId(), Sets.newHashSet("this-index-does-not-exist"));
     }
 
+    @Test
+    public void explicitIndexingAfterIncompleteExtraction() throws Exception {
+        ContentExtractorConfig extractorConfig = new ContentExtractorConfig();
+        extractorConfig.setThreads(1);
+        extractorConfig.setTimeout(1000);
+        ContentExtractor contentExtractor = new ContentExtractor(extractorConfig, null);
+        BlockingBlobRepository blockingRepository = new BlockingBlobRepository(repository);
+        try {
+            changeIndexUpdater("indexerconf_extraction.xml", blockingRepository.proxy(),
+                    new IndexFieldValueCache(1024 * 1024), contentExtractor);
+
+            Blob blob = createBlob("niobium".getBytes(), "text/plain", "foo.txt");
+            final Record record = repository.recordBuilder()
+                    .id(repository.getIdGenerator().newRecordId("incomplete-extraction"))
+                    .recordType(matchingRecordType.getName())
+                    .field(new QName(NS, "nv_field1"), "value1")
+                    .field(new QName(NS, "nv_blob"), blob)
+                    .create();
+
+            // The blob extraction times out, the other field is indexed nevertheless
+            blockingRepository.blocked = true;
+            indexerApi.index(record.getId());
+            commitIndex();
+            verifyResultCount("nv_field1:value1", 1);
+            verifyResultCount("v_blob:niobium", 0);
+
+            // After an update of the other field, the blob field is unchanged but its value is not taken over
+            // from the previous indexing, since that extraction was incomplete
+            blockingRepository.blocked = false;
+            repository.recordBuilder()
+                    .id(record.getId())
+                    .field(new QName(NS, "nv_field1"), "value2")
+                    .update();
+            indexerApi.index(record.getId());
+            commitIndex();
+            verifyResultCount("nv_field1:value2", 1);
+            verifyResultCount("v_blob:niobium", 1);
+        } finally {
+            contentExtractor.shutdown();
+        }
+    }
+
     private void setupSchema() throws RepositoryException, InterruptedException {
         QName fieldName = new QName(NS, "nv_field1");
         FieldType field1 = typeManager.newFieldType(typeManager.getValueType("STRING"), fieldName, Scope.NON_VERSIONED);
         field1 = typeManager.createFieldType(field1);
 
+        FieldType blobField = typeManager.newFieldType(typeManager.getValueType("BLOB"), new QName(NS, "nv_blob"),
+                Scope.NON_VERSIONED);
+        blobField = typeManager.createFieldType(blobField);
+
         matchingRecordType = typeManager.newRecordType(new QName(NS, "RecordType1"));
         matchingRecordType.addFieldTypeEntry(field1.getId(), true);
+        matchingRecordType.addFieldTypeEntry(blobField.getId(), false);
         matchingRecordType = typeManager.createRecordType(matchingRecordType);
 
         otherRecordType = typeManager.newRecordType(new QName(NS, "OtherRecordType"));
@@ -168,6 +233,18 @@ public class IndexerApiTest {
         otherRecordType = typeManager.createRecordType(otherRecordType);
     }
 
+    private Blob createBlob(byte[] content, String mediaType, String fileName) throws Exception {
+        Blob blob = new Blob(mediaType, (long) content.length, fileName);
+        OutputStream os = repository.getOutputStream(blob);
+        try {
+            os.write(content);
+        } finally {
+            os.close();
+        }
+
+        return blob;
+    }
+
     private void commitIndex() throws Exception {
         repoSetup.processMQ();
         solrShardManager.commit(true, true);
@@ -193,4 +270,48 @@ public class IndexerApiTest {
                 response.getResults().getNumFound());
     }
 
+    /**
+     * Repository of which the blob input streams block while blocked is set, so that content extraction times out.
+     */
+    private static class BlockingBlobRepository implements InvocationHandler {
+        private final Repository repository;
+        private volatile boolean blocked;
+
+        BlockingBlobRepository(Repository repository) {
+            this.repository = repository;
+        }
+
+        Repository proxy() {
+            return (Repository)Proxy.newProxyInstance(Repository.class.getClassLoader(),
+                    new Class[] {Repository.class}, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (blocked && method.getName().equals("getInputStream")) {
+                return new BlockingInputStream();
+            }
+            try {
+                return method.invoke(repository, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /**
+     * Input stream which blocks until the reading thread is interrupted.
+     */
+    private static class BlockingInputStream extends InputStream {
+        @Override
+        public int read() throws IOException {
+            try {
+                Thread.sleep(60000);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            return -1;
+        }
+    }
+
 }
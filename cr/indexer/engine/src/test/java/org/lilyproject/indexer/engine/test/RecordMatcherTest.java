@@ -476,6 +476,47 @@ public class RecordMatcherTest {
         assertNull(idxConf.getRecordFilter().getIndexCase(record1));
     }
 
+    @Test
+    public void testSameRecordShapeDifferentValues() throws Exception {
+        // The record filter compiles the includes/excludes per record type & variant property names,
+        // the conditions on values should still be evaluated for each record.
+        String conf = makeIndexerConf(
+                "xmlns:ns1='ns1' xmlns:ns='ns'",
+                Lists.newArrayList(
+                        "recordType='ns1:typeA' variant='prop1=val1' vtags='vtag1'",
+                        "recordType='ns1:typeA' variant='prop1' vtags='vtag2'"),
+                Lists.newArrayList("recordType='ns1:typeA' field='ns:string=hide'")
+        );
+
+        IndexerConf idxConf = IndexerConfBuilder.build(new ByteArrayInputStream(conf.getBytes()), repository);
+
+        for (int i = 0; i < 2; i++) {
+            Record record1 = repository.recordBuilder()
+                    .id("record", ImmutableMap.of("prop1", "val1"))
+                    .recordType(new QName("ns1", "typeA"))
+                    .build();
+
+            assertEquals(ImmutableSet.of(vtag1.getId()),
+                    idxConf.getRecordFilter().getIndexCase(record1).getVersionTags());
+
+            Record record2 = repository.recordBuilder()
+                    .id("record", ImmutableMap.of("prop1", "val2"))
+                    .recordType(new QName("ns1", "typeA"))
+                    .build();
+
+            assertEquals(ImmutableSet.of(vtag2.getId()),
+                    idxConf.getRecordFilter().getIndexCase(record2).getVersionTags());
+
+            Record record3 = repository.recordBuilder()
+                    .id("record", ImmutableMap.of("prop1", "val1"))
+                    .recordType(new QName("ns1", "typeA"))
+                    .field(new QName("ns", "string"), "hide")
+                    .build();
+
+            assertNull(idxConf.getRecordFilter().getIndexCase(record3));
+        }
+    }
+
     private Record newRecordOfType(QName recordType) throws Exception {
         return repository.recordBuilder()
                 .id("record")
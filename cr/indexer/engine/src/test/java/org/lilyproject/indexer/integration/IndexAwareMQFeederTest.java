@@ -621,6 +621,12 @@ public class IndexAwareMQFeederTest {
             return null;
         }
 
+        @Override
+        public UpdateResponse optimize(boolean waitFlush, boolean waitSearcher)
+                throws SolrClientException, InterruptedException {
+            return null;
+        }
+
         @Override
         public QueryResponse query(SolrParams params) throws SolrClientException, InterruptedException {
             return null;
@@ -25,11 +25,18 @@ import java.util.Map;
 import net.iharder.Base64;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.NullOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 import org.codehaus.jackson.JsonNode;
 import org.lilyproject.hbaseindex.IndexNotFoundException;
 import org.lilyproject.indexer.batchbuild.IndexingMapper;
+import org.lilyproject.indexer.batchbuild.ShardIndexingReducer;
+import org.lilyproject.indexer.batchbuild.ShardPartitioner;
+import org.lilyproject.indexer.batchbuild.SolrInputDocumentWritable;
 import org.lilyproject.indexer.derefmap.DerefMapHbaseImpl;
 import org.lilyproject.indexer.engine.SolrClientConfig;
 import org.lilyproject.indexer.model.api.IndexDefinition;
@@ -39,6 +46,7 @@ import org.lilyproject.repository.api.Repository;
 import org.lilyproject.repository.api.ReturnFields;
 import org.lilyproject.tools.import_.json.RecordScanReader;
 import org.lilyproject.util.json.JsonFormat;
+import org.lilyproject.util.json.JsonUtil;
 
 public class BatchIndexBuilder {
     /**
@@ -88,17 +96,48 @@ public class BatchIndexBuilder {
             job.getConfiguration().set("org.lilyproject.indexer.batchbuild.solrshard.address." + i, shard.getValue());
         }
 
-        job.setNumReduceTasks(0);
-        job.setOutputFormatClass(NullOutputFormat.class);
-
-
         JsonNode batchConfigurationNode =
                 JsonFormat.deserializeNonStd(new ByteArrayInputStream(batchIndexConfiguration));
+
+        //
+        // Bulk load mode: rather than sending the documents to Solr, the index of each shard is built by a
+        // reducer. The configuration looks like:
+        //   bulkLoad: {solrHome: "hdfs path", output: "hdfs path", optimize: true, batchSize: 1000}
+        // The built indexes replace the indexes of the Solr shards, see ShardIndexingReducer.
+        //
+        JsonNode bulkLoadNode = batchConfigurationNode.get("bulkLoad");
+        boolean bulkLoad = bulkLoadNode != null && bulkLoadNode.isObject();
+        if (bulkLoad) {
+            job.getConfiguration().setBoolean("org.lilyproject.indexer.batchbuild.bulk", true);
+            job.getConfiguration().set("org.lilyproject.indexer.batchbuild.bulk.solrhome",
+                    JsonUtil.getString(bulkLoadNode, "solrHome"));
+            job.getConfiguration().setBoolean("org.lilyproject.indexer.batchbuild.bulk.optimize",
+                    JsonUtil.getBoolean(bulkLoadNode, "optimize", true));
+            job.getConfiguration().setInt("org.lilyproject.indexer.batchbuild.bulk.batchsize",
+                    JsonUtil.getInt(bulkLoadNode, "batchSize", 1000));
+
+            job.setMapOutputKeyClass(Text.class);
+            job.setMapOutputValueClass(SolrInputDocumentWritable.class);
+            job.setPartitionerClass(ShardPartitioner.class);
+            job.setReducerClass(ShardIndexingReducer.class);
+            job.setNumReduceTasks(index.getSolrShards().size());
+            job.setOutputFormatClass(TextOutputFormat.class);
+            FileOutputFormat.setOutputPath(job, new Path(JsonUtil.getString(bulkLoadNode, "output")));
+            // Running the same shard twice would only waste resources
+            job.getConfiguration().setBoolean("mapred.reduce.tasks.speculative.execution", false);
+        } else {
+            job.setNumReduceTasks(0);
+            job.setOutputFormatClass(NullOutputFormat.class);
+        }
+
         RecordScan recordScan = RecordScanReader.INSTANCE.fromJson(batchConfigurationNode.get("scan"), repository);
         recordScan.setReturnFields(ReturnFields.ALL);
         recordScan.setCacheBlocks(false);
         recordScan.setCaching(1024);
 
+        // The deref map is only rebuilt from scratch when clearDerefMap is set. Since the deref map is then empty
+        // while the job runs, this is best combined with a scan over all records, and the mappers can write the
+        // new entries blindly.
         if (batchConfigurationNode.has("clearDerefMap") &&
                 batchConfigurationNode.get("clearDerefMap").asBoolean(false)) {
             try {
@@ -106,6 +145,7 @@ public class BatchIndexBuilder {
             } catch (IndexNotFoundException e) {
                 // If there is no index to delete, keep calm and carry on.
             }
+            job.getConfiguration().setBoolean("org.lilyproject.indexer.batchbuild.derefmap.cleared", true);
         }
 
         job.getConfiguration().set("hbase.zookeeper.quorum", hbaseConf.get("hbase.zookeeper.quorum"));
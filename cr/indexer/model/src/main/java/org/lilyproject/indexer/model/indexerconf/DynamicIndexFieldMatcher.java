@@ -0,0 +1,184 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.indexer.model.indexerconf;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.lilyproject.indexer.model.indexerconf.DynamicIndexField.DynamicIndexFieldMatch;
+import org.lilyproject.repository.api.FieldType;
+import org.lilyproject.repository.api.FieldTypes;
+import org.lilyproject.repository.api.TypeManager;
+import org.lilyproject.repository.api.ValueType;
+
+/**
+ * Determines which {@link DynamicIndexField}s apply to a field type, and the names of the index fields
+ * they map it to.
+ *
+ * <p>The outcome only depends on the field type, so it is memoized per field type. The memoized
+ * results are dropped as soon as the schema cache of the type manager publishes a new field types
+ * snapshot.
+ */
+public class DynamicIndexFieldMatcher {
+    private final List<DynamicIndexField> dynamicFields;
+    private final TypeManager typeManager;
+
+    private final ConcurrentMap<FieldType, List<ResolvedDynamicIndexField>> cache =
+            new ConcurrentHashMap<FieldType, List<ResolvedDynamicIndexField>>();
+
+    /**
+     * The field types snapshot for which the {@link #cache} is valid.
+     */
+    private volatile FieldTypes cachedForSnapshot;
+
+    /**
+     * @param typeManager optional, if null the cache will not be invalidated upon schema changes (apart from
+     *                    that field types of which the name or type changed will not hit the cache anymore)
+     */
+    public DynamicIndexFieldMatcher(List<DynamicIndexField> dynamicFields, TypeManager typeManager) {
+        this.dynamicFields = dynamicFields;
+        this.typeManager = typeManager;
+    }
+
+    /**
+     * Returns the dynamic index fields which match the given field type, in the order in which they should
+     * be applied. Evaluation of the continue flag has already been taken into account: the list ends at
+     * the first matching dynamic field which does not have continue set to true.
+     */
+    public List<ResolvedDynamicIndexField> getMatches(FieldType fieldType) throws InterruptedException {
+        if (dynamicFields.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        checkSchemaChanged();
+
+        List<ResolvedDynamicIndexField> matches = cache.get(fieldType);
+        if (matches == null) {
+            matches = computeMatches(fieldType);
+            cache.put(fieldType, matches);
+        }
+        return matches;
+    }
+
+    private void checkSchemaChanged() throws InterruptedException {
+        if (typeManager == null) {
+            return;
+        }
+
+        FieldTypes snapshot = typeManager.getFieldTypesSnapshot();
+        if (snapshot != cachedForSnapshot) {
+            synchronized (this) {
+                if (snapshot != cachedForSnapshot) {
+                    cache.clear();
+                    cachedForSnapshot = snapshot;
+                }
+            }
+        }
+    }
+
+    private List<ResolvedDynamicIndexField> computeMatches(FieldType fieldType) {
+        List<ResolvedDynamicIndexField> result = null;
+
+        for (DynamicIndexField dynField : dynamicFields) {
+            DynamicIndexFieldMatch match = dynField.matches(fieldType);
+            if (match.match) {
+                if (result == null) {
+                    result = new ArrayList<ResolvedDynamicIndexField>(1);
+                }
+                result.add(new ResolvedDynamicIndexField(dynField, evalName(dynField, match, fieldType)));
+
+                if (!dynField.getContinue()) {
+                    // stop on first match, unless continue attribute is true
+                    break;
+                }
+            }
+        }
+
+        return result != null ? Collections.unmodifiableList(result)
+                : Collections.<ResolvedDynamicIndexField>emptyList();
+    }
+
+    private String evalName(DynamicIndexField dynField, DynamicIndexFieldMatch match, FieldType fieldType) {
+        // Calculate the name, then add the value
+        Map<String, Object> nameContext = new HashMap<String, Object>();
+        nameContext.put("namespace", fieldType.getName().getNamespace());
+        nameContext.put("name", fieldType.getName().getName());
+
+        ValueType valueType = fieldType.getValueType();
+        nameContext.put("type", formatValueTypeName(valueType));
+        nameContext.put("baseType", valueType.getBaseName().toLowerCase());
+
+        // If there's no nested value type, revert to the current value type. This is practical for dynamic
+        // fields that match on types like "*,LIST<+>".
+        ValueType nestedValueType = valueType.getNestedValueType() != null ? valueType.getNestedValueType() : valueType;
+        nameContext.put("nestedType", formatValueTypeName(nestedValueType));
+        nameContext.put("nestedBaseType", nestedValueType.getBaseName().toLowerCase());
+
+        nameContext.put("deepestNestedBaseType", valueType.getDeepestValueType().getBaseName().toLowerCase());
+
+        boolean isList = valueType.getBaseName().equals("LIST");
+        nameContext.put("multiValue", isList);
+        nameContext.put("list", isList);
+
+        if (match.nameMatch != null) {
+            nameContext.put("nameMatch", match.nameMatch);
+        }
+        if (match.namespaceMatch != null) {
+            nameContext.put("namespaceMatch", match.namespaceMatch);
+        }
+        return dynField.getNameTemplate().format(new DynamicFieldNameTemplateResolver(nameContext));
+    }
+
+    private String formatValueTypeName(ValueType valueType) {
+        StringBuilder builder = new StringBuilder();
+
+        while (valueType != null) {
+            if (builder.length() > 0)
+                builder.append("_");
+            builder.append(valueType.getBaseName().toLowerCase());
+            valueType = valueType.getNestedValueType();
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * A dynamic index field which matched a certain field type, together with the index field name
+     * it resolved to for that field type.
+     */
+    public static class ResolvedDynamicIndexField {
+        private final DynamicIndexField dynamicIndexField;
+        private final String fieldName;
+
+        public ResolvedDynamicIndexField(DynamicIndexField dynamicIndexField, String fieldName) {
+            this.dynamicIndexField = dynamicIndexField;
+            this.fieldName = fieldName;
+        }
+
+        public DynamicIndexField getDynamicIndexField() {
+            return dynamicIndexField;
+        }
+
+        public String getFieldName() {
+            return fieldName;
+        }
+    }
+}
@@ -20,6 +20,8 @@ import org.lilyproject.repository.api.Record;
 import org.lilyproject.util.Pair;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Decides what records to include in an index based on inclusion/exclusion rules.
@@ -28,16 +30,31 @@ public class IndexRecordFilter {
     private List<Pair<RecordMatcher, IndexCase>> includes = new ArrayList<Pair<RecordMatcher, IndexCase>>();
     private List<RecordMatcher> excludes = new ArrayList<RecordMatcher>();
 
+    /**
+     * The includes and excludes which can possibly match records of a certain record type and set of
+     * variant property names. This is filled on demand, as the set of record types can change at runtime.
+     */
+    private final ConcurrentMap<RecordShape, CompiledCase> compiledCases =
+            new ConcurrentHashMap<RecordShape, CompiledCase>();
+
+    /**
+     * Protection against unbounded growth of {@link #compiledCases}, e.g. when there would be lots of
+     * different variant dimensions. In normal cases the number of record types is much lower than this.
+     */
+    private static final int MAX_COMPILED_CASES = 10000;
+
     public IndexRecordFilter() {
 
     }
 
     public void addExclude(RecordMatcher exclude) {
         excludes.add(exclude);
+        compiledCases.clear();
     }
 
     public void addInclude(RecordMatcher include, IndexCase indexCase) {
         includes.add(new Pair<RecordMatcher, IndexCase>(include, indexCase));
+        compiledCases.clear();
     }
 
     public Set<QName> getFieldDependencies() {
@@ -71,16 +88,19 @@ public class IndexRecordFilter {
     }
 
     public IndexCase getIndexCase(Record record) {
+        CompiledCase compiledCase = getCompiledCase(record.getRecordTypeName(),
+                record.getId().getVariantProperties().keySet());
+
         // If an exclude matches, the record is not included in this index.
         // Excludes have higher precedence than includes.
-        for (RecordMatcher exclude : excludes) {
-            if (exclude.matches(record)) {
+        for (RecordMatcher exclude : compiledCase.excludes) {
+            if (exclude.matchesRecordValues(record)) {
                 return null;
             }
         }
 
-        for (Pair<RecordMatcher, IndexCase> include : includes) {
-            if (include.getV1().matches(record)) {
+        for (Pair<RecordMatcher, IndexCase> include : compiledCase.includes) {
+            if (include.getV1().matchesRecordValues(record)) {
                 return include.getV2();
             }
         }
@@ -88,6 +108,53 @@ public class IndexRecordFilter {
         return null;
     }
 
+    private CompiledCase getCompiledCase(QName recordTypeName, Set<String> variantPropertyNames) {
+        CompiledCase compiledCase = compiledCases.get(new RecordShape(recordTypeName, variantPropertyNames));
+        if (compiledCase != null) {
+            return compiledCase;
+        }
+
+        RecordShape shape = new RecordShape(recordTypeName, new HashSet<String>(variantPropertyNames));
+        compiledCase = compile(shape);
+
+        if (compiledCases.size() >= MAX_COMPILED_CASES) {
+            compiledCases.clear();
+        }
+        compiledCases.put(shape, compiledCase);
+
+        return compiledCase;
+    }
+
+    /**
+     * Selects the includes and excludes which can match records of the given shape. Matchers whose outcome
+     * is fully decided by the shape are used to cut the lists short.
+     */
+    private CompiledCase compile(RecordShape shape) {
+        List<RecordMatcher> caseExcludes = new ArrayList<RecordMatcher>();
+        for (RecordMatcher exclude : excludes) {
+            if (exclude.matchesRecordShape(shape.recordTypeName, shape.variantPropertyNames)) {
+                if (exclude.dependsOnRecordShapeOnly()) {
+                    // All records of this shape are excluded
+                    return CompiledCase.EXCLUDED;
+                }
+                caseExcludes.add(exclude);
+            }
+        }
+
+        List<Pair<RecordMatcher, IndexCase>> caseIncludes = new ArrayList<Pair<RecordMatcher, IndexCase>>();
+        for (Pair<RecordMatcher, IndexCase> include : includes) {
+            if (include.getV1().matchesRecordShape(shape.recordTypeName, shape.variantPropertyNames)) {
+                caseIncludes.add(include);
+                if (include.getV1().dependsOnRecordShapeOnly()) {
+                    // Includes following this one will never be reached
+                    break;
+                }
+            }
+        }
+
+        return new CompiledCase(caseExcludes, caseIncludes);
+    }
+
     public List<IndexCase> getAllIndexCases() {
         List<IndexCase> cases = new ArrayList<IndexCase>(includes.size());
         for (Pair<RecordMatcher, IndexCase> include : includes) {
@@ -95,4 +162,46 @@ public class IndexRecordFilter {
         }
         return cases;
     }
+
+    private static final class RecordShape {
+        private final QName recordTypeName;
+        private final Set<String> variantPropertyNames;
+
+        RecordShape(QName recordTypeName, Set<String> variantPropertyNames) {
+            this.recordTypeName = recordTypeName;
+            this.variantPropertyNames = variantPropertyNames;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            RecordShape other = (RecordShape) o;
+
+            if (recordTypeName != null ? !recordTypeName.equals(other.recordTypeName) : other.recordTypeName != null)
+                return false;
+            return variantPropertyNames.equals(other.variantPropertyNames);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = recordTypeName != null ? recordTypeName.hashCode() : 0;
+            result = 31 * result + variantPropertyNames.hashCode();
+            return result;
+        }
+    }
+
+    private static final class CompiledCase {
+        static final CompiledCase EXCLUDED = new CompiledCase(Collections.<RecordMatcher>emptyList(),
+                Collections.<Pair<RecordMatcher, IndexCase>>emptyList());
+
+        private final List<RecordMatcher> excludes;
+        private final List<Pair<RecordMatcher, IndexCase>> includes;
+
+        CompiledCase(List<RecordMatcher> excludes, List<Pair<RecordMatcher, IndexCase>> includes) {
+            this.excludes = excludes;
+            this.includes = includes;
+        }
+    }
 }
@@ -26,6 +26,7 @@ import org.lilyproject.repository.api.Record;
 import org.lilyproject.repository.api.RepositoryException;
 import org.lilyproject.repository.api.SchemaId;
 import org.lilyproject.repository.api.Scope;
+import org.lilyproject.repository.api.TypeManager;
 import org.lilyproject.util.repo.SystemFields;
 import org.lilyproject.util.repo.VTaggedRecord;
 
@@ -46,6 +47,7 @@ public class IndexerConf {
     private IndexFields indexFields;
     private Set<SchemaId> repoFieldDependencies = new HashSet<SchemaId>();
     private List<DynamicIndexField> dynamicFields = new ArrayList<DynamicIndexField>();
+    private DynamicIndexFieldMatcher dynamicFieldMatcher = new DynamicIndexFieldMatcher(dynamicFields, null);
     private Set<SchemaId> vtags = new HashSet<SchemaId>();
     private Formatters formatters = new Formatters();
     private SystemFields systemFields;
@@ -107,6 +109,22 @@ public class IndexerConf {
         return dynamicFields;
     }
 
+    /**
+     * Returns the dynamic index fields matching the given field type, together with the index field names
+     * to which they map it. See {@link DynamicIndexFieldMatcher#getMatches(FieldType)}.
+     */
+    public List<DynamicIndexFieldMatcher.ResolvedDynamicIndexField> getDynamicFieldMatches(FieldType fieldType)
+            throws InterruptedException {
+        return dynamicFieldMatcher.getMatches(fieldType);
+    }
+
+    /**
+     * Sets the type manager of which the schema cache changes invalidate the memoized dynamic field matches.
+     */
+    protected void setTypeManager(TypeManager typeManager) {
+        this.dynamicFieldMatcher = new DynamicIndexFieldMatcher(dynamicFields, typeManager);
+    }
+
     public boolean containsDerefExpressions() {
         return containsDerefExpression;
     }
@@ -140,12 +158,10 @@ public class IndexerConf {
                 return true;
             }
 
-            // If there are lots of dynamic index fields, or lots of fields which are not indexed at all (thus
-            // leading to lots of invocations of this method), than maybe we need to review this for performance.
-            for (DynamicIndexField field : dynamicFields) {
-                if (field.matches(fieldType).match) {
-                    return true;
-                }
+            // The dynamic field matches are memoized per field type, so this is cheap even with lots of
+            // dynamic index fields.
+            if (!dynamicFieldMatcher.getMatches(fieldType).isEmpty()) {
+                return true;
             }
 
         }
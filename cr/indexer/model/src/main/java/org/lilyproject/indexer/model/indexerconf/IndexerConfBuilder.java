@@ -121,6 +121,7 @@ public class IndexerConfBuilder {
         this.systemFields = SystemFields.getInstance(repository.getTypeManager(), repository.getIdGenerator());
         this.conf = new IndexerConf();
         this.conf.setSystemFields(systemFields);
+        this.conf.setTypeManager(typeManager);
 
         try {
             buildRecordFilter();
@@ -58,9 +58,18 @@ public class RecordMatcher {
     }
 
     public boolean matches(Record record) {
-        QName recordTypeName = record.getRecordTypeName();
-        Map<String, String> varProps = record.getId().getVariantProperties();
+        return matchesRecordShape(record.getRecordTypeName(), record.getId().getVariantProperties().keySet())
+                && matchesRecordValues(record);
+    }
 
+    /**
+     * Evaluates the part of the conditions which only depends on the record type and on the names of the
+     * variant properties. The outcome is the same for all records having the same record type and variant
+     * dimensions, which allows {@link IndexRecordFilter} to evaluate it only once for such records.
+     *
+     * @param recordTypeName can be null
+     */
+    public boolean matchesRecordShape(QName recordTypeName, Set<String> variantPropertyNames) {
         // About "recordTypeName == null": normally record type name cannot be null, but it can
         // be in the case of IndexAwareMQFeeder
         if (this.recordTypeNamespace != null &&
@@ -74,21 +83,36 @@ public class RecordMatcher {
         }
 
         if (variantPropsPattern != null) {
-            if (variantPropsPattern.size() != varProps.size() && !variantPropsPattern.containsKey("*")) {
+            if (variantPropsPattern.size() != variantPropertyNames.size() && !variantPropsPattern.containsKey("*")) {
                 return false;
             }
 
-            for (Map.Entry<String, String> entry : variantPropsPattern.entrySet()) {
-                if (entry.getKey().equals("*"))
+            for (String dimension : variantPropsPattern.keySet()) {
+                if (dimension.equals("*"))
                     continue;
 
-                String dimVal = varProps.get(entry.getKey());
-                if (dimVal == null) {
+                if (!variantPropertyNames.contains(dimension)) {
                     // this record does not have a required variant property
                     return false;
                 }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Evaluates the conditions on variant property values and field values. Only makes sense for records
+     * for which {@link #matchesRecordShape} returned true.
+     */
+    public boolean matchesRecordValues(Record record) {
+        if (variantPropsPattern != null) {
+            Map<String, String> varProps = record.getId().getVariantProperties();
+            for (Map.Entry<String, String> entry : variantPropsPattern.entrySet()) {
+                if (entry.getValue() == null || entry.getKey().equals("*"))
+                    continue;
 
-                if (entry.getValue() != null && !entry.getValue().equals(dimVal)) {
+                if (!entry.getValue().equals(varProps.get(entry.getKey()))) {
                     // the variant property does not have the required value
                     return false;
                 }
@@ -107,7 +131,26 @@ public class RecordMatcher {
         }
 
         return true;
+    }
+
+    /**
+     * Returns true if {@link #matchesRecordValues} always evaluates to true, i.e. if the outcome of this
+     * matcher is fully determined by {@link #matchesRecordShape}.
+     */
+    public boolean dependsOnRecordShapeOnly() {
+        if (fieldType != null) {
+            return false;
+        }
 
+        if (variantPropsPattern != null) {
+            for (Map.Entry<String, String> entry : variantPropsPattern.entrySet()) {
+                if (entry.getValue() != null && !entry.getKey().equals("*")) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
     }
 
     public Set<QName> getFieldDependencies() {
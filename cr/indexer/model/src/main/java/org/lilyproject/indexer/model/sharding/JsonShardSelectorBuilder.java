@@ -35,7 +35,8 @@ import java.io.IOException;
  *       property: "prop name" [only if source = variantProperty]
  *     }
  *     type: "long|string",
- *     hash: "md5", [optional, only if you want the value to be hashed]
+ *     hash: "md5|murmur3", [optional, only if you want the value to be hashed, murmur3 is cheaper
+ *                           to calculate]
  *     modulus: 3, [optional, only possible if type is long]
  *   },
  *
@@ -83,9 +84,11 @@ public class JsonShardSelectorBuilder {
         ObjectNode shardingKeyNode = JsonUtil.getObject(configNode, "shardingKey");
 
         String hash = JsonUtil.getString(shardingKeyNode, "hash", null);
-        boolean enableHashing = false;
+        ShardingKey.HashFunction hashFunction = null;
         if (hash != null && hash.equalsIgnoreCase("MD5")) {
-            enableHashing = true;
+            hashFunction = ShardingKey.HashFunction.MD5;
+        } else if (hash != null && hash.equalsIgnoreCase("MURMUR3")) {
+            hashFunction = ShardingKey.HashFunction.MURMUR3;
         } else if (hash != null) {
             throw new ShardingConfigException("Unsupported hash algorithm: " + hash);
         }
@@ -111,12 +114,12 @@ public class JsonShardSelectorBuilder {
 
         ShardingKey shardingKey;
         if (shardingValueSource.equals("masterRecordId")) {
-            shardingKey = ShardingKey.masterRecordIdShardingKey(enableHashing, modulus, keyType);
+            shardingKey = ShardingKey.masterRecordIdShardingKey(hashFunction, modulus, keyType);
         } else if (shardingValueSource.equals("recordId")) {
-            shardingKey = ShardingKey.recordIdShardingKey(enableHashing, modulus, keyType);
+            shardingKey = ShardingKey.recordIdShardingKey(hashFunction, modulus, keyType);
         } else if (shardingValueSource.equals("variantProperty")) {
             String property = JsonUtil.getString(shardingValue, "property");
-            shardingKey = ShardingKey.variantProperyShardingKey(property, enableHashing, modulus, keyType);
+            shardingKey = ShardingKey.variantProperyShardingKey(property, hashFunction, modulus, keyType);
         } else {
             throw new ShardingConfigException("Invalid sharding key value source: " + shardingValueSource);
         }
@@ -23,6 +23,17 @@ import java.util.Set;
 public class ListShardSelector extends BaseShardSelector {
     private Map<Object, String> valueToShard = new HashMap<Object, String>();
 
+    /**
+     * Lookup table from value to shard, used instead of {@link #valueToShard} when all values are small
+     * non-negative longs, which is the case when sharding on a hash (modulus some number). Built upon
+     * first use.
+     */
+    private volatile String[] longValueToShard;
+
+    private volatile boolean lookupTableBuilt;
+
+    private static final int MAX_LOOKUP_TABLE_SIZE = 65536;
+
     public ListShardSelector(ShardingKey shardingKey) {
         super(shardingKey);
     }
@@ -34,11 +45,41 @@ public class ListShardSelector extends BaseShardSelector {
                     existingShard + " and " + shardName);
         }
         valueToShard.put(value, shardName);
+        lookupTableBuilt = false;
+    }
+
+    private String[] buildLookupTable() {
+        long max = -1;
+        for (Object value : valueToShard.keySet()) {
+            if (!(value instanceof Long) || (Long)value < 0 || (Long)value >= MAX_LOOKUP_TABLE_SIZE) {
+                return null;
+            }
+            max = Math.max(max, (Long)value);
+        }
+
+        String[] table = new String[(int)max + 1];
+        for (Map.Entry<Object, String> entry : valueToShard.entrySet()) {
+            table[((Long)entry.getKey()).intValue()] = entry.getValue();
+        }
+        return table;
     }
 
     @Override
     public String getShard(Comparable key) throws ShardSelectorException {
-        String shardName = valueToShard.get(key);
+        if (!lookupTableBuilt) {
+            longValueToShard = buildLookupTable();
+            lookupTableBuilt = true;
+        }
+
+        String[] lookupTable = longValueToShard;
+        String shardName;
+        if (lookupTable != null && key instanceof Long) {
+            long value = (Long)key;
+            shardName = value >= 0 && value < lookupTable.length ? lookupTable[(int)value] : null;
+        } else {
+            shardName = valueToShard.get(key);
+        }
+
         if (shardName == null) {
             throw new ShardSelectorException("Shard value does not map to a shard: " + key);
         }
@@ -16,6 +16,7 @@
 package org.lilyproject.indexer.model.sharding;
 
 import org.lilyproject.repository.api.RecordId;
+import org.lilyproject.util.MurmurHash3;
 
 import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
@@ -24,47 +25,102 @@ import java.security.NoSuchAlgorithmException;
 public class ShardingKey {
     private ShardingKeyValue value;
 
-    /** True if hash should be calculated. */
-    private boolean hash;
+    /** Hash function to apply to the value, null if no hash should be calculated. */
+    private HashFunction hashFunction;
 
     /** If > 0, calculate modulus after hash. */
     private int modulus;
 
     private KeyType keyType;
 
-    private final MessageDigest mdAlgorithm;
-
     enum KeyType { STRING, LONG }
 
-    private ShardingKey(ShardingKeyValue value, boolean hash, int modulus, KeyType keyType) {
+    /**
+     * The hash functions which can be applied to the sharding value. All produce a value in the range
+     * [0, 65535].
+     *
+     * <p>Since changing the hash function changes the shard to which records are assigned, the hash
+     * function of an existing index should not be changed without rebuilding the index.
+     */
+    enum HashFunction {
+        /**
+         * The first two bytes of the MD5 digest of the UTF-8 encoded value.
+         */
+        MD5 {
+            @Override
+            long hash(String key) throws ShardSelectorException {
+                try {
+                    MessageDigest md = MD5_DIGEST.get();
+                    byte[] digest = md.digest(key.getBytes("UTF-8"));
+                    return ((digest[0] & 0xFF) << 8) + ((digest[1] & 0xFF));
+                } catch (UnsupportedEncodingException e) {
+                    throw new ShardSelectorException("Error calculating hash.", e);
+                }
+            }
+        },
+
+        /**
+         * The lower two bytes of the MurmurHash3 of the characters of the value. Much cheaper to calculate
+         * than MD5 and well distributed, also for similar values such as sequential user record ids.
+         */
+        MURMUR3 {
+            @Override
+            long hash(String key) {
+                return MurmurHash3.hash32(key, 0) & 0xFFFF;
+            }
+        };
+
+        abstract long hash(String key) throws ShardSelectorException;
+    }
+
+    private static final ThreadLocal<MessageDigest> MD5_DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    };
+
+    private ShardingKey(ShardingKeyValue value, HashFunction hashFunction, int modulus, KeyType keyType) {
         this.value = value;
-        this.hash = hash;
+        this.hashFunction = hashFunction;
         this.modulus = modulus;
         this.keyType = keyType;
-        try {
-            mdAlgorithm = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        }
     }
 
     public static ShardingKey recordIdShardingKey(boolean hash, int modulus, KeyType keyType) {
-        return new ShardingKey(new RecordIdShardingKeyValue(), hash, modulus, keyType);
+        return recordIdShardingKey(hash ? HashFunction.MD5 : null, modulus, keyType);
+    }
+
+    public static ShardingKey recordIdShardingKey(HashFunction hashFunction, int modulus, KeyType keyType) {
+        return new ShardingKey(new RecordIdShardingKeyValue(), hashFunction, modulus, keyType);
     }
 
     public static ShardingKey masterRecordIdShardingKey(boolean hash, int modulus, KeyType keyType) {
-        return new ShardingKey(new MasterRecordIdShardingKeyValue(), hash, modulus, keyType);
+        return masterRecordIdShardingKey(hash ? HashFunction.MD5 : null, modulus, keyType);
+    }
+
+    public static ShardingKey masterRecordIdShardingKey(HashFunction hashFunction, int modulus, KeyType keyType) {
+        return new ShardingKey(new MasterRecordIdShardingKeyValue(), hashFunction, modulus, keyType);
     }
 
     public static ShardingKey variantProperyShardingKey(String propertyName, boolean hash, int modulus, KeyType keyType) {
-        return new ShardingKey(new VariantPropertyShardingKeyValue(propertyName), hash, modulus, keyType);
+        return variantProperyShardingKey(propertyName, hash ? HashFunction.MD5 : null, modulus, keyType);
+    }
+
+    public static ShardingKey variantProperyShardingKey(String propertyName, HashFunction hashFunction, int modulus,
+            KeyType keyType) {
+        return new ShardingKey(new VariantPropertyShardingKeyValue(propertyName), hashFunction, modulus, keyType);
     }
 
     public Comparable getShardingKey(RecordId recordId) throws ShardSelectorException {
         Object key = value.getValue(recordId);
 
-        if (hash) {
-            key = hash(key.toString());
+        if (hashFunction != null) {
+            key = hashFunction.hash(key.toString());
         }
 
         switch (keyType) {
@@ -91,20 +147,6 @@ public class ShardingKey {
         return (Comparable)key;
     }
 
-    private long hash(String key) throws ShardSelectorException {
-        try {
-            // Cloning message digest rather than looking it up each time
-            MessageDigest md = (MessageDigest)mdAlgorithm.clone();
-            byte[] digest = md.digest(key.getBytes("UTF-8"));
-            return ((digest[0] & 0xFF) << 8) + ((digest[1] & 0xFF));
-        } catch (UnsupportedEncodingException e) {
-            throw new ShardSelectorException("Error calculating hash.", e);
-        } catch (CloneNotSupportedException e) {
-            // Sun's MD5 supports cloning, so we don't expect this to happen
-            throw new RuntimeException(e);
-        }
-    }
-
     private interface ShardingKeyValue {
         String getValue(RecordId recordId) throws ShardSelectorException;
     }
@@ -25,7 +25,10 @@ import org.lilyproject.repository.api.IdGenerator;
 import org.lilyproject.repository.api.RecordId;
 import org.lilyproject.repository.impl.id.IdGeneratorImpl;
 
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
@@ -121,4 +124,41 @@ public class ShardSelectorTest {
         assertTrue(shard2Used);
         assertTrue(shard3Used);
     }
+
+    @Test
+    public void testMurmur3HashDistribution() throws Exception {
+        byte[] mappingData = IOUtils.toByteArray(getClass().getClassLoader().getResourceAsStream(BASE_PATH + "shardingconfig5.json"));
+        ShardSelector selector = JsonShardSelectorBuilder.build(mappingData);
+
+        IdGenerator idGenerator = new IdGeneratorImpl();
+
+        Map<String, Integer> uuidCounts = new HashMap<String, Integer>();
+        Map<String, Integer> userCounts = new HashMap<String, Integer>();
+        for (int i = 0; i < 4000; i++) {
+            RecordId uuidId = idGenerator.newRecordId();
+            increment(uuidCounts, selector.getShard(uuidId));
+
+            // sequential user ids, as often used when importing data
+            RecordId userId = idGenerator.newRecordId("product-" + i);
+            String shardName = selector.getShard(userId);
+            increment(userCounts, shardName);
+
+            // sharding is on the master record id, so variants end up in the same shard
+            assertEquals(shardName, selector.getShard(
+                    idGenerator.newRecordId(userId, Collections.singletonMap("lang", "en"))));
+        }
+
+        // with 1000 records expected per shard, a deviation of 15% is very unlikely for a good hash
+        for (Map<String, Integer> counts : Arrays.asList(uuidCounts, userCounts)) {
+            assertEquals(selector.getShards(), counts.keySet());
+            for (int count : counts.values()) {
+                assertTrue("Unbalanced shards: " + counts, count > 850 && count < 1150);
+            }
+        }
+    }
+
+    private void increment(Map<String, Integer> counts, String key) {
+        Integer count = counts.get(key);
+        counts.put(key, count == null ? 1 : count + 1);
+    }
 }
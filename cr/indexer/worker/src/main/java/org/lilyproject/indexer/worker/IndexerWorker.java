@@ -37,6 +37,11 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.zookeeper.KeeperException;
 import org.lilyproject.indexer.derefmap.DerefMap;
 import org.lilyproject.indexer.derefmap.DerefMapHbaseImpl;
+import org.lilyproject.indexer.engine.ContentExtractor;
+import org.lilyproject.indexer.engine.ContentExtractorConfig;
+import org.lilyproject.indexer.engine.ExtractedContentCache;
+import org.lilyproject.indexer.engine.HBaseExtractedContentCache;
+import org.lilyproject.indexer.engine.IndexFieldValueCache;
 import org.lilyproject.indexer.engine.IndexLocker;
 import org.lilyproject.indexer.engine.IndexUpdater;
 import org.lilyproject.indexer.engine.IndexUpdaterMetrics;
@@ -63,6 +68,7 @@ import org.lilyproject.rowlog.api.RowLogConfigurationManager;
 import org.lilyproject.rowlog.api.RowLogException;
 import org.lilyproject.rowlog.impl.RemoteListenerHandler;
 import org.lilyproject.util.Logs;
+import org.lilyproject.util.hbase.HBaseTableFactoryImpl;
 import org.lilyproject.util.ObjectUtils;
 import org.lilyproject.util.io.Closer;
 import org.lilyproject.util.zookeeper.ZooKeeperItf;
@@ -119,6 +125,8 @@ public class IndexerWorker {
 
     private IndexerRegistry indexerRegistry;
 
+    private ContentExtractor contentExtractor;
+
     private final Log log = LogFactory.getLog(getClass());
 
     public IndexerWorker(IndexerModel indexerModel, Repository repository, RowLog rowLog, ZooKeeperItf zk,
@@ -145,6 +153,17 @@ public class IndexerWorker {
         connectionManager.getParams().setMaxTotalConnections(settings.getSolrMaxTotalConnections());
         httpClient = new HttpClient(connectionManager);
 
+        ContentExtractorConfig extractorConfig = settings.getContentExtractorConfig();
+        ExtractedContentCache extractedContentCache = null;
+        if (extractorConfig.getEnableCache()) {
+            try {
+                extractedContentCache = new HBaseExtractedContentCache(new HBaseTableFactoryImpl(hbaseConf));
+            } catch (Exception e) {
+                log.error("Error setting up the extracted content cache, continuing without it.", e);
+            }
+        }
+        contentExtractor = new ContentExtractor(extractorConfig, extractedContentCache);
+
         eventWorker = new EventWorker();
         eventWorkerThread = new Thread(eventWorker, "IndexerWorkerEventWorker");
         eventWorkerThread.start();
@@ -179,6 +198,7 @@ public class IndexerWorker {
             }
         }
 
+        contentExtractor.shutdown();
         connectionManager.shutdown();
     }
 
@@ -207,9 +227,14 @@ public class IndexerWorker {
             DerefMap derefMap = indexerConf.containsDerefExpressions() ?
                     DerefMapHbaseImpl.create(index.getName(), hbaseConf, repository.getIdGenerator()) : null;
 
+            // cache of evaluated index field values, for incremental building of Solr documents
+            // (chars are 2 bytes, this roughly limits the memory used by the values)
+            IndexFieldValueCache fieldValueCache = settings.getFieldValueCacheSizeMB() > 0 ?
+                    new IndexFieldValueCache(settings.getFieldValueCacheSizeMB() * 1024L * 1024L / 2) : null;
+
             // create and register the indexer
             Indexer indexer = new Indexer(index.getName(), indexerConf, repository, solrShardMgr, indexLocker,
-                    indexerMetrics, derefMap);
+                    indexerMetrics, derefMap, fieldValueCache, contentExtractor);
             indexerRegistry.register(indexer);
 
             IndexUpdaterMetrics updaterMetrics = new IndexUpdaterMetrics(index.getName());
@@ -15,11 +15,15 @@
  */
 package org.lilyproject.indexer.worker;
 
+import org.lilyproject.indexer.engine.ContentExtractorConfig;
+
 public class IndexerWorkerSettings {
     private int listenersPerIndex = 10;
     private boolean enableLocking = false;
     private int solrMaxTotalConnections = 200;
     private int solrMaxConnectionsPerHost = 50;
+    private int fieldValueCacheSizeMB = 32;
+    private ContentExtractorConfig contentExtractorConfig = new ContentExtractorConfig();
 
     public int getListenersPerIndex() {
         return listenersPerIndex;
@@ -52,4 +56,20 @@ public class IndexerWorkerSettings {
     public void setSolrMaxConnectionsPerHost(int solrMaxConnectionsPerHost) {
         this.solrMaxConnectionsPerHost = solrMaxConnectionsPerHost;
     }
+
+    public int getFieldValueCacheSizeMB() {
+        return fieldValueCacheSizeMB;
+    }
+
+    public void setFieldValueCacheSizeMB(int fieldValueCacheSizeMB) {
+        this.fieldValueCacheSizeMB = fieldValueCacheSizeMB;
+    }
+
+    public ContentExtractorConfig getContentExtractorConfig() {
+        return contentExtractorConfig;
+    }
+
+    public void setContentExtractorConfig(ContentExtractorConfig contentExtractorConfig) {
+        this.contentExtractorConfig = contentExtractorConfig;
+    }
 }
@@ -18,8 +18,12 @@ package org.lilyproject.linkindex;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.hadoop.hbase.util.Bytes;
@@ -60,6 +64,8 @@ public class LinkIndex {
     private static final byte[] SOURCE_FIELD_KEY = Bytes.toBytes("sf");
     private static final byte[] VTAG_KEY = Bytes.toBytes("vt");
 
+    private static final int COUNT_SAMPLE_SIZE = 1000;
+
     public LinkIndex(final IndexManager indexManager, Repository repository) throws IndexNotFoundException, IOException,
             InterruptedException {
         metrics = new LinkIndexMetrics("linkIndex");
@@ -250,6 +256,103 @@ public class LinkIndex {
         }
     }
 
+    /**
+     * Applies a batch of changes. Compared to performing the operations one by one, the existing links
+     * of each source record are read only once, for all vtags together, and all changes are written using
+     * one multi-put and one multi-delete per index table.
+     */
+    public void apply(LinkIndexBatch batch) throws LinkIndexException {
+        if (batch.isEmpty())
+            return;
+
+        long before = System.currentTimeMillis();
+        try {
+            // Determine the links of each record before and after applying the operations. Links that are
+            // both added and removed within the batch thus do not cause any IO.
+            Map<RecordId, Set<Pair<FieldedLink, SchemaId>>> oldLinksByRecord =
+                    new LinkedHashMap<RecordId, Set<Pair<FieldedLink, SchemaId>>>();
+            Map<RecordId, Set<Pair<FieldedLink, SchemaId>>> newLinksByRecord =
+                    new HashMap<RecordId, Set<Pair<FieldedLink, SchemaId>>>();
+
+            for (LinkIndexBatch.Operation op : batch.getOperations()) {
+                Set<Pair<FieldedLink, SchemaId>> newLinks = newLinksByRecord.get(op.sourceRecord);
+                if (newLinks == null) {
+                    Set<Pair<FieldedLink, SchemaId>> oldLinks = op.isNewRecord ?
+                            Collections.<Pair<FieldedLink, SchemaId>>emptySet() : getAllForwardLinks(op.sourceRecord);
+                    oldLinksByRecord.put(op.sourceRecord, oldLinks);
+                    newLinks = new HashSet<Pair<FieldedLink, SchemaId>>(oldLinks);
+                    newLinksByRecord.put(op.sourceRecord, newLinks);
+                }
+
+                if (op.vtag == null) {
+                    newLinks.clear();
+                } else {
+                    Iterator<Pair<FieldedLink, SchemaId>> it = newLinks.iterator();
+                    while (it.hasNext()) {
+                        if (it.next().getV2().equals(op.vtag))
+                            it.remove();
+                    }
+                    for (FieldedLink link : op.links) {
+                        newLinks.add(new Pair<FieldedLink, SchemaId>(link, op.vtag));
+                    }
+                }
+            }
+
+            // Find out what changed
+            List<IndexEntry> addedFwdEntries = new ArrayList<IndexEntry>();
+            List<IndexEntry> addedBkwdEntries = new ArrayList<IndexEntry>();
+            List<IndexEntry> removedFwdEntries = new ArrayList<IndexEntry>();
+            List<IndexEntry> removedBkwdEntries = new ArrayList<IndexEntry>();
+
+            for (Map.Entry<RecordId, Set<Pair<FieldedLink, SchemaId>>> entry : oldLinksByRecord.entrySet()) {
+                RecordId sourceRecord = entry.getKey();
+                byte[] sourceAsBytes = sourceRecord.toBytes();
+                Set<Pair<FieldedLink, SchemaId>> oldLinks = entry.getValue();
+                Set<Pair<FieldedLink, SchemaId>> newLinks = newLinksByRecord.get(sourceRecord);
+
+                for (Pair<FieldedLink, SchemaId> link : newLinks) {
+                    if (!oldLinks.contains(link)) {
+                        addEntries(link, sourceRecord, sourceAsBytes, addedFwdEntries, addedBkwdEntries);
+                    }
+                }
+                for (Pair<FieldedLink, SchemaId> link : oldLinks) {
+                    if (!newLinks.contains(link)) {
+                        addEntries(link, sourceRecord, sourceAsBytes, removedFwdEntries, removedBkwdEntries);
+                    }
+                }
+            }
+
+            // Same order as in updateLinks
+            if (!addedFwdEntries.isEmpty()) {
+                forwardIndex.addEntries(addedFwdEntries);
+                backwardIndex.addEntries(addedBkwdEntries);
+            }
+            if (!removedFwdEntries.isEmpty()) {
+                backwardIndex.removeEntries(removedBkwdEntries);
+                forwardIndex.removeEntries(removedFwdEntries);
+            }
+        } catch (IOException e) {
+            throw new LinkIndexException("Error applying batch of " + batch.size() + " link index changes", e);
+        } finally {
+            metrics.report(Action.APPLY_BATCH, System.currentTimeMillis() - before);
+        }
+    }
+
+    private void addEntries(Pair<FieldedLink, SchemaId> link, RecordId sourceRecord, byte[] sourceAsBytes,
+            List<IndexEntry> fwdEntries, List<IndexEntry> bkwdEntries) {
+        SchemaId vtag = link.getV2();
+        RecordId target = link.getV1().getRecordId();
+        SchemaId sourceField = link.getV1().getFieldTypeId();
+
+        IndexEntry fwdEntry = createForwardIndexEntry(vtag, sourceRecord, sourceField);
+        fwdEntry.setIdentifier(target.toBytes());
+        fwdEntries.add(fwdEntry);
+
+        IndexEntry bkwdEntry = createBackwardIndexEntry(vtag, target, sourceField);
+        bkwdEntry.setIdentifier(sourceAsBytes);
+        bkwdEntries.add(bkwdEntry);
+    }
+
     private IndexEntry createBackwardIndexEntry(SchemaId vtag, RecordId target, SchemaId sourceField) {
         IndexEntry entry = new IndexEntry(backwardIndex.getDefinition());
 
@@ -338,6 +441,99 @@ public class LinkIndex {
         }
     }
 
+    /**
+     * Streaming variant of {@link #getReferrers(RecordId, SchemaId, SchemaId)}, for records which can have
+     * many referrers: the referrers are read from the index while iterating over the cursor.
+     *
+     * @param vtag        optional
+     * @param sourceField optional, can only be specified in combination with a vtag
+     * @param pageSize    the number of referrers read at once from the index, and returned by
+     *                    {@link LinkIndexCursor#nextPage()}
+     * @param resumeToken optional, a token obtained from {@link LinkIndexCursor#getResumeToken()} to continue
+     *                    a previous iteration
+     * @param limit       the maximum number of referrers to return, -1 for no limit
+     */
+    public LinkIndexCursor<RecordId> getReferrersCursor(RecordId record, SchemaId vtag, SchemaId sourceField,
+            int pageSize, String resumeToken, int limit) throws LinkIndexException {
+        long before = System.currentTimeMillis();
+        try {
+            Query query = createReferrersQuery(record, vtag, sourceField);
+            QueryResult qr = performCursorQuery(query, pageSize, resumeToken);
+            return new LinkIndexCursor<RecordId>(qr, pageSize, limit, resumeToken) {
+                @Override
+                protected RecordId decode(QueryResult queryResult, byte[] identifier) {
+                    return idGenerator.fromBytes(identifier);
+                }
+            };
+        } catch (IOException e) {
+            throw new LinkIndexException("Error getting referrers for record '" + record + "', vtag '" + vtag +
+                    "', field '" + sourceField + "'", e);
+        } finally {
+            metrics.report(Action.GET_REFERRERS_CURSOR, System.currentTimeMillis() - before);
+        }
+    }
+
+    /**
+     * Streaming variant of {@link #getFieldedReferrers(RecordId, SchemaId)}, see
+     * {@link #getReferrersCursor(RecordId, SchemaId, SchemaId, int, String, int)} for the parameters.
+     */
+    public LinkIndexCursor<FieldedLink> getFieldedReferrersCursor(RecordId record, SchemaId vtag, int pageSize,
+            String resumeToken, int limit) throws LinkIndexException {
+        long before = System.currentTimeMillis();
+        try {
+            Query query = createReferrersQuery(record, vtag, null);
+            QueryResult qr = performCursorQuery(query, pageSize, resumeToken);
+            return new LinkIndexCursor<FieldedLink>(qr, pageSize, limit, resumeToken) {
+                @Override
+                protected FieldedLink decode(QueryResult queryResult, byte[] identifier) {
+                    SchemaId sourceField = idGenerator.getSchemaId(queryResult.getData(SOURCE_FIELD_KEY));
+                    return new FieldedLink(idGenerator.fromBytes(identifier), sourceField);
+                }
+            };
+        } catch (IOException e) {
+            throw new LinkIndexException("Error getting referrers for record '" + record + "', vtag '" + vtag + "'", e);
+        } finally {
+            metrics.report(Action.GET_REFERRERS_CURSOR, System.currentTimeMillis() - before);
+        }
+    }
+
+    /**
+     * Estimates the number of referrers of a record, without reading all of them. For records with few
+     * referrers, the count is exact, for others it is an upper bound derived from the size of the index
+     * regions, see {@link org.lilyproject.hbaseindex.Index#estimateCount}.
+     *
+     * @param vtag optional
+     */
+    public long estimateReferrerCount(RecordId record, SchemaId vtag) throws LinkIndexException {
+        long before = System.currentTimeMillis();
+        try {
+            return backwardIndex.estimateCount(createReferrersQuery(record, vtag, null), COUNT_SAMPLE_SIZE);
+        } catch (IOException e) {
+            throw new LinkIndexException("Error estimating referrer count for record '" + record + "', vtag '" +
+                    vtag + "'", e);
+        } finally {
+            metrics.report(Action.ESTIMATE_REFERRERS, System.currentTimeMillis() - before);
+        }
+    }
+
+    private Query createReferrersQuery(RecordId record, SchemaId vtag, SchemaId sourceField) {
+        Query query = new Query();
+        query.addEqualsCondition("target", record.toBytes());
+        if (vtag != null) {
+            query.addEqualsCondition("vtag", vtag.getBytes());
+        }
+        if (sourceField != null) {
+            query.addEqualsCondition("sourcefield", sourceField.getBytes());
+        }
+        return query;
+    }
+
+    private QueryResult performCursorQuery(Query query, int pageSize, String resumeToken) throws IOException {
+        query.setPageSize(pageSize);
+        query.setResumeAfter(LinkIndexCursor.decodeResumeToken(resumeToken));
+        return backwardIndex.performQuery(query);
+    }
+
     public Set<Pair<FieldedLink, SchemaId>> getAllForwardLinks(RecordId record) throws LinkIndexException {
         long before = System.currentTimeMillis();
         try {
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.linkindex;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.lilyproject.repository.api.RecordId;
+import org.lilyproject.repository.api.SchemaId;
+
+/**
+ * A set of changes to the {@link LinkIndex}, to be applied together using {@link LinkIndex#apply(LinkIndexBatch)}.
+ *
+ * <p>The operations have the same meaning as the corresponding methods on {@link LinkIndex}, and are applied
+ * in the order in which they are added.
+ */
+public class LinkIndexBatch {
+    private final List<Operation> operations = new ArrayList<Operation>();
+
+    /**
+     * See {@link LinkIndex#deleteLinks(RecordId)}.
+     */
+    public void deleteLinks(RecordId sourceRecord) {
+        operations.add(new Operation(sourceRecord, null, null, false));
+    }
+
+    /**
+     * See {@link LinkIndex#deleteLinks(RecordId, SchemaId)}.
+     */
+    public void deleteLinks(RecordId sourceRecord, SchemaId vtag) {
+        operations.add(new Operation(sourceRecord, vtag, Collections.<FieldedLink>emptySet(), false));
+    }
+
+    /**
+     * See {@link LinkIndex#updateLinks(RecordId, SchemaId, Set, boolean)}.
+     */
+    public void updateLinks(RecordId sourceRecord, SchemaId vtag, Set<FieldedLink> links, boolean isNewRecord) {
+        operations.add(new Operation(sourceRecord, vtag, links, isNewRecord));
+    }
+
+    public boolean isEmpty() {
+        return operations.isEmpty();
+    }
+
+    public int size() {
+        return operations.size();
+    }
+
+    List<Operation> getOperations() {
+        return operations;
+    }
+
+    static class Operation {
+        final RecordId sourceRecord;
+        /** null for deleting the links of all vtags. */
+        final SchemaId vtag;
+        /** null for deleting the links of all vtags, empty for deleting the links of the vtag. */
+        final Set<FieldedLink> links;
+        final boolean isNewRecord;
+
+        Operation(RecordId sourceRecord, SchemaId vtag, Set<FieldedLink> links, boolean isNewRecord) {
+            this.sourceRecord = sourceRecord;
+            this.vtag = vtag;
+            this.links = links;
+            this.isNewRecord = isNewRecord;
+        }
+    }
+}
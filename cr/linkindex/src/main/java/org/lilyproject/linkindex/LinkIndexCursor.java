@@ -0,0 +1,124 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.linkindex;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.hadoop.hbase.util.Base64;
+import org.lilyproject.hbaseindex.QueryResult;
+
+/**
+ * Iterates over the results of a link index query, the results are read from the index while iterating,
+ * rather than being collected in memory first.
+ *
+ * <p>The iteration can be interrupted and continued later on (e.g. by another request) by means of
+ * the {@link #getResumeToken() resume token}.
+ *
+ * <p>A cursor should always be closed, it keeps an HBase scanner open.
+ */
+public abstract class LinkIndexCursor<T> implements Closeable {
+    private final QueryResult queryResult;
+    private final int pageSize;
+    private final int limit;
+    private int count;
+    private T next;
+    private byte[] nextRowKey;
+    private String resumeToken;
+    private boolean exhausted;
+
+    LinkIndexCursor(QueryResult queryResult, int pageSize, int limit, String resumeToken) {
+        this.queryResult = queryResult;
+        this.pageSize = pageSize;
+        this.limit = limit;
+        this.resumeToken = resumeToken;
+    }
+
+    /**
+     * Creates the result object for the current entry of the query result.
+     */
+    protected abstract T decode(QueryResult queryResult, byte[] identifier) throws IOException;
+
+    public boolean hasNext() throws LinkIndexException {
+        if (next != null)
+            return true;
+
+        if (exhausted || (limit >= 0 && count >= limit))
+            return false;
+
+        try {
+            byte[] identifier = queryResult.next();
+            if (identifier == null) {
+                exhausted = true;
+                return false;
+            }
+            next = decode(queryResult, identifier);
+            nextRowKey = queryResult.getRowKey();
+            return true;
+        } catch (IOException e) {
+            throw new LinkIndexException("Error reading from the link index", e);
+        }
+    }
+
+    public T next() throws LinkIndexException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+
+        T result = next;
+        resumeToken = encodeResumeToken(nextRowKey);
+        next = null;
+        nextRowKey = null;
+        count++;
+        return result;
+    }
+
+    /**
+     * Returns the next page of results, this is an empty list if there are no more results.
+     */
+    public List<T> nextPage() throws LinkIndexException {
+        List<T> page = new ArrayList<T>(pageSize);
+        while (page.size() < pageSize && hasNext()) {
+            page.add(next());
+        }
+        return page;
+    }
+
+    /**
+     * Returns a token which can be passed when creating a new cursor for the same query, to continue
+     * after the last result returned by this cursor. Returns null if all results have been read.
+     */
+    public String getResumeToken() throws LinkIndexException {
+        if (!hasNext() && exhausted)
+            return null;
+        return resumeToken;
+    }
+
+    @Override
+    public void close() {
+        queryResult.close();
+    }
+
+    static String encodeResumeToken(byte[] rowKey) {
+        return Base64.encodeBytes(rowKey, Base64.URL_SAFE | Base64.DONT_BREAK_LINES);
+    }
+
+    static byte[] decodeResumeToken(String resumeToken) {
+        return resumeToken == null ? null : Base64.decode(resumeToken, Base64.URL_SAFE);
+    }
+}
@@ -30,7 +30,8 @@ import org.lilyproject.util.hbase.metrics.MBeanUtil;
 import org.lilyproject.util.hbase.metrics.MetricsDynamicMBeanBase;
 
 public class LinkIndexMetrics implements Updater {
-    public enum Action{DELETE_LINKS, DELETE_LINKS_VTAG, UPDATE_LINKS, GET_REFERRERS, GET_FIELDED_REFERRERS, GET_ALL_FW_LINKS, GET_FW_LINKS};
+    public enum Action{DELETE_LINKS, DELETE_LINKS_VTAG, UPDATE_LINKS, GET_REFERRERS, GET_FIELDED_REFERRERS, GET_ALL_FW_LINKS, GET_FW_LINKS, APPLY_BATCH, GET_REFERRERS_CURSOR,
+        ESTIMATE_REFERRERS};
     private final MetricsRegistry registry = new MetricsRegistry();
     private final MetricsRecord metricsRecord;
     private final MetricsContext context;
@@ -24,9 +24,11 @@ import org.lilyproject.util.repo.RecordEvent;
 import org.lilyproject.util.repo.RecordEventHelper;
 import org.lilyproject.util.repo.RowLogContext;
 import org.lilyproject.util.repo.VTaggedRecord;
+import org.lilyproject.rowlog.api.BatchRowLogMessageListener;
+import org.lilyproject.rowlog.api.RowLogException;
 import org.lilyproject.rowlog.api.RowLogMessage;
-import org.lilyproject.rowlog.api.RowLogMessageListener;
 
+import java.io.IOException;
 import java.util.*;
 
 import static org.lilyproject.util.repo.RecordEvent.Type.*;
@@ -39,42 +41,114 @@ import static org.lilyproject.util.repo.RecordEvent.Type.*;
 
 /**
  * Keeps the {@link LinkIndex} up to date when changes happen to records.
+ *
+ * <p>When the rowlog offers multiple messages at once, the link index changes for all of them are
+ * applied together as one {@link LinkIndexBatch}.
  */
-public class LinkIndexUpdater implements RowLogMessageListener {
+public class LinkIndexUpdater implements BatchRowLogMessageListener {
     private Repository repository;
     private TypeManager typeManager;
     private LinkIndex linkIndex;
+    private int maxBatchSize;
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 50;
 
     private Log log = LogFactory.getLog(getClass());
     private LinkIndexUpdaterMetrics metrics;
 
     public LinkIndexUpdater(Repository repository, LinkIndex linkIndex) throws RepositoryException, InterruptedException {
+        this(repository, linkIndex, DEFAULT_MAX_BATCH_SIZE);
+    }
+
+    /**
+     * @param maxBatchSize maximum number of messages to process together, use 1 to disable batching
+     */
+    public LinkIndexUpdater(Repository repository, LinkIndex linkIndex, int maxBatchSize)
+            throws RepositoryException, InterruptedException {
         this.repository = repository;
         this.typeManager = repository.getTypeManager();
         this.linkIndex = linkIndex;
+        this.maxBatchSize = maxBatchSize;
         metrics = new LinkIndexUpdaterMetrics("linkIndexUpdater");
     }
 
     @Override
     public boolean processMessage(RowLogMessage msg) {
         try {
-            RecordId recordId = repository.getIdGenerator().fromBytes(msg.getRowKey());
-            Object context = msg.getContext();
-            RecordEvent recordEvent = null;
-            if (context != null) {
-                RowLogContext rowLogContext = (RowLogContext) msg.getContext();
-                recordEvent = rowLogContext.getRecordEvent();
-            }
-            if (recordEvent == null)
-                recordEvent = new RecordEvent(msg.getPayload(), repository.getIdGenerator());
-            update(recordId, recordEvent);
+            update(getRecordId(msg), getRecordEvent(msg));
         } catch (Exception e) {
             log.error("Error processing event in LinkIndexUpdater", e);
         }
         return true;
     }
 
+    @Override
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    @Override
+    public List<RowLogMessage> processMessages(List<RowLogMessage> messages) {
+        long before = System.currentTimeMillis();
+        try {
+            LinkIndexBatch batch = new LinkIndexBatch();
+            for (RowLogMessage msg : messages) {
+                try {
+                    collectChanges(getRecordId(msg), getRecordEvent(msg), batch);
+                } catch (Exception e) {
+                    log.error("Error processing event in LinkIndexUpdater", e);
+                }
+            }
+
+            try {
+                linkIndex.apply(batch);
+            } catch (Exception e) {
+                // Process the messages one by one, so that a problem with one record does not affect the others
+                log.error("Error applying batch of link index changes for " + messages.size() +
+                        " messages, will process them one by one.", e);
+                for (RowLogMessage msg : messages) {
+                    processMessage(msg);
+                }
+            }
+        } finally {
+            metrics.report(Action.UPDATE_BATCH, System.currentTimeMillis() - before);
+        }
+        return messages;
+    }
+
+    private RecordId getRecordId(RowLogMessage msg) {
+        return repository.getIdGenerator().fromBytes(msg.getRowKey());
+    }
+
+    private RecordEvent getRecordEvent(RowLogMessage msg) throws RowLogException, IOException {
+        Object context = msg.getContext();
+        RecordEvent recordEvent = null;
+        if (context != null) {
+            RowLogContext rowLogContext = (RowLogContext) msg.getContext();
+            recordEvent = rowLogContext.getRecordEvent();
+        }
+        if (recordEvent == null)
+            recordEvent = new RecordEvent(msg.getPayload(), repository.getIdGenerator());
+        return recordEvent;
+    }
+
     public void update(RecordId recordId, RecordEvent recordEvent) {
+        long before = System.currentTimeMillis();
+        try {
+            LinkIndexBatch batch = new LinkIndexBatch();
+            collectChanges(recordId, recordEvent, batch);
+            linkIndex.apply(batch);
+        } catch (Exception e) {
+            log.error("Error processing event in LinkIndexUpdater", e);
+        } finally {
+            metrics.report(Action.UPDATE, System.currentTimeMillis() - before);
+        }
+    }
+
+    /**
+     * Adds the link index changes needed for the given record event to the batch.
+     */
+    private void collectChanges(RecordId recordId, RecordEvent recordEvent, LinkIndexBatch batch) throws Exception {
         // This is the algorithm for updating the LinkIndex when a record changes.
         //
         // The LinkIndex contains, for each vtag defined on the record, the links extracted from the record
@@ -87,82 +161,75 @@ public class LinkIndexUpdater implements RowLogMessageListener {
         //  * the vtags change: existing vtag now points to another version, a new vtag is added, or a vtag is removed
         //
 
-        long before = System.currentTimeMillis();
-        try {
-            if (recordEvent.getType().equals(DELETE)) {
-                // Delete everything from the link index for this record, thus for all vtags
-                linkIndex.deleteLinks(recordId);
+        if (recordEvent.getType().equals(DELETE)) {
+            // Delete everything from the link index for this record, thus for all vtags
+            batch.deleteLinks(recordId);
+            if (log.isDebugEnabled()) {
+                log.debug("Record " + recordId + " : delete event : deleted extracted links.");
+            }
+        } else if (recordEvent.getType().equals(CREATE) || recordEvent.getType().equals(UPDATE)) {
+            boolean isNewRecord = recordEvent.getType().equals(CREATE);
+
+            RecordEventHelper eventHelper = new RecordEventHelper(recordEvent, LINK_FIELD_FILTER,
+                    repository.getTypeManager());
+
+            VTaggedRecord vtRecord;
+            try {
+                vtRecord = new VTaggedRecord(recordId, eventHelper, repository);
+            } catch (RecordNotFoundException e) {
+                // record not found: delete all links for all vtags
+                batch.deleteLinks(recordId);
                 if (log.isDebugEnabled()) {
-                    log.debug("Record " + recordId + " : delete event : deleted extracted links.");
+                    log.debug("Record " + recordId + " : does not exist : deleted extracted links.");
                 }
-            } else if (recordEvent.getType().equals(CREATE) || recordEvent.getType().equals(UPDATE)) {
-                boolean isNewRecord = recordEvent.getType().equals(CREATE);
+                return;
+            }
 
-                RecordEventHelper eventHelper = new RecordEventHelper(recordEvent, LINK_FIELD_FILTER,
-                        repository.getTypeManager());
+            //
+            // First find out for what vtags we need to re-perform the link extraction
+            //
+            Set<SchemaId> vtagsToProcess = new HashSet<SchemaId>();
 
-                VTaggedRecord vtRecord;
-                try {
-                    vtRecord = new VTaggedRecord(recordId, eventHelper, repository);
-                } catch (RecordNotFoundException e) {
-                    // record not found: delete all links for all vtags
-                    linkIndex.deleteLinks(recordId);
+            // Modified vtag fields
+            vtagsToProcess.addAll(eventHelper.getModifiedVTags());
+
+            // The vtags of the created/modified version, if any, and if any link fields changed
+            vtagsToProcess.addAll(vtRecord.getVTagsOfModifiedData());
+
+            Map<SchemaId, Long> vtags = vtRecord.getVTags();
+
+            //
+            // For each of the vtags, perform the link extraction
+            //
+            Map<Long, Set<FieldedLink>> cache = new HashMap<Long, Set<FieldedLink>>();
+            for (SchemaId vtag : vtagsToProcess) {
+                if (!vtags.containsKey(vtag)) {
+                    // The vtag is not defined on the document: it is a deleted vtag, delete the
+                    // links corresponding to it
+                    batch.deleteLinks(recordId, vtag);
                     if (log.isDebugEnabled()) {
-                        log.debug("Record " + recordId + " : does not exist : deleted extracted links.");
+                        log.debug(String.format("Record %1$s, vtag %2$s : deleted extracted links " +
+                                "because vtag does not exist on document anymore",
+                                recordId, safeLoadTagName(vtag)));
                     }
-                    return;
-                }
-
-                //
-                // First find out for what vtags we need to re-perform the link extraction
-                //
-                Set<SchemaId> vtagsToProcess = new HashSet<SchemaId>();
-
-                // Modified vtag fields
-                vtagsToProcess.addAll(eventHelper.getModifiedVTags());
-
-                // The vtags of the created/modified version, if any, and if any link fields changed
-                vtagsToProcess.addAll(vtRecord.getVTagsOfModifiedData());
-
-                Map<SchemaId, Long> vtags = vtRecord.getVTags();
-
-                //
-                // For each of the vtags, perform the link extraction
-                //
-                Map<Long, Set<FieldedLink>> cache = new HashMap<Long, Set<FieldedLink>>();
-                for (SchemaId vtag : vtagsToProcess) {
-                    if (!vtags.containsKey(vtag)) {
-                        // The vtag is not defined on the document: it is a deleted vtag, delete the
-                        // links corresponding to it
-                        linkIndex.deleteLinks(recordId, vtag);
-                        if (log.isDebugEnabled()) {
-                            log.debug(String.format("Record %1$s, vtag %2$s : deleted extracted links " +
-                                    "because vtag does not exist on document anymore",
-                                    recordId, safeLoadTagName(vtag)));
-                        }
+                } else {
+                    // Since one version might have multiple vtags, we keep a little cache to avoid
+                    // extracting the links from the same version twice.
+                    long version = vtags.get(vtag);
+                    Set<FieldedLink> links;
+                    if (cache.containsKey(version)) {
+                        links = cache.get(version);
                     } else {
-                        // Since one version might have multiple vtags, we keep a little cache to avoid
-                        // extracting the links from the same version twice.
-                        long version = vtags.get(vtag);
-                        Set<FieldedLink> links;
-                        if (cache.containsKey(version)) {
-                            links = cache.get(version);
-                        } else {
-                            links = extractLinks(vtRecord, version);
-                            cache.put(version, links);
-                        }
-                        linkIndex.updateLinks(recordId, vtag, links, isNewRecord);
-                        if (log.isDebugEnabled()) {
-                            log.debug(String.format("Record %1$s, vtag %2$s : extracted links count : %3$s",
-                                    recordId, safeLoadTagName(vtag), links.size()));
-                        }
+                        links = extractLinks(vtRecord, version);
+                        cache.put(version, links);
+                    }
+                    batch.updateLinks(recordId, vtag, links, isNewRecord);
+                    if (log.isDebugEnabled()) {
+                        log.debug(String.format("Record %1$s, vtag %2$s : extracted links count : %3$s",
+                                recordId, safeLoadTagName(vtag), links.size()));
                     }
                 }
             }
-        } catch (Exception e) {
-            log.error("Error processing event in LinkIndexUpdater", e);
-        } finally {
-            metrics.report(Action.UPDATE, System.currentTimeMillis() - before);
         }
     }
 
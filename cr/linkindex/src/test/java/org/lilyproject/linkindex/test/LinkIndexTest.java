@@ -22,6 +22,8 @@ import org.lilyproject.hadooptestfw.TestHelper;
 import org.lilyproject.hbaseindex.IndexManager;
 import org.lilyproject.linkindex.FieldedLink;
 import org.lilyproject.linkindex.LinkIndex;
+import org.lilyproject.linkindex.LinkIndexBatch;
+import org.lilyproject.linkindex.LinkIndexCursor;
 import org.lilyproject.linkindex.LinkIndexUpdater;
 import org.lilyproject.repository.api.*;
 import org.lilyproject.repository.impl.id.SchemaIdImpl;
@@ -33,10 +35,13 @@ import org.lilyproject.util.repo.VersionTag;
 
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 public class LinkIndexTest {
@@ -123,6 +128,100 @@ public class LinkIndexTest {
         assertEquals(1, referrers.size());
     }
 
+    @Test
+    public void testLinkIndexBatch() throws Exception {
+        SchemaId liveTag = repository.getIdGenerator().getSchemaId(UUID.randomUUID());
+        SchemaId draftTag = repository.getIdGenerator().getSchemaId(UUID.randomUUID());
+
+        Set<FieldedLink> links1 = new HashSet<FieldedLink>();
+        links1.add(new FieldedLink(ids.newRecordId("bt1"), field1));
+        links1.add(new FieldedLink(ids.newRecordId("bt2"), field1));
+
+        Set<FieldedLink> links2 = new HashSet<FieldedLink>();
+        links2.add(new FieldedLink(ids.newRecordId("bt3"), field1));
+
+        LinkIndexBatch batch = new LinkIndexBatch();
+        batch.updateLinks(ids.newRecordId("bsA"), liveTag, links1, true);
+        batch.updateLinks(ids.newRecordId("bsA"), draftTag, links2, true);
+        batch.updateLinks(ids.newRecordId("bsB"), liveTag, links2, true);
+        linkIndex.apply(batch);
+
+        assertEquals(links1, linkIndex.getFieldedForwardLinks(ids.newRecordId("bsA"), liveTag));
+        assertEquals(links2, linkIndex.getFieldedForwardLinks(ids.newRecordId("bsA"), draftTag));
+        assertEquals(links2, linkIndex.getFieldedForwardLinks(ids.newRecordId("bsB"), liveTag));
+
+        Set<RecordId> referrers = linkIndex.getReferrers(ids.newRecordId("bt3"), null);
+        assertTrue(referrers.contains(ids.newRecordId("bsA")));
+        assertTrue(referrers.contains(ids.newRecordId("bsB")));
+        assertEquals(2, referrers.size());
+
+        // Change links of one vtag, delete another vtag, delete all links of another record, and add and
+        // remove the same link within the batch
+        batch = new LinkIndexBatch();
+        batch.updateLinks(ids.newRecordId("bsA"), liveTag, links2, false);
+        batch.deleteLinks(ids.newRecordId("bsA"), draftTag);
+        batch.deleteLinks(ids.newRecordId("bsB"));
+        batch.updateLinks(ids.newRecordId("bsC"), liveTag, links1, false);
+        batch.deleteLinks(ids.newRecordId("bsC"), liveTag);
+        linkIndex.apply(batch);
+
+        assertEquals(links2, linkIndex.getFieldedForwardLinks(ids.newRecordId("bsA"), liveTag));
+        assertEquals(0, linkIndex.getFieldedForwardLinks(ids.newRecordId("bsA"), draftTag).size());
+        assertEquals(0, linkIndex.getAllForwardLinks(ids.newRecordId("bsB")).size());
+        assertEquals(0, linkIndex.getAllForwardLinks(ids.newRecordId("bsC")).size());
+
+        assertEquals(0, linkIndex.getReferrers(ids.newRecordId("bt1"), null).size());
+        referrers = linkIndex.getReferrers(ids.newRecordId("bt3"), null);
+        assertTrue(referrers.contains(ids.newRecordId("bsA")));
+        assertEquals(1, referrers.size());
+    }
+
+    @Test
+    public void testReferrersCursor() throws Exception {
+        SchemaId liveTag = repository.getIdGenerator().getSchemaId(UUID.randomUUID());
+
+        Set<FieldedLink> links = new HashSet<FieldedLink>();
+        links.add(new FieldedLink(ids.newRecordId("cursorTarget"), field1));
+
+        LinkIndexBatch batch = new LinkIndexBatch();
+        for (int i = 0; i < 25; i++) {
+            batch.updateLinks(ids.newRecordId("cursorSrc" + i), liveTag, links, true);
+        }
+        linkIndex.apply(batch);
+
+        // Read the first page, then resume from the token
+        Set<RecordId> referrers = new HashSet<RecordId>();
+        LinkIndexCursor<RecordId> cursor =
+                linkIndex.getReferrersCursor(ids.newRecordId("cursorTarget"), liveTag, null, 10, null, -1);
+        List<RecordId> page = cursor.nextPage();
+        assertEquals(10, page.size());
+        referrers.addAll(page);
+        String token = cursor.getResumeToken();
+        assertNotNull(token);
+        cursor.close();
+
+        cursor = linkIndex.getReferrersCursor(ids.newRecordId("cursorTarget"), liveTag, null, 10, token, -1);
+        while (cursor.hasNext()) {
+            assertTrue(referrers.add(cursor.next()));
+        }
+        assertNull(cursor.getResumeToken());
+        cursor.close();
+        assertEquals(25, referrers.size());
+
+        // Limit
+        LinkIndexCursor<FieldedLink> fieldedCursor =
+                linkIndex.getFieldedReferrersCursor(ids.newRecordId("cursorTarget"), liveTag, 10, null, 5);
+        int count = 0;
+        while (fieldedCursor.hasNext()) {
+            assertEquals(field1, fieldedCursor.next().getFieldTypeId());
+            count++;
+        }
+        fieldedCursor.close();
+        assertEquals(5, count);
+
+        assertEquals(25, linkIndex.estimateReferrerCount(ids.newRecordId("cursorTarget"), liveTag));
+    }
+
     @Test
     public void testLinkIndexWithShortRecordIds() throws Exception {
         final RecordId id1 = ids.newRecordId("id1");
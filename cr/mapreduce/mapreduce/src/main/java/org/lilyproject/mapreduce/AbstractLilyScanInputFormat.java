@@ -17,14 +17,36 @@ package org.lilyproject.mapreduce;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configurable;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.ClusterStatus;
+import org.apache.hadoop.hbase.HServerInfo;
+import org.apache.hadoop.hbase.HServerLoad;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.client.HBaseAdmin;
 import org.apache.hadoop.hbase.client.HConnectionManager;
+import org.apache.hadoop.hbase.client.HRegionLocation;
 import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
+import org.apache.hadoop.hbase.filter.KeyOnlyFilter;
 import org.apache.hadoop.hbase.mapreduce.TableSplit;
 import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.hadoop.hbase.util.Pair;
@@ -46,11 +68,58 @@ import org.lilyproject.util.zookeeper.ZooKeeperItf;
 
 /**
  * A MapReduce InputFormat for Lily based on Lily scanners.
+ *
+ * <p>By default, one split is created per region of the record table. When {@link #SPLIT_RECORDS} or
+ * {@link #SPLIT_BYTES} is configured, large regions are divided into multiple splits, which are all
+ * assigned to the host of the region.
  */
 public abstract class AbstractLilyScanInputFormat<KEYIN, VALUEIN> extends InputFormat<KEYIN, VALUEIN> implements Configurable {
     
     public static final String SCAN = "lily.mapreduce.scan";
 
+    /**
+     * Target number of records per split. The number of records in a region is estimated based on the size
+     * of the region and the average size of the first records in it.
+     */
+    public static final String SPLIT_RECORDS = "lily.mapreduce.split.records";
+
+    /**
+     * Target size in bytes per split, based on the store file and memstore size of the regions. Takes
+     * precedence over {@link #SPLIT_RECORDS}.
+     */
+    public static final String SPLIT_BYTES = "lily.mapreduce.split.bytes";
+
+    /**
+     * Number of records read from the start of each region to estimate the average record size.
+     */
+    public static final String SPLIT_SAMPLE_SIZE = "lily.mapreduce.split.samplesize";
+
+    private static final int DEFAULT_SPLIT_SAMPLE_SIZE = 100;
+
+    /**
+     * Maximum number of row keys read per region to determine the split points of regions which do not hold
+     * UUID record ids.
+     */
+    public static final String SPLIT_MAX_READS = "lily.mapreduce.split.maxreads";
+
+    private static final int DEFAULT_SPLIT_MAX_READS = 100;
+
+    /**
+     * Number of regions which are divided in parallel.
+     */
+    public static final String SPLIT_THREADS = "lily.mapreduce.split.threads";
+
+    private static final int DEFAULT_SPLIT_THREADS = 10;
+
+    private static final int MAX_SPLITS_PER_REGION = 1000;
+
+    private static final byte[] UUID_KEYSPACE_START = new byte[] {1};
+    private static final byte[] UUID_KEYSPACE_END = new byte[] {2};
+    // Sorts after all record ids
+    private static final byte[] KEYSPACE_END = new byte[] {(byte)0xFF};
+    // The type byte followed by the 16 bytes of the UUID
+    private static final int UUID_RECORD_ID_LENGTH = 17;
+
     final Log log = LogFactory.getLog(AbstractLilyScanInputFormat.class);
     
     private Configuration conf;
@@ -77,6 +146,7 @@ public abstract class AbstractLilyScanInputFormat<KEYIN, VALUEIN> extends InputF
         ZooKeeperItf zk = null;
         LilyClient lilyClient = null;
         Configuration hbaseConf = null;
+        HBaseAdmin admin = null;
         try {
             zk = ZkUtil.connect(zkConnectString, 30000);
 
@@ -112,7 +182,12 @@ public abstract class AbstractLilyScanInputFormat<KEYIN, VALUEIN> extends InputF
             hbaseConf = LilyClient.getHBaseConfiguration(zk);
             table = new HTable(hbaseConf, LilyHBaseSchema.Table.RECORD.bytes);
 
-            return getSplits(table, startRow, stopRow);
+            List<InputSplit> splits = getSplits(table, startRow, stopRow);
+            if (conf.getLong(SPLIT_BYTES, 0) > 0 || conf.getLong(SPLIT_RECORDS, 0) > 0) {
+                admin = new HBaseAdmin(hbaseConf);
+                splits = divideSplits(table, admin.getClusterStatus(), splits);
+            }
+            return splits;
         } catch (ZkConnectException e) {
             throw new IOException("Error setting up splits", e);
         } finally {
@@ -121,6 +196,10 @@ public abstract class AbstractLilyScanInputFormat<KEYIN, VALUEIN> extends InputF
             if (hbaseConf != null) {
                 HConnectionManager.deleteConnection(hbaseConf, true);
             }
+            // HBaseAdmin clones the configuration, and thus has its own connection
+            if (admin != null) {
+                HConnectionManager.deleteConnection(admin.getConfiguration(), true);
+            }
             Closer.close(lilyClient);
         }
     }
@@ -170,6 +249,268 @@ public abstract class AbstractLilyScanInputFormat<KEYIN, VALUEIN> extends InputF
         return splits;
     }
 
+    /**
+     * Divides the splits of regions which are larger than the configured {@link #SPLIT_BYTES} or
+     * {@link #SPLIT_RECORDS} into multiple splits with the same location. The regions are handled in parallel,
+     * see {@link #SPLIT_THREADS}.
+     *
+     * <p>When the split covers only UUID record ids, which are uniformly distributed, the key range is
+     * divided uniformly. Otherwise, the split points are determined by repeatedly halving the key range and
+     * reading the first row key after the middle, which reads at most {@link #SPLIT_MAX_READS} row keys per
+     * region.
+     */
+    protected List<InputSplit> divideSplits(final HTable table, ClusterStatus clusterStatus,
+            List<InputSplit> splits) throws IOException, InterruptedException {
+        final Map<String, Long> regionSizes = new HashMap<String, Long>();
+        for (HServerInfo serverInfo : clusterStatus.getServerInfo()) {
+            for (HServerLoad.RegionLoad regionLoad : serverInfo.getLoad().getRegionsLoad()) {
+                long sizeMB = regionLoad.getStorefileSizeMB() + regionLoad.getMemStoreSizeMB();
+                regionSizes.put(Bytes.toStringBinary(regionLoad.getName()), sizeMB * 1024L * 1024L);
+            }
+        }
+
+        int threads = Math.max(1, Math.min(splits.size(), conf.getInt(SPLIT_THREADS, DEFAULT_SPLIT_THREADS)));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<List<InputSplit>>> futures = new ArrayList<Future<List<InputSplit>>>(splits.size());
+            for (InputSplit inputSplit : splits) {
+                final TableSplit split = (TableSplit)inputSplit;
+                Future<List<InputSplit>> future = executor.submit(new Callable<List<InputSplit>>() {
+                    @Override
+                    public List<InputSplit> call() throws Exception {
+                        // HTable is not thread safe, the tables share the connection of the configuration
+                        HTable regionTable = new HTable(table.getConfiguration(), table.getTableName());
+                        try {
+                            return divideSplit(regionTable, split, regionSizes);
+                        } finally {
+                            Closer.close(regionTable);
+                        }
+                    }
+                });
+                futures.add(future);
+            }
+
+            List<InputSplit> result = new ArrayList<InputSplit>(splits.size());
+            for (Future<List<InputSplit>> future : futures) {
+                try {
+                    result.addAll(future.get());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException)e.getCause();
+                    }
+                    throw new IOException("Error dividing splits", e.getCause());
+                }
+            }
+            return result;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private List<InputSplit> divideSplit(HTable table, TableSplit split, Map<String, Long> regionSizes)
+            throws IOException {
+        long targetBytes = conf.getLong(SPLIT_BYTES, 0);
+        long targetRecords = conf.getLong(SPLIT_RECORDS, 0);
+        int sampleSize = Math.max(1, conf.getInt(SPLIT_SAMPLE_SIZE, DEFAULT_SPLIT_SAMPLE_SIZE));
+        byte[] start = split.getStartRow();
+        byte[] stop = split.getEndRow();
+
+        HRegionLocation location = table.getRegionLocation(start);
+        Long regionBytes = regionSizes.get(Bytes.toStringBinary(location.getRegionInfo().getRegionName()));
+        if (regionBytes == null || regionBytes == 0) {
+            return Collections.<InputSplit>singletonList(split);
+        }
+
+        RowSample sample = sampleRows(table, start, stop, sampleSize);
+        if (sample.exhausted) {
+            // the whole split fits in the sample
+            return Collections.<InputSplit>singletonList(split);
+        }
+
+        long estimatedRecords = Math.max(sample.count, regionBytes / Math.max(1, sample.bytes / sample.count));
+        long splitCount;
+        if (targetBytes > 0) {
+            splitCount = (regionBytes + targetBytes - 1) / targetBytes;
+        } else {
+            splitCount = (estimatedRecords + targetRecords - 1) / targetRecords;
+        }
+        splitCount = Math.min(splitCount, MAX_SPLITS_PER_REGION);
+        if (splitCount <= 1) {
+            return Collections.<InputSplit>singletonList(split);
+        }
+
+        List<byte[]> splitPoints;
+        if (sample.firstRow[0] == UUID_KEYSPACE_START[0] &&
+                (stop.length == 0 || Bytes.compareTo(stop, UUID_KEYSPACE_END) <= 0)) {
+            splitPoints = getUniformSplitPoints(start.length == 0 ? sample.firstRow : start,
+                    stop.length == 0 ? UUID_KEYSPACE_END : stop, (int)splitCount);
+        } else {
+            RowProber prober = new RowProber(table, Math.max(1, conf.getInt(SPLIT_MAX_READS,
+                    DEFAULT_SPLIT_MAX_READS)));
+            splitPoints = new ArrayList<byte[]>((int)splitCount - 1);
+            addProbedSplitPoints(prober, sample.firstRow, stop.length == 0 ? KEYSPACE_END : stop, (int)splitCount,
+                    splitPoints);
+        }
+
+        List<InputSplit> result = new ArrayList<InputSplit>(splitPoints.size() + 1);
+        byte[] subStart = start;
+        for (byte[] splitPoint : splitPoints) {
+            if (Bytes.compareTo(splitPoint, subStart) <= 0 ||
+                    (stop.length > 0 && Bytes.compareTo(splitPoint, stop) >= 0)) {
+                continue;
+            }
+            result.add(new TableSplit(table.getTableName(), subStart, splitPoint, split.getRegionLocation()));
+            subStart = splitPoint;
+        }
+        result.add(new TableSplit(table.getTableName(), subStart, stop, split.getRegionLocation()));
+
+        if (log.isDebugEnabled())
+            log.debug("divideSplits: divided " + split + " into " + result.size() + " splits");
+        return result;
+    }
+
+    private static class RowSample {
+        byte[] firstRow;
+        int count;
+        long bytes;
+        boolean exhausted;
+    }
+
+    /**
+     * Reads up to sampleSize rows from the start of the given range.
+     */
+    private RowSample sampleRows(HTable table, byte[] start, byte[] stop, int sampleSize) throws IOException {
+        Scan scan = new Scan(start, stop);
+        scan.setCaching(sampleSize);
+        scan.setCacheBlocks(false);
+
+        RowSample sample = new RowSample();
+        ResultScanner scanner = table.getScanner(scan);
+        try {
+            Result result;
+            while (sample.count < sampleSize && (result = scanner.next()) != null) {
+                if (sample.firstRow == null) {
+                    sample.firstRow = result.getRow();
+                }
+                sample.count++;
+                for (KeyValue kv : result.raw()) {
+                    sample.bytes += kv.getLength();
+                }
+            }
+            sample.exhausted = sample.count < sampleSize || scanner.next() == null;
+        } finally {
+            scanner.close();
+        }
+        return sample;
+    }
+
+    /**
+     * Divides the key range uniformly, this assumes the keys are uniformly distributed, as is the case for
+     * UUID record ids.
+     */
+    private List<byte[]> getUniformSplitPoints(byte[] start, byte[] stop, int splitCount) {
+        if (Bytes.compareTo(start, stop) >= 0) {
+            return Collections.emptyList();
+        }
+        // Bytes.split can not divide the range in more parts than there are keys of the same length between
+        // start and stop, e.g. none between the one-byte bounds of the UUID key space, hence the padding.
+        // It returns the start and stop key too.
+        int length = Math.max(UUID_RECORD_ID_LENGTH, Math.max(start.length, stop.length));
+        byte[][] keys = Bytes.split(Arrays.copyOf(start, length), Arrays.copyOf(stop, length), splitCount - 1);
+        if (keys == null) {
+            return Collections.emptyList();
+        }
+        List<byte[]> splitPoints = new ArrayList<byte[]>(splitCount - 1);
+        for (int i = 1; i < keys.length - 1; i++) {
+            splitPoints.add(keys[i]);
+        }
+        return splitPoints;
+    }
+
+    /**
+     * Divides the rows of a range in the given number of parts by halving the key range: the first row after the
+     * middle of the range becomes a split point, and both halves are divided further. When there is no row after
+     * the middle, only the lower half is divided further. This stops when the prober has no reads left.
+     *
+     * @param firstRow the first row of the range
+     * @param stop the end of the range, exclusive
+     */
+    private void addProbedSplitPoints(RowProber prober, byte[] firstRow, byte[] stop, int parts,
+            List<byte[]> splitPoints) throws IOException {
+        while (parts > 1 && prober.canRead()) {
+            byte[] middle = getMiddle(firstRow, stop);
+            if (middle == null) {
+                return;
+            }
+            byte[] row = prober.getFirstRow(middle, stop);
+            if (row == null) {
+                // All rows of the range are before the middle
+                stop = middle;
+                continue;
+            }
+            int lowerParts = parts / 2;
+            addProbedSplitPoints(prober, firstRow, row, lowerParts, splitPoints);
+            splitPoints.add(row);
+            firstRow = row;
+            parts -= lowerParts;
+        }
+    }
+
+    /**
+     * Returns a key halfway between the given keys, or null if there is none.
+     */
+    private static byte[] getMiddle(byte[] start, byte[] stop) {
+        // Padding with one byte makes sure there are keys in between, unless stop is the successor of start
+        int length = Math.max(start.length, stop.length) + 1;
+        byte[] paddedStart = Arrays.copyOf(start, length);
+        byte[] paddedStop = Arrays.copyOf(stop, length);
+        if (Bytes.compareTo(paddedStart, paddedStop) >= 0) {
+            return null;
+        }
+        byte[][] keys = Bytes.split(paddedStart, paddedStop, 1);
+        return keys == null ? null : keys[1];
+    }
+
+    /**
+     * Reads single row keys of a table, at most the given number of them.
+     */
+    private static class RowProber {
+        private final HTable table;
+        private int remainingReads;
+
+        RowProber(HTable table, int maxReads) {
+            this.table = table;
+            this.remainingReads = maxReads;
+        }
+
+        boolean canRead() {
+            return remainingReads > 0;
+        }
+
+        /**
+         * Returns the first row key of the given range, or null if there is none.
+         */
+        byte[] getFirstRow(byte[] start, byte[] stop) throws IOException {
+            if (remainingReads <= 0) {
+                throw new IllegalStateException("No reads left");
+            }
+            remainingReads--;
+
+            Scan scan = new Scan(start, stop);
+            scan.setFilter(new FilterList(FilterList.Operator.MUST_PASS_ALL,
+                    Arrays.<Filter>asList(new FirstKeyOnlyFilter(), new KeyOnlyFilter())));
+            scan.setCaching(1);
+            scan.setCacheBlocks(false);
+            ResultScanner scanner = table.getScanner(scan);
+            try {
+                Result result = scanner.next();
+                return result == null ? null : result.getRow();
+            } finally {
+                scanner.close();
+            }
+        }
+    }
+
     protected boolean includeRegionInSplit(final byte[] startKey, final byte [] endKey) {
         return true;
     }
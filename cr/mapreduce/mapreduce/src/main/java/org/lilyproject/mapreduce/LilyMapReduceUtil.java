@@ -15,6 +15,9 @@
  */
 package org.lilyproject.mapreduce;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.mapreduce.Job;
 import org.codehaus.jackson.JsonNode;
@@ -29,6 +32,8 @@ import org.lilyproject.util.json.JsonFormat;
 public class LilyMapReduceUtil {
     public static final String ZK_CONNECT_STRING = "lily.mapreduce.zookeeper";
 
+    private static final Map<String, LilyClient> SHARED_CLIENTS = new HashMap<String, LilyClient>();
+
     /**
      * Set the necessary parameters inside the job configuration for using Lily as input.
      */
@@ -72,4 +77,21 @@ public class LilyMapReduceUtil {
             throw new RuntimeException(e);
         }
     }
+
+    /**
+     * Returns a LilyClient which is shared within this JVM, for the ZooKeeper connection string found in the
+     * Configuration object. This is used for the (de)serialization of records by {@link RecordWritable} and
+     * {@link IdRecordWritable}. The returned client should not be closed.
+     */
+    static LilyClient getSharedLilyClient(Configuration conf) throws InterruptedException {
+        String zkConnectString = conf.get(ZK_CONNECT_STRING);
+        synchronized (SHARED_CLIENTS) {
+            LilyClient lilyClient = SHARED_CLIENTS.get(zkConnectString);
+            if (lilyClient == null) {
+                lilyClient = getLilyClient(conf);
+                SHARED_CLIENTS.put(zkConnectString, lilyClient);
+            }
+            return lilyClient;
+        }
+    }
 }
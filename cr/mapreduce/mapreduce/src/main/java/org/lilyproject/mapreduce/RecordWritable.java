@@ -15,27 +15,62 @@
  */
 package org.lilyproject.mapreduce;
 
-import org.apache.hadoop.io.Writable;
-import org.lilyproject.repository.api.Record;
-
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 
-public class RecordWritable implements Writable {    
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.lilyproject.avro.repository.RecordAsBytesConverter;
+import org.lilyproject.bytes.impl.DataInputImpl;
+import org.lilyproject.bytes.impl.DataOutputImpl;
+import org.lilyproject.repository.api.Record;
+import org.lilyproject.repository.api.Repository;
+import org.lilyproject.util.exception.ExceptionUtil;
+
+/**
+ * Writable wrapper around a {@link org.lilyproject.repository.api.Record}.
+ *
+ * <p>The record is serialized in the compact format of {@link RecordAsBytesConverter}, which refers to field
+ * and record types by id. (De)serialization needs a repository: either one set through
+ * {@link #setRepository}, or otherwise a LilyClient shared within the JVM is created based on the
+ * ZooKeeper connection string in the job configuration (see {@link LilyMapReduceUtil#ZK_CONNECT_STRING}).
+ */
+public class RecordWritable implements Writable, Configurable {
     private Record record;
+    private Repository repository;
+    private Configuration conf;
 
     protected RecordWritable() {
     }
 
     @Override
     public void write(DataOutput dataOutput) throws IOException {
-        throw new UnsupportedOperationException("Not implemented");
+        DataOutputImpl output = new DataOutputImpl();
+        try {
+            RecordAsBytesConverter.writeCompact(record, output, getRepository());
+        } catch (Exception e) {
+            ExceptionUtil.handleInterrupt(e);
+            throw new IOException("Error serializing record " + record.getId(), e);
+        }
+        byte[] bytes = output.toByteArray();
+        WritableUtils.writeVInt(dataOutput, bytes.length);
+        dataOutput.write(bytes);
     }
 
     @Override
     public void readFields(DataInput dataInput) throws IOException {
-        throw new UnsupportedOperationException("Not implemented");
+        int length = WritableUtils.readVInt(dataInput);
+        byte[] bytes = new byte[length];
+        dataInput.readFully(bytes, 0, length);
+        try {
+            record = RecordAsBytesConverter.read(new DataInputImpl(bytes), getRepository());
+        } catch (Exception e) {
+            ExceptionUtil.handleInterrupt(e);
+            throw new IOException("Error deserializing record", e);
+        }
     }
 
     public Record getRecord() {
@@ -45,4 +80,36 @@ public class RecordWritable implements Writable {
     public void setRecord(Record record) {
         this.record = record;
     }
+
+    /**
+     * Sets the repository to use for (de)serialization, instead of the one obtained based on the configuration.
+     */
+    public void setRepository(Repository repository) {
+        this.repository = repository;
+    }
+
+    private Repository getRepository() throws IOException {
+        if (repository == null) {
+            if (conf == null) {
+                throw new IOException("RecordWritable needs a repository or configuration for (de)serialization.");
+            }
+            try {
+                repository = LilyMapReduceUtil.getSharedLilyClient(conf).getRepository();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while setting up LilyClient", e);
+            }
+        }
+        return repository;
+    }
+
+    @Override
+    public void setConf(Configuration conf) {
+        this.conf = conf;
+    }
+
+    @Override
+    public Configuration getConf() {
+        return conf;
+    }
 }
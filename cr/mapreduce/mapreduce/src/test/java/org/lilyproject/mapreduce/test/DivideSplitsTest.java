@@ -0,0 +1,237 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.mapreduce.test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.ClusterStatus;
+import org.apache.hadoop.hbase.HColumnDescriptor;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.HServerInfo;
+import org.apache.hadoop.hbase.HServerLoad;
+import org.apache.hadoop.hbase.HTableDescriptor;
+import org.apache.hadoop.hbase.client.HBaseAdmin;
+import org.apache.hadoop.hbase.client.HConnectionManager;
+import org.apache.hadoop.hbase.client.HTable;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.apache.hadoop.hbase.client.Scan;
+import org.apache.hadoop.hbase.mapreduce.TableSplit;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.lilyproject.hadooptestfw.HBaseProxy;
+import org.lilyproject.hadooptestfw.TestHelper;
+import org.lilyproject.mapreduce.AbstractLilyScanInputFormat;
+import org.lilyproject.mapreduce.LilyScanInputFormat;
+import org.lilyproject.util.io.Closer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class DivideSplitsTest {
+    private static final byte[] FAMILY = Bytes.toBytes("data");
+    private static final byte[] QUALIFIER = Bytes.toBytes("field");
+    // Together with the key, makes records of about 1 kB, so that a region of 1 MB holds about 1000 of them
+    private static final int VALUE_SIZE = 1000;
+    private static final int RECORDS_PER_REGION = 1000;
+
+    private static HBaseProxy HBASE_PROXY;
+    private static HTable table;
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        TestHelper.setupLogging();
+        HBASE_PROXY = new HBaseProxy();
+        HBASE_PROXY.start();
+
+        // One region with user-specified record ids, one with UUID record ids
+        HTableDescriptor tableDescriptor = new HTableDescriptor("dividesplits");
+        tableDescriptor.addFamily(new HColumnDescriptor(FAMILY));
+        HBaseAdmin admin = new HBaseAdmin(HBASE_PROXY.getConf());
+        try {
+            admin.createTable(tableDescriptor, new byte[][] {{1}});
+        } finally {
+            HConnectionManager.deleteConnection(admin.getConfiguration(), true);
+        }
+
+        table = new HTable(HBASE_PROXY.getConf(), "dividesplits");
+        table.setAutoFlush(false);
+        Random random = new Random(0);
+        byte[] value = new byte[VALUE_SIZE];
+        for (int i = 0; i < RECORDS_PER_REGION; i++) {
+            Put put = new Put(Bytes.add(new byte[] {0}, Bytes.toBytes(String.format("record%04d", i))));
+            put.add(FAMILY, QUALIFIER, value);
+            table.put(put);
+
+            byte[] uuid = new byte[16];
+            random.nextBytes(uuid);
+            put = new Put(Bytes.add(new byte[] {1}, uuid));
+            put.add(FAMILY, QUALIFIER, value);
+            table.put(put);
+        }
+        table.flushCommits();
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        Closer.close(table);
+        if (HBASE_PROXY != null) {
+            HBASE_PROXY.stop();
+        }
+    }
+
+    @Test
+    public void testSampledSplits() throws Exception {
+        List<InputSplit> splits = divideSplits(new byte[0], new byte[] {1}, 0);
+
+        // The user-specified record ids are divided by halving their key range, which gives roughly even
+        // splits for these evenly spread keys
+        assertEquals(4, splits.size());
+        assertContiguous(splits, new byte[0], new byte[] {1});
+        int total = 0;
+        for (InputSplit split : splits) {
+            int count = countRows((TableSplit)split);
+            assertTrue("records in split: " + count, count >= 100 && count <= 400);
+            total += count;
+        }
+        assertEquals(RECORDS_PER_REGION, total);
+    }
+
+    @Test
+    public void testSampledSplitsReadLimit() throws Exception {
+        // With few reads, the key range can not be narrowed down to the rows, so the region is divided less,
+        // but the splits still cover it
+        for (int maxReads = 1; maxReads <= 8; maxReads++) {
+            List<InputSplit> splits = divideSplits(new byte[0], new byte[] {1}, maxReads);
+            assertTrue(splits.size() <= maxReads + 1);
+            assertContiguous(splits, new byte[0], new byte[] {1});
+        }
+    }
+
+    @Test
+    public void testUniformSplits() throws Exception {
+        List<InputSplit> splits = divideSplits(new byte[] {1}, new byte[0], 0);
+
+        // The UUID record ids are divided uniformly over the UUID key space
+        assertEquals(4, splits.size());
+        assertContiguous(splits, new byte[] {1}, new byte[0]);
+        for (int i = 1; i < splits.size(); i++) {
+            byte[] splitStart = ((TableSplit)splits.get(i)).getStartRow();
+            assertEquals(1, splitStart[0]);
+            assertEquals((byte)(i * 0x40), splitStart[1]);
+        }
+        for (InputSplit split : splits) {
+            int count = countRows((TableSplit)split);
+            assertTrue("records in split: " + count, count >= 150 && count <= 350);
+        }
+    }
+
+    @Test
+    public void testSmallRegionNotDivided() throws Exception {
+        Configuration conf = new Configuration();
+        conf.setLong(AbstractLilyScanInputFormat.SPLIT_BYTES, 2 * 1024 * 1024);
+        TestInputFormat inputFormat = new TestInputFormat();
+        inputFormat.setConf(conf);
+
+        List<InputSplit> splits = inputFormat.getSplits(table, new byte[0], new byte[0]);
+        assertEquals(2, splits.size());
+        assertEquals(2, inputFormat.divideSplits(table, getClusterStatus(1), splits).size());
+    }
+
+    /**
+     * Divides the split of the region with the given start and stop key into splits of 256 kB, with each region
+     * reported to be 1 MB large.
+     *
+     * @param maxReads the maximum number of row keys read to divide the region, 0 for the default
+     */
+    private List<InputSplit> divideSplits(byte[] start, byte[] stop, int maxReads) throws Exception {
+        Configuration conf = new Configuration();
+        conf.setLong(AbstractLilyScanInputFormat.SPLIT_BYTES, 256 * 1024);
+        if (maxReads > 0) {
+            conf.setInt(AbstractLilyScanInputFormat.SPLIT_MAX_READS, maxReads);
+        }
+        TestInputFormat inputFormat = new TestInputFormat();
+        inputFormat.setConf(conf);
+
+        List<InputSplit> splits = inputFormat.getSplits(table, start, stop);
+        assertEquals(1, splits.size());
+        return inputFormat.divideSplits(table, getClusterStatus(1), splits);
+    }
+
+    private ClusterStatus getClusterStatus(int regionSizeMB) throws Exception {
+        List<HServerLoad.RegionLoad> regionLoads = new ArrayList<HServerLoad.RegionLoad>();
+        for (HRegionInfo regionInfo : table.getRegionsInfo().keySet()) {
+            HServerLoad.RegionLoad regionLoad = mock(HServerLoad.RegionLoad.class);
+            when(regionLoad.getName()).thenReturn(regionInfo.getRegionName());
+            when(regionLoad.getStorefileSizeMB()).thenReturn(regionSizeMB);
+            when(regionLoad.getMemStoreSizeMB()).thenReturn(0);
+            regionLoads.add(regionLoad);
+        }
+
+        HServerLoad serverLoad = mock(HServerLoad.class);
+        when(serverLoad.getRegionsLoad()).thenReturn(regionLoads);
+        HServerInfo serverInfo = mock(HServerInfo.class);
+        when(serverInfo.getLoad()).thenReturn(serverLoad);
+        ClusterStatus clusterStatus = mock(ClusterStatus.class);
+        when(clusterStatus.getServerInfo()).thenReturn(Collections.singletonList(serverInfo));
+        return clusterStatus;
+    }
+
+    private void assertContiguous(List<InputSplit> splits, byte[] start, byte[] stop) {
+        byte[] expectedStart = start;
+        for (InputSplit inputSplit : splits) {
+            TableSplit split = (TableSplit)inputSplit;
+            assertArrayEquals(expectedStart, split.getStartRow());
+            expectedStart = split.getEndRow();
+        }
+        assertArrayEquals(stop, expectedStart);
+    }
+
+    private int countRows(TableSplit split) throws Exception {
+        ResultScanner scanner = table.getScanner(new Scan(split.getStartRow(), split.getEndRow()));
+        try {
+            int count = 0;
+            while (scanner.next() != null) {
+                count++;
+            }
+            return count;
+        } finally {
+            scanner.close();
+        }
+    }
+
+    /**
+     * Makes {@link AbstractLilyScanInputFormat#divideSplits} accessible to the test.
+     */
+    private static class TestInputFormat extends LilyScanInputFormat {
+        @Override
+        public List<InputSplit> divideSplits(HTable table, ClusterStatus clusterStatus, List<InputSplit> splits)
+                throws IOException, InterruptedException {
+            return super.divideSplits(table, clusterStatus, splits);
+        }
+    }
+}
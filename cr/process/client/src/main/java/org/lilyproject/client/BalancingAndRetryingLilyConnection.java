@@ -19,6 +19,12 @@ import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -28,6 +34,8 @@ import org.lilyproject.repository.api.IOBlobException;
 import org.lilyproject.repository.api.IORecordException;
 import org.lilyproject.repository.api.IOTypeException;
 import org.lilyproject.repository.api.IdGenerator;
+import org.lilyproject.repository.api.Record;
+import org.lilyproject.repository.api.RecordId;
 import org.lilyproject.repository.api.RecordLockedException;
 import org.lilyproject.repository.api.Repository;
 import org.lilyproject.repository.api.RetriesExhaustedBlobException;
@@ -40,6 +48,10 @@ import org.lilyproject.repository.impl.id.IdGeneratorImpl;
  * Creates a proxy around Repository, Indexer and TypeManager that automatically balances requests
  * over different Lily nodes, and can optionally retry operations when they fail due to
  * IO related exceptions or when no Lily servers are available.
+ *
+ * <p>When region-aware routing is enabled on the {@link LilyClient}, record mutations are sent to the Lily
+ * server on the host of the region server of the record. The way other requests are balanced, and whether
+ * reads are hedged, is configured through {@link BalancingConf}.
  */
 public class BalancingAndRetryingLilyConnection {
 
@@ -80,12 +92,14 @@ public class BalancingAndRetryingLilyConnection {
         return new BalancingAndRetryingLilyConnection(repository, typeManager, indexer);
     }
 
-    private static final class TypeManagerInvocationHandler extends RetryBase implements InvocationHandler {
-        private final LilyClient lilyClient;
-
+    private static final class TypeManagerInvocationHandler extends BalancingBase implements InvocationHandler {
         public TypeManagerInvocationHandler(LilyClient lilyClient) {
-            super(lilyClient.getRetryConf());
-            this.lilyClient = lilyClient;
+            super(lilyClient);
+        }
+
+        @Override
+        protected Object getTarget(LilyClient.ServerNode server) throws Exception {
+            return lilyClient.getPlainRepository(server).getTypeManager();
         }
 
         @Override
@@ -95,8 +109,9 @@ public class BalancingAndRetryingLilyConnection {
 
             while (true) {
                 try {
-                    TypeManager typeManager = lilyClient.getPlainRepository().getTypeManager();
-                    return method.invoke(typeManager, args);
+                    // Most type reads are served from the local schema cache, only hedge those that are not
+                    boolean read = method.getName().endsWith("WithoutCache");
+                    return invokeBalanced(method, args, null, read);
                 } catch (NoServersException e) {
                     // Needs to be wrapped because NoServersException is not in the throws clause of the
                     // Repository & TypeManager methods
@@ -111,17 +126,20 @@ public class BalancingAndRetryingLilyConnection {
         }
     }
 
-    private static final class RepositoryInvocationHandler extends RetryBase implements InvocationHandler {
-        private final LilyClient lilyClient;
+    private static final class RepositoryInvocationHandler extends BalancingBase implements InvocationHandler {
         private final TypeManager typeManager;
         private final IdGenerator idGenerator = new IdGeneratorImpl();
 
         private RepositoryInvocationHandler(LilyClient lilyClient, TypeManager typeManager) {
-            super(lilyClient.getRetryConf());
-            this.lilyClient = lilyClient;
+            super(lilyClient);
             this.typeManager = typeManager;
         }
 
+        @Override
+        protected Object getTarget(LilyClient.ServerNode server) throws Exception {
+            return lilyClient.getPlainRepository(server);
+        }
+
         @Override
         public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
             if (method.getName().equals("getTypeManager")) {
@@ -136,10 +154,12 @@ public class BalancingAndRetryingLilyConnection {
             long startedAt = System.currentTimeMillis();
             int attempt = 0;
 
+            RecordId routingId = getRoutingRecordId(method, args);
+            boolean read = method.getName().startsWith("read") || method.getName().equals("getVariants");
+
             while (true) {
                 try {
-                    Repository repository = lilyClient.getPlainRepository();
-                    return method.invoke(repository, args);
+                    return invokeBalanced(method, args, routingId, read);
                 } catch (NoServersException e) {
                     // Needs to be wrapped because NoServersException is not in the throws clause of the
                     // Repository & TypeManager methods
@@ -162,6 +182,29 @@ public class BalancingAndRetryingLilyConnection {
             }
         }
 
+        /**
+         * Returns the ID of the record modified by the method, if it is a record mutation, for
+         * region-aware routing. Returns null for other methods.
+         */
+        private RecordId getRoutingRecordId(Method method, Object[] args) {
+            if (!lilyClient.getRegionAwareRouting() || args == null || args.length == 0) {
+                return null;
+            }
+
+            String methodName = method.getName();
+            if (!methodName.equals("create") && !methodName.equals("update") && !methodName.equals("createOrUpdate")
+                    && !methodName.equals("delete")) {
+                return null;
+            }
+
+            if (args[0] instanceof RecordId) {
+                return (RecordId)args[0];
+            } else if (args[0] instanceof Record) {
+                return ((Record)args[0]).getId();
+            }
+            return null;
+        }
+
         private boolean isBlobMethod(Method method) {
             if (method.getName().equals("delete")) {
                 Class[] params = method.getParameterTypes();
@@ -171,12 +214,14 @@ public class BalancingAndRetryingLilyConnection {
         }
     }
 
-    private static final class IndexerInvocationHandler extends RetryBase implements InvocationHandler {
-        private final LilyClient lilyClient;
-
+    private static final class IndexerInvocationHandler extends BalancingBase implements InvocationHandler {
         private IndexerInvocationHandler(LilyClient lilyClient) {
-            super(lilyClient.getRetryConf());
-            this.lilyClient = lilyClient;
+            super(lilyClient);
+        }
+
+        @Override
+        protected Object getTarget(LilyClient.ServerNode server) throws Exception {
+            return lilyClient.getPlainIndexer(server);
         }
 
         @Override
@@ -186,8 +231,7 @@ public class BalancingAndRetryingLilyConnection {
 
             while (true) {
                 try {
-                    Indexer indexer = lilyClient.getPlainIndexer();
-                    return method.invoke(indexer, args);
+                    return invokeBalanced(method, args, null, false);
                 } catch (NoServersException e) {
                     // Needs to be wrapped because NoServersException is not in the throws clause of the
                     // Repository & TypeManager methods
@@ -205,6 +249,114 @@ public class BalancingAndRetryingLilyConnection {
 
     private enum OperationType {RECORD, TYPE, BLOB}
 
+    /**
+     * Selects the server for each call, and keeps track of the response times of the servers. Reads
+     * can optionally be hedged: when the response takes longer than usual, the same request is sent
+     * to a second server, and the first response to arrive is used.
+     */
+    private abstract static class BalancingBase extends RetryBase {
+        protected final LilyClient lilyClient;
+
+        protected BalancingBase(LilyClient lilyClient) {
+            super(lilyClient.getRetryConf());
+            this.lilyClient = lilyClient;
+        }
+
+        /**
+         * Returns the object on which to invoke the method for the given server.
+         */
+        protected abstract Object getTarget(LilyClient.ServerNode server) throws Exception;
+
+        /**
+         * @param routingId optional, the record on which the method operates, for region-aware routing
+         * @param read true if the method can safely be executed more than once, making it eligible for hedging
+         */
+        protected Object invokeBalanced(Method method, Object[] args, RecordId routingId, boolean read)
+                throws Throwable {
+            LilyClient.ServerNode server = lilyClient.selectServer(routingId);
+            if (read && lilyClient.getBalancingConf().getHedgedReads()) {
+                return invokeHedged(server, method, args);
+            }
+            return invokeOnServer(server, method, args, read);
+        }
+
+        private Object invokeOnServer(LilyClient.ServerNode server, Method method, Object[] args, boolean read)
+                throws Exception {
+            Object target = getTarget(server);
+            server.requestStarted();
+            long before = System.nanoTime();
+            try {
+                return method.invoke(target, args);
+            } finally {
+                long duration = System.nanoTime() - before;
+                server.requestDone(duration);
+                if (read) {
+                    lilyClient.recordReadLatency(duration);
+                }
+            }
+        }
+
+        private Object invokeHedged(LilyClient.ServerNode server, Method method, Object[] args) throws Throwable {
+            CompletionService<Object> completionService =
+                    new ExecutorCompletionService<Object>(lilyClient.getHedgeExecutor());
+            Future<Object> primary = completionService.submit(new ServerCall(server, method, args));
+            Future<Object> hedge = null;
+
+            try {
+                Future<Object> done = completionService.poll(lilyClient.getHedgeDelay(), TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    LilyClient.ServerNode hedgeServer = lilyClient.selectHedgeServer(server);
+                    if (hedgeServer != null) {
+                        hedge = completionService.submit(new ServerCall(hedgeServer, method, args));
+                        lilyClient.getMetrics().hedgedRequests.inc();
+                    }
+                    done = completionService.take();
+                }
+
+                int pending = hedge != null ? 1 : 0;
+                while (true) {
+                    try {
+                        Object result = done.get();
+                        if (done == hedge) {
+                            lilyClient.getMetrics().hedgedRequestsWon.inc();
+                        }
+                        return result;
+                    } catch (ExecutionException e) {
+                        if (pending == 0) {
+                            throw e.getCause();
+                        }
+                        // The other request might still succeed
+                        pending--;
+                        done = completionService.take();
+                    }
+                }
+            } catch (InterruptedException e) {
+                primary.cancel(true);
+                if (hedge != null) {
+                    hedge.cancel(true);
+                }
+                throw e;
+            }
+        }
+
+        private class ServerCall implements Callable<Object> {
+            private final LilyClient.ServerNode server;
+            private final Method method;
+            private final Object[] args;
+
+            public ServerCall(LilyClient.ServerNode server, Method method, Object[] args) {
+                this.server = server;
+                this.method = method;
+                this.args = args;
+            }
+
+            @Override
+            public Object call() throws Exception {
+                return invokeOnServer(server, method, args, true);
+            }
+        }
+    }
+
     private static class RetryBase {
         private Log log = LogFactory.getLog(getClass());
         private RetryConf retryConf;
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.client;
+
+/**
+ * This is a configuration object for {@link LilyClient} for the way requests are balanced over the
+ * available Lily servers.
+ */
+public class BalancingConf {
+    private boolean latencyAware = false;
+    private double latencyDecay = 0.2;
+    private boolean hedgedReads = false;
+    private double hedgePercentile = 0.95;
+    private int minHedgeDelay = 5;
+
+    public boolean getLatencyAware() {
+        return latencyAware;
+    }
+
+    /**
+     * When enabled, the client keeps track of the response times and outstanding requests of each server,
+     * and picks the best of two randomly chosen servers for each request ("power of two choices"). Otherwise,
+     * the server is chosen randomly.
+     */
+    public void setLatencyAware(boolean latencyAware) {
+        this.latencyAware = latencyAware;
+    }
+
+    public double getLatencyDecay() {
+        return latencyDecay;
+    }
+
+    /**
+     * The weight of the most recent response time in the exponentially weighted moving average of the
+     * response times of a server. Should be between 0 and 1, higher values make the client react faster
+     * to changes in server response time.
+     */
+    public void setLatencyDecay(double latencyDecay) {
+        if (latencyDecay <= 0 || latencyDecay > 1)
+            throw new IllegalArgumentException("latencyDecay should be in the range (0, 1], got: " + latencyDecay);
+        this.latencyDecay = latencyDecay;
+    }
+
+    public boolean getHedgedReads() {
+        return hedgedReads;
+    }
+
+    /**
+     * When enabled, read operations which did not yet finish after {@link #getHedgePercentile() a high percentile}
+     * of the recent response times are sent to a second server too, the first response to arrive is used. This
+     * only applies to operations which are safe to execute twice: record reads, getVariants and type reads.
+     */
+    public void setHedgedReads(boolean hedgedReads) {
+        this.hedgedReads = hedgedReads;
+    }
+
+    public double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    /**
+     * The percentile of the recent read response times after which a hedged request is sent, e.g. 0.95.
+     */
+    public void setHedgePercentile(double hedgePercentile) {
+        if (hedgePercentile <= 0 || hedgePercentile >= 1)
+            throw new IllegalArgumentException("hedgePercentile should be in the range (0, 1), got: "
+                    + hedgePercentile);
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    public int getMinHedgeDelay() {
+        return minHedgeDelay;
+    }
+
+    /**
+     * The minimum time, in ms, to wait before sending a hedged request, this avoids doubling the load when
+     * the response times are very low.
+     */
+    public void setMinHedgeDelay(int minHedgeDelay) {
+        this.minHedgeDelay = minHedgeDelay;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.client;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent response times in a ring buffer, to compute percentiles on them.
+ *
+ * <p>Sorting the samples is done at most once every {@link #RECOMPUTE_INTERVAL} samples, in between the
+ * previously computed percentile is returned.
+ */
+class LatencyTracker {
+    private static final int RECOMPUTE_INTERVAL = 64;
+
+    private final long[] samples;
+    private int count;
+    private int position;
+    private int addedSinceCompute;
+    private long[] sorted;
+
+    LatencyTracker(int size) {
+        samples = new long[size];
+    }
+
+    synchronized void add(long nanos) {
+        samples[position] = nanos;
+        position = (position + 1) % samples.length;
+        if (count < samples.length) {
+            count++;
+        }
+        addedSinceCompute++;
+    }
+
+    /**
+     * Returns the given percentile of the recent samples, in ns, or 0 if there are no samples yet.
+     */
+    synchronized long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+
+        if (sorted == null || addedSinceCompute >= RECOMPUTE_INTERVAL) {
+            sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            addedSinceCompute = 0;
+        }
+
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
@@ -17,8 +17,10 @@ package org.lilyproject.client;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.URI;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -27,6 +29,10 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -34,6 +40,9 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hbase.HBaseConfiguration;
+import org.apache.hadoop.hbase.HRegionLocation;
+import org.apache.hadoop.hbase.client.HConnectionManager;
+import org.apache.hadoop.metrics.util.MetricsTimeVaryingRate;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
@@ -45,6 +54,7 @@ import org.lilyproject.indexer.Indexer;
 import org.lilyproject.indexer.RemoteIndexer;
 import org.lilyproject.repository.api.BlobManager;
 import org.lilyproject.repository.api.BlobStoreAccess;
+import org.lilyproject.repository.api.RecordId;
 import org.lilyproject.repository.api.Repository;
 import org.lilyproject.repository.api.RepositoryException;
 import org.lilyproject.repository.impl.BlobManagerImpl;
@@ -56,8 +66,10 @@ import org.lilyproject.repository.impl.SizeBasedBlobStoreAccessFactory;
 import org.lilyproject.repository.impl.id.IdGeneratorImpl;
 import org.lilyproject.repository.remote.RemoteRepository;
 import org.lilyproject.repository.remote.RemoteTypeManager;
+import org.lilyproject.util.concurrent.CustomThreadFactory;
 import org.lilyproject.util.hbase.HBaseTableFactory;
 import org.lilyproject.util.hbase.HBaseTableFactoryImpl;
+import org.lilyproject.util.hbase.LilyHBaseSchema;
 import org.lilyproject.util.hbase.LocalHTable;
 import org.lilyproject.util.io.Closer;
 import org.lilyproject.util.json.JsonFormat;
@@ -77,6 +89,7 @@ public class LilyClient implements Closeable {
     private List<ServerNode> servers = Collections.synchronizedList(new ArrayList<ServerNode>());
     private Set<String> serverAddresses = new HashSet<String>();
     private RetryConf retryConf = new RetryConf();
+    private BalancingConf balancingConf = new BalancingConf();
     private static final String nodesPath = "/lily/repositoryNodes";
     private static final String hbaseConfigPath = "/lily/hbaseConfig";
     private static final String blobDfsUriPath = "/lily/blobStoresConfig/dfsUri";
@@ -93,6 +106,13 @@ public class LilyClient implements Closeable {
 
     private boolean isClosed = true;
 
+    private volatile boolean regionAwareRouting = false;
+    private Configuration routingHBaseConf;
+    private final Map<String, String> hostAddresses = new ConcurrentHashMap<String, String>();
+    private final LilyClientMetrics metrics = new LilyClientMetrics("lilyClient");
+    private final LatencyTracker readLatencies = new LatencyTracker(1024);
+    private ExecutorService hedgeExecutor;
+
     public LilyClient(ZooKeeperItf zk) throws IOException, InterruptedException, KeeperException, ZkConnectException,
             NoServersException, RepositoryException {
         this.zk = zk;
@@ -137,6 +157,15 @@ public class LilyClient implements Closeable {
             LocalHTable.closePool(config);
         }
 
+        synchronized (this) {
+            if (hedgeExecutor != null) {
+                hedgeExecutor.shutdownNow();
+                hedgeExecutor = null;
+            }
+        }
+
+        metrics.shutdown();
+
         // Close HBase connections created by [only] this LilyClient instance.
         // This will almost always contain only one connection, if not we would need a more
         // advanced connection mgmt so that these connections don't stay open for the lifetime
@@ -161,17 +190,9 @@ public class LilyClient implements Closeable {
      * over multiple Lily servers, you need to recall this method regularly to retrieve other
      * repository instances. Most of the time, you will rather use {@link #getRepository()}.
      */
-    public synchronized Repository getPlainRepository() throws IOException, NoServersException, InterruptedException,
+    public Repository getPlainRepository() throws IOException, NoServersException, InterruptedException,
             KeeperException, RepositoryException {
-        if (servers.size() == 0) {
-            throw new NoServersException("No servers available");
-        }
-        int pos = (int) Math.floor(Math.random() * servers.size());
-        ServerNode server = servers.get(pos);
-        if (server.repository == null) {
-            constructRepository(server);
-        }
-        return server.repository;
+        return getPlainRepository(selectServer(null));
     }
 
     /**
@@ -191,17 +212,9 @@ public class LilyClient implements Closeable {
      * over multiple Lily servers, you need to recall this method regularly to retrieve other
      * indexer instances. Most of the time, you will rather use {@link #getIndexer()}.
      */
-    public synchronized Indexer getPlainIndexer() throws IOException, NoServersException, InterruptedException,
+    public Indexer getPlainIndexer() throws IOException, NoServersException, InterruptedException,
             KeeperException, RepositoryException {
-        if (servers.size() == 0) {
-            throw new NoServersException("No servers available");
-        }
-        int pos = (int) Math.floor(Math.random() * servers.size());
-        ServerNode server = servers.get(pos);
-        if (server.indexer == null) {
-            constructIndexer(server);
-        }
-        return server.indexer;
+        return getPlainIndexer(selectServer(null));
     }
 
     /**
@@ -215,6 +228,188 @@ public class LilyClient implements Closeable {
         return balancingAndRetryingLilyConnection.getIndexer();
     }
 
+    /**
+     * Enables region-aware routing for the repository returned by {@link #getRepository()}: record mutations are
+     * sent to the Lily server running on the same host as the HBase region server which hosts the record, which
+     * avoids that the record row operations cross the network. When there is no such Lily server, the request is
+     * sent to the least loaded of two random Lily servers.
+     *
+     * <p>This is only useful if the Lily servers run on the same hosts as the region servers. Disabled by default.
+     */
+    public void setRegionAwareRouting(boolean regionAwareRouting) {
+        this.regionAwareRouting = regionAwareRouting;
+    }
+
+    public boolean getRegionAwareRouting() {
+        return regionAwareRouting;
+    }
+
+    /**
+     * Selects the server to send a request to, for use by {@link BalancingAndRetryingLilyConnection}.
+     *
+     * @param recordId optional, the record on which the request operates, used for region-aware routing
+     */
+    ServerNode selectServer(RecordId recordId) throws NoServersException {
+        ServerNode[] currentServers = servers.toArray(new ServerNode[0]);
+        if (currentServers.length == 0) {
+            throw new NoServersException("No servers available");
+        }
+
+        if (regionAwareRouting && recordId != null) {
+            String regionHost = getRegionServerHost(recordId);
+            if (regionHost != null) {
+                for (ServerNode server : currentServers) {
+                    if (isSameHost(server.host, regionHost)) {
+                        metrics.routedToRegionHost.inc();
+                        return server;
+                    }
+                }
+                metrics.routedNoLocalServer.inc();
+            } else {
+                metrics.routingLookupFailures.inc();
+            }
+            return selectLeastLoaded(currentServers, null);
+        }
+
+        if (balancingConf.getLatencyAware()) {
+            return selectLeastLoaded(currentServers, null);
+        }
+
+        return currentServers[(int) Math.floor(Math.random() * currentServers.length)];
+    }
+
+    /**
+     * Selects a server for a hedged request, different from the given server.
+     *
+     * @return null if there is no other server
+     */
+    ServerNode selectHedgeServer(ServerNode exclude) {
+        ServerNode[] currentServers = servers.toArray(new ServerNode[0]);
+        if (currentServers.length < 2) {
+            return null;
+        }
+        return selectLeastLoaded(currentServers, exclude);
+    }
+
+    /**
+     * Picks the least loaded of two randomly chosen servers ("power of two choices"), this avoids that all
+     * clients jump on the same server, as would happen when always choosing the least loaded one.
+     */
+    private ServerNode selectLeastLoaded(ServerNode[] currentServers, ServerNode exclude) {
+        int count = currentServers.length;
+        int first = (int) Math.floor(Math.random() * count);
+        if (currentServers[first] == exclude) {
+            first = (first + 1) % count;
+        }
+        if (count == 1 || (count == 2 && exclude != null)) {
+            return currentServers[first];
+        }
+
+        int second = (int) Math.floor(Math.random() * (count - 1));
+        if (second >= first) {
+            second++;
+        }
+        if (currentServers[second] == exclude) {
+            second = (second + 1) % count;
+            if (second == first) {
+                second = (second + 1) % count;
+            }
+        }
+
+        return currentServers[first].getLoad() <= currentServers[second].getLoad() ?
+                currentServers[first] : currentServers[second];
+    }
+
+    synchronized Repository getPlainRepository(ServerNode server) throws IOException, InterruptedException,
+            KeeperException, RepositoryException {
+        if (server.repository == null) {
+            constructRepository(server);
+        }
+        return server.repository;
+    }
+
+    synchronized Indexer getPlainIndexer(ServerNode server) throws IOException, InterruptedException,
+            KeeperException, RepositoryException {
+        if (server.indexer == null) {
+            constructIndexer(server);
+        }
+        return server.indexer;
+    }
+
+    /**
+     * Returns the time, in ms, after which a hedged request should be sent for a read, based on the
+     * recent read response times.
+     */
+    long getHedgeDelay() {
+        long percentile = readLatencies.getPercentile(balancingConf.getHedgePercentile()) / 1000000L;
+        return Math.max(balancingConf.getMinHedgeDelay(), percentile);
+    }
+
+    void recordReadLatency(long nanos) {
+        readLatencies.add(nanos);
+    }
+
+    synchronized ExecutorService getHedgeExecutor() {
+        if (hedgeExecutor == null) {
+            hedgeExecutor = Executors.newCachedThreadPool(new CustomThreadFactory("lily-client-hedging", null, true));
+        }
+        return hedgeExecutor;
+    }
+
+    LilyClientMetrics getMetrics() {
+        return metrics;
+    }
+
+    private String getRegionServerHost(RecordId recordId) {
+        try {
+            Configuration hbaseConf;
+            synchronized (this) {
+                if (routingHBaseConf == null) {
+                    routingHBaseConf = hbaseConnections.getExisting(getHBaseConfiguration(zk));
+                }
+                hbaseConf = routingHBaseConf;
+            }
+            // Region locations are cached by the HConnection
+            HRegionLocation location = HConnectionManager.getConnection(hbaseConf)
+                    .getRegionLocation(LilyHBaseSchema.Table.RECORD.bytes, recordId.toBytes(), false);
+            return location != null ? location.getServerAddress().getHostname() : null;
+        } catch (Exception e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Error determining region location of record " + recordId, e);
+            }
+            return null;
+        }
+    }
+
+    private boolean isSameHost(String host1, String host2) {
+        if (host1.equalsIgnoreCase(host2)) {
+            return true;
+        }
+        String address1 = getHostAddress(host1);
+        return address1 != null && address1.equals(getHostAddress(host2));
+    }
+
+    private String getHostAddress(String host) {
+        String address = hostAddresses.get(host);
+        if (address == null) {
+            try {
+                address = InetAddress.getByName(host).getHostAddress();
+            } catch (UnknownHostException e) {
+                address = "";
+            }
+            hostAddresses.put(host, address);
+        }
+        return address.length() > 0 ? address : null;
+    }
+
+    public BalancingConf getBalancingConf() {
+        return balancingConf;
+    }
+
+    public void setBalancingConf(BalancingConf balancingConf) {
+        this.balancingConf = balancingConf;
+    }
+
     public RetryConf getRetryConf() {
         return retryConf;
     }
@@ -323,13 +518,42 @@ public class LilyClient implements Closeable {
         return new InetSocketAddress(address, port);
     }
 
-    private class ServerNode {
+    class ServerNode {
         private String lilyAddressAndPort;
+        private String host;
         private Repository repository;
         private Indexer indexer;
+        private final AtomicInteger outstandingRequests = new AtomicInteger();
+        /** Exponentially weighted moving average of the response times, in ns. */
+        private volatile double latencyAverage;
+        private final MetricsTimeVaryingRate latencyMetric;
 
         public ServerNode(String lilyAddressAndPort) {
             this.lilyAddressAndPort = lilyAddressAndPort;
+            int colonPos = lilyAddressAndPort.indexOf(":");
+            this.host = colonPos == -1 ? lilyAddressAndPort : lilyAddressAndPort.substring(0, colonPos);
+            this.latencyMetric = metrics.getServerLatencyMetric(lilyAddressAndPort);
+        }
+
+        void requestStarted() {
+            outstandingRequests.incrementAndGet();
+        }
+
+        void requestDone(long nanos) {
+            outstandingRequests.decrementAndGet();
+            synchronized (this) {
+                double decay = balancingConf.getLatencyDecay();
+                latencyAverage = latencyAverage == 0 ? nanos : decay * nanos + (1 - decay) * latencyAverage;
+            }
+            latencyMetric.inc(nanos / 1000000L);
+        }
+
+        /**
+         * An estimate of the time a new request would take on this server: the average response time
+         * multiplied by the number of requests it would have to handle.
+         */
+        double getLoad() {
+            return Math.max(latencyAverage, 1d) * (outstandingRequests.get() + 1);
         }
     }
 
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.client;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+import org.apache.hadoop.metrics.MetricsContext;
+import org.apache.hadoop.metrics.MetricsRecord;
+import org.apache.hadoop.metrics.MetricsUtil;
+import org.apache.hadoop.metrics.Updater;
+import org.apache.hadoop.metrics.util.MetricsBase;
+import org.apache.hadoop.metrics.util.MetricsRegistry;
+import org.apache.hadoop.metrics.util.MetricsTimeVaryingLong;
+import org.apache.hadoop.metrics.util.MetricsTimeVaryingRate;
+import org.lilyproject.util.hbase.metrics.MBeanUtil;
+import org.lilyproject.util.hbase.metrics.MetricsDynamicMBeanBase;
+
+public class LilyClientMetrics implements Updater {
+    private final String recordName;
+    private final MetricsRegistry registry = new MetricsRegistry();
+    private final MetricsRecord metricsRecord;
+    private final LilyClientMetricsMBean mbean;
+    private final MetricsContext context;
+
+    /**
+     * Number of requests sent to the Lily server running on the host of the region server of the record.
+     */
+    public MetricsTimeVaryingLong routedToRegionHost = new MetricsTimeVaryingLong("routed_region_host", registry);
+
+    /**
+     * Number of requests for which there was no Lily server on the host of the region server of the record.
+     */
+    public MetricsTimeVaryingLong routedNoLocalServer = new MetricsTimeVaryingLong("routed_no_local_server", registry);
+
+    /**
+     * Number of requests for which the region location of the record could not be determined.
+     */
+    public MetricsTimeVaryingLong routingLookupFailures =
+            new MetricsTimeVaryingLong("routing_lookup_failures", registry);
+
+    /**
+     * Number of read requests which were sent to a second server because the first one was too slow.
+     */
+    public MetricsTimeVaryingLong hedgedRequests = new MetricsTimeVaryingLong("hedged_requests", registry);
+
+    /**
+     * Number of hedged requests for which the response of the second server was used.
+     */
+    public MetricsTimeVaryingLong hedgedRequestsWon = new MetricsTimeVaryingLong("hedged_requests_won", registry);
+
+    private final Map<String, MetricsTimeVaryingRate> serverLatencies = new HashMap<String, MetricsTimeVaryingRate>();
+
+    public LilyClientMetrics(String recordName) {
+        this.recordName = recordName;
+        context = MetricsUtil.getContext("lilyClient");
+        metricsRecord = MetricsUtil.createRecord(context, recordName);
+        context.registerUpdater(this);
+        mbean = new LilyClientMetricsMBean(this.registry);
+    }
+
+    /**
+     * Returns the metric for the response times of the given Lily server, creating it if necessary.
+     */
+    public MetricsTimeVaryingRate getServerLatencyMetric(String lilyAddressAndPort) {
+        synchronized (serverLatencies) {
+            MetricsTimeVaryingRate metric = serverLatencies.get(lilyAddressAndPort);
+            if (metric == null) {
+                String name = "server_" + lilyAddressAndPort.replaceAll("[^A-Za-z0-9_]", "_") + "_latency";
+                metric = new MetricsTimeVaryingRate(name, registry);
+                serverLatencies.put(lilyAddressAndPort, metric);
+            }
+            return metric;
+        }
+    }
+
+    public void shutdown() {
+        context.unregisterUpdater(this);
+        mbean.shutdown();
+    }
+
+    @Override
+    public void doUpdates(MetricsContext metricsContext) {
+        synchronized (this) {
+            for (MetricsBase m : registry.getMetricsList()) {
+                m.pushMetric(metricsRecord);
+            }
+        }
+        metricsRecord.update();
+    }
+
+    public class LilyClientMetricsMBean extends MetricsDynamicMBeanBase {
+        private final ObjectName mbeanName;
+
+        public LilyClientMetricsMBean(MetricsRegistry registry) {
+            super(registry, "Lily client");
+
+            mbeanName = MBeanUtil.registerMBean("LilyClient", recordName, this);
+        }
+
+        public void shutdown() {
+            if (mbeanName != null)
+                MBeanUtil.unregisterMBean(mbeanName);
+        }
+    }
+}
@@ -30,6 +30,7 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.zookeeper.KeeperException;
 import org.kauriproject.conf.Conf;
 import org.lilyproject.rowlock.RowLocker;
+import org.lilyproject.rowlog.api.MessagePriority;
 import org.lilyproject.rowlog.api.RowLog;
 import org.lilyproject.rowlog.api.RowLogConfig;
 import org.lilyproject.rowlog.api.RowLogConfigurationManager;
@@ -41,8 +42,10 @@ import org.lilyproject.rowlog.impl.RowLogHashShardRouter;
 import org.lilyproject.rowlog.impl.RowLogImpl;
 import org.lilyproject.rowlog.impl.RowLogProcessorElection;
 import org.lilyproject.rowlog.impl.RowLogProcessorImpl;
+import org.lilyproject.rowlog.impl.RowLogProcessorPartitioning;
 import org.lilyproject.rowlog.impl.RowLogProcessorSettings;
-import org.lilyproject.rowlog.impl.RowLogShardSetup;
+import org.lilyproject.rowlog.impl.RowLogShardLayout;
+import org.lilyproject.rowlog.impl.RowLogShardLayoutManager;
 import org.lilyproject.rowlog.impl.WalListener;
 import org.lilyproject.rowlog.impl.WalProcessor;
 import org.lilyproject.rowlog.impl.WalRowLog;
@@ -63,6 +66,10 @@ public class RowLogSetup {
     private WalRowLog writeAheadLog;
     private RowLogProcessorElection messageQueueProcessorLeader;
     private RowLogProcessorElection writeAheadLogProcessorLeader;
+    private RowLogProcessorPartitioning messageQueueProcessorPartitioning;
+    private RowLogProcessorPartitioning writeAheadLogProcessorPartitioning;
+    private RowLogShardLayoutManager messageQueueShardLayout;
+    private RowLogShardLayoutManager writeAheadLogShardLayout;
     private Thread walProcessorStartupThread;
     private final HBaseTableFactory hbaseTableFactory;
     private final Conf rowLogConf;
@@ -144,14 +151,27 @@ public class RowLogSetup {
         }
 
         int shardCount = rowLogConf.getChild("shardCount").getValueAsInteger();
+        // Existing rowlogs hash the row keys using MD5, which is kept as default
+        String shardHashName = rowLogConf.getChild("shardHash").getValue("md5");
+        RowLogShardLayout.Hash shardHash;
+        try {
+            shardHash = RowLogShardLayout.Hash.valueOf(shardHashName.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unsupported rowlog shard hash: " + shardHashName);
+        }
 
+        // The shard layouts allow to change the shard count without draining the rowlogs first
+        RowLogHashShardRouter mqShardRouter = new RowLogHashShardRouter();
         messageQueue = new RowLogImpl("mq", LilyHBaseSchema.getRecordTable(hbaseTableFactory), RecordCf.ROWLOG.bytes,
-                RecordColumn.MQ_PREFIX, confMgr, null, new RowLogHashShardRouter());
-        RowLogShardSetup.setupShards(shardCount, messageQueue, hbaseTableFactory);
+                RecordColumn.MQ_PREFIX, confMgr, null, mqShardRouter);
+        messageQueueShardLayout = new RowLogShardLayoutManager(zk, messageQueue, mqShardRouter, hbaseTableFactory);
+        messageQueueShardLayout.start(shardCount, shardHash);
 
+        RowLogHashShardRouter walShardRouter = new RowLogHashShardRouter();
         writeAheadLog = new WalRowLog("wal", LilyHBaseSchema.getRecordTable(hbaseTableFactory), RecordCf.ROWLOG.bytes,
-                RecordColumn.WAL_PREFIX, confMgr, rowLocker, new RowLogHashShardRouter());
-        RowLogShardSetup.setupShards(shardCount, writeAheadLog, hbaseTableFactory);
+                RecordColumn.WAL_PREFIX, confMgr, rowLocker, walShardRouter);
+        writeAheadLogShardLayout = new RowLogShardLayoutManager(zk, writeAheadLog, walShardRouter, hbaseTableFactory);
+        writeAheadLogShardLayout.start(shardCount, shardHash);
 
         RowLogMessageListenerMapping.INSTANCE.put(WalListener.ID, new WalListener(writeAheadLog, rowLocker));
         // Instead of using the default MQFeeder, a custom one is used to do selective feeding of indexer
@@ -170,11 +190,24 @@ public class RowLogSetup {
                     mqProcessorNodes = Arrays.asList(nodes.split(","));
                 }
             }
+            // When partitioned, each node processes part of the shards, otherwise one elected node processes them all
+            boolean mqPartitioned = mqProcessorConf.getAttributeAsBoolean("partitioned", false);
             RowLogProcessorSettings settings = createProcessorSettings(mqProcessorConf);
-            RowLogProcessor processor = new RowLogProcessorImpl(messageQueue, confMgr, hbaseConf, settings);
-            messageQueueProcessorLeader = new RowLogProcessorElection(zk, processor, lilyInfo);
+            if (mqPartitioned) {
+                settings.setLocalHost(hostName);
+            }
+            RowLogProcessorImpl processor = new RowLogProcessorImpl(messageQueue, confMgr, hbaseConf, settings);
+            if (mqPartitioned) {
+                messageQueueProcessorPartitioning = new RowLogProcessorPartitioning(zk, processor, lilyInfo, hostName);
+            } else {
+                messageQueueProcessorLeader = new RowLogProcessorElection(zk, processor, lilyInfo);
+            }
             if (mqProcessorNodes.isEmpty() || mqProcessorNodes.contains(hostName)) {
-                messageQueueProcessorLeader.start();
+                if (mqPartitioned) {
+                    messageQueueProcessorPartitioning.start();
+                } else {
+                    messageQueueProcessorLeader.start();
+                }
             }
         } else {
             log.info("Not participating in MQ processor election.");
@@ -200,9 +233,14 @@ public class RowLogSetup {
                     walProcessorNodes = Arrays.asList(nodes.split(","));
                 }
             }
+            boolean walPartitioned = walProcessorConf.getAttributeAsBoolean("partitioned", false);
             RowLogProcessorSettings settings = createProcessorSettings(walProcessorConf);
-            RowLogProcessor processor = new WalProcessor(writeAheadLog, confMgr, hbaseConf, settings);
-            writeAheadLogProcessorLeader = new RowLogProcessorElection(zk, processor, lilyInfo);
+            RowLogProcessorImpl processor = new WalProcessor(writeAheadLog, confMgr, hbaseConf, settings);
+            if (walPartitioned) {
+                writeAheadLogProcessorPartitioning = new RowLogProcessorPartitioning(zk, processor, lilyInfo, hostName);
+            } else {
+                writeAheadLogProcessorLeader = new RowLogProcessorElection(zk, processor, lilyInfo);
+            }
             // The WAL processor should only be started once the LinkIndexUpdater listener is available
             walProcessorStartupThread = new Thread(new DelayedWALProcessorStartup());
             if (walProcessorNodes.isEmpty() || walProcessorNodes.contains(hostName)) {
@@ -232,17 +270,27 @@ public class RowLogSetup {
                 conf.getChild("messagesWorkQueueSize")
                         .getValueAsInteger(settings.getMessagesWorkQueueSize()));
 
+        Conf priorityWeightsConf = conf.getChild("priorityWeights");
+        for (MessagePriority priority : MessagePriority.values()) {
+            settings.setPriorityWeight(priority, priorityWeightsConf.getAttributeAsInteger(
+                    priority.name().toLowerCase(), settings.getPriorityWeight(priority)));
+        }
+
         return settings;
     }
 
     @PreDestroy
     public void stop() throws RowLogException, InterruptedException, KeeperException {
         Closer.close(messageQueueProcessorLeader);
+        Closer.close(messageQueueProcessorPartitioning);
         if (walProcessorStartupThread != null && walProcessorStartupThread.isAlive()) {
             walProcessorStartupThread.interrupt();
             walProcessorStartupThread.join();
         }
         Closer.close(writeAheadLogProcessorLeader);
+        Closer.close(writeAheadLogProcessorPartitioning);
+        Closer.close(messageQueueShardLayout);
+        Closer.close(writeAheadLogShardLayout);
         Closer.close(messageQueue);
         Closer.close(writeAheadLog);
         confMgr.removeListener("wal", "LinkIndexUpdater", "LinkIndexUpdaterListener");
@@ -291,7 +339,11 @@ public class RowLogSetup {
             }
 
             try {
-                writeAheadLogProcessorLeader.start();
+                if (writeAheadLogProcessorPartitioning != null) {
+                    writeAheadLogProcessorPartitioning.start();
+                } else {
+                    writeAheadLogProcessorLeader.start();
+                }
             } catch (Throwable t) {
                 log.error("Error starting up WAL processor", t);
             }
@@ -20,6 +20,7 @@ import java.util.List;
 
 import org.apache.hadoop.hbase.client.Put;
 import org.lilyproject.rowlock.RowLock;
+import org.lilyproject.rowlog.api.MessagePriority;
 import org.lilyproject.rowlog.api.RowLog;
 import org.lilyproject.rowlog.api.RowLogConfig;
 import org.lilyproject.rowlog.api.RowLogException;
@@ -61,7 +62,21 @@ public class ManualProcessRowLog implements RowLog {
     public RowLogMessage putMessage(byte[] rowKey, byte[] data, byte[] payload, Put put,
             List<String> subscriptionIds) throws RowLogException, InterruptedException {
 
-        RowLogMessage msg = delegate.putMessage(rowKey, data, payload, put, subscriptionIds);
+        return putMessage(rowKey, data, payload, put, subscriptionIds, MessagePriority.NORMAL);
+    }
+
+    @Override
+    public RowLogMessage putMessage(byte[] rowKey, byte[] data, byte[] payload, Put put, MessagePriority priority)
+            throws RowLogException, InterruptedException {
+        List<String> subscriptionIds = getSubscriptionIds();
+        return putMessage(rowKey, data, payload, put, subscriptionIds, priority);
+    }
+
+    @Override
+    public RowLogMessage putMessage(byte[] rowKey, byte[] data, byte[] payload, Put put,
+            List<String> subscriptionIds, MessagePriority priority) throws RowLogException, InterruptedException {
+
+        RowLogMessage msg = delegate.putMessage(rowKey, data, payload, put, subscriptionIds, priority);
         unprocessedMessages.add(msg);
 
         return msg;
@@ -70,6 +85,9 @@ public class ManualProcessRowLog implements RowLog {
     public void processMessages() throws RowLogException, InterruptedException {
         while (!unprocessedMessages.isEmpty()) {
             RowLogMessage msg = unprocessedMessages.remove(0);
+            // Read the execution state again, since listeners can handle other messages together with the one
+            // they are processing, such as the IndexUpdater does for reindex messages of the same record
+            msg.setExecutionState(null);
             processMessage(msg, null);
         }
     }
@@ -114,6 +132,11 @@ public class ManualProcessRowLog implements RowLog {
         return delegate.getShardList();
     }
 
+    @Override
+    public Long getShardRoutingChangeTimestamp() {
+        return delegate.getShardRoutingChangeTimestamp();
+    }
+
     @Override
     public boolean isMessageAvailable(RowLogMessage message, String subscriptionId) throws RowLogException {
         return delegate.isMessageAvailable(message, subscriptionId);
@@ -204,6 +204,12 @@ public class PrematureRepositoryImpl implements PrematureRepository {
         delegate.delete(record);
     }
 
+    @Override
+    public void delete(List<RecordId> recordIds) throws RepositoryException, InterruptedException {
+        waitOnRepo();
+        delegate.delete(recordIds);
+    }
+
     @Override
     public IdGenerator getIdGenerator() {
         waitOnRepo();
@@ -289,6 +295,12 @@ public class PrematureRepositoryImpl implements PrematureRepository {
         return delegate.getVariants(recordId);
     }
 
+    @Override
+    public RecordIdScanner getVariantsScanner(RecordId recordId) throws RepositoryException, InterruptedException {
+        waitOnRepo();
+        return delegate.getVariantsScanner(recordId);
+    }
+
     @Override
     public RecordScanner getScanner(RecordScan scan) throws RepositoryException, InterruptedException {
         waitOnRepo();
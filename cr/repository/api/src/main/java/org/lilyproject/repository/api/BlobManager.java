@@ -92,4 +92,10 @@ public interface BlobManager {
     void register(BlobStoreAccess blobStoreAccess);
 
     void delete(byte[] blobKey) throws BlobException;
+
+    /**
+     * Returns true if the blob is stored in a blobstore from which it needs to be deleted once it is no longer
+     * used. This is not the case for blobs which are stored inline in the record.
+     */
+    boolean isStoredSeparately(Blob blob);
 }
@@ -39,6 +39,16 @@ public interface FieldTypes {
      */
     FieldType getFieldType(QName name) throws TypeException, InterruptedException;
 
+    /**
+     * Gets a FieldType from the FieldTypes, based on the bytes of its id, which are found in the given
+     * range of the byte array.
+     *
+     * <p>This avoids having to create a {@link SchemaId} when the id is read from storage.
+     *
+     * @throws FieldTypeNotFoundException when no fieldType with the given ID exists
+     */
+    FieldType getFieldType(byte[] idBytes, int offset, int length) throws TypeException, InterruptedException;
+
     List<FieldType> getFieldTypes() throws TypeException, InterruptedException;
 
     /**
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.api;
+
+import java.io.Closeable;
+
+/**
+ * Similar as {@link RecordScanner}, except that it only returns the {@link RecordId}s of the records.
+ */
+public interface RecordIdScanner extends Closeable, Iterable<RecordId> {
+    /**
+     * Returns the next record id, or null if there are none left.
+     */
+    RecordId next() throws RepositoryException, InterruptedException;
+
+    /**
+     * Closes this scanner, releasing its server-side resources.
+     */
+    void close();
+}
@@ -394,6 +394,20 @@ public interface Repository extends Closeable {
      */
     void delete(Record record) throws RepositoryException, InterruptedException;
 
+    /**
+     * Deletes a batch of records, for example to purge old records.
+     *
+     * <p>This is the same as calling {@link #delete(RecordId)} for each of the records, except that records which
+     * do not exist are skipped rather than failing with a {@link RecordNotFoundException}, and that remote clients
+     * send the whole batch in one call.
+     *
+     * <p>The records are deleted one after the other. When deleting one of them fails, the records before it
+     * have been deleted and the records after it not.
+     *
+     * @param recordIds ids of the records to delete
+     */
+    void delete(List<RecordId> recordIds) throws RepositoryException, InterruptedException;
+
     /**
      * @return the IdGenerator service
      */
@@ -525,6 +539,14 @@ public interface Repository extends Closeable {
      */
     Set<RecordId> getVariants(RecordId recordId) throws RepositoryException, InterruptedException;
 
+    /**
+     * Same as {@link #getVariants(RecordId)}, but returns the variants while they are read, rather than collecting
+     * them all first. This is useful for master records with a large number of variants.
+     *
+     * <p>The returned scanner should be closed when done with it.
+     */
+    RecordIdScanner getVariantsScanner(RecordId recordId) throws RepositoryException, InterruptedException;
+
     /**
      * Get a scanner to sequentially run over all, or a subset of, the records in the repository.
      *
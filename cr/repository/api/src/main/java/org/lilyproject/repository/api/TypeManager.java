@@ -345,6 +345,15 @@ public interface TypeManager extends Closeable {
      */
     TypeBucket getTypeBucketWithoutCache(String bucketId) throws RepositoryException, InterruptedException;
 
+    /**
+     * Returns the field types and record types with the given ids. Ids for which no type exists are
+     * ignored.
+     * <p>
+     * This method bypasses the cache of the type manager.
+     */
+    Pair<List<FieldType>, List<RecordType>> getTypesWithoutCache(List<SchemaId> ids)
+            throws RepositoryException, InterruptedException;
+
     /**
      * <b>EXPERT ONLY !</b> Enables the schema cache refreshing system.
      * <p>
@@ -20,10 +20,9 @@ import java.util.Iterator;
 
 import org.apache.hadoop.hbase.client.Result;
 import org.apache.hadoop.hbase.client.ResultScanner;
-import org.lilyproject.repository.api.Record;
 import org.lilyproject.repository.api.RepositoryException;
 
-abstract class AbstractHBaseRecordScanner<T extends Record> {
+abstract class AbstractHBaseRecordScanner<T> {
     private final ResultScanner hbaseScanner;
 
     public AbstractHBaseRecordScanner(ResultScanner hbaseScanner) {
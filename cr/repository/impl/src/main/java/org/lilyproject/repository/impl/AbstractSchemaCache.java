@@ -26,6 +26,7 @@ import org.apache.zookeeper.Watcher.Event.EventType;
 import org.apache.zookeeper.Watcher.Event.KeeperState;
 import org.apache.zookeeper.data.Stat;
 import org.lilyproject.repository.api.*;
+import org.lilyproject.repository.impl.id.SchemaIdImpl;
 import org.lilyproject.util.Logs;
 import org.lilyproject.util.Pair;
 import org.lilyproject.util.zookeeper.ZkUtil;
@@ -44,9 +45,7 @@ public abstract class AbstractSchemaCache implements SchemaCache {
 
     private final CacheRefresher cacheRefresher = new CacheRefresher();
 
-    private FieldTypes fieldTypesSnapshot;
     private FieldTypesCache fieldTypesCache = new FieldTypesCache();
-    private volatile boolean updatedFieldTypes = false;
 
     private RecordTypesCache recordTypes = new RecordTypesCache();
 
@@ -167,20 +166,11 @@ public abstract class AbstractSchemaCache implements SchemaCache {
 
     @Override
     public FieldTypes getFieldTypesSnapshot() throws InterruptedException {
-        if (!updatedFieldTypes)
-            return fieldTypesSnapshot;
-        synchronized (this) {
-            if (updatedFieldTypes) {
-                fieldTypesSnapshot = fieldTypesCache.getSnapshot();
-                updatedFieldTypes = false;
-            }
-            return fieldTypesSnapshot;
-        }
+        return fieldTypesCache.getSnapshot();
     }
 
     public void updateFieldType(FieldType fieldType) throws TypeException, InterruptedException {
         fieldTypesCache.update(fieldType);
-        updatedFieldTypes = true;
     }
 
     public void updateRecordType(RecordType recordType) throws TypeException, InterruptedException {
@@ -200,23 +190,23 @@ public abstract class AbstractSchemaCache implements SchemaCache {
     }
 
     public FieldType getFieldType(QName name) throws InterruptedException, TypeException {
-        return fieldTypesCache.getFieldType(name);
+        return fieldTypesCache.getSnapshot().getFieldType(name);
     }
 
     public FieldType getFieldType(SchemaId id) throws TypeException, InterruptedException {
-        return fieldTypesCache.getFieldType(id);
+        return fieldTypesCache.getSnapshot().getFieldType(id);
     }
 
     public List<FieldType> getFieldTypes() throws TypeException, InterruptedException {
-        return fieldTypesCache.getFieldTypes();
+        return fieldTypesCache.getSnapshot().getFieldTypes();
     }
 
     public boolean fieldTypeExists(QName name) throws InterruptedException {
-        return fieldTypesCache.fieldTypeExists(name);
+        return fieldTypesCache.getSnapshot().fieldTypeExists(name);
     }
 
     public FieldType getFieldTypeByNameReturnNull(QName name) throws InterruptedException {
-        return fieldTypesCache.getFieldTypeByNameReturnNull(name);
+        return fieldTypesCache.getSnapshot().getFieldTypeByNameReturnNull(name);
     }
 
     protected void readRefreshingEnabledState() {
@@ -283,7 +273,6 @@ public abstract class AbstractSchemaCache implements SchemaCache {
             // Read all types in one go
             Pair<List<FieldType>, List<RecordType>> types = getTypeManager().getTypesWithoutCache();
             fieldTypesCache.refreshFieldTypes(types.getV1());
-            updatedFieldTypes = true;
             recordTypes.refreshRecordTypes(types.getV2());
         } else {
             // Only the changed buckets need to be refreshed.
@@ -293,16 +282,19 @@ public abstract class AbstractSchemaCache implements SchemaCache {
             // buckets to refresh.
 
             Map<String, Integer> newBucketVersions = new HashMap<String, Integer>();
+            Map<String, List<SchemaId>> changedBuckets = new HashMap<String, List<SchemaId>>();
             // Set a watch again on all buckets
             for (CacheWatcher watcher : cacheWatchers) {
                 String bucketId = watcher.getBucket();
                 String bucketPath = bucketPath(bucketId);
                 Stat stat = new Stat();
                 try {
-                    ZkUtil.getData(zooKeeper, bucketPath, watcher, stat);
+                    byte[] data = ZkUtil.getData(zooKeeper, bucketPath, watcher, stat);
                     Integer oldVersion = bucketVersions.get(bucketId);
-                    if (oldVersion == null || (oldVersion != stat.getVersion()))
+                    if (oldVersion == null || (oldVersion != stat.getVersion())) {
                         newBucketVersions.put(bucketId, stat.getVersion());
+                        changedBuckets.put(bucketId, getChangedTypes(data, oldVersion, stat.getVersion()));
+                    }
                 } catch (KeeperException e) {
                     if (Thread.currentThread().isInterrupted()) {
                         if (log.isDebugEnabled())
@@ -318,13 +310,8 @@ public abstract class AbstractSchemaCache implements SchemaCache {
             }
             if (log.isDebugEnabled())
                 log.debug("Refreshing all types in the schema cache, limiting to buckets" + newBucketVersions.keySet());
-            for (Entry<String, Integer> entry : newBucketVersions.entrySet()) {
-                bucketVersions.put(entry.getKey(), entry.getValue());
-                TypeBucket typeBucket = getTypeManager().getTypeBucketWithoutCache(entry.getKey());
-                fieldTypesCache.refreshFieldTypeBucket(typeBucket);
-                updatedFieldTypes = true;
-                recordTypes.refreshRecordTypeBucket(typeBucket);
-            }
+            bucketVersions.putAll(newBucketVersions);
+            refreshBuckets(changedBuckets);
         }
     }
 
@@ -338,6 +325,7 @@ public abstract class AbstractSchemaCache implements SchemaCache {
         // Since the watchers for those other buckets are not set back again
         // this will not trigger extra refreshes.
         boolean first = true;
+        Map<String, List<SchemaId>> changedBuckets = new HashMap<String, List<SchemaId>>();
         for (CacheWatcher watcher : watchers) {
             // Throttle the refreshing. When a burst of updates occur, delaying
             // the refreshing a bit allows for the updates to be performed
@@ -349,10 +337,14 @@ public abstract class AbstractSchemaCache implements SchemaCache {
             String bucketId = watcher.getBucket();
             String bucketPath = bucketPath(watcher.getBucket());
             Stat stat = new Stat();
+            // Unless the change log tells otherwise, the whole bucket is refreshed
+            List<SchemaId> changedTypes = null;
             try {
-                ZkUtil.getData(zooKeeper, bucketPath, watcher, stat);
-                if (stat.getVersion() == bucketVersions.get(bucketId))
+                byte[] data = ZkUtil.getData(zooKeeper, bucketPath, watcher, stat);
+                Integer knownVersion = bucketVersions.get(bucketId);
+                if (knownVersion != null && stat.getVersion() == knownVersion)
                     continue; // The bucket is up to date
+                changedTypes = getChangedTypes(data, knownVersion, stat.getVersion());
             } catch (KeeperException e) {
                 if (Thread.currentThread().isInterrupted()) {
                     if (log.isDebugEnabled())
@@ -370,11 +362,74 @@ public abstract class AbstractSchemaCache implements SchemaCache {
 
             // Avoid updating the cache while refreshing the buckets
             bucketVersions.put(bucketId, stat.getVersion());
-            TypeBucket typeBucket = getTypeManager().getTypeBucketWithoutCache(bucketId);
+            changedBuckets.put(bucketId, changedTypes);
+        }
+        refreshBuckets(changedBuckets);
+    }
+
+    /**
+     * Returns the ids of the types which changed in a bucket since the known version, based on the
+     * {@link TypeChangeLog} in the data of the bucket node. Returns null if the whole bucket needs to be
+     * refreshed.
+     */
+    private List<SchemaId> getChangedTypes(byte[] data, Integer knownVersion, int version) {
+        if (knownVersion == null)
+            return null;
+        List<TypeChangeLog.Change> changes = TypeChangeLog.getChangesSince(data, knownVersion, version);
+        if (changes == null)
+            return null;
+        Set<SchemaId> changedTypes = new LinkedHashSet<SchemaId>();
+        for (TypeChangeLog.Change change : changes) {
+            changedTypes.add(new SchemaIdImpl(change.getTypeId()));
+        }
+        return new ArrayList<SchemaId>(changedTypes);
+    }
+
+    /**
+     * Refreshes the given buckets in the caches. Buckets for which the changed types are known only get
+     * those types refreshed, all of them read at once. The other buckets are read completely.
+     */
+    private void refreshBuckets(Map<String, List<SchemaId>> changedBuckets)
+            throws RepositoryException, InterruptedException {
+        List<SchemaId> changedTypes = new ArrayList<SchemaId>();
+        for (Entry<String, List<SchemaId>> entry : changedBuckets.entrySet()) {
+            if (entry.getValue() == null) {
+                TypeBucket typeBucket = getTypeManager().getTypeBucketWithoutCache(entry.getKey());
+                fieldTypesCache.refreshFieldTypeBucket(typeBucket);
+                recordTypes.refreshRecordTypeBucket(typeBucket);
+            } else {
+                changedTypes.addAll(entry.getValue());
+            }
+        }
+
+        if (changedTypes.isEmpty())
+            return;
+
+        if (log.isDebugEnabled())
+            log.debug("Refreshing " + changedTypes.size() + " changed types in the schema cache");
+
+        Pair<List<FieldType>, List<RecordType>> types = getTypeManager().getTypesWithoutCache(changedTypes);
+        Map<String, TypeBucket> typeBuckets = new HashMap<String, TypeBucket>();
+        for (FieldType fieldType : types.getV1()) {
+            getTypeBucket(typeBuckets, fieldType.getId()).add(fieldType);
+        }
+        for (RecordType recordType : types.getV2()) {
+            getTypeBucket(typeBuckets, recordType.getId()).add(recordType);
+        }
+        for (TypeBucket typeBucket : typeBuckets.values()) {
             fieldTypesCache.refreshFieldTypeBucket(typeBucket);
             recordTypes.refreshRecordTypeBucket(typeBucket);
         }
-        updatedFieldTypes = true;
+    }
+
+    private TypeBucket getTypeBucket(Map<String, TypeBucket> typeBuckets, SchemaId id) {
+        String bucketId = encodeHex(id.getBytes());
+        TypeBucket typeBucket = typeBuckets.get(bucketId);
+        if (typeBucket == null) {
+            typeBucket = new TypeBucket(bucketId);
+            typeBuckets.put(bucketId, typeBucket);
+        }
+        return typeBucket;
     }
 
     private void watchPathsForExistence() throws InterruptedException {
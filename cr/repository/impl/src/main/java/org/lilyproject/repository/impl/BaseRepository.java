@@ -19,6 +19,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -26,6 +27,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.ServiceLoader;
 
+import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.HTableInterface;
 import org.apache.hadoop.hbase.client.Result;
@@ -36,6 +38,8 @@ import org.apache.hadoop.hbase.filter.Filter;
 import org.apache.hadoop.hbase.filter.FilterList;
 import org.apache.hadoop.hbase.filter.SingleColumnValueFilter;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.lilyproject.hbaseext.LilyRecordVariantFilter;
+import org.lilyproject.hbaseext.LilyScanFilter;
 import org.lilyproject.repository.api.Blob;
 import org.lilyproject.repository.api.BlobAccess;
 import org.lilyproject.repository.api.BlobException;
@@ -50,6 +54,7 @@ import org.lilyproject.repository.api.QName;
 import org.lilyproject.repository.api.Record;
 import org.lilyproject.repository.api.RecordException;
 import org.lilyproject.repository.api.RecordId;
+import org.lilyproject.repository.api.RecordIdScanner;
 import org.lilyproject.repository.api.RecordNotFoundException;
 import org.lilyproject.repository.api.RecordScan;
 import org.lilyproject.repository.api.RecordScanner;
@@ -60,7 +65,11 @@ import org.lilyproject.repository.api.SchemaId;
 import org.lilyproject.repository.api.TypeException;
 import org.lilyproject.repository.api.TypeManager;
 import org.lilyproject.repository.api.VersionNotFoundException;
+import org.lilyproject.repository.api.filter.FieldExistsFilter;
 import org.lilyproject.repository.api.filter.RecordFilter;
+import org.lilyproject.repository.api.filter.RecordFilterList;
+import org.lilyproject.repository.api.filter.RecordTypeFilter;
+import org.lilyproject.repository.api.filter.RecordVariantFilter;
 import org.lilyproject.repository.impl.RepositoryMetrics.Action;
 import org.lilyproject.repository.spi.HBaseRecordFilterFactory;
 import org.lilyproject.util.ArgumentValidator;
@@ -80,6 +89,11 @@ public abstract class BaseRepository implements Repository {
      */
     protected static final SingleColumnValueFilter REAL_RECORDS_FILTER;
 
+    /**
+     * The identifier byte with which the encoded form of USER record ids starts.
+     */
+    private static final byte USER_ID_TYPE = 0;
+
     static {
         // A record is a real row iff the deleted flag exists and is not true.
         // It is possible for the delete flag not to exist on a row: this is
@@ -202,6 +216,43 @@ public abstract class BaseRepository implements Repository {
         return new HBaseIdRecordScannerImpl(createHBaseResultScanner(scan), recdec);
     }
 
+    @Override
+    public RecordIdScanner getVariantsScanner(RecordId recordId) throws RepositoryException, InterruptedException {
+        byte[] masterRecordIdBytes = recordId.getMaster().toBytes();
+
+        // The variants of a record are sorted directly after its master record. The variant properties of USER ids
+        // follow a 0 separator byte, which distinguishes them from other USER ids starting with the same characters.
+        byte[] variantPrefix = masterRecordIdBytes;
+        if (masterRecordIdBytes[0] == USER_ID_TYPE) {
+            variantPrefix = Arrays.copyOf(masterRecordIdBytes, masterRecordIdBytes.length + 1);
+        }
+
+        Scan scan = new Scan(masterRecordIdBytes, prefixSuccessor(variantPrefix));
+        scan.setFilter(REAL_RECORDS_FILTER);
+        scan.addColumn(RecordCf.DATA.bytes, RecordColumn.DELETED.bytes);
+
+        try {
+            return new HBaseRecordIdScannerImpl(recordTable.getScanner(scan), idGenerator);
+        } catch (IOException e) {
+            throw new RepositoryException("Error getting list of variants of record " + recordId.getMaster(), e);
+        }
+    }
+
+    /**
+     * Returns the smallest row key which is larger than all row keys starting with the given prefix.
+     */
+    private static byte[] prefixSuccessor(byte[] prefix) {
+        for (int i = prefix.length - 1; i >= 0; i--) {
+            if (prefix[i] != (byte)0xFF) {
+                byte[] successor = Arrays.copyOf(prefix, i + 1);
+                successor[i]++;
+                return successor;
+            }
+        }
+        // Scan till the end of the table
+        return HConstants.EMPTY_END_ROW;
+    }
+
     private ResultScanner createHBaseResultScanner(RecordScan scan) throws RepositoryException, InterruptedException {
         Scan hbaseScan = new Scan();
 
@@ -219,24 +270,29 @@ public abstract class BaseRepository implements Repository {
             hbaseScan.setStopRow(scan.getStopRecordId().toBytes());
         }
 
-        // Filters
-        FilterList filterList = new FilterList(FilterList.Operator.MUST_PASS_ALL);
-
-        // filter out deleted records
-        filterList.addFilter(REAL_RECORDS_FILTER);
-
-        // add user's filter
+        // Filters: the LilyScanFilter filters out deleted records, and evaluates those parts of the user's filter
+        // it supports. It comes last, since it leaves out the columns which are not returned.
+        LilyScanFilter scanFilter = new LilyScanFilter();
+        Filter userFilter = null;
         if (scan.getRecordFilter() != null) {
-            Filter filter = filterFactory.createHBaseFilter(scan.getRecordFilter(), this, filterFactory);
-            filterList.addFilter(filter);
+            userFilter = addToScanFilter(scan.getRecordFilter(), scanFilter);
         }
 
-        hbaseScan.setFilter(filterList);
+        if (userFilter != null) {
+            FilterList filterList = new FilterList(FilterList.Operator.MUST_PASS_ALL);
+            filterList.addFilter(userFilter);
+            filterList.addFilter(scanFilter);
+            hbaseScan.setFilter(filterList);
+        } else {
+            hbaseScan.setFilter(scanFilter);
+        }
 
         hbaseScan.setCaching(scan.getCaching());
 
         hbaseScan.setCacheBlocks(scan.getCacheBlocks());
 
+        // Only return the columns which are needed to decode the records
+        List<byte[]> returnedColumns = new ArrayList<byte[]>(RecordDecoder.SYSTEM_FIELDS);
         ReturnFields returnFields = scan.getReturnFields();
         if (returnFields != null && returnFields.getType() != ReturnFields.Type.ALL) {
             RecordDecoder.addSystemColumnsToScan(hbaseScan);
@@ -245,6 +301,7 @@ public abstract class BaseRepository implements Repository {
                     for (QName field : returnFields.getFields()) {
                         FieldTypeImpl fieldType = (FieldTypeImpl) typeManager.getFieldTypeByName(field);
                         hbaseScan.addColumn(RecordCf.DATA.bytes, fieldType.getQualifier());
+                        returnedColumns.add(fieldType.getQualifier());
                     }
                     break;
                 case NONE:
@@ -253,8 +310,20 @@ public abstract class BaseRepository implements Repository {
                 default:
                     throw new RuntimeException("Unrecognized ReturnFields type: " + returnFields.getType());
             }
+            // The fields of which the existence is checked need to be read as well
+            for (byte[] qualifier : scanFilter.getRequiredFields()) {
+                hbaseScan.addColumn(RecordCf.DATA.bytes, qualifier);
+            }
+            // The remaining filters can depend on any column, e.g. a FieldValueFilter on a field which is not
+            // returned, so then all columns are read, and the LilyScanFilter leaves out those not returned.
+            // Note that this needs to come after the addColumn calls, since these narrow down the family again.
+            if (userFilter != null) {
+                hbaseScan.addFamily(RecordCf.DATA.bytes);
+            }
+            scanFilter.setReturnedColumns(returnedColumns, false);
         } else {
             hbaseScan.addFamily(RecordCf.DATA.bytes);
+            scanFilter.setReturnedColumns(returnedColumns, true);
         }
 
         ResultScanner hbaseScanner;
@@ -266,6 +335,50 @@ public abstract class BaseRepository implements Repository {
         return hbaseScanner;
     }
 
+    /**
+     * Adds the conditions of the record filter which the {@link LilyScanFilter} can evaluate to it, and returns
+     * an HBase filter for the remaining ones, or null if there are none.
+     */
+    private Filter addToScanFilter(RecordFilter recordFilter, LilyScanFilter scanFilter)
+            throws RepositoryException, InterruptedException {
+        if (recordFilter instanceof RecordFilterList &&
+                ((RecordFilterList)recordFilter).getOperator() == RecordFilterList.Operator.MUST_PASS_ALL) {
+            FilterList remaining = new FilterList(FilterList.Operator.MUST_PASS_ALL);
+            for (RecordFilter subFilter : ((RecordFilterList)recordFilter).getFilters()) {
+                Filter filter = addToScanFilter(subFilter, scanFilter);
+                if (filter != null) {
+                    remaining.addFilter(filter);
+                }
+            }
+            return remaining.getFilters().isEmpty() ? null : remaining;
+        } else if (recordFilter instanceof RecordTypeFilter && !scanFilter.hasRecordType()) {
+            RecordTypeFilter filter = (RecordTypeFilter)recordFilter;
+            if (filter.getRecordType() != null || filter.getVersion() != null) {
+                byte[] recordTypeId = null;
+                if (filter.getRecordType() != null) {
+                    recordTypeId = typeManager.getRecordTypeByName(filter.getRecordType(), null).getId().getBytes();
+                }
+                scanFilter.setRecordType(recordTypeId, filter.getVersion());
+                return null;
+            }
+        } else if (recordFilter instanceof FieldExistsFilter && ((FieldExistsFilter)recordFilter).getField() != null) {
+            FieldTypeImpl fieldType =
+                    (FieldTypeImpl)typeManager.getFieldTypeByName(((FieldExistsFilter)recordFilter).getField());
+            scanFilter.addRequiredField(fieldType.getQualifier());
+            return null;
+        } else if (recordFilter instanceof RecordVariantFilter && scanFilter.getVariantFilter() == null) {
+            Filter filter = filterFactory.createHBaseFilter(recordFilter, this, filterFactory);
+            if (filter instanceof LilyRecordVariantFilter) {
+                scanFilter.setVariantFilter((LilyRecordVariantFilter)filter);
+                return null;
+            }
+            return filter;
+        }
+
+        // Invalid filters are reported by their filter factory
+        return filterFactory.createHBaseFilter(recordFilter, this, filterFactory);
+    }
+
     private static List<HBaseRecordFilterFactory> FILTER_FACTORIES;
     static {
         FILTER_FACTORIES = new ArrayList<HBaseRecordFilterFactory>();
@@ -24,7 +24,6 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.hbase.client.*;
 import org.apache.hadoop.hbase.filter.*;
 import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
-import org.apache.hadoop.hbase.util.Bytes;
 import org.apache.zookeeper.KeeperException;
 import org.lilyproject.hbaseext.ContainsValueComparator;
 import org.lilyproject.repository.api.*;
@@ -258,9 +257,8 @@ public class BlobIncubatorMonitor {
             ValueType valueType = fieldType.getValueType();
             Get get = new Get(recordId.getBytes());
             get.addColumn(RecordCf.DATA.bytes, fieldType.getQualifier());
-            byte[] valueToCompare = Bytes.toBytes(valueType.getNestingLevel());
-            valueToCompare = Bytes.add(valueToCompare, blobKey);
-            WritableByteArrayComparable valueComparator = new ContainsValueComparator(valueToCompare);
+            WritableByteArrayComparable valueComparator = new ContainsValueComparator(valueType.getNestingLevel(),
+                    blobKey);
             Filter filter = new SingleColumnValueFilter(RecordCf.DATA.bytes, fieldType.getQualifier(), CompareOp.EQUAL, valueComparator);
             get.setFilter(filter);
             return recordTable.get(get);
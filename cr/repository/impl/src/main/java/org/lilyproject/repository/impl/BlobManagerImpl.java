@@ -182,4 +182,10 @@ public class BlobManagerImpl implements BlobManager {
     public void delete(byte[] blobKey) throws BlobException {
         registry.delete(blobKey);
     }
+
+    @Override
+    public boolean isStoredSeparately(Blob blob) {
+        // Only the blobs which are not stored inline are incubated
+        return factory.get(blob).incubate();
+    }
 }
@@ -15,35 +15,31 @@
  */
 package org.lilyproject.repository.impl;
 
-import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.ArrayList;
+import java.util.List;
 
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
 import org.lilyproject.repository.api.*;
+import org.lilyproject.repository.impl.id.SchemaIdImpl;
 import org.lilyproject.util.ArgumentValidator;
 
+/**
+ * An immutable snapshot of the field types, see {@link FieldTypesCache#getSnapshot()}.
+ */
 public class FieldTypesImpl implements FieldTypes {
-    private Log log = LogFactory.getLog(getClass());
-    
-    // Always use getNameCache() instead of this variable directly, to make sure
-    // this is the up-to-date nameCache (in case of FieldTypesCache).
-    protected Map<QName, FieldType> nameCache;
-    protected Map<String, Map<SchemaId, FieldType>> buckets;
+    private final TypeSnapshot<FieldType> types;
 
-    public FieldTypesImpl() {
-        nameCache = new HashMap<QName, FieldType>();
-        buckets = new ConcurrentHashMap<String, Map<SchemaId, FieldType>>();
+    FieldTypesImpl(TypeSnapshot<FieldType> types) {
+        this.types = types;
     }
 
-    protected Map<QName, FieldType> getNameCache() throws InterruptedException {
-        return nameCache;
+    TypeSnapshot<FieldType> getTypes() {
+        return types;
     }
 
     @Override
-    public List<FieldType> getFieldTypes() throws InterruptedException {
+    public List<FieldType> getFieldTypes() {
         List<FieldType> fieldTypes = new ArrayList<FieldType>();
-        for (FieldType fieldType : getNameCache().values()) {
+        for (FieldType fieldType : types.getAll()) {
             fieldTypes.add(fieldType.clone());
         }
         return fieldTypes;
@@ -52,36 +48,44 @@ public class FieldTypesImpl implements FieldTypes {
     @Override
     public FieldType getFieldType(SchemaId id) throws FieldTypeNotFoundException {
         ArgumentValidator.notNull(id, "id");
-        String bucket = AbstractSchemaCache.encodeHex(id.getBytes());
-        
-        Map<SchemaId, FieldType> fieldTypeIdCacheBucket = buckets.get(bucket);
-        if (fieldTypeIdCacheBucket == null) {
+        FieldType fieldType = types.get(id);
+        if (fieldType == null) {
             throw new FieldTypeNotFoundException(id);
         }
-        FieldType fieldType = fieldTypeIdCacheBucket.get(id);
+        return fieldType.clone();
+    }
+
+    @Override
+    public FieldType getFieldType(byte[] idBytes, int offset, int length) throws FieldTypeNotFoundException {
+        ArgumentValidator.notNull(idBytes, "idBytes");
+        FieldType fieldType = types.get(idBytes, offset, length);
         if (fieldType == null) {
-            throw new FieldTypeNotFoundException(id);
+            byte[] id = new byte[length];
+            System.arraycopy(idBytes, offset, id, 0, length);
+            throw new FieldTypeNotFoundException(new SchemaIdImpl(id));
         }
         return fieldType.clone();
     }
 
     @Override
-    public FieldType getFieldType(QName name) throws FieldTypeNotFoundException, InterruptedException {
+    public FieldType getFieldType(QName name) throws FieldTypeNotFoundException {
         ArgumentValidator.notNull(name, "name");
-        FieldType fieldType = getNameCache().get(name);
+        FieldType fieldType = types.get(name);
         if (fieldType == null) {
             throw new FieldTypeNotFoundException(name);
         }
         return fieldType.clone();
     }
 
-    public FieldType getFieldTypeByNameReturnNull(QName name) throws InterruptedException {
+    @Override
+    public FieldType getFieldTypeByNameReturnNull(QName name) {
         ArgumentValidator.notNull(name, "name");
-        FieldType fieldType = getNameCache().get(name);
+        FieldType fieldType = types.get(name);
         return fieldType != null ? fieldType.clone() : null;
     }
 
-    public boolean fieldTypeExists(QName name) throws InterruptedException {
-        return getNameCache().containsKey(name);
+    @Override
+    public boolean fieldTypeExists(QName name) {
+        return types.get(name) != null;
     }
 }
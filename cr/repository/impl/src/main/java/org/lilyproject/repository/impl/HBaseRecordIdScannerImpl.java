@@ -0,0 +1,41 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.impl;
+
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
+import org.lilyproject.repository.api.IdGenerator;
+import org.lilyproject.repository.api.RecordId;
+import org.lilyproject.repository.api.RecordIdScanner;
+
+/**
+ * Returns the ids of the rows of a scan, the columns read by the scan are not used.
+ */
+public class HBaseRecordIdScannerImpl extends AbstractHBaseRecordScanner<RecordId> implements RecordIdScanner {
+
+    private final IdGenerator idGenerator;
+
+    public HBaseRecordIdScannerImpl(ResultScanner hbaseScanner, IdGenerator idGenerator) {
+        super(hbaseScanner);
+        this.idGenerator = idGenerator;
+    }
+
+    @Override
+    RecordId decode(Result result) {
+        return idGenerator.fromBytes(result.getRow());
+    }
+
+}
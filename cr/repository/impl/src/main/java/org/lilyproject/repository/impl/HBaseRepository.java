@@ -21,6 +21,7 @@ import static org.lilyproject.util.hbase.LilyHBaseSchema.DELETE_MARKER;
 import static org.lilyproject.util.hbase.LilyHBaseSchema.EXISTS_FLAG;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -30,8 +31,8 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.NavigableMap;
 import java.util.Set;
+import java.util.TreeSet;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -40,13 +41,8 @@ import org.apache.hadoop.hbase.client.Delete;
 import org.apache.hadoop.hbase.client.Get;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.client.Result;
-import org.apache.hadoop.hbase.client.ResultScanner;
-import org.apache.hadoop.hbase.client.Scan;
-import org.apache.hadoop.hbase.filter.ColumnPrefixFilter;
 import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
 import org.apache.hadoop.hbase.filter.Filter;
-import org.apache.hadoop.hbase.filter.FilterList;
-import org.apache.hadoop.hbase.filter.PrefixFilter;
 import org.apache.hadoop.hbase.filter.SingleColumnValueFilter;
 import org.apache.hadoop.hbase.filter.WritableByteArrayComparable;
 import org.apache.hadoop.hbase.util.Bytes;
@@ -71,12 +67,12 @@ import org.lilyproject.repository.api.RecordBuilder;
 import org.lilyproject.repository.api.RecordException;
 import org.lilyproject.repository.api.RecordExistsException;
 import org.lilyproject.repository.api.RecordId;
+import org.lilyproject.repository.api.RecordIdScanner;
 import org.lilyproject.repository.api.RecordLockedException;
 import org.lilyproject.repository.api.RecordNotFoundException;
 import org.lilyproject.repository.api.RecordType;
 import org.lilyproject.repository.api.RepositoryException;
 import org.lilyproject.repository.api.ResponseStatus;
-import org.lilyproject.repository.api.SchemaId;
 import org.lilyproject.repository.api.Scope;
 import org.lilyproject.repository.api.TypeException;
 import org.lilyproject.repository.api.TypeManager;
@@ -84,7 +80,6 @@ import org.lilyproject.repository.api.ValueType;
 import org.lilyproject.repository.api.VersionNotFoundException;
 import org.lilyproject.repository.api.WalProcessingException;
 import org.lilyproject.repository.impl.RepositoryMetrics.Action;
-import org.lilyproject.repository.impl.id.SchemaIdImpl;
 import org.lilyproject.repository.impl.valuetype.BlobValueType;
 import org.lilyproject.repository.spi.RecordUpdateHook;
 import org.lilyproject.rowlock.RowLock;
@@ -235,7 +230,7 @@ public class HBaseRepository extends BaseRepository {
                         // This is to cover the failure scenario where a record was deleted, but a failure
                         // occurred before executing the clearData
                         // If this was already done, this is a no-op
-                        clearData(recordId, null);
+                        clearData(recordId, null, Bytes.toLong(oldVersion));
                     }
                 }
 
@@ -271,6 +266,8 @@ public class HBaseRepository extends BaseRepository {
 
                 // Reserve blobs so no other records can use them
                 reserveBlobs(null, referencedBlobs);
+                put.add(RecordCf.DATA.bytes, RecordColumn.BLOB_REFS.bytes, 1L, Bytes.toBytes(true));
+                addBlobReferenceColumns(put, referencedBlobs);
 
                 putRowWithWalProcessing(recordId, rowLock, put, recordEvent);
 
@@ -410,6 +407,8 @@ public class HBaseRepository extends BaseRepository {
 
                 // Reserve blobs so no other records can use them
                 reserveBlobs(record.getId(), referencedBlobs);
+                addBlobReferenceColumns(put, referencedBlobs);
+                removeBlobReferenceColumns(put, referencedBlobs, unReferencedBlobs);
                 putRowWithWalProcessing(recordId, rowLock, put, recordEvent);
                 // Remove the used blobs from the blobIncubator and delete unreferenced blobs from the blobstore
                 blobManager.handleBlobReferences(recordId, referencedBlobs, unReferencedBlobs);
@@ -829,12 +828,18 @@ public class HBaseRepository extends BaseRepository {
 
                 // Reserve blobs so no other records can use them
                 reserveBlobs(record.getId(), referencedBlobs);
+                addBlobReferenceColumns(put, referencedBlobs);
 
                 putRowWithWalProcessing(recordId, rowLock, put, recordEvent);
 
                 // The unReferencedBlobs could still be in use in another version of the mutable field,
                 // therefore we filter them first
                 unReferencedBlobs = filterReferencedBlobs(recordId, unReferencedBlobs, version);
+                Put blobReferencesPut = new Put(recordId.toBytes());
+                removeBlobReferenceColumns(blobReferencesPut, referencedBlobs, unReferencedBlobs);
+                if (!blobReferencesPut.isEmpty()) {
+                    recordTable.put(blobReferencesPut);
+                }
 
                 // Remove the used blobs from the blobIncubator
                 blobManager.handleBlobReferences(recordId, referencedBlobs, unReferencedBlobs);
@@ -905,6 +910,17 @@ public class HBaseRepository extends BaseRepository {
     public void delete(Record record) throws RepositoryException {
         delete(record.getId(), null, record.hasAttributes() ? record.getAttributes() : null);
     }
+
+    @Override
+    public void delete(List<RecordId> recordIds) throws RepositoryException {
+        for (RecordId recordId : recordIds) {
+            try {
+                delete(recordId, null, null);
+            } catch (RecordNotFoundException e) {
+                // Skip records which do not exist (anymore)
+            }
+        }
+    }
     
     private  Record delete(RecordId recordId, List<MutationCondition> conditions, Map<String,String> attributes)
             throws RepositoryException {
@@ -960,7 +976,7 @@ public class HBaseRepository extends BaseRepository {
             }
 
             // Clear the old data and delete any referenced blobs
-            clearData(recordId, originalRecord);
+            clearData(recordId, originalRecord, originalRecord.getVersion());
 
             if (walMessage != null) {
                 try {
@@ -991,81 +1007,78 @@ public class HBaseRepository extends BaseRepository {
 
     // Clear all data of the recordId until the latest record version (included)
     // And delete any referred blobs
-    private void clearData(RecordId recordId, Record originalRecord)
+    private void clearData(RecordId recordId, Record originalRecord, Long latestVersion)
             throws IOException, RepositoryException, InterruptedException {
+        // Only the latest cell of each column is read: this is enough to know which columns need to be
+        // deleted, the older versions are deleted by the column delete markers.
         Get get = new Get(recordId.toBytes());
         get.addFamily(RecordCf.DATA.bytes);
-        get.setFilter(new ColumnPrefixFilter(new byte[]{RecordColumn.DATA_PREFIX}));
-        get.setMaxVersions();
         Result result = recordTable.get(get);
 
         if (result != null && !result.isEmpty()) {
             boolean dataToDelete = false;
             Delete delete = new Delete(recordId.toBytes());
-            Set<BlobReference> blobsToDelete = new HashSet<BlobReference>();
-
-            NavigableMap<byte[], NavigableMap<byte[], NavigableMap<Long, byte[]>>> map = result.getMap();
-            Set<Entry<byte[], NavigableMap<byte[], NavigableMap<Long, byte[]>>>> familiesSet = map.entrySet();
-            for (Entry<byte[], NavigableMap<byte[], NavigableMap<Long, byte[]>>> family : familiesSet) {
-                if (Arrays.equals(RecordCf.DATA.bytes, family.getKey())) {
-                    NavigableMap<byte[], NavigableMap<Long, byte[]>> columnsSet = family.getValue();
-                    for (Entry<byte[], NavigableMap<Long, byte[]>> column : columnsSet.entrySet()) {
-                        try {
-                            byte[] columnQualifier = column.getKey();
-                            SchemaId schemaId =
-                                    new SchemaIdImpl(Bytes.tail(columnQualifier, columnQualifier.length - 1));
-                            FieldType fieldType = typeManager.getFieldTypeById(schemaId);
-                            ValueType valueType = fieldType.getValueType();
-                            NavigableMap<Long, byte[]> cells = column.getValue();
-                            Set<Entry<Long, byte[]>> cellsSet = cells.entrySet();
-                            for (Entry<Long, byte[]> cell : cellsSet) {
-                                // Get blobs to delete
-                                if (valueType.getDeepestValueType() instanceof BlobValueType) {
-                                    Object blobValue = null;
-                                    if (fieldType.getScope() == Scope.NON_VERSIONED) {
-                                        // Read the blob value from the original record, 
-                                        // since the delete marker has already been put in the field by the delete call
-                                        if (originalRecord != null)
-                                            blobValue = originalRecord.getField(fieldType.getName());
-                                    } else {
-                                        byte[] value = cell.getValue();
-                                        if (!isDeleteMarker(value)) {
-                                            blobValue = valueType.read(EncodingUtil.stripPrefix(value));
-                                        }
-                                    }
-                                    try {
-                                        if (blobValue != null)
-                                            blobsToDelete
-                                                    .addAll(getReferencedBlobs((FieldTypeImpl) fieldType, blobValue));
-                                    } catch (BlobException e) {
-                                        log.warn("Failure occured while clearing blob data", e);
-                                        // We do a best effort here
-                                    }
-                                }
-                                // Get cells to delete
-                                // Only delete if in NON_VERSIONED scope
-                                // The NON_VERSIONED fields will get filled in with a delete marker
-                                // This is needed to avoid non-versioned fields to be lost due to the hbase delete thombstone
-                                // See trac ticket http://dev.outerthought.org/trac/outerthought_lilyproject/ticket/297
-                                if (fieldType.getScope() != Scope.NON_VERSIONED) {
-                                    delete.deleteColumn(RecordCf.DATA.bytes, columnQualifier, cell.getKey());
-                                }
-                                dataToDelete = true;
-                            }
-                        } catch (FieldTypeNotFoundException e) {
-                            log.warn("Failure occured while clearing blob data", e);
-                            // We do a best effort here
-                        } catch (TypeException e) {
-                            log.warn("Failure occured while clearing blob data", e);
-                            // We do a best effort here
+            // The blob reference columns are stored at timestamp 1L and are re-created at that timestamp when the
+            // record is re-created, so they are overwritten with a delete marker rather than deleted
+            Put blobReferencesPut = new Put(recordId.toBytes());
+            FieldTypes fieldTypes = typeManager.getFieldTypesSnapshot();
+            List<byte[]> blobKeysToDelete = new ArrayList<byte[]>();
+            List<FieldType> blobFieldTypes = new ArrayList<FieldType>();
+
+            for (KeyValue kv : result.raw()) {
+                byte[] columnQualifier = kv.getQualifier();
+                if (columnQualifier[0] == RecordColumn.BLOB_REF_PREFIX) {
+                    if (!isDeleteMarker(kv.getValue())) {
+                        blobKeysToDelete.add(Bytes.tail(columnQualifier, columnQualifier.length - 1));
+                        blobReferencesPut.add(RecordCf.DATA.bytes, columnQualifier, 1L, DELETE_MARKER);
+                    }
+                } else if (columnQualifier[0] == RecordColumn.DATA_PREFIX) {
+                    try {
+                        FieldType fieldType = fieldTypes.getFieldType(columnQualifier, 1, columnQualifier.length - 1);
+                        if (fieldType.getValueType().getDeepestValueType() instanceof BlobValueType) {
+                            blobFieldTypes.add(fieldType);
                         }
+                        // Only delete if not in NON_VERSIONED scope
+                        // The NON_VERSIONED fields will get filled in with a delete marker
+                        // This is needed to avoid non-versioned fields to be lost due to the hbase delete thombstone
+                        // See trac ticket http://dev.outerthought.org/trac/outerthought_lilyproject/ticket/297
+                        // The versioned fields use the record version as timestamp, which continues from the
+                        // deleted version when the record is re-created, so the new cells are not affected.
+                        if (fieldType.getScope() != Scope.NON_VERSIONED && latestVersion != null) {
+                            delete.deleteColumns(RecordCf.DATA.bytes, columnQualifier, latestVersion);
+                        }
+                        dataToDelete = true;
+                    } catch (FieldTypeNotFoundException e) {
+                        log.warn("Failure occured while clearing record data", e);
+                        // We do a best effort here
+                    } catch (TypeException e) {
+                        log.warn("Failure occured while clearing record data", e);
+                        // We do a best effort here
                     }
-                } else {
-                    //skip
                 }
             }
+
             // Delete the blobs
-            blobManager.handleBlobReferences(recordId, null, blobsToDelete);
+            if (result.containsColumn(RecordCf.DATA.bytes, RecordColumn.BLOB_REFS.bytes)) {
+                // The column keeps telling that the blobs are tracked, but its value tells there are none left
+                byte[] blobRefs = result.getValue(RecordCf.DATA.bytes, RecordColumn.BLOB_REFS.bytes);
+                if (Bytes.toBoolean(blobRefs)) {
+                    blobReferencesPut.add(RecordCf.DATA.bytes, RecordColumn.BLOB_REFS.bytes, 1L, Bytes.toBytes(false));
+                }
+                for (byte[] blobKey : blobKeysToDelete) {
+                    try {
+                        blobManager.delete(blobKey);
+                    } catch (BlobException e) {
+                        log.warn("Failed to remove blobs from the blobstore for record '" + recordId + "'", e);
+                        // We do a best effort here
+                    }
+                }
+            } else if (!blobFieldTypes.isEmpty()) {
+                // Records created before the blob references were tracked: find the blobs in all versions
+                // of the blob fields
+                blobManager.handleBlobReferences(recordId, null,
+                        getBlobsOfAllVersions(recordId, originalRecord, blobFieldTypes));
+            }
 
             // Delete data
             if (dataToDelete) { // Avoid a delete action when no data was found to delete
@@ -1081,6 +1094,89 @@ public class HBaseRepository extends BaseRepository {
                 delete.deleteColumn(RecordCf.DATA.bytes, RecordColumn.VERSIONED_MUTABLE_RT_VERSION.bytes);
                 recordTable.delete(delete);
             }
+            if (!blobReferencesPut.isEmpty()) {
+                recordTable.put(blobReferencesPut);
+            }
+        }
+    }
+
+    /**
+     * Reads all versions of the given blob fields to find the blobs they reference.
+     */
+    private Set<BlobReference> getBlobsOfAllVersions(RecordId recordId, Record originalRecord,
+            List<FieldType> blobFieldTypes) throws IOException {
+        Set<BlobReference> blobs = new HashSet<BlobReference>();
+
+        Get get = new Get(recordId.toBytes());
+        for (FieldType fieldType : blobFieldTypes) {
+            get.addColumn(RecordCf.DATA.bytes, ((FieldTypeImpl)fieldType).getQualifier());
+        }
+        get.setMaxVersions();
+        Result result = recordTable.get(get);
+
+        for (FieldType fieldType : blobFieldTypes) {
+            try {
+                ValueType valueType = fieldType.getValueType();
+                if (fieldType.getScope() == Scope.NON_VERSIONED) {
+                    // Read the blob value from the original record,
+                    // since the delete marker has already been put in the field by the delete call
+                    if (originalRecord != null && originalRecord.hasField(fieldType.getName())) {
+                        blobs.addAll(getReferencedBlobs((FieldTypeImpl)fieldType,
+                                originalRecord.getField(fieldType.getName())));
+                    }
+                } else {
+                    for (KeyValue kv : result.getColumn(RecordCf.DATA.bytes,
+                            ((FieldTypeImpl)fieldType).getQualifier())) {
+                        byte[] value = kv.getValue();
+                        if (!isDeleteMarker(value)) {
+                            blobs.addAll(getReferencedBlobs((FieldTypeImpl)fieldType,
+                                    valueType.read(EncodingUtil.stripPrefix(value))));
+                        }
+                    }
+                }
+            } catch (RepositoryException e) {
+                log.warn("Failure occured while clearing blob data", e);
+                // We do a best effort here
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return blobs;
+    }
+
+    /**
+     * Adds a column for each of the referenced blobs to the record row, so that the blobs can be found back when the
+     * record is deleted, without having to read and decode all versions of the blob fields. Blobs which are stored
+     * inline don't need to be deleted and hence aren't tracked.
+     */
+    private void addBlobReferenceColumns(Put put, Set<BlobReference> referencedBlobs) {
+        for (BlobReference blobReference : referencedBlobs) {
+            Blob blob = blobReference.getBlob();
+            if (blobManager.isStoredSeparately(blob)) {
+                put.add(RecordCf.DATA.bytes, Bytes.add(new byte[]{RecordColumn.BLOB_REF_PREFIX}, blob.getValue()),
+                        1L, new byte[0]);
+            }
+        }
+    }
+
+    /**
+     * Puts a delete marker in the columns tracking the blobs which are no longer referenced by the record. As for the
+     * non-versioned fields, a delete marker is used rather than a HBase delete, since the delete tombstone would also
+     * hide the column if the blob gets referenced again, the columns being always stored at timestamp 1L.
+     */
+    private void removeBlobReferenceColumns(Put put, Set<BlobReference> referencedBlobs,
+            Set<BlobReference> unReferencedBlobs) {
+        Set<byte[]> stillReferenced = new TreeSet<byte[]>(Bytes.BYTES_COMPARATOR);
+        for (BlobReference blobReference : referencedBlobs) {
+            stillReferenced.add(blobReference.getBlob().getValue());
+        }
+        for (BlobReference blobReference : unReferencedBlobs) {
+            Blob blob = blobReference.getBlob();
+            if (blobManager.isStoredSeparately(blob) && !stillReferenced.contains(blob.getValue())) {
+                put.add(RecordCf.DATA.bytes, Bytes.add(new byte[]{RecordColumn.BLOB_REF_PREFIX}, blob.getValue()),
+                        1L, DELETE_MARKER);
+            }
         }
     }
 
@@ -1140,11 +1236,10 @@ public class HBaseRepository extends BaseRepository {
 
             Get get = new Get(recordIdBytes);
             get.addColumn(RecordCf.DATA.bytes, fieldType.getQualifier());
-            byte[] valueToCompare = Bytes.toBytes(valueType.getNestingLevel());
 
             // Note, if a encoding of the BlobValueType is added, this might have to change.
-            valueToCompare = Bytes.add(valueToCompare, blobReference.getBlob().getValue());
-            WritableByteArrayComparable valueComparator = new ContainsValueComparator(valueToCompare);
+            WritableByteArrayComparable valueComparator = new ContainsValueComparator(valueType.getNestingLevel(),
+                    blobReference.getBlob().getValue());
             Filter filter = new SingleColumnValueFilter(RecordCf.DATA.bytes, fieldType.getQualifier(), CompareOp.EQUAL,
                     valueComparator);
             get.setFilter(filter);
@@ -1172,29 +1267,15 @@ public class HBaseRepository extends BaseRepository {
     }
 
     @Override
-    public Set<RecordId> getVariants(RecordId recordId) throws RepositoryException {
-        byte[] masterRecordIdBytes = recordId.getMaster().toBytes();
-        FilterList filterList = new FilterList(FilterList.Operator.MUST_PASS_ALL);
-        filterList.addFilter(new PrefixFilter(masterRecordIdBytes));
-        filterList.addFilter(REAL_RECORDS_FILTER);
-
-        Scan scan = new Scan(masterRecordIdBytes, filterList);
-        scan.addColumn(RecordCf.DATA.bytes, RecordColumn.DELETED.bytes);
-
+    public Set<RecordId> getVariants(RecordId recordId) throws RepositoryException, InterruptedException {
         Set<RecordId> recordIds = new HashSet<RecordId>();
 
-        try {
-            ResultScanner scanner = recordTable.getScanner(scan);
-            Result result;
-            while ((result = scanner.next()) != null) {
-                RecordId id = idGenerator.fromBytes(result.getRow());
-                recordIds.add(id);
-            }
-            Closer.close(
-                    scanner); // Not closed in finally block: avoid HBase contact when there could be connection problems.
-        } catch (IOException e) {
-            throw new RepositoryException("Error getting list of variants of record " + recordId.getMaster(), e);
+        RecordIdScanner scanner = getVariantsScanner(recordId);
+        RecordId id;
+        while ((id = scanner.next()) != null) {
+            recordIds.add(id);
         }
+        Closer.close(scanner); // Not closed in finally block: avoid HBase contact when there could be connection problems.
 
         return recordIds;
     }
@@ -910,6 +910,48 @@ public class HBaseTypeManager extends AbstractTypeManager implements TypeManager
         return typeBucket;
     }
 
+    @Override
+    public Pair<List<FieldType>, List<RecordType>> getTypesWithoutCache(List<SchemaId> ids)
+            throws RepositoryException, InterruptedException {
+        List<FieldType> fieldTypes = new ArrayList<FieldType>();
+        List<RecordType> recordTypes = new ArrayList<RecordType>();
+
+        List<Get> gets = new ArrayList<Get>(ids.size());
+        for (SchemaId id : ids) {
+            Get get = new Get(id.getBytes());
+            // Field type columns
+            get.addColumn(TypeCf.DATA.bytes, TypeColumn.FIELDTYPE_NAME.bytes);
+            get.addColumn(TypeCf.DATA.bytes, TypeColumn.FIELDTYPE_VALUETYPE.bytes);
+            get.addColumn(TypeCf.DATA.bytes, TypeColumn.FIELDTYPE_SCOPE.bytes);
+            // Record type columns
+            get.addColumn(TypeCf.DATA.bytes, TypeColumn.RECORDTYPE_NAME.bytes);
+            get.addColumn(TypeCf.DATA.bytes, TypeColumn.VERSION.bytes);
+            get.addFamily(TypeCf.FIELDTYPE_ENTRY.bytes);
+            get.addFamily(TypeCf.MIXIN.bytes);
+            gets.add(get);
+        }
+
+        Result[] results;
+        try {
+            results = getTypeTable().get(gets);
+        } catch (IOException e) {
+            throw new TypeException("Exception occurred while retrieving field types and record types without cache ",
+                    e);
+        }
+
+        for (Result result : results) {
+            // Skip the types which do not exist (anymore)
+            if (result == null || result.isEmpty())
+                continue;
+            if (result.getValue(TypeCf.DATA.bytes, TypeColumn.FIELDTYPE_NAME.bytes) != null) {
+                fieldTypes.add(extractFieldType(new SchemaIdImpl(result.getRow()), result));
+            } else if (result.getValue(TypeCf.DATA.bytes, TypeColumn.RECORDTYPE_NAME.bytes) != null) {
+                recordTypes.add(extractRecordType(new SchemaIdImpl(result.getRow()), null, result));
+            }
+        }
+        return new Pair<List<FieldType>, List<RecordType>>(fieldTypes, recordTypes);
+    }
+
     public static byte[] encodeName(QName qname) {
         String name = qname.getName();
         String namespace = qname.getNamespace();
@@ -69,7 +69,7 @@ public class LocalSchemaCache extends AbstractSchemaCache implements SchemaCache
                     String bucketId = encodeHex(rowKey);
                     if (log.isDebugEnabled())
                         log.debug("Triggering schema cache refresh for bucket: " + bucketId);
-                    ZkUtil.update(zooKeeper, CACHE_INVALIDATION_PATH + "/" + bucketId, null, -1);
+                    appendToChangeLog(CACHE_INVALIDATION_PATH + "/" + bucketId, rowKey);
                 }
             } catch (KeeperException e) {
                 throw new TypeException("Exception while triggering cache refresh", e);
@@ -77,6 +77,26 @@ public class LocalSchemaCache extends AbstractSchemaCache implements SchemaCache
         }
     }
 
+    /**
+     * Adds the changed type to the {@link TypeChangeLog} of the bucket, which also triggers the refresh of the
+     * bucket by the caches. The log is updated using the version of the bucket node, to avoid losing the
+     * changes of concurrent updaters.
+     */
+    private void appendToChangeLog(final String bucketPath, final byte[] typeId)
+            throws KeeperException, InterruptedException {
+        while (true) {
+            Stat stat = new Stat();
+            byte[] data = ZkUtil.getData(zooKeeper, bucketPath, null, stat);
+            byte[] newData = TypeChangeLog.append(data, stat.getVersion() + 1, typeId);
+            try {
+                ZkUtil.update(zooKeeper, bucketPath, newData, stat.getVersion());
+                return;
+            } catch (KeeperException.BadVersionException e) {
+                // Concurrent update of the bucket, try again
+            }
+        }
+    }
+
     //
     //
     // Enable / disable cache refreshing
@@ -272,7 +272,8 @@ public class RecordDecoder {
         if (LilyHBaseSchema.DELETE_FLAG == prefix) {
             return null;
         }
-        FieldType fieldType = fieldTypes.getFieldType(new SchemaIdImpl(Bytes.tail(key, key.length - 1)));
+        // The qualifier is the field type id prefixed with one byte, look up the field type directly on it
+        FieldType fieldType = fieldTypes.getFieldType(key, 1, key.length - 1);
         if (context != null)
             context.addFieldType(fieldType);
         ValueType valueType = fieldType.getValueType();
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.impl;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+import org.lilyproject.bytes.api.DataInput;
+import org.lilyproject.bytes.api.DataOutput;
+import org.lilyproject.bytes.impl.DataInputImpl;
+import org.lilyproject.bytes.impl.DataOutputImpl;
+
+/**
+ * The log of the most recent type changes, stored as data of the cache invalidation bucket nodes in ZooKeeper.
+ *
+ * <p>Each entry is tagged with the version the bucket node got through the change. A schema cache which
+ * knows a previous version of the bucket can hence determine which types changed since then, and read only
+ * those types instead of the whole bucket. When the log does not cover all versions since the known version,
+ * the whole bucket needs to be read.</p>
+ */
+public class TypeChangeLog {
+    private static final byte FORMAT_VERSION = 1;
+
+    /**
+     * The maximum number of changes kept in the log of one bucket.
+     */
+    public static final int MAX_ENTRIES = 16;
+
+    public static class Change {
+        private final int version;
+        private final byte[] typeId;
+
+        public Change(int version, byte[] typeId) {
+            this.version = version;
+            this.typeId = typeId;
+        }
+
+        /**
+         * The version of the bucket node after this change.
+         */
+        public int getVersion() {
+            return version;
+        }
+
+        public byte[] getTypeId() {
+            return typeId;
+        }
+    }
+
+    private TypeChangeLog() {
+    }
+
+    /**
+     * Returns the data for the bucket node with the change appended to the existing log.
+     *
+     * @param data the current data of the bucket node, can be null
+     * @param version the version the bucket node will get when the new data is written
+     */
+    public static byte[] append(byte[] data, int version, byte[] typeId) {
+        List<Change> changes = new ArrayList<Change>(parse(data));
+        changes.add(new Change(version, typeId));
+        if (changes.size() > MAX_ENTRIES) {
+            changes = changes.subList(changes.size() - MAX_ENTRIES, changes.size());
+        }
+
+        DataOutput output = new DataOutputImpl();
+        output.writeByte(FORMAT_VERSION);
+        output.writeVInt(changes.size());
+        for (Change change : changes) {
+            output.writeInt(change.getVersion());
+            output.writeVInt(change.getTypeId().length);
+            output.writeBytes(change.getTypeId());
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Returns the changes which brought the bucket node from the known version to the current version, or null
+     * if the log does not contain all of them.
+     */
+    public static List<Change> getChangesSince(byte[] data, int knownVersion, int currentVersion) {
+        if (currentVersion <= knownVersion) {
+            return Collections.emptyList();
+        }
+        // The log can not cover more versions than it has entries
+        if ((long)currentVersion - knownVersion > MAX_ENTRIES) {
+            return null;
+        }
+
+        List<Change> result = new ArrayList<Change>();
+        BitSet coveredVersions = new BitSet(currentVersion - knownVersion);
+        for (Change change : parse(data)) {
+            if (change.getVersion() > knownVersion && change.getVersion() <= currentVersion) {
+                result.add(change);
+                coveredVersions.set(change.getVersion() - knownVersion - 1);
+            }
+        }
+
+        if (coveredVersions.cardinality() != currentVersion - knownVersion) {
+            return null;
+        }
+        return result;
+    }
+
+    private static List<Change> parse(byte[] data) {
+        // Bucket nodes without (recognized) data, e.g. written by a node without change log support,
+        // are considered to have an empty log
+        if (data == null || data.length == 0 || data[0] != FORMAT_VERSION) {
+            return Collections.emptyList();
+        }
+
+        DataInput input = new DataInputImpl(data);
+        input.readByte();
+        int count = input.readVInt();
+        List<Change> changes = new ArrayList<Change>(count);
+        for (int i = 0; i < count; i++) {
+            int version = input.readInt();
+            int length = input.readVInt();
+            changes.add(new Change(version, input.readBytes(length)));
+        }
+        return changes;
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.lilyproject.repository.api.QName;
+import org.lilyproject.repository.api.SchemaId;
+
+/**
+ * An immutable set of types, indexed by id and by name.
+ *
+ * <p>Both indexes are divided in 256 buckets stored in an array: the id index on the first byte of the id
+ * (which are the same buckets as used for the cache invalidation), the name index on the hash code of the
+ * name. A change results in a new snapshot, which shares the buckets that were not touched by the change
+ * with the previous snapshot. This allows the schema caches to publish their content through a volatile
+ * reference, without readers ever having to take a lock.</p>
+ *
+ * <p>The buckets of the id index are open addressing tables keyed on the bytes of the id, so that types can
+ * be looked up directly from a range of a byte array, such as an HBase column qualifier, without first
+ * creating a {@link SchemaId}.</p>
+ */
+class TypeSnapshot<T> {
+    private static final int BUCKET_COUNT = 256;
+
+    /**
+     * Gives access to the id and name of the types in the snapshot.
+     */
+    interface Accessor<T> {
+        SchemaId getId(T type);
+
+        QName getName(T type);
+    }
+
+    private final Accessor<T> accessor;
+    private final IdTable<T>[] idBuckets;
+    private final Map<QName, T>[] nameBuckets;
+
+    @SuppressWarnings("unchecked")
+    TypeSnapshot(Accessor<T> accessor) {
+        this(accessor, new IdTable[BUCKET_COUNT], new Map[BUCKET_COUNT]);
+    }
+
+    private TypeSnapshot(Accessor<T> accessor, IdTable<T>[] idBuckets, Map<QName, T>[] nameBuckets) {
+        this.accessor = accessor;
+        this.idBuckets = idBuckets;
+        this.nameBuckets = nameBuckets;
+    }
+
+    /**
+     * Returns the type with the given id, or null if it is not in the snapshot.
+     */
+    T get(SchemaId id) {
+        byte[] idBytes = id.getBytes();
+        return get(idBytes, 0, idBytes.length);
+    }
+
+    /**
+     * Returns the type whose id consists of the given range of bytes, or null if it is not in the snapshot.
+     */
+    T get(byte[] idBytes, int offset, int length) {
+        IdTable<T> bucket = idBuckets[idBytes[offset] & 0xFF];
+        return bucket == null ? null : bucket.get(idBytes, offset, length);
+    }
+
+    /**
+     * Returns the type with the given name, or null if it is not in the snapshot.
+     */
+    T get(QName name) {
+        Map<QName, T> bucket = nameBuckets[nameBucket(name)];
+        return bucket == null ? null : bucket.get(name);
+    }
+
+    List<T> getAll() {
+        List<T> types = new ArrayList<T>();
+        for (Map<QName, T> bucket : nameBuckets) {
+            if (bucket != null) {
+                types.addAll(bucket.values());
+            }
+        }
+        return types;
+    }
+
+    /**
+     * Returns a new snapshot which contains the given types in addition to the types of this snapshot.
+     * Types which are already in this snapshot, based on their id, are replaced.
+     */
+    TypeSnapshot<T> with(Collection<T> types) {
+        if (types.isEmpty()) {
+            return this;
+        }
+
+        IdTable<T>[] newIdBuckets = idBuckets.clone();
+        Map<QName, T>[] newNameBuckets = nameBuckets.clone();
+        // The buckets which have already been copied for this change, and can hence be modified
+        boolean[] copiedIdBuckets = new boolean[BUCKET_COUNT];
+        boolean[] copiedNameBuckets = new boolean[BUCKET_COUNT];
+
+        for (T type : types) {
+            SchemaId id = accessor.getId(type);
+            QName name = accessor.getName(type);
+
+            int idBucket = id.getBytes()[0] & 0xFF;
+            if (!copiedIdBuckets[idBucket]) {
+                newIdBuckets[idBucket] = newIdBuckets[idBucket] == null ? new IdTable<T>() :
+                        new IdTable<T>(newIdBuckets[idBucket]);
+                copiedIdBuckets[idBucket] = true;
+            }
+            T oldType = newIdBuckets[idBucket].put(id.getBytes(), type);
+            if (oldType != null && !accessor.getName(oldType).equals(name)) {
+                // The type was renamed: remove the old name, unless meanwhile it is used by another type
+                QName oldName = accessor.getName(oldType);
+                int oldNameBucket = nameBucket(oldName);
+                T typeWithOldName = newNameBuckets[oldNameBucket] == null ? null :
+                        newNameBuckets[oldNameBucket].get(oldName);
+                if (typeWithOldName != null && accessor.getId(typeWithOldName).equals(id)) {
+                    writableBucket(newNameBuckets, copiedNameBuckets, oldNameBucket).remove(oldName);
+                }
+            }
+            writableBucket(newNameBuckets, copiedNameBuckets, nameBucket(name)).put(name, type);
+        }
+
+        return new TypeSnapshot<T>(accessor, newIdBuckets, newNameBuckets);
+    }
+
+    private static <K, V> Map<K, V> writableBucket(Map<K, V>[] buckets, boolean[] copied, int index) {
+        if (!copied[index]) {
+            buckets[index] = buckets[index] == null ? new HashMap<K, V>() : new HashMap<K, V>(buckets[index]);
+            copied[index] = true;
+        }
+        return buckets[index];
+    }
+
+    private static int nameBucket(QName name) {
+        int hash = name.hashCode();
+        return (hash ^ (hash >>> 8) ^ (hash >>> 16) ^ (hash >>> 24)) & 0xFF;
+    }
+
+    /**
+     * Open addressing hash table with linear probing, keyed on the bytes of type ids. Lookups are done on
+     * a range of a byte array and do not allocate anything.
+     */
+    private static class IdTable<T> {
+        private static final int INITIAL_CAPACITY = 8;
+
+        private byte[][] keys;
+        private Object[] values;
+        private int size;
+
+        IdTable() {
+            keys = new byte[INITIAL_CAPACITY][];
+            values = new Object[INITIAL_CAPACITY];
+        }
+
+        IdTable(IdTable<T> other) {
+            keys = other.keys.clone();
+            values = other.values.clone();
+            size = other.size;
+        }
+
+        @SuppressWarnings("unchecked")
+        T get(byte[] key, int offset, int length) {
+            int mask = keys.length - 1;
+            int slot = hash(key, offset, length) & mask;
+            while (keys[slot] != null) {
+                if (rangeEquals(keys[slot], key, offset, length)) {
+                    return (T)values[slot];
+                }
+                slot = (slot + 1) & mask;
+            }
+            return null;
+        }
+
+        /**
+         * Puts the value in the table, returns the value previously stored for the key, if any.
+         */
+        @SuppressWarnings("unchecked")
+        T put(byte[] key, T value) {
+            // Keep the load factor under 0.5, to keep the probe sequences short
+            if ((size + 1) * 2 > keys.length) {
+                resize(keys.length * 2);
+            }
+            int mask = keys.length - 1;
+            int slot = hash(key, 0, key.length) & mask;
+            while (keys[slot] != null) {
+                if (rangeEquals(keys[slot], key, 0, key.length)) {
+                    T oldValue = (T)values[slot];
+                    values[slot] = value;
+                    return oldValue;
+                }
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values[slot] = value;
+            size++;
+            return null;
+        }
+
+        private void resize(int capacity) {
+            byte[][] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new byte[capacity][];
+            values = new Object[capacity];
+            int mask = capacity - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    int slot = hash(oldKeys[i], 0, oldKeys[i].length) & mask;
+                    while (keys[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+
+        private static int hash(byte[] bytes, int offset, int length) {
+            int hash = 1;
+            for (int i = offset; i < offset + length; i++) {
+                hash = 31 * hash + bytes[i];
+            }
+            return hash ^ (hash >>> 16);
+        }
+
+        private static boolean rangeEquals(byte[] key, byte[] bytes, int offset, int length) {
+            if (key.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (key[i] != bytes[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
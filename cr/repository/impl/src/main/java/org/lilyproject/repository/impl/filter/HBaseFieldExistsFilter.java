@@ -0,0 +1,54 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.impl.filter;
+
+import org.apache.hadoop.hbase.filter.CompareFilter;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.SingleColumnValueFilter;
+import org.lilyproject.repository.api.FieldType;
+import org.lilyproject.repository.api.Repository;
+import org.lilyproject.repository.api.RepositoryException;
+import org.lilyproject.repository.api.filter.FieldExistsFilter;
+import org.lilyproject.repository.api.filter.RecordFilter;
+import org.lilyproject.repository.impl.FieldTypeImpl;
+import org.lilyproject.repository.spi.HBaseRecordFilterFactory;
+
+import static org.lilyproject.util.hbase.LilyHBaseSchema.DELETE_MARKER;
+import static org.lilyproject.util.hbase.LilyHBaseSchema.RecordCf;
+
+public class HBaseFieldExistsFilter implements HBaseRecordFilterFactory {
+    @Override
+    public Filter createHBaseFilter(RecordFilter uncastFilter, Repository repository, HBaseRecordFilterFactory factory)
+            throws RepositoryException, InterruptedException {
+
+        if (!(uncastFilter instanceof FieldExistsFilter)) {
+            return null;
+        }
+
+        FieldExistsFilter filter = (FieldExistsFilter)uncastFilter;
+
+        if (filter.getField() == null) {
+            throw new IllegalArgumentException("Field name should be specified in FieldExistsFilter");
+        }
+
+        // Deleted fields can be stored as delete markers rather than being really deleted
+        FieldType fieldType = repository.getTypeManager().getFieldTypeByName(filter.getField());
+        SingleColumnValueFilter hbaseFilter = new SingleColumnValueFilter(RecordCf.DATA.bytes,
+                ((FieldTypeImpl)fieldType).getQualifier(), CompareFilter.CompareOp.NOT_EQUAL, DELETE_MARKER);
+        hbaseFilter.setFilterIfMissing(true);
+        return hbaseFilter;
+    }
+}
@@ -15,11 +15,7 @@
  */
 package org.lilyproject.repository.impl.filter;
 
-import java.util.Arrays;
-
 import org.apache.hadoop.hbase.filter.Filter;
-import org.apache.hadoop.hbase.filter.FilterList;
-import org.apache.hadoop.hbase.filter.PrefixFilter;
 import org.lilyproject.hbaseext.LilyRecordVariantFilter;
 import org.lilyproject.repository.api.Repository;
 import org.lilyproject.repository.api.RepositoryException;
@@ -46,9 +42,8 @@ public class HBaseRecordVariantFilter implements HBaseRecordFilterFactory {
             throw new IllegalArgumentException("VariantProperties should be specified in RecordVariantFilter");
         }
 
-        return new FilterList(Arrays.<Filter>asList(
-                new PrefixFilter(filter.getMasterRecordId().getMaster().toBytes()),
-                new LilyRecordVariantFilter(filter.getVariantProperties())));
+        return new LilyRecordVariantFilter(filter.getMasterRecordId().getMaster().toBytes(),
+                filter.getVariantProperties());
 
     }
 }
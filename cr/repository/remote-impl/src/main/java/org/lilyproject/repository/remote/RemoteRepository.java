@@ -19,6 +19,7 @@ import java.io.IOException;
 import java.lang.reflect.UndeclaredThrowableException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 
@@ -130,6 +131,25 @@ public class RemoteRepository extends BaseRepository {
         }
     }
 
+    @Override
+    public void delete(List<RecordId> recordIds) throws RepositoryException, InterruptedException {
+        try {
+            List<ByteBuffer> avroRecordIds = new ArrayList<ByteBuffer>(recordIds.size());
+            for (RecordId recordId : recordIds) {
+                avroRecordIds.add(converter.convert(recordId));
+            }
+            lilyProxy.deleteRecords(avroRecordIds);
+        } catch (AvroRepositoryException e) {
+            throw converter.convert(e);
+        } catch (AvroGenericException e) {
+            throw converter.convert(e);
+        } catch (AvroRemoteException e) {
+            throw handleAvroRemoteException(e);
+        } catch (UndeclaredThrowableException e) {
+            throw handleUndeclaredRecordThrowable(e);
+        }
+    }
+
     @Override
     public void delete(Record record) throws RepositoryException, InterruptedException {
         try {
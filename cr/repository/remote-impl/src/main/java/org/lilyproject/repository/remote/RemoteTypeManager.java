@@ -18,6 +18,7 @@ package org.lilyproject.repository.remote;
 import java.io.IOException;
 import java.lang.reflect.UndeclaredThrowableException;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.List;
 import javax.annotation.PreDestroy;
 
@@ -31,6 +32,7 @@ import org.lilyproject.avro.AvroFieldType;
 import org.lilyproject.avro.AvroGenericException;
 import org.lilyproject.avro.AvroLily;
 import org.lilyproject.avro.AvroRepositoryException;
+import org.lilyproject.avro.AvroSchemaId;
 import org.lilyproject.avro.AvroTypeBucket;
 import org.lilyproject.avro.NettyTransceiverFactory;
 import org.lilyproject.repository.api.FieldType;
@@ -294,6 +296,24 @@ public class RemoteTypeManager extends AbstractTypeManager implements TypeManage
         }
     }
 
+    @Override
+    public Pair<List<FieldType>, List<RecordType>> getTypesWithoutCache(List<SchemaId> ids)
+            throws RepositoryException, InterruptedException {
+        try {
+            List<AvroSchemaId> avroIds = new ArrayList<AvroSchemaId>(ids.size());
+            for (SchemaId id : ids) {
+                avroIds.add(converter.convert(id));
+            }
+            return converter.convertAvroFieldAndRecordTypes(lilyProxy.getTypesByIdWithoutCache(avroIds));
+        } catch (AvroRepositoryException e) {
+            throw converter.convert(e);
+        } catch (AvroRemoteException e) {
+            throw handleAvroRemoteException(e);
+        } catch (UndeclaredThrowableException e) {
+            throw handleUndeclaredTypeThrowable(e);
+        }
+    }
+
     @Override
     public void disableSchemaCacheRefresh() throws RepositoryException, InterruptedException {
         try {
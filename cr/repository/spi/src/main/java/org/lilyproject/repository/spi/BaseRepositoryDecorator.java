@@ -33,6 +33,7 @@ import org.lilyproject.repository.api.Record;
 import org.lilyproject.repository.api.RecordBuilder;
 import org.lilyproject.repository.api.RecordException;
 import org.lilyproject.repository.api.RecordId;
+import org.lilyproject.repository.api.RecordIdScanner;
 import org.lilyproject.repository.api.RecordScan;
 import org.lilyproject.repository.api.RecordScanner;
 import org.lilyproject.repository.api.Repository;
@@ -180,6 +181,11 @@ public class BaseRepositoryDecorator implements RepositoryDecorator {
         delegate.delete(record);
     }
 
+    @Override
+    public void delete(List<RecordId> recordIds) throws RepositoryException, InterruptedException {
+        delegate.delete(recordIds);
+    }
+
     @Override
     public IdGenerator getIdGenerator() {
         return delegate.getIdGenerator();
@@ -252,6 +258,11 @@ public class BaseRepositoryDecorator implements RepositoryDecorator {
         return delegate.getVariants(recordId);
     }
 
+    @Override
+    public RecordIdScanner getVariantsScanner(RecordId recordId) throws RepositoryException, InterruptedException {
+        return delegate.getVariantsScanner(recordId);
+    }
+
     @Override
     public RecordScanner getScanner(RecordScan scan) throws RepositoryException, InterruptedException {
         return delegate.getScanner(scan);
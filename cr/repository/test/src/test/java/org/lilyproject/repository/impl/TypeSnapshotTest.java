@@ -0,0 +1,199 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.lilyproject.repository.api.QName;
+import org.lilyproject.repository.api.SchemaId;
+import org.lilyproject.repository.impl.id.SchemaIdImpl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests {@link TypeSnapshot}, which is package-private and hence tested from within its package.
+ */
+public class TypeSnapshotTest {
+    private static final TypeSnapshot.Accessor<Type> ACCESSOR = new TypeSnapshot.Accessor<Type>() {
+        @Override
+        public SchemaId getId(Type type) {
+            return type.id;
+        }
+
+        @Override
+        public QName getName(Type type) {
+            return type.name;
+        }
+    };
+
+    @Test
+    public void testLookup() {
+        Type type1 = new Type(id(1, 1), "type1");
+        Type type2 = new Type(id(2, 1), "type2");
+        TypeSnapshot<Type> snapshot = new TypeSnapshot<Type>(ACCESSOR).with(Arrays.asList(type1, type2));
+
+        assertSame(type1, snapshot.get(type1.id));
+        assertSame(type2, snapshot.get(new SchemaIdImpl(type2.id.getBytes().clone())));
+        assertSame(type1, snapshot.get(type1.name));
+        assertSame(type2, snapshot.get(new QName("ns", "type2")));
+        assertEquals(2, snapshot.getAll().size());
+
+        // Lookup on a range of a larger array, as done for column qualifiers
+        byte[] qualifier = new byte[20];
+        System.arraycopy(type2.id.getBytes(), 0, qualifier, 2, 16);
+        assertSame(type2, snapshot.get(qualifier, 2, 16));
+
+        assertNull(snapshot.get(id(1, 2)));
+        assertNull(snapshot.get(id(3, 1)));
+        assertNull(snapshot.get(type1.id.getBytes(), 0, 15));
+        assertNull(snapshot.get(new QName("ns", "type3")));
+    }
+
+    @Test
+    public void testReplace() {
+        Type type1 = new Type(id(1, 1), "type1");
+        TypeSnapshot<Type> snapshot = new TypeSnapshot<Type>(ACCESSOR).with(Collections.singletonList(type1));
+
+        // Same id and name
+        Type type1b = new Type(id(1, 1), "type1");
+        snapshot = snapshot.with(Collections.singletonList(type1b));
+        assertSame(type1b, snapshot.get(type1.id));
+        assertSame(type1b, snapshot.get(type1.name));
+        assertEquals(1, snapshot.getAll().size());
+
+        // Rename: the old name is removed
+        Type renamed = new Type(id(1, 1), "renamed");
+        snapshot = snapshot.with(Collections.singletonList(renamed));
+        assertSame(renamed, snapshot.get(type1.id));
+        assertSame(renamed, snapshot.get(renamed.name));
+        assertNull(snapshot.get(type1.name));
+        assertEquals(1, snapshot.getAll().size());
+
+        // Swapping names within one change does not lose any of them
+        Type other = new Type(id(2, 1), "other");
+        snapshot = snapshot.with(Collections.singletonList(other));
+        Type renamedToOther = new Type(id(1, 1), "other");
+        Type otherToRenamed = new Type(id(2, 1), "renamed");
+        snapshot = snapshot.with(Arrays.asList(otherToRenamed, renamedToOther));
+        assertSame(renamedToOther, snapshot.get(new QName("ns", "other")));
+        assertSame(otherToRenamed, snapshot.get(new QName("ns", "renamed")));
+        assertEquals(2, snapshot.getAll().size());
+    }
+
+    @Test
+    public void testCollidingIds() {
+        // Same bucket (first byte), and ids with the same hash code, hence the same slot within the bucket
+        byte[] bytes1 = id(7, 0).getBytes();
+        bytes1[14] = 1;
+        bytes1[15] = 40;
+        byte[] bytes2 = id(7, 0).getBytes();
+        bytes2[14] = 2;
+        bytes2[15] = 9;
+        Type type1 = new Type(new SchemaIdImpl(bytes1), "type1");
+        Type type2 = new Type(new SchemaIdImpl(bytes2), "type2");
+
+        TypeSnapshot<Type> snapshot = new TypeSnapshot<Type>(ACCESSOR).with(Collections.singletonList(type1));
+        snapshot = snapshot.with(Collections.singletonList(type2));
+        assertSame(type1, snapshot.get(type1.id));
+        assertSame(type2, snapshot.get(type2.id));
+
+        Type type2b = new Type(new SchemaIdImpl(bytes2.clone()), "type2");
+        snapshot = snapshot.with(Collections.singletonList(type2b));
+        assertSame(type1, snapshot.get(type1.id));
+        assertSame(type2b, snapshot.get(type2.id));
+        assertEquals(2, snapshot.getAll().size());
+    }
+
+    @Test
+    public void testGrowth() {
+        // Many types in one bucket, added one by one and all at once, make the bucket table grow
+        List<Type> types = new ArrayList<Type>();
+        TypeSnapshot<Type> snapshot = new TypeSnapshot<Type>(ACCESSOR);
+        for (int i = 0; i < 100; i++) {
+            Type type = new Type(id(5, i), "type" + i);
+            types.add(type);
+            snapshot = snapshot.with(Collections.singletonList(type));
+        }
+        TypeSnapshot<Type> bulkSnapshot = new TypeSnapshot<Type>(ACCESSOR).with(types);
+
+        for (Type type : types) {
+            assertSame(type, snapshot.get(type.id));
+            assertSame(type, snapshot.get(type.name));
+            assertSame(type, bulkSnapshot.get(type.id));
+            assertSame(type, bulkSnapshot.get(type.name));
+        }
+        assertEquals(100, snapshot.getAll().size());
+        assertEquals(100, bulkSnapshot.getAll().size());
+        assertNull(snapshot.get(id(5, 100)));
+    }
+
+    @Test
+    public void testEarlierSnapshotsUnchanged() {
+        Type type1 = new Type(id(1, 1), "type1");
+        Type type2 = new Type(id(1, 2), "type2");
+        TypeSnapshot<Type> empty = new TypeSnapshot<Type>(ACCESSOR);
+        TypeSnapshot<Type> snapshot1 = empty.with(Collections.singletonList(type1));
+
+        // Another type in the same bucket and a rename of the existing one
+        Type renamed = new Type(id(1, 1), "renamed");
+        TypeSnapshot<Type> snapshot2 = snapshot1.with(Arrays.asList(type2, renamed));
+
+        assertNull(empty.get(type1.id));
+        assertEquals(0, empty.getAll().size());
+
+        assertSame(type1, snapshot1.get(type1.id));
+        assertSame(type1, snapshot1.get(type1.name));
+        assertNull(snapshot1.get(type2.id));
+        assertNull(snapshot1.get(type2.name));
+        assertNull(snapshot1.get(renamed.name));
+        assertEquals(1, snapshot1.getAll().size());
+
+        assertSame(renamed, snapshot2.get(type1.id));
+        assertSame(type2, snapshot2.get(type2.id));
+        assertNull(snapshot2.get(type1.name));
+        assertEquals(2, snapshot2.getAll().size());
+
+        // Adding nothing gives the same snapshot
+        assertSame(snapshot2, snapshot2.with(Collections.<Type>emptyList()));
+    }
+
+    /**
+     * Creates an id of 16 bytes, like the UUID based schema ids, with the given first (bucket) and last bytes.
+     */
+    private static SchemaId id(int bucket, int nr) {
+        byte[] bytes = new byte[16];
+        bytes[0] = (byte)bucket;
+        bytes[14] = (byte)(nr >> 8);
+        bytes[15] = (byte)nr;
+        return new SchemaIdImpl(bytes);
+    }
+
+    private static class Type {
+        private final SchemaId id;
+        private final QName name;
+
+        Type(SchemaId id, String name) {
+            this.id = id;
+            this.name = new QName("ns", name);
+        }
+    }
+}
@@ -15,6 +15,9 @@
  */
 package org.lilyproject.repository.impl.test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -677,6 +680,110 @@ public abstract class AbstractBlobStoreTest {
         assertBlobDelete(true, blob);
     }
     
+    @Test
+    public void testDeleteRemovesBlobReferences() throws Exception {
+        QName fieldName = new QName(namespace, "testDeleteRemovesBlobReferences");
+        FieldType fieldType = typeManager.newFieldType(typeManager.getValueType("BLOB"), fieldName,
+                Scope.VERSIONED);
+        fieldType = typeManager.createFieldType(fieldType);
+        RecordType recordType = typeManager.newRecordType(new QName(namespace, "testDeleteRemovesBlobReferencesRT"));
+        recordType.addFieldTypeEntry(typeManager.newFieldTypeEntry(fieldType.getId(), true));
+        recordType = typeManager.createRecordType(recordType);
+
+        byte[] bytes = new byte[3000];
+        random.nextBytes(bytes);
+        Blob blob = writeBlob(bytes, "aMediaType", "testDeleteRemovesBlobReferences");
+        Record record = repository.newRecord();
+        record.setRecordType(recordType.getName());
+        record.setField(fieldName, blob);
+        record = repository.create(record);
+        assertBlobReferenced(true, record.getId(), blob);
+
+        repository.delete(record.getId());
+
+        assertBlobDelete(true, blob);
+        assertBlobReferenced(false, record.getId(), blob);
+        Result result = getRecordRow(record.getId());
+        assertFalse(Bytes.toBoolean(result.getValue(LilyHBaseSchema.RecordCf.DATA.bytes,
+                LilyHBaseSchema.RecordColumn.BLOB_REFS.bytes)));
+    }
+
+    @Test
+    public void testDeleteRecreateDelete() throws Exception {
+        QName fieldName = new QName(namespace, "testDeleteRecreateDelete");
+        FieldType fieldType = typeManager.newFieldType(typeManager.getValueType("BLOB"), fieldName,
+                Scope.NON_VERSIONED);
+        fieldType = typeManager.createFieldType(fieldType);
+        RecordType recordType = typeManager.newRecordType(new QName(namespace, "testDeleteRecreateDeleteRT"));
+        recordType.addFieldTypeEntry(typeManager.newFieldTypeEntry(fieldType.getId(), true));
+        recordType = typeManager.createRecordType(recordType);
+
+        byte[] bytes = new byte[3000];
+        random.nextBytes(bytes);
+        Blob blob = writeBlob(bytes, "aMediaType", "testDeleteRecreateDelete");
+        Record record = repository.newRecord();
+        record.setRecordType(recordType.getName());
+        record.setField(fieldName, blob);
+        record = repository.create(record);
+        repository.delete(record.getId());
+        assertBlobDelete(true, blob);
+
+        // The blob references of the re-created record should not be hidden by those of the deleted record
+        byte[] bytes2 = new byte[3000];
+        random.nextBytes(bytes2);
+        Blob blob2 = writeBlob(bytes2, "aMediaType", "testDeleteRecreateDelete2");
+        Record record2 = repository.newRecord(record.getId());
+        record2.setRecordType(recordType.getName());
+        record2.setField(fieldName, blob2);
+        record2 = repository.create(record2);
+        assertBlobReferenced(true, record2.getId(), blob2);
+        assertTrue(Arrays.equals(bytes2, readBlob(record2.getId(), fieldName, blob2.getSize())));
+
+        repository.delete(record2.getId());
+
+        assertBlobDelete(true, blob2);
+        assertBlobReferenced(false, record2.getId(), blob2);
+    }
+
+    @Test
+    public void testUpdateRemovesBlobReference() throws Exception {
+        QName fieldName = new QName(namespace, "testUpdateRemovesBlobReference");
+        FieldType fieldType = typeManager.newFieldType(typeManager.getValueType("BLOB"), fieldName,
+                Scope.NON_VERSIONED);
+        fieldType = typeManager.createFieldType(fieldType);
+        RecordType recordType = typeManager.newRecordType(new QName(namespace, "testUpdateRemovesBlobReferenceRT"));
+        recordType.addFieldTypeEntry(typeManager.newFieldTypeEntry(fieldType.getId(), false));
+        recordType = typeManager.createRecordType(recordType);
+
+        byte[] bytes = new byte[3000];
+        random.nextBytes(bytes);
+        Blob blob = writeBlob(bytes, "aMediaType", "testUpdateRemovesBlobReference");
+        Record record = repository.newRecord();
+        record.setRecordType(recordType.getName());
+        record.setField(fieldName, blob);
+        record = repository.create(record);
+
+        Record record2 = repository.newRecord(record.getId());
+        record2.setRecordType(recordType.getName());
+        record2.addFieldsToDelete(Arrays.asList(fieldName));
+        repository.update(record2);
+
+        assertBlobDelete(true, blob);
+        assertBlobReferenced(false, record.getId(), blob);
+    }
+
+    private Result getRecordRow(RecordId recordId) throws IOException {
+        HTableInterface recordTable = LilyHBaseSchema.getRecordTable(repoSetup.getHbaseTableFactory(), true);
+        return recordTable.get(new Get(recordId.toBytes()));
+    }
+
+    private void assertBlobReferenced(boolean expectReferenced, RecordId recordId, Blob blob) throws IOException {
+        byte[] value = getRecordRow(recordId).getValue(LilyHBaseSchema.RecordCf.DATA.bytes,
+                Bytes.add(new byte[] {LilyHBaseSchema.RecordColumn.BLOB_REF_PREFIX}, blob.getValue()));
+        assertNotNull(value);
+        assertEquals(expectReferenced, !Arrays.equals(LilyHBaseSchema.DELETE_MARKER, value));
+    }
+
     @Test
     public void testDeleteMultivalueHierarchyBlobSmall() throws Exception {
         testDeleteMultivalueHierarchyBlob(50, false); // An inputstream for the inline blob is created on the blobKey directly 
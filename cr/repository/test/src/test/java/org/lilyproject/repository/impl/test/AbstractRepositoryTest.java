@@ -59,6 +59,7 @@ import org.lilyproject.repository.api.Scope;
 import org.lilyproject.repository.api.TypeManager;
 import org.lilyproject.repository.api.ValueType;
 import org.lilyproject.repository.api.VersionNotFoundException;
+import org.lilyproject.repository.api.filter.FieldExistsFilter;
 import org.lilyproject.repository.api.filter.FieldValueFilter;
 import org.lilyproject.repository.api.filter.RecordFilterList;
 import org.lilyproject.repository.api.filter.RecordIdPrefixFilter;
@@ -922,6 +923,25 @@ public abstract class AbstractRepositoryTest {
         }
     }
 
+    @Test
+    public void testBulkDelete() throws Exception {
+        Record record1 = createDefaultRecord();
+        Record record2 = createDefaultRecord();
+        RecordId nonExistingId = idGenerator.newRecordId();
+
+        repository.delete(Arrays.asList(record1.getId(), nonExistingId, record2.getId()));
+
+        for (RecordId recordId : Arrays.asList(record1.getId(), record2.getId())) {
+            try {
+                if (avro)
+                    System.out.println("Expecting RecordNotFoundException");
+                repository.read(recordId);
+                fail();
+            } catch (RecordNotFoundException expected) {
+            }
+        }
+    }
+
     @Test
     public void testDeleteRecordCleansUpData() throws Exception {
         Record record = createDefaultRecord();
@@ -2406,6 +2426,113 @@ public abstract class AbstractRepositoryTest {
         assertEquals(1, countResults(repository.getScanner(scan)));
     }
 
+    @Test
+    public void testFieldExistsFilter() throws Exception {
+        FieldType f1 = typeManager.createFieldType("STRING", new QName("FieldExistsFilter", "f1"), Scope.NON_VERSIONED);
+        FieldType f2 = typeManager.createFieldType("STRING", new QName("FieldExistsFilter", "f2"), Scope.NON_VERSIONED);
+
+        RecordType rt = typeManager.recordTypeBuilder().defaultNamespace("FieldExistsFilter").name("rt")
+                .fieldEntry().use(f1).add().fieldEntry().use(f2).add().create();
+
+        Record record = repository.recordBuilder().recordType(rt.getName()).field(f1.getName(), "A").create();
+        repository.recordBuilder().recordType(rt.getName()).field(f1.getName(), "A").field(f2.getName(), "B").create();
+        repository.recordBuilder().recordType(rt.getName()).field(f2.getName(), "B").create();
+
+        RecordScan scan = new RecordScan();
+        scan.setRecordFilter(new FieldExistsFilter(f1.getName()));
+        assertEquals(2, countResults(repository.getScanner(scan)));
+
+        scan = new RecordScan();
+        RecordFilterList filterList = new RecordFilterList();
+        filterList.addFilter(new FieldExistsFilter(f1.getName()));
+        filterList.addFilter(new FieldExistsFilter(f2.getName()));
+        scan.setRecordFilter(filterList);
+        assertEquals(1, countResults(repository.getScanner(scan)));
+
+        // Deleted fields do not exist, even if a delete marker was written for them
+        record.getFieldsToDelete().add(f1.getName());
+        record.setField(f2.getName(), "C");
+        repository.update(record);
+
+        scan = new RecordScan();
+        scan.setRecordFilter(new FieldExistsFilter(f1.getName()));
+        assertEquals(1, countResults(repository.getScanner(scan)));
+
+        // In a MUST_PASS_ONE list, the filter is evaluated on its own
+        scan = new RecordScan();
+        filterList = new RecordFilterList(RecordFilterList.Operator.MUST_PASS_ONE);
+        filterList.addFilter(new FieldExistsFilter(f1.getName()));
+        filterList.addFilter(new FieldValueFilter(f2.getName(), "C"));
+        scan.setRecordFilter(filterList);
+        assertEquals(2, countResults(repository.getScanner(scan)));
+    }
+
+    @Test
+    public void testCombinedScanFilter() throws Exception {
+        String ns = "CombinedScanFilter";
+        FieldType f1 = typeManager.createFieldType("STRING", new QName(ns, "f1"), Scope.NON_VERSIONED);
+        FieldType f2 = typeManager.createFieldType("STRING", new QName(ns, "f2"), Scope.NON_VERSIONED);
+        FieldType f3 = typeManager.createFieldType("STRING", new QName(ns, "f3"), Scope.NON_VERSIONED);
+
+        RecordType rt1 = typeManager.recordTypeBuilder().defaultNamespace(ns).name("rt1")
+                .fieldEntry().use(f1).add().fieldEntry().use(f2).add().fieldEntry().use(f3).add().create();
+        RecordType rt2 = typeManager.recordTypeBuilder().defaultNamespace(ns).name("rt2")
+                .fieldEntry().use(f1).add().fieldEntry().use(f2).add().fieldEntry().use(f3).add().create();
+
+        RecordId master = idGenerator.newRecordId("CombinedScanFilterTest");
+        RecordId variant1 = idGenerator.newRecordId(master, ImmutableMap.of("lang", "en"));
+        RecordId variant2 = idGenerator.newRecordId(master, ImmutableMap.of("lang", "fr"));
+        RecordId variant3 = idGenerator.newRecordId(master, ImmutableMap.of("lang", "nl"));
+
+        repository.recordBuilder().id(master).recordType(rt1.getName())
+                .field(f1.getName(), "A").field(f2.getName(), "B").field(f3.getName(), "C").create();
+        repository.recordBuilder().id(variant1).recordType(rt1.getName())
+                .field(f1.getName(), "A").field(f2.getName(), "B").field(f3.getName(), "C").create();
+        repository.recordBuilder().id(variant2).recordType(rt1.getName())
+                .field(f1.getName(), "A").field(f3.getName(), "C").create();
+        repository.recordBuilder().id(variant3).recordType(rt2.getName())
+                .field(f1.getName(), "A").field(f2.getName(), "B").field(f3.getName(), "C").create();
+
+        RecordFilterList filterList = new RecordFilterList();
+        filterList.addFilter(new RecordVariantFilter(master, Collections.<String, String>singletonMap("lang", null)));
+        filterList.addFilter(new RecordTypeFilter(rt1.getName()));
+        filterList.addFilter(new FieldExistsFilter(f2.getName()));
+
+        // All fields
+        RecordScan scan = new RecordScan();
+        scan.setRecordFilter(filterList);
+        RecordScanner scanner = repository.getScanner(scan);
+        Record record = scanner.next();
+        assertEquals(variant1, record.getId());
+        assertEquals(3, record.getFields().size());
+        assertEquals(rt1.getName(), record.getRecordTypeName());
+        assertNull(scanner.next());
+        scanner.close();
+
+        // Only a field which is not the one of which the existence is checked
+        scan.setReturnFields(new ReturnFields(f1.getName()));
+        scanner = repository.getScanner(scan);
+        record = scanner.next();
+        assertEquals(variant1, record.getId());
+        assertEquals(1, record.getFields().size());
+        assertTrue(record.hasField(f1.getName()));
+        assertEquals(rt1.getName(), record.getRecordTypeName());
+        assertNull(scanner.next());
+        scanner.close();
+
+        // Combined with a filter which is not evaluated by the combined filter
+        filterList.addFilter(new FieldValueFilter(f3.getName(), "C"));
+        scan = new RecordScan();
+        scan.setRecordFilter(filterList);
+        scan.setReturnFields(new ReturnFields(ReturnFields.Type.NONE));
+        scanner = repository.getScanner(scan);
+        record = scanner.next();
+        assertEquals(variant1, record.getId());
+        assertEquals(0, record.getFields().size());
+        assertNull(scanner.next());
+        scanner.close();
+    }
+
     @Test
     public void testScanWithReturnFields() throws Exception {
         FieldType f1 = typeManager.createFieldType("STRING", new QName("ReturnFieldsScan", "f1"), Scope.NON_VERSIONED);
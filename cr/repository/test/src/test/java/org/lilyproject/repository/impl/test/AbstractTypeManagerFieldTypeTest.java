@@ -43,6 +43,27 @@ public abstract class AbstractTypeManagerFieldTypeTest {
         assertEquals(typeManager.getFieldTypeById(fieldType.getId()), typeManager.getFieldTypeByName(name));
     }
 
+    @Test
+    public void testGetFieldTypeByIdBytes() throws Exception {
+        QName name = new QName(namespace, "testGetFieldTypeByIdBytes");
+        ValueType valueType = typeManager.getValueType("STRING");
+        FieldType fieldType = typeManager.newFieldType(valueType , name, Scope.NON_VERSIONED);
+        fieldType = typeManager.createFieldType(fieldType);
+
+        // Look up the field type on the id found in the middle of a larger array, as for column qualifiers
+        byte[] idBytes = fieldType.getId().getBytes();
+        byte[] qualifier = new byte[idBytes.length + 2];
+        System.arraycopy(idBytes, 0, qualifier, 1, idBytes.length);
+        FieldTypes fieldTypes = typeManager.getFieldTypesSnapshot();
+        assertEquals(fieldType, fieldTypes.getFieldType(qualifier, 1, idBytes.length));
+
+        try {
+            fieldTypes.getFieldType(new SchemaIdImpl(UUID.randomUUID()).getBytes(), 0, idBytes.length);
+            fail();
+        } catch (FieldTypeNotFoundException expected) {
+        }
+    }
+
     @Test
     public void testCreateIgnoresGivenId() throws Exception {
         SchemaId id = new SchemaIdImpl(UUID.randomUUID());
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.impl.test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.lilyproject.hbaseext.ContainsValueComparator;
+import org.lilyproject.repository.api.Blob;
+import org.lilyproject.repository.api.TypeManager;
+import org.lilyproject.repository.api.ValueType;
+import org.lilyproject.repository.impl.valuetype.BlobValueType;
+import org.lilyproject.repository.impl.valuetype.ListValueType;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+
+/**
+ * Measures the time {@link ContainsValueComparator} needs to check a cell holding a list of blobs, which is
+ * what a region server does for every row when looking up which records use a blob.
+ *
+ * <p>This is not a test case, it is meant to be run by hand through its main method, with the test classpath
+ * of this module. Arguments: b=number of blobs in the list, c=number of compares per run, n=number of runs.</p>
+ */
+public class ContainsValueComparatorBenchmark {
+    private int nrOfBlobs = 100;
+    private int nrOfCompares = 100000;
+    private int nrOfTimes = 5;
+
+    public static void main(String[] args) throws Exception {
+        ContainsValueComparatorBenchmark benchmark = new ContainsValueComparatorBenchmark();
+        benchmark.initialize(args);
+        benchmark.run();
+    }
+
+    private void initialize(String[] args) {
+        for (String arg : args) {
+            if (arg.startsWith("b=")) {
+                nrOfBlobs = Integer.valueOf(arg.substring(2));
+            }
+            if (arg.startsWith("c=")) {
+                nrOfCompares = Integer.valueOf(arg.substring(2));
+            }
+            if (arg.startsWith("n=")) {
+                nrOfTimes = Integer.valueOf(arg.substring(2));
+            }
+        }
+    }
+
+    private void run() throws Exception {
+        ValueType blobType = BlobValueType.factory().getValueType(null);
+        TypeManager typeManager = createMock(TypeManager.class);
+        expect(typeManager.getValueType("BLOB")).andReturn(blobType).anyTimes();
+        replay(typeManager);
+        ValueType listType = new ListValueType(typeManager, "BLOB");
+
+        List<Blob> blobs = new ArrayList<Blob>(nrOfBlobs);
+        for (int i = 0; i < nrOfBlobs; i++) {
+            blobs.add(ContainsValueComparatorTest.blob("blob-key-" + (1000000 + i), "application/octet-stream",
+                    "file" + i + ".bin"));
+        }
+        byte[] value = ContainsValueComparatorTest.encode(listType, blobs);
+
+        int nestingLevel = listType.getNestingLevel();
+        ContainsValueComparator firstHit = new ContainsValueComparator(nestingLevel, blobs.get(0).getValue());
+        ContainsValueComparator lastHit = new ContainsValueComparator(nestingLevel,
+                blobs.get(nrOfBlobs - 1).getValue());
+        ContainsValueComparator miss = new ContainsValueComparator(nestingLevel, Bytes.toBytes("blob-key-0000000"));
+        // Keys of another length are rejected without comparing their bytes
+        ContainsValueComparator lengthMiss = new ContainsValueComparator(nestingLevel, Bytes.toBytes("other-key"));
+        byte[][] keys = new byte[8][];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = Bytes.toBytes("blob-key-" + (2000000 + i));
+        }
+        ContainsValueComparator multiMiss = new ContainsValueComparator(nestingLevel, keys);
+
+        System.out.println("Cell of " + value.length + " bytes holding " + nrOfBlobs + " blobs");
+        for (int i = 0; i < nrOfTimes; i++) {
+            System.out.println("Run " + (i + 1));
+            time("first hit", firstHit, value);
+            time("last hit", lastHit, value);
+            time("miss", miss, value);
+            time("length miss", lengthMiss, value);
+            time("miss on " + keys.length + " keys", multiMiss, value);
+        }
+    }
+
+    private void time(String name, ContainsValueComparator comparator, byte[] value) {
+        int found = 0;
+        long before = System.nanoTime();
+        for (int i = 0; i < nrOfCompares; i++) {
+            if (comparator.compareTo(value) == 0) {
+                found++;
+            }
+        }
+        long duration = System.nanoTime() - before;
+        System.out.println("  " + name + ": " + (duration / nrOfCompares) + " ns/cell (" + found + " found)");
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.impl.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Before;
+import org.junit.Test;
+import org.lilyproject.bytes.impl.DataOutputImpl;
+import org.lilyproject.hbaseext.ContainsValueComparator;
+import org.lilyproject.repository.api.Blob;
+import org.lilyproject.repository.api.HierarchyPath;
+import org.lilyproject.repository.api.IdentityRecordStack;
+import org.lilyproject.repository.api.TypeManager;
+import org.lilyproject.repository.api.ValueType;
+import org.lilyproject.repository.impl.valuetype.BlobValueType;
+import org.lilyproject.repository.impl.valuetype.ListValueType;
+import org.lilyproject.repository.impl.valuetype.PathValueType;
+import org.lilyproject.util.hbase.LilyHBaseSchema;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ContainsValueComparatorTest {
+    private ValueType blobType;
+    private ValueType listType;
+    private ValueType listOfPathsType;
+
+    @Before
+    public void setUp() throws Exception {
+        blobType = BlobValueType.factory().getValueType(null);
+        TypeManager typeManager = createMock(TypeManager.class);
+        expect(typeManager.getValueType("BLOB")).andReturn(blobType).anyTimes();
+        replay(typeManager);
+        listType = new ListValueType(typeManager, "BLOB");
+        ValueType pathType = new PathValueType(typeManager, "BLOB");
+
+        typeManager = createMock(TypeManager.class);
+        expect(typeManager.getValueType("PATH<BLOB>")).andReturn(pathType).anyTimes();
+        replay(typeManager);
+        listOfPathsType = new ListValueType(typeManager, "PATH<BLOB>");
+    }
+
+    @Test
+    public void testSingleValue() throws Exception {
+        byte[] value = encode(blobType, blob("key1", "text/plain", "name"));
+        assertEquals(0, compare(blobType, value, "key1"));
+        assertEquals(-1, compare(blobType, value, "key2"));
+        assertEquals(-1, compare(blobType, value, "key"));
+
+        // The constructor taking the nesting level and blob key as one array
+        byte[] nestingLevelAndValue = Bytes.add(Bytes.toBytes(0), Bytes.toBytes("key1"));
+        assertEquals(0, new ContainsValueComparator(nestingLevelAndValue).compareTo(value));
+    }
+
+    @Test
+    public void testListValue() throws Exception {
+        byte[] value = encode(listType, Arrays.asList(blob("key1", null, null), blob("key22", "text/plain", "n"),
+                blob("key3", "image/png", null)));
+        assertEquals(0, compare(listType, value, "key1"));
+        assertEquals(0, compare(listType, value, "key22"));
+        assertEquals(0, compare(listType, value, "key3"));
+        assertEquals(-1, compare(listType, value, "key2"));
+        assertEquals(-1, compare(listType, value, "key4"));
+    }
+
+    @Test
+    public void testNestedValue() throws Exception {
+        byte[] value = encode(listOfPathsType, Arrays.asList(
+                new HierarchyPath(blob("key1", "text/plain", "a"), blob("key2", "text/plain", "b")),
+                new HierarchyPath(blob("key3", "text/plain", "c"))));
+        assertEquals(0, compare(listOfPathsType, value, "key2"));
+        assertEquals(0, compare(listOfPathsType, value, "key3"));
+        assertEquals(-1, compare(listOfPathsType, value, "key4"));
+    }
+
+    @Test
+    public void testMultipleKeys() throws Exception {
+        byte[] value = encode(listType, Arrays.asList(blob("key1", "text/plain", "name"),
+                blob("key2", "text/plain", "name")));
+        assertEquals(0, compare(listType, value, "other", "key2"));
+        assertEquals(0, compare(listType, value, "key1", "longer-key"));
+        assertEquals(-1, compare(listType, value, "other", "longer-key"));
+    }
+
+    @Test
+    public void testDeletedAndInvalidValues() throws Exception {
+        byte[] value = encode(blobType, blob("key1", "text/plain", "name"));
+        value[0] = LilyHBaseSchema.DELETE_FLAG;
+        assertEquals(-1, compare(blobType, value, "key1"));
+        assertEquals(-1, compare(blobType, LilyHBaseSchema.DELETE_MARKER, "key1"));
+        assertEquals(-1, compare(blobType, null, "key1"));
+
+        // A truncated list does not cause exceptions
+        value = encode(listType, Arrays.asList(blob("key1", "text/plain", "name"), blob("key2", "text/plain", "n")));
+        byte[] truncated = Arrays.copyOf(value, value.length - 29);
+        assertEquals(-1, compare(listType, truncated, "key2"));
+        assertEquals(0, compare(listType, truncated, "key1"));
+    }
+
+    @Test
+    public void testWritable() throws Exception {
+        ContainsValueComparator comparator = new ContainsValueComparator(1, Bytes.toBytes("key1"),
+                Bytes.toBytes("key2"));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        comparator.write(new DataOutputStream(bytes));
+
+        ContainsValueComparator read = new ContainsValueComparator();
+        read.readFields(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        byte[] value = encode(listType, Arrays.asList(blob("key2", "text/plain", "name")));
+        assertEquals(0, read.compareTo(value));
+        assertEquals(Bytes.toString(comparator.getValue()), Bytes.toString(read.getValue()));
+
+        // The first byte is the format version, an unknown version is refused
+        byte[] otherVersion = bytes.toByteArray();
+        otherVersion[0]++;
+        try {
+            new ContainsValueComparator().readFields(new DataInputStream(new ByteArrayInputStream(otherVersion)));
+            fail("Expected an IOException for an unknown format version");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private int compare(ValueType valueType, byte[] value, String... blobKeys) {
+        byte[][] keys = new byte[blobKeys.length][];
+        for (int i = 0; i < blobKeys.length; i++) {
+            keys[i] = Bytes.toBytes(blobKeys[i]);
+        }
+        return new ContainsValueComparator(valueType.getNestingLevel(), keys).compareTo(value);
+    }
+
+    static Blob blob(String key, String mediaType, String name) {
+        return new Blob(Bytes.toBytes(key), mediaType, 10L, name);
+    }
+
+    /**
+     * Encodes a field value the way HBaseRepository stores it.
+     */
+    static byte[] encode(ValueType valueType, Object value) throws Exception {
+        DataOutputImpl output = new DataOutputImpl();
+        output.writeByte(LilyHBaseSchema.EXISTS_FLAG);
+        valueType.write(value, output, new IdentityRecordStack());
+        return output.toByteArray();
+    }
+}
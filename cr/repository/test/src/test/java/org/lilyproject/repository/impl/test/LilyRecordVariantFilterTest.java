@@ -0,0 +1,280 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.impl.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.filter.BinaryComparator;
+import org.apache.hadoop.hbase.filter.CompareFilter;
+import org.apache.hadoop.hbase.filter.Filter;
+import org.apache.hadoop.hbase.filter.FilterList;
+import org.apache.hadoop.hbase.filter.RowFilter;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Before;
+import org.junit.Test;
+import org.lilyproject.hbaseext.LilyRecordVariantFilter;
+import org.lilyproject.hbaseext.LilyScanFilter;
+import org.lilyproject.repository.api.IdGenerator;
+import org.lilyproject.repository.api.RecordId;
+import org.lilyproject.repository.impl.id.IdGeneratorImpl;
+import org.lilyproject.util.hbase.LilyHBaseSchema.RecordColumn;
+import org.lilyproject.util.hbase.LilyHBaseSchema.RecordCf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link LilyRecordVariantFilter} over the row keys of a set of records, the way a region server would,
+ * both with and without following its seek hints, on its own and inside filter lists.
+ */
+public class LilyRecordVariantFilterTest {
+    private final IdGenerator idGenerator = new IdGeneratorImpl();
+    // The row keys, sorted as in the record table
+    private List<byte[]> rows;
+
+    private RecordId userMaster;
+    private RecordId uuidMaster;
+
+    @Before
+    public void setUp() throws Exception {
+        List<RecordId> ids = new ArrayList<RecordId>();
+        // Neighbouring user-specified master ids, including one which is a prefix of another
+        for (String master : new String[] {"0", "a", "ab", "b"}) {
+            RecordId masterId = idGenerator.newRecordId(master);
+            ids.add(masterId);
+            addVariants(masterId, ids);
+        }
+        for (int i = 0; i < 3; i++) {
+            RecordId masterId = idGenerator.newRecordId();
+            ids.add(masterId);
+            addVariants(masterId, ids);
+        }
+        userMaster = idGenerator.newRecordId("a");
+        uuidMaster = ids.get(ids.size() - 6).getMaster();
+
+        rows = new ArrayList<byte[]>();
+        for (RecordId id : ids) {
+            rows.add(id.toBytes());
+        }
+        Collections.sort(rows, Bytes.BYTES_COMPARATOR);
+    }
+
+    private void addVariants(RecordId master, List<RecordId> ids) {
+        ids.add(idGenerator.newRecordId(master, props("lang", "en")));
+        ids.add(idGenerator.newRecordId(master, props("lang", "nl")));
+        ids.add(idGenerator.newRecordId(master, props("lang", "en", "branch", "dev")));
+        ids.add(idGenerator.newRecordId(master, props("branch", "dev")));
+        // A value which needs a multi-byte length prefix
+        ids.add(idGenerator.newRecordId(master, props("lang", repeat('x', 200))));
+    }
+
+    @Test
+    public void testMastersOnly() throws Exception {
+        check(null, props());
+    }
+
+    @Test
+    public void testVariantProperty() throws Exception {
+        check(null, props("lang", null));
+        check(null, props("lang", "en"));
+        check(null, props("lang", repeat('x', 200)));
+        check(null, props("lang", null, "branch", null));
+        check(null, props("lang", "en", "branch", "dev"));
+        check(null, props("other", null));
+    }
+
+    @Test
+    public void testMasterRecordId() throws Exception {
+        check(userMaster, props());
+        check(userMaster, props("lang", null));
+        check(userMaster, props("lang", "nl"));
+        check(uuidMaster, props());
+        check(uuidMaster, props("branch", "dev"));
+        check(idGenerator.newRecordId("aa"), props("lang", null));
+    }
+
+    @Test
+    public void testOrList() throws Exception {
+        // Two variant filters which are OR-ed give the records of either
+        List<byte[]> expected = new ArrayList<byte[]>();
+        List<byte[]> english = expected(null, props("lang", "en"));
+        List<byte[]> userMasterVariants = expected(userMaster, props("branch", null));
+        for (byte[] row : rows) {
+            if (contains(english, row) || contains(userMasterVariants, row)) {
+                expected.add(row);
+            }
+        }
+        for (boolean followHints : new boolean[] {true, false}) {
+            FilterList filterList = new FilterList(FilterList.Operator.MUST_PASS_ONE);
+            filterList.addFilter(new LilyRecordVariantFilter(userMaster.toBytes(), props("branch", null)));
+            filterList.addFilter(new LilyRecordVariantFilter(props("lang", "en")));
+            assertRows(expected, scan(filterList, followHints));
+        }
+    }
+
+    /**
+     * Checks the rows returned by the filter for the given master record id and variant properties, in all the
+     * ways the filter can be evaluated.
+     */
+    private void check(RecordId master, Map<String, String> variantProperties) throws Exception {
+        List<byte[]> expected = expected(master, variantProperties);
+        byte[] masterBytes = master != null ? master.toBytes() : null;
+
+        for (boolean followHints : new boolean[] {true, false}) {
+            // On its own
+            assertRows(expected, scan(new LilyRecordVariantFilter(masterBytes, variantProperties), followHints));
+
+            // Inside AND and OR lists, which do not pass on seek hints
+            FilterList andList = new FilterList(FilterList.Operator.MUST_PASS_ALL);
+            andList.addFilter(new RowFilter(CompareFilter.CompareOp.NOT_EQUAL, new BinaryComparator(new byte[0])));
+            andList.addFilter(new LilyRecordVariantFilter(masterBytes, variantProperties));
+            assertRows(expected, scan(andList, followHints));
+
+            FilterList orList = new FilterList(FilterList.Operator.MUST_PASS_ONE);
+            orList.addFilter(new LilyRecordVariantFilter(masterBytes, variantProperties));
+            orList.addFilter(new RowFilter(CompareFilter.CompareOp.EQUAL, new BinaryComparator(new byte[] {9})));
+            assertRows(expected, scan(orList, followHints));
+
+            // Through a LilyScanFilter, on its own and as the last filter of an AND list
+            LilyScanFilter scanFilter = new LilyScanFilter();
+            scanFilter.setVariantFilter(new LilyRecordVariantFilter(masterBytes, variantProperties));
+            assertRows(expected, scan(scanFilter, followHints));
+
+            scanFilter = new LilyScanFilter();
+            scanFilter.setVariantFilter(new LilyRecordVariantFilter(masterBytes, variantProperties));
+            andList = new FilterList(FilterList.Operator.MUST_PASS_ALL);
+            andList.addFilter(new RowFilter(CompareFilter.CompareOp.NOT_EQUAL, new BinaryComparator(new byte[0])));
+            andList.addFilter(scanFilter);
+            assertRows(expected, scan(andList, followHints));
+        }
+    }
+
+    private List<byte[]> expected(RecordId master, Map<String, String> variantProperties) {
+        List<byte[]> expected = new ArrayList<byte[]>();
+        for (byte[] row : rows) {
+            RecordId id = idGenerator.fromBytes(row);
+            if (master != null && !id.getMaster().equals(master)) {
+                continue;
+            }
+            Map<String, String> idProperties = id.getVariantProperties();
+            if (!idProperties.keySet().equals(variantProperties.keySet())) {
+                continue;
+            }
+            boolean match = true;
+            for (Map.Entry<String, String> property : variantProperties.entrySet()) {
+                if (property.getValue() != null && !property.getValue().equals(idProperties.get(property.getKey()))) {
+                    match = false;
+                }
+            }
+            if (match) {
+                expected.add(row);
+            }
+        }
+        return expected;
+    }
+
+    /**
+     * Runs the filter over the rows, as done by a region server. When the seek hints are not followed, cells for
+     * which a seek hint is returned are included, as done by a filter list.
+     */
+    private List<byte[]> scan(Filter filter, boolean followHints) {
+        List<byte[]> result = new ArrayList<byte[]>();
+        KeyValue hint = null;
+        for (byte[] row : rows) {
+            if (hint != null && Bytes.compareTo(row, hint.getRow()) < 0) {
+                continue;
+            }
+            hint = null;
+
+            filter.reset();
+            if (filter.filterAllRemaining()) {
+                break;
+            }
+            if (filter.filterRowKey(row, 0, row.length)) {
+                continue;
+            }
+            boolean included = false;
+            for (KeyValue kv : cells(row)) {
+                Filter.ReturnCode code = filter.filterKeyValue(kv);
+                if (code == Filter.ReturnCode.SEEK_NEXT_USING_HINT && followHints) {
+                    hint = filter.getNextKeyHint(kv);
+                    assertTrue("seek hint should move forward", Bytes.compareTo(hint.getRow(), row) > 0);
+                    included = false;
+                    break;
+                } else if (code == Filter.ReturnCode.NEXT_ROW) {
+                    break;
+                } else if (code == Filter.ReturnCode.INCLUDE || code == Filter.ReturnCode.SEEK_NEXT_USING_HINT) {
+                    included = true;
+                }
+            }
+            if (included && !filter.filterRow()) {
+                result.add(row);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The cells of a record that is not deleted and has one field.
+     */
+    private List<KeyValue> cells(byte[] row) {
+        return Arrays.asList(
+                new KeyValue(row, RecordCf.DATA.bytes, RecordColumn.DELETED.bytes, Bytes.toBytes(false)),
+                new KeyValue(row, RecordCf.DATA.bytes, Bytes.add(new byte[] {2}, Bytes.toBytes("field")),
+                        new byte[] {0, 1}));
+    }
+
+    private void assertRows(List<byte[]> expected, List<byte[]> actual) {
+        assertEquals(toString(expected), toString(actual));
+    }
+
+    private List<String> toString(List<byte[]> rows) {
+        List<String> ids = new ArrayList<String>();
+        for (byte[] row : rows) {
+            ids.add(idGenerator.fromBytes(row).toString());
+        }
+        return ids;
+    }
+
+    private static boolean contains(List<byte[]> rows, byte[] row) {
+        for (byte[] candidate : rows) {
+            if (Bytes.equals(candidate, row)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Map<String, String> props(String... namesAndValues) {
+        Map<String, String> props = new HashMap<String, String>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            props.put(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return props;
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
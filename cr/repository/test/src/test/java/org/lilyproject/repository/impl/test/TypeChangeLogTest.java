@@ -0,0 +1,75 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.repository.impl.test;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.lilyproject.repository.impl.TypeChangeLog;
+
+import static org.junit.Assert.*;
+
+public class TypeChangeLogTest {
+
+    @Test
+    public void testChangesSince() {
+        byte[] data = null;
+        data = TypeChangeLog.append(data, 1, new byte[] {1, 1});
+        data = TypeChangeLog.append(data, 2, new byte[] {1, 2});
+        data = TypeChangeLog.append(data, 3, new byte[] {1, 3});
+
+        List<TypeChangeLog.Change> changes = TypeChangeLog.getChangesSince(data, 1, 3);
+        assertEquals(2, changes.size());
+        assertArrayEquals(new byte[] {1, 2}, changes.get(0).getTypeId());
+        assertArrayEquals(new byte[] {1, 3}, changes.get(1).getTypeId());
+
+        assertEquals(0, TypeChangeLog.getChangesSince(data, 3, 3).size());
+        assertEquals(3, TypeChangeLog.getChangesSince(data, 0, 3).size());
+    }
+
+    @Test
+    public void testIncompleteLog() {
+        // Node data without a change log, as written by nodes without change log support
+        assertNull(TypeChangeLog.getChangesSince(null, 4, 5));
+
+        // A change which was not logged
+        byte[] data = TypeChangeLog.append(null, 2, new byte[] {1});
+        data = TypeChangeLog.append(data, 4, new byte[] {2});
+        assertNull(TypeChangeLog.getChangesSince(data, 1, 4));
+        assertNotNull(TypeChangeLog.getChangesSince(data, 3, 4));
+    }
+
+    @Test
+    public void testLogSizeIsLimited() {
+        byte[] data = null;
+        for (int i = 1; i <= TypeChangeLog.MAX_ENTRIES + 5; i++) {
+            data = TypeChangeLog.append(data, i, new byte[] {(byte)i});
+        }
+
+        assertNull(TypeChangeLog.getChangesSince(data, 0, TypeChangeLog.MAX_ENTRIES + 5));
+        assertEquals(TypeChangeLog.MAX_ENTRIES,
+                TypeChangeLog.getChangesSince(data, 5, TypeChangeLog.MAX_ENTRIES + 5).size());
+    }
+
+    @Test
+    public void testLargeVersionGap() {
+        byte[] data = TypeChangeLog.append(null, 1, new byte[] {1});
+
+        // A gap larger than the log can cover is refused without looking at the log
+        assertNull(TypeChangeLog.getChangesSince(data, 0, Integer.MAX_VALUE));
+        assertNull(TypeChangeLog.getChangesSince(data, Integer.MIN_VALUE, 1));
+    }
+}
@@ -114,7 +114,13 @@ public class LilyHBaseSchema {
         VERSIONED_RT_ID("v-rt"),
         VERSIONED_RT_VERSION("v-rtv"),
         VERSIONED_MUTABLE_RT_ID("vm-rt"),
-        VERSIONED_MUTABLE_RT_VERSION("vm-rtv");
+        VERSIONED_MUTABLE_RT_VERSION("vm-rtv"),
+        /**
+         * Present on records of which the referenced blobs are tracked in the {@link #BLOB_REF_PREFIX} columns.
+         * Records created before these columns were introduced only have their blobs in the field values. The value
+         * is false once the record is deleted.
+         */
+        BLOB_REFS("blobrefs");
 
         public final byte[] bytes;
         public final String name;
@@ -125,6 +131,10 @@ public class LilyHBaseSchema {
         // The payload and executionstat of the rowlogs are stored in the same column family : ROWLOG
         public static final byte WAL_PREFIX = (byte)3; // Prefix for the column-qualifiers of the WAL rowlog  
         public static final byte MQ_PREFIX = (byte)4; // Prefix for the column-qualifiers of the MQ rowlog
+
+        // Prefix for the column-qualifiers which track the blobs referenced by a record, followed by the blob key.
+        // The value is empty, or the DELETE_MARKER once the record no longer references the blob.
+        public static final byte BLOB_REF_PREFIX = (byte)5;
         
         RecordColumn(String name) {
             this.name = name;
@@ -52,6 +52,17 @@ abstract class BaseQueryResult implements QueryResult {
         return Bytes.toString(getData(Bytes.toBytes(qualifier)));
     }
 
+    @Override
+    public byte[] getRowKey() {
+        if (currentResult != null) {
+            return currentResult.getRow();
+        } else if (currentQResult != null) {
+            return currentQResult.getRowKey();
+        } else {
+            throw new RuntimeException("QueryResult.getRowKey() is being called but there is no current result.");
+        }
+    }
+
     @Override
     public Object getIndexField(String fieldName) throws IOException {
         if (currentResult != null) {
@@ -17,6 +17,7 @@ package org.lilyproject.hbaseindex;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -24,9 +25,18 @@ import com.gotometrics.orderly.RowKey;
 import com.gotometrics.orderly.StructBuilder;
 import com.gotometrics.orderly.StructRowKey;
 import com.gotometrics.orderly.Termination;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.ClusterStatus;
+import org.apache.hadoop.hbase.HRegionInfo;
+import org.apache.hadoop.hbase.HServerInfo;
+import org.apache.hadoop.hbase.HServerLoad;
+import org.apache.hadoop.hbase.KeyValue;
 import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.HTable;
 import org.apache.hadoop.hbase.client.HTableInterface;
 import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.client.Result;
+import org.apache.hadoop.hbase.client.ResultScanner;
 import org.apache.hadoop.hbase.client.Scan;
 import org.apache.hadoop.hbase.filter.BinaryPrefixComparator;
 import org.apache.hadoop.hbase.filter.CompareFilter.CompareOp;
@@ -34,9 +44,11 @@ import org.apache.hadoop.hbase.filter.Filter;
 import org.apache.hadoop.hbase.filter.FilterList;
 import org.apache.hadoop.hbase.filter.RowFilter;
 import org.apache.hadoop.hbase.filter.WhileMatchFilter;
+import org.apache.hadoop.hbase.util.Bytes;
 import org.lilyproject.hbaseindex.filter.IndexFilterHbaseImpl;
 import org.lilyproject.util.ArgumentValidator;
 import org.lilyproject.util.ByteArrayKey;
+import org.lilyproject.util.hbase.HBaseAdminFactory;
 
 /**
  * Allows to query an index, and add entries to it or remove entries from it.
@@ -150,6 +162,85 @@ public class Index {
     }
 
     public QueryResult performQuery(Query query) throws IOException {
+        Scan scan = createScan(query).scan;
+        return new ScannerQueryResult(htable.getScanner(scan), definition);
+    }
+
+    /**
+     * Estimates the number of entries matching the query, without reading all of them.
+     *
+     * <p>Up to sampleSize entries are read. If there are no more matching entries than that, the returned count
+     * is exact. Otherwise, the count is extrapolated from the size of the regions spanned by the key range of the
+     * query, as reported by the region servers, divided by the average size of the sampled entries. The key range
+     * will often only cover part of the first and last region, in which case the result is an overestimate, it
+     * should only be used as an indication of the order of magnitude.
+     *
+     * <p>The {@link Query#setIndexFilter index filter} is taken into account for the sample only.
+     */
+    public long estimateCount(Query query, int sampleSize) throws IOException {
+        ScanSpec spec = createScan(query);
+        spec.scan.setCaching(Math.min(sampleSize, 1000));
+
+        long count = 0;
+        long sampleBytes = 0;
+        ResultScanner scanner = htable.getScanner(spec.scan);
+        try {
+            Result result;
+            while (count < sampleSize && (result = scanner.next()) != null) {
+                count++;
+                for (KeyValue kv : result.raw()) {
+                    sampleBytes += kv.getLength();
+                }
+            }
+            if (count < sampleSize || scanner.next() == null) {
+                return count;
+            }
+        } finally {
+            scanner.close();
+        }
+
+        // Sum the sizes of the regions which overlap with the key range of the query
+        Configuration conf = htable.getConfiguration();
+        Map<ByteArrayKey, Long> regionSizes = new HashMap<ByteArrayKey, Long>();
+        ClusterStatus clusterStatus = HBaseAdminFactory.get(conf).getClusterStatus();
+        for (HServerInfo serverInfo : clusterStatus.getServerInfo()) {
+            for (HServerLoad.RegionLoad regionLoad : serverInfo.getLoad().getRegionsLoad()) {
+                long sizeMB = regionLoad.getStorefileSizeMB() + regionLoad.getMemStoreSizeMB();
+                regionSizes.put(new ByteArrayKey(regionLoad.getName()), sizeMB * 1024L * 1024L);
+            }
+        }
+
+        long rangeBytes = 0;
+        HTable table = new HTable(conf, htable.getTableName());
+        try {
+            for (HRegionInfo region : table.getRegionsInfo().keySet()) {
+                boolean endsAfterFrom = region.getEndKey().length == 0 ||
+                        Bytes.compareTo(region.getEndKey(), spec.fromKey) > 0;
+                boolean startsBeforeTo = Bytes.compareTo(region.getStartKey(), spec.toKey) <= 0 ||
+                        Bytes.startsWith(region.getStartKey(), spec.toKey);
+                if (endsAfterFrom && startsBeforeTo) {
+                    Long size = regionSizes.get(new ByteArrayKey(region.getRegionName()));
+                    if (size != null) {
+                        rangeBytes += size;
+                    }
+                }
+            }
+        } finally {
+            table.close();
+        }
+
+        long averageEntrySize = Math.max(1, sampleBytes / count);
+        return Math.max(count, rangeBytes / averageEntrySize);
+    }
+
+    private static class ScanSpec {
+        Scan scan;
+        byte[] fromKey;
+        /** The scan stops at the last row which has this key as prefix. */
+        byte[] toKey;
+    }
+
+    private ScanSpec createScan(Query query) throws IOException {
         validateQuery(query);
 
         final StructBuilder fromKeyStructBuilder = new StructBuilder();
@@ -256,7 +347,13 @@ public class Index {
             toKey = fromKey;
         }
 
-        Scan scan = new Scan(fromKey);
+        byte[] startKey = fromKey;
+        if (query.getResumeAfter() != null && Bytes.compareTo(query.getResumeAfter(), fromKey) >= 0) {
+            // The smallest row key which comes after the row key to resume from
+            startKey = Bytes.add(query.getResumeAfter(), new byte[] {0});
+        }
+
+        Scan scan = new Scan(startKey);
 
         // Query.MAX_VALUE is a value which should be larger than anything, so cannot be an inclusive upper bound
         // The importance of this is because for Query.MAX_VALUE, we do a prefix scan so the operator should be
@@ -283,9 +380,13 @@ public class Index {
         }
 
         scan.setFilter(filters);
-        scan.setCaching(30);
+        scan.setCaching(query.getPageSize());
 
-        return new ScannerQueryResult(htable.getScanner(scan), definition);
+        ScanSpec spec = new ScanSpec();
+        spec.scan = scan;
+        spec.fromKey = fromKey;
+        spec.toKey = toKey;
+        return spec;
     }
 
     /**
@@ -43,6 +43,8 @@ public class Query {
     private List<EqualsCondition> eqConditions = new ArrayList<EqualsCondition>();
     private RangeCondition rangeCondition;
     private IndexFilter indexFilter;
+    private byte[] resumeAfter;
+    private int pageSize = 30;
 
     public static final Object MIN_VALUE = new Object() {
         @Override
@@ -103,6 +105,30 @@ public class Query {
         rangeCondition = new RangeCondition(fieldName, fromValue, toValue, lowerBoundInclusive, upperBoundInclusive);
     }
 
+    /**
+     * Only return the entries which come after the given index row key, this allows to continue a query
+     * where a previous execution of it stopped. The row key can be obtained from {@link QueryResult#getRowKey()}.
+     */
+    public void setResumeAfter(byte[] rowKey) {
+        this.resumeAfter = rowKey;
+    }
+
+    public byte[] getResumeAfter() {
+        return resumeAfter;
+    }
+
+    /**
+     * Sets the number of index entries fetched at once from HBase, default 30. For queries of which
+     * many results will be read, a larger value reduces the number of round trips.
+     */
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
     public List<EqualsCondition> getEqConditions() {
         return eqConditions;
     }
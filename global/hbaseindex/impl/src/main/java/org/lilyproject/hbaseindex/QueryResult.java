@@ -40,6 +40,12 @@ public interface QueryResult extends Closeable {
 
     String getDataAsString(String qualifier);
 
+    /**
+     * Returns the index row key of the current index entry (corresponding to the last {@link #next} call),
+     * this can be used with {@link Query#setResumeAfter} to continue the query later on.
+     */
+    byte[] getRowKey();
+
     /**
      * Decode an index field (for example one which was not specified in the query) from the result.
      *
@@ -41,6 +41,11 @@ public class StaticQueryResult implements QueryResult {
         return null;
     }
 
+    @Override
+    public byte[] getRowKey() {
+        return null;
+    }
+
     @Override
     public Object getIndexField(String fieldName) throws IOException {
         throw new UnsupportedOperationException("not supported");
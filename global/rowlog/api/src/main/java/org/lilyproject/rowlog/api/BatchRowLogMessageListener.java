@@ -0,0 +1,42 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.api;
+
+import java.util.List;
+
+/**
+ * A {@link RowLogMessageListener} which can process multiple messages at once, which allows to combine
+ * the IO needed for processing them.
+ *
+ * <p>This is only supported for local listeners. The messages in one batch are always for different rows.
+ * A message is only offered in a batch if it is immediately available, the batch is never held back to
+ * wait for more messages.
+ */
+public interface BatchRowLogMessageListener extends RowLogMessageListener {
+    /**
+     * The maximum number of messages to offer at once to {@link #processMessages}.
+     */
+    int getMaxBatchSize();
+
+    /**
+     * Request the listener to process a batch of messages. The same remarks concerning retrying
+     * apply as for {@link #processMessage}.
+     *
+     * @return the messages which are processed and should not be offered again, the other messages
+     *         will be re-offered later
+     */
+    List<RowLogMessage> processMessages(List<RowLogMessage> messages) throws InterruptedException;
+}
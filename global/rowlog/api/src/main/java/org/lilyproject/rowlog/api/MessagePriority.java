@@ -0,0 +1,65 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.api;
+
+/**
+ * The priority of a {@link RowLogMessage}.
+ *
+ * <p>The messages of each priority are stored in a separate lane of the {@link RowLogShard}s. The
+ * {@link RowLogProcessor} divides its capacity over the lanes, so that a large number of low priority
+ * messages, such as those caused by a bulk import, does not delay the processing of normal priority
+ * messages for hours.</p>
+ *
+ * <p>The order of the messages of a row is only kept within a lane: a normal priority message can be processed
+ * before an older low priority message of the same row. Low priority should therefore only be used for messages
+ * which can be processed in any order with respect to the other messages of their row, such as requests to
+ * reindex a record based on its current state.</p>
+ */
+public enum MessagePriority {
+    /**
+     * The default priority. Messages put before priorities existed have this priority.
+     */
+    NORMAL((byte)0),
+
+    /**
+     * For messages of bulk operations, of which the processing can be postponed in favor of normal priority
+     * messages, but which should still be processed when there are normal priority messages waiting. These
+     * messages can be processed after newer normal priority messages of the same row.
+     */
+    LOW((byte)1);
+
+    private final byte lane;
+
+    private MessagePriority(byte lane) {
+        this.lane = lane;
+    }
+
+    /**
+     * Identifies the lane of the messages of this priority in the rowlog shards.
+     */
+    public byte getLane() {
+        return lane;
+    }
+
+    public static MessagePriority fromLane(byte lane) {
+        for (MessagePriority priority : values()) {
+            if (priority.lane == lane) {
+                return priority;
+            }
+        }
+        throw new IllegalArgumentException("Unknown rowlog message priority lane: " + lane);
+    }
+}
@@ -118,6 +118,20 @@ public interface RowLog {
     RowLogMessage putMessage(byte[] rowKey, byte[] data, byte[] payload, Put put,
             List<String> subscriptionIds) throws RowLogException, InterruptedException;
 
+    /**
+     * A variant of putMessage which allows to specify the priority of the message, the other variants put
+     * messages with {@link MessagePriority#NORMAL} priority.
+     */
+    RowLogMessage putMessage(byte[] rowKey, byte[] data, byte[] payload, Put put, MessagePriority priority)
+            throws RowLogException, InterruptedException;
+
+    /**
+     * A variant of putMessage which allows to specify both the subscriptions which should receive the message
+     * and the priority of the message.
+     */
+    RowLogMessage putMessage(byte[] rowKey, byte[] data, byte[] payload, Put put,
+            List<String> subscriptionIds, MessagePriority priority) throws RowLogException, InterruptedException;
+
     /**
      * Request each registered {@link RowLogMessageListener} to process a {@link RowLogMessage} explicitly. 
      * This method can be called independently from a {@link RowLogProcessor} and can be used for instance when a message
@@ -186,6 +200,14 @@ public interface RowLog {
 
     RowLogShardList getShardList();
 
+    /**
+     * Returns the timestamp from which on the messages are divided over the shards in another way than
+     * before, as long as this change is in progress, null otherwise. During such a change, the messages of
+     * a row can be on two shards: the messages put before the change should be processed before those put
+     * after it.
+     */
+    Long getShardRoutingChangeTimestamp();
+
     /**
      * Checks if a message is available for processing for a certain subscription.
      * <p>A message will not be available if it is either already done, 
@@ -53,6 +53,11 @@ public interface RowLogMessage {
      * @return the data
      */
     byte[] getData();
+
+    /**
+     * The priority of the message, which determines the lane of the shards the message is put on.
+     */
+    MessagePriority getPriority();
     
     /**
      * The payload contains all information about a message for a {@link RowLogMessageListener} to be able to process a message.
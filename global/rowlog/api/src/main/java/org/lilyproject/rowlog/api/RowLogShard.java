@@ -16,6 +16,7 @@
 package org.lilyproject.rowlog.api;
 
 import java.util.List;
+import java.util.Map;
 
 /**
  * A RowLogShard is a shard of the "global rowlog queue", that is the index that points to the rows
@@ -77,4 +78,43 @@ public interface RowLogShard {
      * @throws RowLogException when an unexpected exception occurs
      */
     List<RowLogMessage> next(String subscription, Long minimalTimestamp, int batchSize) throws RowLogException;
+
+    /**
+     * Retrieves the next messages of the indicated priority to be processed by the indicated subscription.
+     * The other variants of this method retrieve the messages of all priorities, starting with the normal
+     * priority ones.
+     *
+     * @param subscription the id of the subscription for which the next messages should be retrieved
+     * @param priority the priority of the messages to be retrieved
+     * @param minimalTimestamp the minimal timestamp of the messages to be retrieved, can be null
+     * @param batchSize how many messages to fetch (at most)
+     *
+     * @return the next batchSize, or less, {@link RowLogMessage}s to be processed
+     * @throws RowLogException when an unexpected exception occurs
+     */
+    List<RowLogMessage> next(String subscription, MessagePriority priority, Long minimalTimestamp, int batchSize)
+            throws RowLogException;
+
+    /**
+     * Retrieves the next messages of the indicated priority to be processed by the indicated subscription,
+     * limited to the messages before the given timestamp.
+     *
+     * @param maximalTimestamp the messages retrieved have a timestamp before this one, can be null
+     * @see #next(String, MessagePriority, Long, int)
+     */
+    List<RowLogMessage> next(String subscription, MessagePriority priority, Long minimalTimestamp,
+            Long maximalTimestamp, int batchSize) throws RowLogException;
+
+    /**
+     * Returns, for each subscription which has messages on this shard, the timestamp of its oldest message,
+     * considering the messages of all priorities.
+     */
+    Map<String, Long> getOldestMessageTimestamps() throws RowLogException;
+
+    /**
+     * Counts the messages on this shard for the indicated subscription.
+     *
+     * @param limit counting stops at this number of messages
+     */
+    int countMessages(String subscription, int limit) throws RowLogException;
 }
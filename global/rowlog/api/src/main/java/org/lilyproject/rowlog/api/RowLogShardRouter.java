@@ -15,6 +15,25 @@
  */
 package org.lilyproject.rowlog.api;
 
+import java.util.List;
+
 public interface RowLogShardRouter {
+    /**
+     * Returns the shard on which the message should be put.
+     */
     RowLogShard getShard(RowLogMessage message, RowLogShardList shardList) throws RowLogException;
+
+    /**
+     * Returns the shards on which the message might have been put, which are the shards from which it should
+     * be removed. Usually this is only the shard returned by {@link #getShard}, but while the number of
+     * shards is being changed, a message might still be on the shard where it would have been put before
+     * the change.
+     */
+    List<RowLogShard> getShards(RowLogMessage message, RowLogShardList shardList) throws RowLogException;
+
+    /**
+     * Returns the timestamp from which on messages are routed differently than before, as long as messages
+     * routed the previous way might still be on the shards, null otherwise.
+     */
+    Long getRoutingChangeTimestamp();
 }
@@ -53,6 +53,7 @@ public abstract class AbstractListenersSubscriptionHandler extends AbstractSubsc
     @Override
     public void listenersChanged(List<String> newListeners) {
         if (!stop) {
+            newListeners = selectListeners(newListeners);
             for (String newListener : newListeners) {
                 if (!listeners.containsKey(newListener))
                     listenerRegistered(newListener);
@@ -64,6 +65,14 @@ public abstract class AbstractListenersSubscriptionHandler extends AbstractSubsc
         }
     }
 
+    /**
+     * Selects the listeners to which messages will be dispatched, out of all the registered listeners.
+     * By default, all listeners are used.
+     */
+    protected List<String> selectListeners(List<String> listeners) {
+        return listeners;
+    }
+
     protected void listenerRegistered(String listener) {
         submitWorker(listener);
     }
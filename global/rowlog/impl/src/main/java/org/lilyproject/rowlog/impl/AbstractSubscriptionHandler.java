@@ -17,6 +17,9 @@ package org.lilyproject.rowlog.impl;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.lilyproject.rowlog.api.*;
 import org.lilyproject.util.Logs;
 
@@ -51,6 +54,23 @@ public abstract class AbstractSubscriptionHandler implements SubscriptionHandler
          */
         void close();
     }
+
+    /**
+     * A WorkerDelegate which can process multiple messages at once.
+     */
+    protected static interface BatchWorkerDelegate extends WorkerDelegate {
+        /**
+         * The number of messages to take at once from the work queue, if 1, messages are passed
+         * one by one to {@link #processMessage}.
+         */
+        int getMaxBatchSize();
+
+        /**
+         * @return the messages which were processed successfully
+         */
+        List<RowLogMessage> processMessages(List<RowLogMessage> messages) throws RowLogException,
+                InterruptedException;
+    }
     
     protected class Worker implements Runnable {
         private WorkerDelegate delegate;
@@ -85,6 +105,13 @@ public abstract class AbstractSubscriptionHandler implements SubscriptionHandler
                 RowLogMessage message;
                 try {
                 	metrics.queueSize.set(messagesWorkQueue.size());
+                    if (delegate instanceof BatchWorkerDelegate) {
+                        int batchSize = ((BatchWorkerDelegate)delegate).getMaxBatchSize();
+                        if (batchSize > 1) {
+                            processBatch(messagesWorkQueue.take(batchSize));
+                            continue;
+                        }
+                    }
                     message = messagesWorkQueue.take();
                     if (message != null) {
                         try {
@@ -130,5 +157,41 @@ public abstract class AbstractSubscriptionHandler implements SubscriptionHandler
                 }
             }
         }
+
+        private void processBatch(List<RowLogMessage> messages) throws InterruptedException {
+            try {
+                List<RowLogMessage> availableMessages = new ArrayList<RowLogMessage>(messages.size());
+                for (RowLogMessage message : messages) {
+                    if (rowLog.isMessageAvailable(message, subscriptionId)) {
+                        availableMessages.add(message);
+                    } else if (log.isDebugEnabled()) {
+                        log.debug(String.format("[%1$s - %2$s] Message is not available: %3$s", rowLogId, subscriptionId, message));
+                    }
+                }
+
+                if (availableMessages.isEmpty())
+                    return;
+
+                List<RowLogMessage> processedMessages =
+                        ((BatchWorkerDelegate)delegate).processMessages(availableMessages);
+
+                // Acknowledge the processed messages as a group, once the whole batch is done
+                for (RowLogMessage message : processedMessages) {
+                    metrics.successRate.inc();
+                    rowLog.messageDone(message, subscriptionId);
+                }
+                for (int i = processedMessages.size(); i < availableMessages.size(); i++) {
+                    metrics.failureRate.inc();
+                }
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Throwable e) {
+                log.warn(String.format("[%1$s - %2$s] RowLogException occurred while processing batch of %3$s messages", rowLogId, subscriptionId, messages.size()), e);
+            } finally {
+                for (RowLogMessage message : messages) {
+                    messagesWorkQueue.done(message);
+                }
+            }
+        }
     }
 }
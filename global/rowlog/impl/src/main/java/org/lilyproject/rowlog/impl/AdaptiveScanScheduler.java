@@ -0,0 +1,261 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.lilyproject.rowlog.api.RowLogShard;
+
+/**
+ * Decides, for each scan round of a subscription thread, which shards are scanned and how many messages are
+ * scanned on each of them, and how far the messages work queue may drain before the next round starts.
+ *
+ * <ul>
+ * <li>The batch size of a shard doubles each time a scan returns a full batch, up to the maximum batch size,
+ * and halves each time a scan returns less than half a batch, down to the minimum batch size. Shards with
+ * a backlog are thus drained in fewer, larger scans.</li>
+ * <li>While some shards have a backlog, the rounds follow each other without waiting. Shards which were empty
+ * are then only scanned every few rounds, the more often they were found empty, the less often they are
+ * scanned. When there is no backlog, the subscription thread waits for a wake-up, after which all shards
+ * are scanned again.</li>
+ * <li>The refill threshold of the work queue is the number of messages the listeners consume during
+ * about two scans, so that the next batch arrives before the listeners run out of work.</li>
+ * </ul>
+ *
+ * <p>This class is not thread safe, it is used by a single subscription thread.</p>
+ */
+public class AdaptiveScanScheduler {
+    /**
+     * The maximum number of consecutive rounds in which an empty shard is not scanned.
+     */
+    static final int MAX_SKIPPED_ROUNDS = 8;
+
+    static final int MIN_REFILL_THRESHOLD = 5;
+
+    /**
+     * Weight of the latest measurement in the moving averages of the scan duration and the consume rate.
+     */
+    private static final double SMOOTHING = 0.3;
+
+    private int minBatchSize;
+    private int maxBatchSize;
+    private final int maxRefillThreshold;
+
+    private final Map<RowLogShard, ShardState> shardStates = new HashMap<RowLogShard, ShardState>();
+
+    private int refillThreshold = MIN_REFILL_THRESHOLD;
+    private double scanDuration = -1;
+    private double consumeRate = -1;
+    private long lastConsumedCount = -1;
+    private long lastRoundEnd;
+
+    /**
+     * @param minBatchSize the batch size of a shard without backlog
+     * @param maxBatchSize the maximum batch size of a shard
+     * @param workQueueSize the size of the messages work queue
+     */
+    public AdaptiveScanScheduler(int minBatchSize, int maxBatchSize, int workQueueSize) {
+        this.maxRefillThreshold = Math.max(MIN_REFILL_THRESHOLD, workQueueSize / 2);
+        setBatchSizes(minBatchSize, maxBatchSize);
+    }
+
+    /**
+     * Changes the range of the batch sizes, e.g. because the number of shards changed. The batch sizes of the
+     * shards are brought within the new range.
+     */
+    public void setBatchSizes(int minBatchSize, int maxBatchSize) {
+        this.minBatchSize = Math.max(1, minBatchSize);
+        this.maxBatchSize = Math.max(this.minBatchSize, maxBatchSize);
+        for (ShardState state : shardStates.values()) {
+            state.batchSize = Math.max(this.minBatchSize, Math.min(this.maxBatchSize, state.batchSize));
+        }
+    }
+
+    public int getMinBatchSize() {
+        return minBatchSize;
+    }
+
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Returns the shards to scan in the next round.
+     *
+     * @param scanAll true if all shards should be scanned, which is the case when the previous round ended
+     *                by waiting for new messages
+     */
+    public List<RowLogShard> selectShards(List<RowLogShard> shards, boolean scanAll) {
+        // Forget the shards which are no longer scanned, e.g. because they were released by this processor,
+        // otherwise their last state would keep counting as a backlog
+        shardStates.keySet().retainAll(new HashSet<RowLogShard>(shards));
+
+        List<RowLogShard> selected = new ArrayList<RowLogShard>(shards.size());
+        for (RowLogShard shard : shards) {
+            ShardState state = getState(shard);
+            if (scanAll || state.skippedRounds >= state.roundsToSkip()) {
+                state.skippedRounds = 0;
+                selected.add(shard);
+            } else {
+                state.skippedRounds++;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Returns the number of messages to scan on the shard.
+     */
+    public int getBatchSize(RowLogShard shard) {
+        return getState(shard).batchSize;
+    }
+
+    /**
+     * Records the result of a scan of a shard.
+     *
+     * @param batchSize the number of messages which were asked for
+     * @param messageCount the number of messages returned by the scan
+     * @param scanStart the time at which the scan started
+     */
+    public void scanned(RowLogShard shard, int batchSize, int messageCount, long scanStart) {
+        ShardState state = getState(shard);
+        state.lastScanStart = scanStart;
+        state.emptyScans = messageCount == 0 ? state.emptyScans + 1 : 0;
+        state.backlog = messageCount >= state.batchSize;
+
+        // Scans of a reduced number of messages do not say anything about the right batch size
+        if (batchSize == state.batchSize) {
+            if (messageCount >= batchSize) {
+                state.batchSize = Math.min(maxBatchSize, batchSize * 2);
+            } else if (messageCount < batchSize / 2) {
+                state.batchSize = Math.max(minBatchSize, batchSize / 2);
+            }
+        }
+    }
+
+    /**
+     * True if at least one of the shards returned a full batch in its latest scan.
+     */
+    public boolean hasBacklog() {
+        for (ShardState state : shardStates.values()) {
+            if (state.backlog) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the earliest start time of the latest scans of the given shards, or Long.MAX_VALUE if no shards
+     * are given. Messages put on these shards since they were scanned are not older than this, so the minimal
+     * timestamp of the next scans should not be advanced past it.
+     */
+    public long getEarliestScanStart(List<RowLogShard> shards) {
+        long earliest = Long.MAX_VALUE;
+        for (RowLogShard shard : shards) {
+            earliest = Math.min(earliest, getState(shard).lastScanStart);
+        }
+        return earliest;
+    }
+
+    /**
+     * Updates the refill threshold at the end of a round.
+     *
+     * @param scanDuration the duration of the scans of the round
+     * @param consumedCount the total number of messages taken from the work queue up to now
+     * @param now the current time
+     * @return the refill threshold to use for the work queue
+     */
+    public int roundFinished(long scanDuration, long consumedCount, long now) {
+        this.scanDuration = average(this.scanDuration, scanDuration);
+
+        if (lastConsumedCount >= 0 && now > lastRoundEnd) {
+            double rate = (double)(consumedCount - lastConsumedCount) / (now - lastRoundEnd);
+            consumeRate = average(consumeRate, rate);
+        }
+        lastConsumedCount = consumedCount;
+        lastRoundEnd = now;
+
+        if (consumeRate >= 0) {
+            long threshold = Math.round(2 * consumeRate * this.scanDuration);
+            refillThreshold = (int)Math.max(MIN_REFILL_THRESHOLD, Math.min(maxRefillThreshold, threshold));
+        }
+        return refillThreshold;
+    }
+
+    public int getRefillThreshold() {
+        return refillThreshold;
+    }
+
+    /**
+     * The sum of the batch sizes of all shards.
+     */
+    public int getTotalBatchSize() {
+        int total = 0;
+        for (ShardState state : shardStates.values()) {
+            total += state.batchSize;
+        }
+        return total;
+    }
+
+    public int getShardsWithBacklog() {
+        int count = 0;
+        for (ShardState state : shardStates.values()) {
+            if (state.backlog) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static double average(double average, double value) {
+        return average < 0 ? value : average + SMOOTHING * (value - average);
+    }
+
+    private ShardState getState(RowLogShard shard) {
+        ShardState state = shardStates.get(shard);
+        if (state == null) {
+            // Shards can be added while the processor is running
+            state = new ShardState(minBatchSize);
+            shardStates.put(shard, state);
+        }
+        return state;
+    }
+
+    private static class ShardState {
+        int batchSize;
+        boolean backlog;
+        int emptyScans;
+        int skippedRounds;
+        long lastScanStart;
+
+        ShardState(int batchSize) {
+            this.batchSize = batchSize;
+        }
+
+        /**
+         * The number of rounds to skip before scanning the shard again: doubles with each consecutive scan
+         * which found the shard empty.
+         */
+        int roundsToSkip() {
+            return emptyScans == 0 ? 0 : Math.min(MAX_SKIPPED_ROUNDS, 1 << Math.min(emptyScans - 1, 30));
+        }
+    }
+}
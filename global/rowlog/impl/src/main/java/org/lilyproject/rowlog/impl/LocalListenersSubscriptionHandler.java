@@ -15,6 +15,10 @@
  */
 package org.lilyproject.rowlog.impl;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import org.lilyproject.rowlog.api.*;
 
 public class LocalListenersSubscriptionHandler extends AbstractListenersSubscriptionHandler {
@@ -29,7 +33,7 @@ public class LocalListenersSubscriptionHandler extends AbstractListenersSubscrip
         return new LocalWorkerDelegate();
     }
 
-    private class LocalWorkerDelegate implements WorkerDelegate {
+    private class LocalWorkerDelegate implements BatchWorkerDelegate {
         @Override
         public boolean processMessage(RowLogMessage message) throws RowLogException, InterruptedException {
             RowLogMessageListener listener = RowLogMessageListenerMapping.INSTANCE.get(subscriptionId);
@@ -38,6 +42,33 @@ public class LocalListenersSubscriptionHandler extends AbstractListenersSubscrip
             return listener.processMessage(message);
         }
 
+        @Override
+        public int getMaxBatchSize() {
+            RowLogMessageListener listener = RowLogMessageListenerMapping.INSTANCE.get(subscriptionId);
+            if (listener instanceof BatchRowLogMessageListener)
+                return ((BatchRowLogMessageListener)listener).getMaxBatchSize();
+            return 1;
+        }
+
+        @Override
+        public List<RowLogMessage> processMessages(List<RowLogMessage> messages) throws RowLogException,
+                InterruptedException {
+            RowLogMessageListener listener = RowLogMessageListenerMapping.INSTANCE.get(subscriptionId);
+            if (listener == null)
+                return Collections.emptyList();
+
+            if (listener instanceof BatchRowLogMessageListener)
+                return ((BatchRowLogMessageListener)listener).processMessages(messages);
+
+            // The listener was replaced by one which does not support batches
+            List<RowLogMessage> processedMessages = new ArrayList<RowLogMessage>(messages.size());
+            for (RowLogMessage message : messages) {
+                if (listener.processMessage(message))
+                    processedMessages.add(message);
+            }
+            return processedMessages;
+        }
+
         @Override
         public void close() {
         }
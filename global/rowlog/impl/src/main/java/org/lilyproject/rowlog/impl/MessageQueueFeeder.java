@@ -39,7 +39,8 @@ public class MessageQueueFeeder implements RowLogMessageListener {
         // or when an new update happens on the same record and the remaining messages are being processed first.
         for (int i = 0; i < 50; i++) {
             try {
-                messageQueue.putMessage(message.getRowKey(), message.getData(), message.getPayload(), null);
+                messageQueue.putMessage(message.getRowKey(), message.getData(), message.getPayload(), null,
+                        message.getPriority());
                 return true;
             } catch (RowLogException e) {
                 lastException = e;
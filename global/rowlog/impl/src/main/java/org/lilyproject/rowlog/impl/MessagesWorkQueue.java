@@ -27,6 +27,12 @@ public class MessagesWorkQueue {
     private final int maxMessages;
     
     private final List<RowLogMessage> messageList;
+
+    /**
+     * The messages in the messageList, to avoid queueing the same message twice when it is scanned again
+     * before it is taken from the queue.
+     */
+    private final Set<RowLogMessage> queuedMessages = new HashSet<RowLogMessage>();
     
     private final Set<RowLogMessage> messagesWorkingOn = new HashSet<RowLogMessage>();
 
@@ -45,7 +51,12 @@ public class MessagesWorkQueue {
     /**
      * If the queue contains less than this amount of messages, we'll notify that we want some fresh messages.
      */
-    private final int refillThreshold = 5;
+    private volatile int refillThreshold = 5;
+
+    /**
+     * The number of messages which have been taken from the queue.
+     */
+    private long takenCount;
 
     private final Object refillTrigger = new Object();
 
@@ -57,10 +68,14 @@ public class MessagesWorkQueue {
     public void offer(RowLogMessage message) throws InterruptedException {
         lock.lock();
         try {
+            if (queuedMessages.contains(message) || messagesWorkingOn.contains(message)) {
+                return;
+            }
             while (messageList.size() >= maxMessages) {
                 notFull.await();
             }
             messageList.add(message);
+            queuedMessages.add(message);
             notEmpty.signal();
         } finally {
             lock.unlock();
@@ -78,20 +93,9 @@ public class MessagesWorkQueue {
                     notEmpty.await();
                 }
 
-                Iterator<RowLogMessage> messages = messageList.iterator();
-                while (messages.hasNext()) {
-                    RowLogMessage message = messages.next();
-                    ByteArrayKey row = new ByteArrayKey(message.getRowKey());
-                    if (messagesWorkingOn.contains(message)) {
-                        messages.remove();
-                        afterMessageRemoval();
-                    } else if (!rowsWorkingOn.contains(row)) {
-                        messages.remove();
-                        afterMessageRemoval();
-                        messagesWorkingOn.add(message);
-                        rowsWorkingOn.add(row);
-                        return message;
-                    }
+                RowLogMessage message = poll();
+                if (message != null) {
+                    return message;
                 }
 
                 // The messages list is not empty, but only contains messages for rows on which we are already working
@@ -102,7 +106,54 @@ public class MessagesWorkQueue {
         }
     }
 
-    private void afterMessageRemoval() {
+    /**
+     * Takes up to maxMessages messages, for different rows. Waits until at least one message is
+     * available, but does not wait for more messages than those that are immediately available.
+     *
+     * <p>Each of the returned messages should be matched by a corresponding done() call.
+     */
+    public List<RowLogMessage> take(int maxMessages) throws InterruptedException {
+        List<RowLogMessage> result = new ArrayList<RowLogMessage>(Math.min(maxMessages, this.maxMessages));
+        lock.lock();
+        try {
+            result.add(take());
+
+            RowLogMessage message;
+            while (result.size() < maxMessages && (message = poll()) != null) {
+                result.add(message);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return result;
+    }
+
+    /**
+     * Takes the first message of a row which is not being worked on, or returns null if there is none.
+     * Should be called with the lock held.
+     */
+    private RowLogMessage poll() {
+        Iterator<RowLogMessage> messages = messageList.iterator();
+        while (messages.hasNext()) {
+            RowLogMessage message = messages.next();
+            ByteArrayKey row = new ByteArrayKey(message.getRowKey());
+            if (messagesWorkingOn.contains(message)) {
+                messages.remove();
+                afterMessageRemoval(message);
+            } else if (!rowsWorkingOn.contains(row)) {
+                messages.remove();
+                afterMessageRemoval(message);
+                messagesWorkingOn.add(message);
+                rowsWorkingOn.add(row);
+                takenCount++;
+                return message;
+            }
+        }
+        return null;
+    }
+
+    private void afterMessageRemoval(RowLogMessage message) {
+        queuedMessages.remove(message);
         notFull.signal();
         if (messageList.size() <= refillThreshold) {
             synchronized (refillTrigger) {
@@ -127,6 +178,31 @@ public class MessagesWorkQueue {
     	return messageList.size();
     }
 
+    /**
+     * The total number of messages which have been taken from the queue, to measure the throughput of
+     * the listeners.
+     */
+    public long getTakenCount() {
+        lock.lock();
+        try {
+            return takenCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getRefillThreshold() {
+        return refillThreshold;
+    }
+
+    /**
+     * Sets the number of messages below which {@link #waitOnRefillThreshold()} returns, it is adjusted
+     * by the processor according to the throughput of the listeners.
+     */
+    public void setRefillThreshold(int refillThreshold) {
+        this.refillThreshold = refillThreshold;
+    }
+
     public void waitOnRefillThreshold() throws InterruptedException {
         synchronized (refillTrigger) {
             while (messageList.size() > refillThreshold) {
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.impl;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.lilyproject.rowlog.api.MessagePriority;
+import org.lilyproject.rowlog.api.RowLogMessage;
+
+/**
+ * Divides the capacity of a subscription thread over the {@link MessagePriority} lanes, according to the
+ * priority weights of the {@link RowLogProcessorSettings}.
+ *
+ * <p>Each lane is scanned with a batch size proportional to its weight, and the scanned messages are put on
+ * the work queue in a weighted round-robin order: for each weight 1 of the low priority lane, as many normal
+ * priority messages as its weight. A backlog of low priority messages thus only takes a small part of the
+ * throughput, while it is still processed at full speed when there are no normal priority messages.</p>
+ */
+public class PriorityLanes {
+    private final int[] weights;
+    private final int maxWeight;
+
+    public PriorityLanes(RowLogProcessorSettings settings) {
+        MessagePriority[] priorities = MessagePriority.values();
+        weights = new int[priorities.length];
+        int max = 1;
+        for (MessagePriority priority : priorities) {
+            weights[priority.ordinal()] = settings.getPriorityWeight(priority);
+            max = Math.max(max, weights[priority.ordinal()]);
+        }
+        maxWeight = max;
+    }
+
+    /**
+     * Returns the number of messages to scan on a lane of a shard.
+     *
+     * @param batchSize the batch size of the shard, which is used for the lane(s) with the highest weight
+     */
+    public int getBatchSize(MessagePriority priority, int batchSize) {
+        return Math.max(1, (int)((long)batchSize * weights[priority.ordinal()] / maxWeight));
+    }
+
+    /**
+     * Merges the messages of the lanes in weighted round-robin order. The order of the messages of each lane
+     * is kept.
+     */
+    public List<RowLogMessage> merge(Map<MessagePriority, List<RowLogMessage>> laneMessages) {
+        int total = 0;
+        List<Iterator<RowLogMessage>> iterators = new ArrayList<Iterator<RowLogMessage>>();
+        List<MessagePriority> priorities = new ArrayList<MessagePriority>();
+        for (MessagePriority priority : MessagePriority.values()) {
+            List<RowLogMessage> messages = laneMessages.get(priority);
+            if (messages != null && !messages.isEmpty()) {
+                total += messages.size();
+                iterators.add(messages.iterator());
+                priorities.add(priority);
+            }
+        }
+
+        List<RowLogMessage> merged = new ArrayList<RowLogMessage>(total);
+        while (merged.size() < total) {
+            for (int i = 0; i < iterators.size(); i++) {
+                Iterator<RowLogMessage> messages = iterators.get(i);
+                int weight = weights[priorities.get(i).ordinal()];
+                for (int j = 0; j < weight && messages.hasNext(); j++) {
+                    merged.add(messages.next());
+                }
+            }
+        }
+        return merged;
+    }
+}
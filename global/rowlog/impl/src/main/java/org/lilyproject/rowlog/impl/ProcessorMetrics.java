@@ -21,6 +21,7 @@ import org.apache.hadoop.metrics.MetricsRecord;
 import org.apache.hadoop.metrics.MetricsUtil;
 import org.apache.hadoop.metrics.Updater;
 import org.apache.hadoop.metrics.util.MetricsBase;
+import org.apache.hadoop.metrics.util.MetricsIntValue;
 import org.apache.hadoop.metrics.util.MetricsRegistry;
 import org.apache.hadoop.metrics.util.MetricsTimeVaryingRate;
 import org.lilyproject.util.hbase.metrics.MBeanUtil;
@@ -44,6 +45,20 @@ public class ProcessorMetrics implements Updater {
 
     public MetricsRate wakeups = new MetricsRate("wakeups_rate", registry);
 
+    /**
+     * Shard scans which were skipped because the shard was empty while other shards had a backlog.
+     */
+    public MetricsRate skippedShardScans = new MetricsRate("skipped_shard_scans_rate", registry);
+
+    /**
+     * The sum of the current scan batch sizes of the shards.
+     */
+    public MetricsIntValue scanBatchSize = new MetricsIntValue("scanBatchSize", registry);
+
+    public MetricsIntValue refillThreshold = new MetricsIntValue("refillThreshold", registry);
+
+    public MetricsIntValue shardsWithBacklog = new MetricsIntValue("shardsWithBacklog", registry);
+
     public ProcessorMetrics(String subscriptionId) {
         this.subscriptionId = subscriptionId;
         context = MetricsUtil.getContext("rowlog");
@@ -168,8 +168,15 @@ public class RemoteListenerHandler {
                 data = new byte[dataLength];
                 inputStream.readFully(data, 0, dataLength);
             }
+
+            // The priority comes last, messages sent by processors which don't send it have normal priority
+            MessagePriority priority = MessagePriority.NORMAL;
+            if (inputStream.available() > 0) {
+                priority = MessagePriority.fromLane(inputStream.readByte());
+            }
             inputStream.close();
-            RowLogMessage rowLogMessage = new RowLogMessageImpl(timestamp, rowKey, seqnr, data, rowLog);
+            RowLogMessage rowLogMessage = new RowLogMessageImpl(timestamp, rowKey, seqnr, data, null, priority,
+                    rowLog);
             Channels.fireMessageReceived(ctx, rowLogMessage); // Give the message to the MessageHandler
         }
     }
@@ -16,6 +16,8 @@
 package org.lilyproject.rowlog.impl;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
@@ -40,13 +42,40 @@ public class RemoteListenersSubscriptionHandler extends AbstractListenersSubscri
     private ClientBootstrap bootstrap;
     private NioClientSocketChannelFactory channelFactory;
     private Map<Integer, RemoteWorkerDelegate> workerDelegates = new ConcurrentHashMap<Integer, RemoteWorkerDelegate>();
+    private final String localHost;
 
     public RemoteListenersSubscriptionHandler(String subscriptionId, MessagesWorkQueue messagesWorkQueue,
             RowLog rowLog, RowLogConfigurationManager rowLogConfigurationManager) {
+        this(subscriptionId, messagesWorkQueue, rowLog, rowLogConfigurationManager, null);
+    }
+
+    /**
+     * @param localHost if not null, only the listeners running on this host are used as long as there
+     *                  are any, otherwise all listeners are used
+     */
+    public RemoteListenersSubscriptionHandler(String subscriptionId, MessagesWorkQueue messagesWorkQueue,
+            RowLog rowLog, RowLogConfigurationManager rowLogConfigurationManager, String localHost) {
         super(subscriptionId, messagesWorkQueue, rowLog, rowLogConfigurationManager);
+        this.localHost = localHost;
         initBootstrap();
     }
 
+    @Override
+    protected List<String> selectListeners(List<String> listeners) {
+        if (localHost == null) {
+            return listeners;
+        }
+
+        // The listener ids are of the form host:port
+        List<String> localListeners = new ArrayList<String>();
+        for (String listener : listeners) {
+            if (listener.startsWith(localHost + ":")) {
+                localListeners.add(listener);
+            }
+        }
+        return localListeners.isEmpty() ? listeners : localListeners;
+    }
+
     @Override
     protected WorkerDelegate createWorkerDelegate(String host) {
         return new RemoteWorkerDelegate(host);
@@ -234,7 +263,8 @@ public class RemoteListenersSubscriptionHandler extends AbstractListenersSubscri
                 RowLogMessage message = (RowLogMessage) e.getMessage();
                 byte[] rowKey = message.getRowKey();
                 byte[] data = message.getData();
-                int msgLength = 8 + 4 + rowKey.length + 8 + 4; // timestamp + rowkey-length + rowkey + seqnr + data-length + data
+                // timestamp + rowkey-length + rowkey + seqnr + data-length + data + priority lane
+                int msgLength = 8 + 4 + rowKey.length + 8 + 4 + 1;
                 if (data != null)
                     msgLength = msgLength + data.length;
                 ChannelBuffer channelBuffer = ChannelBuffers.buffer(4 + msgLength);
@@ -250,6 +280,7 @@ public class RemoteListenersSubscriptionHandler extends AbstractListenersSubscri
                 } else {
                     outputStream.writeInt(0);
                 }
+                outputStream.writeByte(message.getPriority().getLane());
                 Channels.write(ctx, e.getFuture(), channelBuffer);
             } finally {
                 Closer.close(outputStream);
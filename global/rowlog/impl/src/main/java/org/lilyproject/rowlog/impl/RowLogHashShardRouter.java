@@ -16,48 +16,159 @@
 package org.lilyproject.rowlog.impl;
 
 import org.lilyproject.rowlog.api.*;
+import org.lilyproject.util.MurmurHash3;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
 
 /**
- * Assigns messages to shards based on the hash of the row key. Messages thus always
- * end up in the same shard (as long as the number of shards stays the same), though
- * currently this is not necessary since there is one central rowlog processor which
- * guarantees that no two messages of the same row will be processed concurrently.
+ * Assigns messages to shards based on the hash of the row key. Messages of the same row thus end up in
+ * the same shard.
+ *
+ * <p>Without a {@link RowLogShardLayout}, the hash is taken modulo the number of registered shards, which
+ * means the number of shards can not be changed while there are messages in the rowlog. With a layout, the
+ * routing is determined by the layout entry that applies to the timestamp of the message, so that the
+ * number of shards can be changed online, see {@link RowLogShardLayoutManager}. The layout entry also
+ * determines the hash function: MD5, as used before the layout existed, or the cheaper MurmurHash3, which is
+ * calculated over the row key without copying it.
  */
 public class RowLogHashShardRouter implements RowLogShardRouter {
-    private final MessageDigest mdAlgorithm;
-
-    public RowLogHashShardRouter() {
-        try {
-            mdAlgorithm = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
+    private static final ThreadLocal<MessageDigest> MD5_DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
         }
+    };
+
+    private volatile RowLogShardLayout layout;
+
+    /**
+     * Sets the layout according to which messages are assigned to shards, null to route over all
+     * registered shards.
+     */
+    public void setLayout(RowLogShardLayout layout) {
+        this.layout = layout;
     }
 
+    public RowLogShardLayout getLayout() {
+        return layout;
+    }
+
+    @Override
     public RowLogShard getShard(RowLogMessage message, RowLogShardList shardList) throws RowLogException {
+        List<RowLogShard> shards = getRegisteredShards(shardList);
+        RowLogShardLayout layout = this.layout;
+        if (layout == null) {
+            return shards.get(moduloHash(RowLogShardLayout.Hash.MD5, message.getRowKey()) % shards.size());
+        }
+        return getShard(layout.getEntry(message.getTimestamp()), message.getRowKey(), shards);
+    }
+
+    @Override
+    public List<RowLogShard> getShards(RowLogMessage message, RowLogShardList shardList) throws RowLogException {
+        RowLogShardLayout layout = this.layout;
+        if (layout == null || !layout.isMigrating()) {
+            return Collections.singletonList(getShard(message, shardList));
+        }
+
+        // A node which did not yet know about the latest layout entry might still have put the message
+        // according to the previous entry
+        List<RowLogShard> shards = getRegisteredShards(shardList);
+        byte[] rowKey = message.getRowKey();
+        int entryIndex = layout.getEntryIndex(message.getTimestamp());
+        RowLogShard shard = getShard(layout.getEntries().get(entryIndex), rowKey, shards);
+        if (entryIndex > 0) {
+            RowLogShard previousShard = getShard(layout.getEntries().get(entryIndex - 1), rowKey, shards);
+            if (previousShard != shard) {
+                return Arrays.asList(shard, previousShard);
+            }
+        }
+        return Collections.singletonList(shard);
+    }
+
+    @Override
+    public Long getRoutingChangeTimestamp() {
+        RowLogShardLayout layout = this.layout;
+        return layout != null && layout.isMigrating() ? layout.getLatestEntry().getSince() : null;
+    }
+
+    private List<RowLogShard> getRegisteredShards(RowLogShardList shardList) throws RowLogException {
         List<RowLogShard> shards = shardList.getShards();
         if (shards.isEmpty()) {
             throw new RowLogException("There are no rowlog shards registered.");
         }
-        long hash = hash(message.getRowKey());
-        int selectedShard = (int)(hash % shards.size());
+        return shards;
+    }
+
+    private RowLogShard getShard(RowLogShardLayout.Entry entry, byte[] rowKey, List<RowLogShard> shards)
+            throws RowLogException {
+        int selectedShard;
+        switch (entry.getRouting()) {
+            case MODULO:
+                selectedShard = moduloHash(entry.getHash(), rowKey) % entry.getShardCount();
+                break;
+            case CONSISTENT:
+                selectedShard = jumpConsistentHash(consistentHashKey(entry.getHash(), rowKey), entry.getShardCount());
+                break;
+            default:
+                throw new RuntimeException("Unexpected rowlog shard routing: " + entry.getRouting());
+        }
+
+        if (selectedShard >= shards.size()) {
+            throw new RowLogException("The rowlog shard layout requires " + entry.getShardCount() +
+                    " shards, but only " + shards.size() + " shards are registered.");
+        }
         return shards.get(selectedShard);
     }
 
-    private long hash(byte[] rowKey) {
-        try {
-            // Cloning message digest rather than looking it up each time
-            MessageDigest md = (MessageDigest)mdAlgorithm.clone();
-            byte[] digest = md.digest(rowKey);
-            return ((digest[0] & 0xFF) << 8) + ((digest[1] & 0xFF));
-        } catch (CloneNotSupportedException e) {
-            // Sun's MD5 supports cloning, so we don't expect this to happen
-            throw new RuntimeException(e);
+    /**
+     * A hash of the row key in the range [0, 65535].
+     */
+    private static int moduloHash(RowLogShardLayout.Hash hash, byte[] rowKey) {
+        switch (hash) {
+            case MD5:
+                byte[] digest = MD5_DIGEST.get().digest(rowKey);
+                return ((digest[0] & 0xFF) << 8) + ((digest[1] & 0xFF));
+            case MURMUR3:
+                return (int)(MurmurHash3.hash64(rowKey, 0, rowKey.length, 0) >>> 48);
+            default:
+                throw new RuntimeException("Unexpected rowlog shard hash: " + hash);
+        }
+    }
+
+    private static long consistentHashKey(RowLogShardLayout.Hash hash, byte[] rowKey) {
+        switch (hash) {
+            case MD5:
+                byte[] digest = MD5_DIGEST.get().digest(rowKey);
+                long key = 0;
+                for (int i = 0; i < 8; i++) {
+                    key = (key << 8) | (digest[i] & 0xFF);
+                }
+                return key;
+            case MURMUR3:
+                return MurmurHash3.hash64(rowKey, 0, rowKey.length, 0);
+            default:
+                throw new RuntimeException("Unexpected rowlog shard hash: " + hash);
         }
     }
 
+    /**
+     * Jump consistent hash (Lamping & Veach): maps the key to a bucket in [0, buckets) such that increasing
+     * the number of buckets only moves keys to the new buckets.
+     */
+    static int jumpConsistentHash(long key, int buckets) {
+        long b = -1;
+        long j = 0;
+        while (j < buckets) {
+            b = j;
+            key = key * 2862933555777941757L + 1;
+            j = (long)((b + 1) * ((double)(1L << 31) / (double)((key >>> 33) + 1)));
+        }
+        return (int)b;
+    }
 }
@@ -45,6 +45,8 @@ public class RowLogImpl implements RowLog, RowLogImplMBean, SubscriptionsObserve
     private static final byte PL_BYTE = (byte)1;
     private static final byte ES_BYTE = (byte)2;
     private static final byte[] SEQ_NR = Bytes.toBytes("SEQNR");
+    static final int BACKLOG_COUNT_LIMIT = 100000;
+    static final long BACKLOG_SIZES_REFRESH_INTERVAL = 60000;
     private final HTableInterface rowTable;
     private final byte[] rowLogColumnFamily;
     private RowLogConfig rowLogConfig;
@@ -66,6 +68,9 @@ public class RowLogImpl implements RowLog, RowLogImplMBean, SubscriptionsObserve
     private byte[] executionStatePrefix;
     private byte[] seqNrQualifier;
     private ObjectName mbeanName;
+    // Counting the messages scans the shards, so the result is reused for a while
+    private volatile Map<String, Integer> backlogSizes;
+    private volatile long backlogSizesTimestamp;
 
     /**
      * The RowLog should be instantiated with information about the table that contains the rows the messages are 
@@ -174,15 +179,27 @@ public class RowLogImpl implements RowLog, RowLogImplMBean, SubscriptionsObserve
     @Override
     public RowLogMessage putMessage(byte[] rowKey, byte[] data, byte[] payload, Put put)
             throws InterruptedException, RowLogException {
+        return putMessage(rowKey, data, payload, put, MessagePriority.NORMAL);
+    }
+
+    @Override
+    public RowLogMessage putMessage(byte[] rowKey, byte[] data, byte[] payload, Put put, MessagePriority priority)
+            throws InterruptedException, RowLogException {
         // Take current snapshot of the subscriptions so that shard.putMessage and initializeSubscriptions
         // use the exact same set of subscriptions.
         List<RowLogSubscription> subscriptions = getSubscriptions();
-        return putMessageInternal(rowKey, data, payload, put, subscriptions);
+        return putMessageInternal(rowKey, data, payload, put, subscriptions, priority);
     }
 
     @Override
     public RowLogMessage putMessage(byte[] rowKey, byte[] data, byte[] payload, Put put,
             List<String> subscriptionIds) throws RowLogException, InterruptedException {
+        return putMessage(rowKey, data, payload, put, subscriptionIds, MessagePriority.NORMAL);
+    }
+
+    @Override
+    public RowLogMessage putMessage(byte[] rowKey, byte[] data, byte[] payload, Put put,
+            List<String> subscriptionIds, MessagePriority priority) throws RowLogException, InterruptedException {
 
         // Translate the list of string subscription id's to RowLogSubscription objects
         List<RowLogSubscription> subscriptions = new ArrayList<RowLogSubscription>();
@@ -212,11 +229,12 @@ public class RowLogImpl implements RowLog, RowLogImplMBean, SubscriptionsObserve
             subscriptions.add(subscription);
         }
 
-        return putMessageInternal(rowKey, data, payload, put, subscriptions);
+        return putMessageInternal(rowKey, data, payload, put, subscriptions, priority);
     }
 
     private RowLogMessage putMessageInternal(byte[] rowKey, byte[] data, byte[] payload, Put put,
-            List<RowLogSubscription> subscriptions) throws RowLogException, InterruptedException {
+            List<RowLogSubscription> subscriptions, MessagePriority priority)
+            throws RowLogException, InterruptedException {
         try {
             if (subscriptions.isEmpty())
                 return null;
@@ -235,7 +253,7 @@ public class RowLogImpl implements RowLog, RowLogImplMBean, SubscriptionsObserve
 
             putPayload(seqnr, payload, now, put);
                     
-            RowLogMessage message = new RowLogMessageImpl(now, rowKey, seqnr, data, payload, this);
+            RowLogMessage message = new RowLogMessageImpl(now, rowKey, seqnr, data, payload, priority, this);
 
             putMessageOnShard(message, subscriptions);
 
@@ -302,7 +320,7 @@ public class RowLogImpl implements RowLog, RowLogImplMBean, SubscriptionsObserve
         }
 
         ExecutionState executionState = new SubscriptionExecutionState(message.getTimestamp(),
-                subscriptionIds);
+                subscriptionIds, message.getPriority());
         byte[] qualifier = executionStateQualifier(message.getSeqNr(), message.getTimestamp());
         put.add(rowLogColumnFamily, qualifier, executionState.toBytes());
         message.setExecutionState(executionState);
@@ -437,6 +455,52 @@ public class RowLogImpl implements RowLog, RowLogImplMBean, SubscriptionsObserve
     public List<String> getSubscriptionIds() {
         return subscriptionIds;
     }
+
+    @Override
+    public Map<String, Integer> getShardBacklogSizes() {
+        long now = System.currentTimeMillis();
+        Map<String, Integer> sizes = backlogSizes;
+        if (sizes == null || now - backlogSizesTimestamp >= BACKLOG_SIZES_REFRESH_INTERVAL) {
+            sizes = Collections.unmodifiableMap(countShardBacklogSizes());
+            backlogSizes = sizes;
+            backlogSizesTimestamp = now;
+        }
+        return sizes;
+    }
+
+    private Map<String, Integer> countShardBacklogSizes() {
+        Map<String, Integer> sizes = new TreeMap<String, Integer>();
+        for (RowLogShard shard : getShards()) {
+            try {
+                int size = 0;
+                for (String subscriptionId : shard.getOldestMessageTimestamps().keySet()) {
+                    size += shard.countMessages(subscriptionId, BACKLOG_COUNT_LIMIT);
+                }
+                sizes.put(shard.getId(), size);
+            } catch (RowLogException e) {
+                log.warn("Failed determining the backlog size of shard " + shard.getId() + " of rowlog " + id, e);
+            }
+        }
+        return sizes;
+    }
+
+    @Override
+    public Map<String, Long> getShardBacklogAges() {
+        long now = System.currentTimeMillis();
+        Map<String, Long> ages = new TreeMap<String, Long>();
+        for (RowLogShard shard : getShards()) {
+            try {
+                long age = 0;
+                for (Long timestamp : shard.getOldestMessageTimestamps().values()) {
+                    age = Math.max(age, now - timestamp);
+                }
+                ages.put(shard.getId(), age);
+            } catch (RowLogException e) {
+                log.warn("Failed determining the backlog age of shard " + shard.getId() + " of rowlog " + id, e);
+            }
+        }
+        return ages;
+    }
     
     @Override
     public boolean messageDone(RowLogMessage message, String subscriptionId) throws RowLogException, InterruptedException {
@@ -533,7 +597,9 @@ public class RowLogImpl implements RowLog, RowLogImplMBean, SubscriptionsObserve
     }
  
     protected void removeMessageFromShard(RowLogMessage message, String subscriptionId) throws RowLogException {
-        getShard(message).removeMessage(message, subscriptionId);
+        for (RowLogShard shard : getShardsOfMessage(message)) {
+            shard.removeMessage(message, subscriptionId);
+        }
     }
     
     @Override
@@ -613,6 +679,13 @@ public class RowLogImpl implements RowLog, RowLogImplMBean, SubscriptionsObserve
     protected RowLogShard getShard(RowLogMessage message) throws RowLogException {
         return shardRouter.getShard(message, shardList);
     }
+
+    /**
+     * Returns the shards on which the message might be, see {@link RowLogShardRouter#getShards}.
+     */
+    protected List<RowLogShard> getShardsOfMessage(RowLogMessage message) throws RowLogException {
+        return shardRouter.getShards(message, shardList);
+    }
     
     @Override
     public List<RowLogMessage> getMessages(byte[] rowKey, String ... subscriptionIds) throws RowLogException {
@@ -625,7 +698,7 @@ public class RowLogImpl implements RowLog, RowLogImplMBean, SubscriptionsObserve
             if (!result.isEmpty()) {
                 NavigableMap<byte[], byte[]> familyMap = result.getFamilyMap(rowLogColumnFamily);
                 for (Entry<byte[], byte[]> entry : familyMap.entrySet()) {
-                    ExecutionState executionState = SubscriptionExecutionState.fromBytes(entry.getValue());
+                    SubscriptionExecutionState executionState = SubscriptionExecutionState.fromBytes(entry.getValue());
                     boolean add = false;
                     if (subscriptionIds.length == 0)
                         add = true;
@@ -637,7 +710,8 @@ public class RowLogImpl implements RowLog, RowLogImplMBean, SubscriptionsObserve
                     }
                     if (add) {
                         ByteBuffer buffer = ByteBuffer.wrap(entry.getKey());
-                        messages.add(new RowLogMessageImpl(executionState.getTimestamp(), rowKey, buffer.getLong(2), null, this));
+                        messages.add(new RowLogMessageImpl(executionState.getTimestamp(), rowKey, buffer.getLong(2),
+                                null, null, executionState.getPriority(), this));
                     }
                 }
             }
@@ -715,6 +789,11 @@ public class RowLogImpl implements RowLog, RowLogImplMBean, SubscriptionsObserve
         return shardList;
     }
 
+    @Override
+    public Long getShardRoutingChangeTimestamp() {
+        return shardRouter.getRoutingChangeTimestamp();
+    }
+
     @Override
     public void rowLogConfigChanged(RowLogConfig rowLogConfig) {
         this.rowLogConfig = rowLogConfig;
@@ -16,10 +16,24 @@
 package org.lilyproject.rowlog.impl;
 
 import java.util.List;
+import java.util.Map;
 
 /**
- * MBean exposing the subscription ids known by the RowLog instance in this server (JVM).
+ * MBean exposing the subscription ids known by the RowLog instance in this server (JVM), and the
+ * backlog of its shards.
  */
 public interface RowLogImplMBean {
     List<String> getSubscriptionIds();
+
+    /**
+     * Number of messages on each shard, summed over the subscriptions. Per subscription, counting stops
+     * at {@link RowLogImpl#BACKLOG_COUNT_LIMIT} messages. Since counting scans the shards, the sizes are
+     * counted at most once every {@link RowLogImpl#BACKLOG_SIZES_REFRESH_INTERVAL} ms.
+     */
+    Map<String, Integer> getShardBacklogSizes();
+
+    /**
+     * Age in ms of the oldest message on each shard, or 0 if the shard is empty.
+     */
+    Map<String, Long> getShardBacklogAges();
 }
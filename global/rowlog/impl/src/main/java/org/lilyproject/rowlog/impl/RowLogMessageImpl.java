@@ -19,6 +19,7 @@ import java.util.Arrays;
 
 import org.apache.hadoop.hbase.util.Bytes;
 import org.lilyproject.rowlog.api.ExecutionState;
+import org.lilyproject.rowlog.api.MessagePriority;
 import org.lilyproject.rowlog.api.RowLog;
 import org.lilyproject.rowlog.api.RowLogException;
 import org.lilyproject.rowlog.api.RowLogMessage;
@@ -30,6 +31,7 @@ public class RowLogMessageImpl implements RowLogMessage {
     private final byte[] data;
     private final RowLog rowLog;
     private final long timestamp;
+    private final MessagePriority priority;
     private byte[] payload = null;
     private ExecutionState executionState;
     private Object context;
@@ -39,7 +41,13 @@ public class RowLogMessageImpl implements RowLogMessage {
     }
     
     public RowLogMessageImpl(long timestamp, byte[] rowKey, long seqnr, byte[] data, byte[] payload, RowLog rowLog) {
+        this(timestamp, rowKey, seqnr, data, payload, MessagePriority.NORMAL, rowLog);
+    }
+
+    public RowLogMessageImpl(long timestamp, byte[] rowKey, long seqnr, byte[] data, byte[] payload,
+            MessagePriority priority, RowLog rowLog) {
         this.timestamp = timestamp;
+        this.priority = priority;
         this.rowKey = rowKey;
         this.seqnr = seqnr;
         this.data = data;
@@ -74,6 +82,11 @@ public class RowLogMessageImpl implements RowLogMessage {
         return timestamp;
     }
 
+    @Override
+    public MessagePriority getPriority() {
+        return priority;
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
@@ -20,6 +20,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -43,6 +44,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.lilyproject.rowlog.api.MessagePriority;
 import org.lilyproject.rowlog.api.ProcessorNotifyObserver;
 import org.lilyproject.rowlog.api.RowLog;
 import org.lilyproject.rowlog.api.RowLogConfig;
@@ -60,6 +62,8 @@ import org.lilyproject.util.hbase.HBaseAdminFactory;
 import org.lilyproject.util.io.Closer;
 
 public class RowLogProcessorImpl implements RowLogProcessor, RowLogObserver, SubscriptionsObserver, ProcessorNotifyObserver {
+    /** Time in ms between checks whether the messages from before a change of the shards are processed */
+    private static final long ROUTING_DRAIN_CHECK_INTERVAL = 5000;
     private volatile boolean stop = true;
     protected final RowLog rowLog;
     /** key = subscription id */
@@ -76,6 +80,9 @@ public class RowLogProcessorImpl implements RowLogProcessor, RowLogObserver, Sub
     private LoadingCache<String, Triggerable> bufferedProcessorNotifiers;
 
     private final AtomicBoolean initialRowLogConfigLoaded = new AtomicBoolean(false);
+
+    /** The shards to process, null for all shards of the rowlog */
+    private volatile List<RowLogShard> shards;
     
     public RowLogProcessorImpl(RowLog rowLog, RowLogConfigurationManager rowLogConfigurationManager,
             final Configuration hbaseConf) {
@@ -94,6 +101,27 @@ public class RowLogProcessorImpl implements RowLogProcessor, RowLogObserver, Sub
     public RowLog getRowLog() {
         return rowLog;
     }
+
+    /**
+     * Limits this processor to the given shards of the rowlog, by default all shards are processed. Can
+     * only be changed while the processor is stopped.
+     *
+     * @param shards the shards to process, null for all shards
+     */
+    public synchronized void setShards(List<RowLogShard> shards) {
+        if (!stop) {
+            throw new IllegalStateException("The shards of a rowlog processor can only be changed while it is stopped.");
+        }
+        this.shards = shards != null ? Collections.unmodifiableList(new ArrayList<RowLogShard>(shards)) : null;
+    }
+
+    /**
+     * Returns the shards processed by this processor.
+     */
+    public List<RowLogShard> getShards() {
+        List<RowLogShard> shards = this.shards;
+        return shards != null ? shards : rowLog.getShards();
+    }
     
     @Override
     public synchronized void start() throws InterruptedException, IOException {
@@ -151,8 +179,10 @@ public class RowLogProcessorImpl implements RowLogProcessor, RowLogObserver, Sub
     @Override
     public synchronized void stop() {
         stop = true;
-        for (Triggerable triggerable : bufferedProcessorNotifiers.asMap().values()) {
-            Closer.close(triggerable);
+        if (bufferedProcessorNotifiers != null) {
+            for (Triggerable triggerable : bufferedProcessorNotifiers.asMap().values()) {
+                Closer.close(triggerable);
+            }
         }
         if (scheduledServices != null)
             scheduledServices.shutdownNow();
@@ -178,8 +208,8 @@ public class RowLogProcessorImpl implements RowLogProcessor, RowLogObserver, Sub
         threads = threads > 30 ? 30 : threads < 1 ? 1 : threads;
 
         // don't need more threads than there are shards
-        int shardCount = rowLog.getShards().size();
-        threads = threads > shardCount ? shardCount : threads;
+        int shardCount = getShards().size();
+        threads = threads > shardCount ? Math.max(shardCount, 1) : threads;
 
         return threads;
     }
@@ -328,19 +358,20 @@ public class RowLogProcessorImpl implements RowLogProcessor, RowLogObserver, Sub
         private SubscriptionHandler subscriptionHandler;
         private final RowLogSubscription subscription;
         private boolean firstRun = true;
-        private final int scanBatchPerShard;
+        private final AdaptiveScanScheduler scanScheduler;
+        private final PriorityLanes priorityLanes;
+        private final ShardRoutingDrain routingDrain;
 
         public SubscriptionThread(RowLogSubscription subscription) {
             super(new ThreadGroup("RowLogProcessor"), "Row log SubscriptionThread for " + subscription.getId());
             this.subscription = subscription;
             this.metrics = new ProcessorMetrics(rowLog.getId()+"_"+subscription.getId());
 
-            int scanBatchPerShard = settings.getScanBatchSize() / rowLog.getShards().size();
-            if (scanBatchPerShard < 1) {
-                scanBatchPerShard = 1;
-            }
-            this.scanBatchPerShard = scanBatchPerShard;
-            log.info("RowLog scan batch size (on each shard/split): " + scanBatchPerShard);
+            this.scanScheduler = new AdaptiveScanScheduler(1, 1, settings.getMessagesWorkQueueSize());
+            updateScanBatchSizes(getShards().size());
+            this.priorityLanes = new PriorityLanes(settings);
+            this.routingDrain = new ShardRoutingDrain(rowLog, subscription.getId(),
+                    settings.getMsgTimestampMargin(), ROUTING_DRAIN_CHECK_INTERVAL);
 
             messagesWorkQueue = new MessagesWorkQueue(settings.getMessagesWorkQueueSize());
             log.info("RowLog messages work queue size: " + settings.getMessagesWorkQueueSize());
@@ -353,7 +384,7 @@ public class RowLogProcessorImpl implements RowLogProcessor, RowLogObserver, Sub
 
                 case Netty:
                     subscriptionHandler = new RemoteListenersSubscriptionHandler(subscription.getId(),
-                            messagesWorkQueue, rowLog, rowLogConfigurationManager);
+                            messagesWorkQueue, rowLog, rowLogConfigurationManager, settings.getLocalHost());
                     break;
 
                 case WAL:
@@ -369,6 +400,23 @@ public class RowLogProcessorImpl implements RowLogProcessor, RowLogObserver, Sub
         public RowLogSubscription getSubscription() {
             return subscription;
         }
+
+        /**
+         * Divides the scan batch size over the shards, to be called when the number of shards to scan changes.
+         */
+        private void updateScanBatchSizes(int shardCount) {
+            int scanBatchPerShard = Math.max(1, settings.getScanBatchSize() / Math.max(1, shardCount));
+            // Shards with a backlog are scanned with larger batches, but there is no point in scanning more
+            // messages than fit in the work queue
+            int maxScanBatchPerShard = Math.max(scanBatchPerShard,
+                    Math.min(settings.getScanBatchSize(), settings.getMessagesWorkQueueSize()));
+            if (scanBatchPerShard != scanScheduler.getMinBatchSize() ||
+                    maxScanBatchPerShard != scanScheduler.getMaxBatchSize()) {
+                scanScheduler.setBatchSizes(scanBatchPerShard, maxScanBatchPerShard);
+                log.info("RowLog scan batch size (on each of " + shardCount + " shards/splits): " +
+                        scanBatchPerShard + ", up to " + maxScanBatchPerShard + " for shards with a backlog");
+            }
+        }
         
         public synchronized void wakeup() {
             metrics.wakeups.inc();
@@ -392,71 +440,116 @@ public class RowLogProcessorImpl implements RowLogProcessor, RowLogObserver, Sub
         @Override
         public void run() {
             try {
-                Long minimalTimestamp = null;
+                // Each priority lane of the shards is scanned from its own minimal timestamp
+                Map<MessagePriority, Long> minimalTimestamps = new EnumMap<MessagePriority, Long>(MessagePriority.class);
                 // scanFirstMessageOnly: for the WAL use case, where there is a minimal process delay and messages
                 // are normally processed directly and only in case of recovery by the RowLogProcessor, it does not
                 // make sense to scan e.g. 200 messages just to see their minimalProcessDelay has not yet passed.
                 // Therefore, this boolean indicates that just one message should be scanned. Note that this assumes
                 // that the minimalProcessDelay parameter will only be used for WAL-type uses.
                 boolean scanFirstMessageOnly = false;
+                // scanAll: false when the previous round found a backlog, in which case shards which were
+                // empty are only scanned every few rounds
+                boolean scanAll = true;
                 while (!isInterrupted() && !stopRequested) {
                     final String subscriptionId = subscription.getId();
                     try {
                         metrics.scans.inc();
 
                         long tsBeforeGetMessages = System.currentTimeMillis();
+                        // While the shards are being changed, the messages from after the change are held back
+                        // until those from before it are processed
+                        final Long maximalTimestamp = routingDrain.getMaximalTimestamp(tsBeforeGetMessages);
 
                         // Scan in parallel over the different regions
                         // Ideally, we would figure out on what servers what regions are deployed and then do the
                         // requests such that we touch the maximum number of different servers. For now, we keep
                         // it simple and assume the requests will be distributed enough by chance.
-                        final int batchSize = scanFirstMessageOnly ? 1 : scanBatchPerShard;
-                        List<RowLogMessage> messages = new ArrayList<RowLogMessage>();
-                        int maxMessagesFromOneShard = 0;
+                        List<RowLogShard> shards = getShards();
+                        updateScanBatchSizes(shards.size());
+                        List<RowLogShard> shardsToScan = scanFirstMessageOnly ? shards :
+                                scanScheduler.selectShards(shards, scanAll);
+                        List<RowLogShard> skippedShards = Collections.emptyList();
+                        if (shardsToScan.size() < shards.size()) {
+                            skippedShards = new ArrayList<RowLogShard>(shards);
+                            skippedShards.removeAll(shardsToScan);
+                            metrics.skippedShardScans.inc(skippedShards.size());
+                        }
+
+                        // Each lane of a shard is scanned with a part of the batch size of the shard, according
+                        // to the weight of its priority
+                        MessagePriority[] priorities = MessagePriority.values();
                         List<Future<List<RowLogMessage>>> scanFutures = new ArrayList<Future<List<RowLogMessage>>>();
-                        final Long currentMinimalTimestamp = minimalTimestamp;
-                        for (final RowLogShard shard : rowLog.getShards()) {
-                            try {
-                                scanFutures.add(globalQScanExecutor.submit(new Callable<List<RowLogMessage>>() {
-                                    @Override
-                                    public List<RowLogMessage> call() throws Exception {
-                                        return shard.next(subscriptionId, currentMinimalTimestamp, batchSize);
-                                    }
-                                }));
-                            } catch (RejectedExecutionException e) {
-                                // The only reason this could occur is because we're shutting down, since there
-                                // is no limit on the size of the queue
-                                log.info("Got RejectedExecutionException", e);
-                                break;
+                        List<Integer> scanBatchSizes = new ArrayList<Integer>();
+                        scan:
+                        for (final RowLogShard shard : shardsToScan) {
+                            int shardBatchSize = scanFirstMessageOnly ? 1 : scanScheduler.getBatchSize(shard);
+                            scanBatchSizes.add(shardBatchSize);
+                            for (final MessagePriority priority : priorities) {
+                                final Long laneMinimalTimestamp = minimalTimestamps.get(priority);
+                                final int batchSize = priorityLanes.getBatchSize(priority, shardBatchSize);
+                                try {
+                                    scanFutures.add(globalQScanExecutor.submit(new Callable<List<RowLogMessage>>() {
+                                        @Override
+                                        public List<RowLogMessage> call() throws Exception {
+                                            return shard.next(subscriptionId, priority, laneMinimalTimestamp,
+                                                    maximalTimestamp, batchSize);
+                                        }
+                                    }));
+                                } catch (RejectedExecutionException e) {
+                                    // The only reason this could occur is because we're shutting down, since there
+                                    // is no limit on the size of the queue
+                                    log.info("Got RejectedExecutionException", e);
+                                    break scan;
+                                }
                             }
                         }
 
-                        for (Future<List<RowLogMessage>> future : scanFutures) {
-                            List<RowLogMessage> shardMessages = future.get();
-                            messages.addAll(shardMessages);
-                            if (shardMessages.size() > maxMessagesFromOneShard) {
-                                 maxMessagesFromOneShard = shardMessages.size();
+                        Map<MessagePriority, List<RowLogMessage>> laneMessages =
+                                new EnumMap<MessagePriority, List<RowLogMessage>>(MessagePriority.class);
+                        for (MessagePriority priority : priorities) {
+                            laneMessages.put(priority, new ArrayList<RowLogMessage>());
+                        }
+                        int messageCount = 0;
+                        for (int i = 0; i < scanFutures.size() / priorities.length; i++) {
+                            int shardBatchSize = scanBatchSizes.get(i);
+                            // A full batch on any of the lanes means the shard has a backlog
+                            int shardMessageCount = 0;
+                            boolean fullBatch = false;
+                            for (MessagePriority priority : priorities) {
+                                List<RowLogMessage> shardMessages =
+                                        scanFutures.get(i * priorities.length + priority.ordinal()).get();
+                                laneMessages.get(priority).addAll(shardMessages);
+                                shardMessageCount += shardMessages.size();
+                                fullBatch |= shardMessages.size() >= priorityLanes.getBatchSize(priority, shardBatchSize);
                             }
+                            messageCount += shardMessageCount;
+                            scanScheduler.scanned(shardsToScan.get(i), shardBatchSize,
+                                    fullBatch ? shardBatchSize : Math.min(shardMessageCount, shardBatchSize - 1),
+                                    tsBeforeGetMessages);
                         }
 
-                        // Sort the messages from the different shards by timestamp
+                        // Sort the messages of each lane from the different shards by timestamp
                         // TODO this could be improved, knowing that the lists from shard.next() are already sorted
-                        Collections.sort(messages, new Comparator<RowLogMessage>() {
-                            @Override
-                            public int compare(RowLogMessage o1, RowLogMessage o2) {
-                                return ComparisonChain.start()
-                                        .compare(o1.getTimestamp(), o2.getTimestamp())
-                                        .compare(o1.getRowKey(), o2.getRowKey(), Bytes.BYTES_RAWCOMPARATOR)
-                                        .compare(o1.getSeqNr(), o2.getSeqNr())
-                                        .result();
-                            }
-                        });
+                        for (List<RowLogMessage> messages : laneMessages.values()) {
+                            Collections.sort(messages, new Comparator<RowLogMessage>() {
+                                @Override
+                                public int compare(RowLogMessage o1, RowLogMessage o2) {
+                                    return ComparisonChain.start()
+                                            .compare(o1.getTimestamp(), o2.getTimestamp())
+                                            .compare(o1.getRowKey(), o2.getRowKey(), Bytes.BYTES_RAWCOMPARATOR)
+                                            .compare(o1.getSeqNr(), o2.getSeqNr())
+                                            .result();
+                                }
+                            });
+                        }
 
-                        metrics.scanDuration.inc(System.currentTimeMillis() - tsBeforeGetMessages);
+                        long scanDuration = System.currentTimeMillis() - tsBeforeGetMessages;
+                        metrics.scanDuration.inc(scanDuration);
 
                         if (log.isDebugEnabled()) {
-                            log.debug(String.format("[%1$s - %2$s] Scanned with minimal timestamp of %3$s, got %4$s messages.",
-                                    rowLog.getId(), subscriptionId, minimalTimestamp, messages.size()));
+                            log.debug(String.format("[%1$s - %2$s] Scanned with minimal timestamps of %3$s, got %4$s messages.",
+                                    rowLog.getId(), subscriptionId, minimalTimestamps, messageCount));
                         }
 
                         if (stopRequested) {
@@ -466,23 +559,37 @@ public class RowLogProcessorImpl implements RowLogProcessor, RowLogObserver, Sub
 
                         if (firstRun) {
                             firstRun = false;
-                            if (messages.isEmpty()) {
-                                // If on startup of this processor, we have no messages, we initialize the
-                                // minimalTimestamp manually so that we would not always scan from the start
-                                // of the table.
-                                minimalTimestamp = tsBeforeGetMessages - settings.getMsgTimestampMargin();
-
-                                if (log.isDebugEnabled()) {
-                                    log.debug(String.format("[%1$s - %2$s] On initial scan, got no messages from HBase, " +
-                                            "setting minimal timestamp to %3$s", rowLog.getId(), subscriptionId, minimalTimestamp));
+                            for (MessagePriority priority : priorities) {
+                                if (laneMessages.get(priority).isEmpty()) {
+                                    // If on startup of this processor, we have no messages, we initialize the
+                                    // minimalTimestamp manually so that we would not always scan from the start
+                                    // of the table.
+                                    long scannedUntil = maximalTimestamp != null ?
+                                            Math.min(tsBeforeGetMessages, maximalTimestamp) : tsBeforeGetMessages;
+                                    minimalTimestamps.put(priority, scannedUntil - settings.getMsgTimestampMargin());
+
+                                    if (log.isDebugEnabled()) {
+                                        log.debug(String.format("[%1$s - %2$s] On initial scan, got no %3$s priority " +
+                                                "messages from HBase, setting minimal timestamp to %4$s", rowLog.getId(),
+                                                subscriptionId, priority, minimalTimestamps.get(priority)));
+                                    }
                                 }
                             }
                         }
 
-                        metrics.messagesPerScan.inc(messages != null ? messages.size() : 0);
-						if (messages != null && !messages.isEmpty()) {
-						    minimalTimestamp = messages.get(0).getTimestamp() - settings.getMsgTimestampMargin();
-                            for (RowLogMessage message : messages) {
+                        metrics.messagesPerScan.inc(messageCount);
+                        for (MessagePriority priority : priorities) {
+                            List<RowLogMessage> messages = laneMessages.get(priority);
+                            if (!messages.isEmpty()) {
+                                // The shards which were skipped might meanwhile have received messages, which are
+                                // not older than the time they were last scanned
+                                minimalTimestamps.put(priority, Math.min(messages.get(0).getTimestamp(),
+                                        scanScheduler.getEarliestScanStart(skippedShards)) - settings.getMsgTimestampMargin());
+                            }
+                        }
+
+                        if (messageCount > 0) {
+                            for (RowLogMessage message : priorityLanes.merge(laneMessages)) {
                                 if (stopRequested)
                                     return;
 
@@ -497,12 +604,13 @@ public class RowLogProcessorImpl implements RowLogProcessor, RowLogObserver, Sub
                             }
                         }
 
-                        // If we had a full batch of messages, we will immediately request the next batch, without
-                        // sleeping. If we got less, we sleep unless we received a wake-up signal after we started
-                        // scanning for messages.
+                        // If we had a full batch of messages from some shard, we will immediately request the next
+                        // batch, without sleeping. If we got less, we sleep unless we received a wake-up signal
+                        // after we started scanning for messages.
                         // Also: the minimalProcessDelay setting is not taken into account: as it currently is,
                         // this is only relevant for the WAL, which does not make use of the wake-up signal.
-                        if (maxMessagesFromOneShard < scanBatchPerShard && lastWakeup < tsBeforeGetMessages) {
+                        scanAll = !scanScheduler.hasBacklog();
+                        if (scanAll && lastWakeup < tsBeforeGetMessages) {
                             synchronized (this) {
                                 // The timeout covers two cases:
                                 //   (1) a safety fallback, in case a wake-up got lost or so
@@ -515,7 +623,14 @@ public class RowLogProcessorImpl implements RowLogProcessor, RowLogObserver, Sub
                         // which would be retrieved by the scan would be messages which are still in the work-queue
                         // anyway (minus those meanwhile consumed by the listeners). When no listeners are active,
                         // this can even lead to endless scan-loops (if work-queue-size >= batch-size and # messages
-                        // in queue > work-queue-size). So we'll wait till the work-queue is almost empty.
+                        // in queue > work-queue-size). So we'll wait till the work-queue is almost empty. How many
+                        // messages 'almost empty' is depends on how fast the listeners consume them.
+                        int refillThreshold = scanScheduler.roundFinished(scanDuration,
+                                messagesWorkQueue.getTakenCount(), System.currentTimeMillis());
+                        messagesWorkQueue.setRefillThreshold(refillThreshold);
+                        metrics.refillThreshold.set(refillThreshold);
+                        metrics.scanBatchSize.set(scanScheduler.getTotalBatchSize());
+                        metrics.shardsWithBacklog.set(scanScheduler.getShardsWithBacklog());
                         messagesWorkQueue.waitOnRefillThreshold();
 
                     } catch (InterruptedException e) {
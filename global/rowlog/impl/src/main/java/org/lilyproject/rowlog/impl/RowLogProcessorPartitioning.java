@@ -0,0 +1,485 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.impl;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.data.Stat;
+import org.lilyproject.rowlog.api.RowLogShard;
+import org.lilyproject.util.LilyInfo;
+import org.lilyproject.util.Logs;
+import org.lilyproject.util.zookeeper.ZkUtil;
+import org.lilyproject.util.zookeeper.ZooKeeperItf;
+import org.lilyproject.util.zookeeper.ZooKeeperOperation;
+
+/**
+ * Runs a RowLogProcessor on every participating node, each processing part of the shards of the rowlog.
+ * This is the alternative to {@link RowLogProcessorElection}, where one node processes all shards.
+ *
+ * <p>The participating nodes register themselves with an ephemeral node below
+ * <tt>/lily/rowlog/[rowlog id]/processors</tt>. Each node independently computes the same assignment of the
+ * shards to these members, using rendezvous hashing, so that when a node joins or leaves, only the shards
+ * assigned to that node move.
+ *
+ * <p>Assignment alone does not guarantee that two nodes never process the same shard at once, since nodes
+ * see membership changes at different moments. Therefore a node first needs to take ownership of a shard,
+ * by creating the ephemeral node <tt>/lily/rowlog/[rowlog id]/shardOwners/[shard id]</tt>. Ownership is only
+ * given up after the processor has been stopped, thus when no messages of the shard are being processed
+ * anymore. Since all messages of a row are in the same shard, this keeps the per-row ordering guarantee while
+ * shards move between nodes. A node which is assigned a shard that is still owned by another node waits for
+ * the owner node to disappear.
+ *
+ * <p>Like with the {@link org.lilyproject.util.zookeeper.LeaderElection}, processing is stopped as soon as we
+ * are disconnected from ZooKeeper, since our ownerships might expire while being disconnected.
+ *
+ * <p>The processor is restarted for the new set of shards each time this set changes. The (re)starting and
+ * stopping is done in a separate thread, not in the ZooKeeper event thread.
+ */
+public class RowLogProcessorPartitioning {
+    private final ZooKeeperItf zk;
+    private final RowLogProcessorImpl rowLogProcessor;
+    private final LilyInfo lilyInfo;
+    private final String hostName;
+    private final String rowLogId;
+    private final String membersPath;
+    private final String ownersPath;
+    private final Watcher membersWatcher = new MembersWatcher();
+    private final Watcher ownerWatcher = new OwnerWatcher();
+    private final Watcher connectStateWatcher = new ConnectStateWatcher();
+    private Rebalancer rebalancer;
+    private volatile boolean stopped = true;
+
+    /** The shards for which we have taken ownership, only accessed from the rebalancer thread. */
+    private final Set<String> ownedShards = new HashSet<String>();
+
+    /** The shards which are being processed, only accessed from the rebalancer thread. */
+    private Set<String> processedShards = new HashSet<String>();
+
+    private final Log log = LogFactory.getLog(getClass());
+
+    /**
+     * @param hostName name of this node, stored in the member node for informational purposes
+     */
+    public RowLogProcessorPartitioning(ZooKeeperItf zk, RowLogProcessorImpl rowLogProcessor, LilyInfo lilyInfo,
+            String hostName) {
+        this.zk = zk;
+        this.rowLogProcessor = rowLogProcessor;
+        this.lilyInfo = lilyInfo;
+        this.hostName = hostName;
+        this.rowLogId = rowLogProcessor.getRowLog().getId();
+        this.membersPath = "/lily/rowlog/" + rowLogId + "/processors";
+        this.ownersPath = "/lily/rowlog/" + rowLogId + "/shardOwners";
+    }
+
+    @PostConstruct
+    public synchronized void start() throws InterruptedException, KeeperException {
+        if (!stopped) {
+            return;
+        }
+
+        ZkUtil.createPath(zk, membersPath);
+        ZkUtil.createPath(zk, ownersPath);
+
+        // As in LeaderElection, we might end up with two member nodes in case of connection loss, which is why
+        // the members are identified by the session owning their node rather than by the node name.
+        zk.retryOperation(new ZooKeeperOperation<String>() {
+            @Override
+            public String execute() throws KeeperException, InterruptedException {
+                return zk.create(membersPath + "/n_", Bytes.toBytes(hostName), ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                        CreateMode.EPHEMERAL_SEQUENTIAL);
+            }
+        });
+
+        stopped = false;
+        zk.addDefaultWatcher(connectStateWatcher);
+        rebalancer = new Rebalancer();
+        rebalancer.start();
+        rebalancer.trigger(true);
+    }
+
+    @PreDestroy
+    public synchronized void stop() {
+        if (stopped) {
+            return;
+        }
+
+        // Note that ZooKeeper does not have a way to remove watches (see ZOOKEEPER-422)
+        stopped = true;
+        zk.removeDefaultWatcher(connectStateWatcher);
+        try {
+            rebalancer.shutdown();
+        } catch (InterruptedException e) {
+            log.info("Interrupted while shutting down rowlog processor partitioning for " + rowLogId);
+        }
+
+        // The rebalancer thread is not running anymore, we can safely touch its state
+        stopProcessor();
+        for (String shardId : new ArrayList<String>(ownedShards)) {
+            releaseShard(shardId);
+        }
+
+        // Our member node will disappear when the session ends, deleting it now causes the other nodes to
+        // take over our shards immediately.
+        try {
+            long sessionId = zk.getSessionId();
+            for (String child : zk.getChildren(membersPath, false)) {
+                Stat stat = zk.exists(membersPath + "/" + child, false);
+                if (stat != null && stat.getEphemeralOwner() == sessionId) {
+                    zk.delete(membersPath + "/" + child, -1);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (KeeperException e) {
+            log.info("Error removing rowlog processor member node for " + rowLogId, e);
+        }
+    }
+
+    /**
+     * Brings the processor in line with the current members: releases the shards which are no longer
+     * assigned to us, takes ownership of the newly assigned ones, and restarts the processor if the set of
+     * processed shards changed.
+     */
+    private void rebalance() throws InterruptedException, KeeperException {
+        List<RowLogShard> allShards = rowLogProcessor.getRowLog().getShards();
+        Set<String> assignedShards = getAssignedShards(allShards);
+
+        // First stop processing shards which are no longer assigned to us, and only then release them
+        boolean stopNeeded = false;
+        for (String shardId : processedShards) {
+            if (!assignedShards.contains(shardId)) {
+                stopNeeded = true;
+                break;
+            }
+        }
+        if (stopNeeded) {
+            stopProcessor();
+        }
+        for (String shardId : new ArrayList<String>(ownedShards)) {
+            if (!assignedShards.contains(shardId)) {
+                releaseShard(shardId);
+            }
+        }
+
+        // After a disconnect, our session might have expired, and with it our ownerships
+        for (String shardId : new ArrayList<String>(ownedShards)) {
+            Stat stat = zk.exists(ownersPath + "/" + shardId, false);
+            if (stat == null || stat.getEphemeralOwner() != zk.getSessionId()) {
+                log.warn("Lost ownership of shard " + shardId + " of rowlog " + rowLogId);
+                stopProcessor();
+                ownedShards.remove(shardId);
+            }
+        }
+
+        for (String shardId : assignedShards) {
+            if (!ownedShards.contains(shardId) && acquireShard(shardId)) {
+                ownedShards.add(shardId);
+            }
+        }
+
+        if (!ownedShards.equals(processedShards)) {
+            stopProcessor();
+            if (!ownedShards.isEmpty()) {
+                List<RowLogShard> shards = new ArrayList<RowLogShard>();
+                for (RowLogShard shard : allShards) {
+                    if (ownedShards.contains(shard.getId())) {
+                        shards.add(shard);
+                    }
+                }
+                startProcessor(shards);
+            }
+        }
+    }
+
+    /**
+     * Determines the shards assigned to this node based on the current members, and sets a watcher on
+     * the members.
+     */
+    private Set<String> getAssignedShards(List<RowLogShard> shards) throws InterruptedException, KeeperException {
+        long sessionId = zk.getSessionId();
+        Set<String> members = new HashSet<String>();
+        for (String child : zk.getChildren(membersPath, membersWatcher)) {
+            Stat stat = zk.exists(membersPath + "/" + child, false);
+            if (stat != null) {
+                members.add(Long.toHexString(stat.getEphemeralOwner()));
+            }
+        }
+
+        String me = Long.toHexString(sessionId);
+        Set<String> assigned = new HashSet<String>();
+        if (!members.contains(me)) {
+            // Our member node is gone, e.g. because our session expired
+            log.warn("No member node found for this node among the rowlog processors of " + rowLogId);
+            return assigned;
+        }
+
+        for (RowLogShard shard : shards) {
+            if (me.equals(getAssignedMember(shard.getId(), members))) {
+                assigned.add(shard.getId());
+            }
+        }
+        return assigned;
+    }
+
+    /**
+     * Rendezvous hashing: the shard is assigned to the member for which the hash of member and shard is
+     * the highest.
+     */
+    public static String getAssignedMember(String shardId, Set<String> members) {
+        String best = null;
+        long bestWeight = 0;
+        for (String member : members) {
+            long weight = weight(member, shardId);
+            if (best == null || weight > bestWeight || (weight == bestWeight && member.compareTo(best) > 0)) {
+                best = member;
+                bestWeight = weight;
+            }
+        }
+        return best;
+    }
+
+    private static long weight(String member, String shardId) {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            md5.update(Bytes.toBytes(member));
+            md5.update((byte)0);
+            md5.update(Bytes.toBytes(shardId));
+            return Bytes.toLong(md5.digest(), 0, Bytes.SIZEOF_LONG);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Tries to take ownership of a shard. If it is owned by another node, a watcher is set so that we
+     * retry once it is released.
+     */
+    private boolean acquireShard(final String shardId) throws InterruptedException, KeeperException {
+        final String ownerPath = ownersPath + "/" + shardId;
+        try {
+            zk.retryOperation(new ZooKeeperOperation<String>() {
+                @Override
+                public String execute() throws KeeperException, InterruptedException {
+                    return zk.create(ownerPath, Bytes.toBytes(hostName), ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                            CreateMode.EPHEMERAL);
+                }
+            });
+            log.info("Took ownership of shard " + shardId + " of rowlog " + rowLogId);
+            return true;
+        } catch (KeeperException.NodeExistsException e) {
+            Stat stat = zk.exists(ownerPath, ownerWatcher);
+            if (stat == null) {
+                // Released in the meantime, the watcher will trigger a new attempt
+                return false;
+            }
+            // In case of connection loss during the create, the node might have been created by us
+            return stat.getEphemeralOwner() == zk.getSessionId();
+        }
+    }
+
+    private void releaseShard(String shardId) {
+        String ownerPath = ownersPath + "/" + shardId;
+        ownedShards.remove(shardId);
+        try {
+            Stat stat = zk.exists(ownerPath, false);
+            if (stat != null && stat.getEphemeralOwner() == zk.getSessionId()) {
+                zk.delete(ownerPath, stat.getVersion());
+                log.info("Released ownership of shard " + shardId + " of rowlog " + rowLogId);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (KeeperException e) {
+            // The node will disappear anyway when our session ends
+            log.error("Error releasing ownership of shard " + shardId + " of rowlog " + rowLogId, e);
+        }
+    }
+
+    private void startProcessor(List<RowLogShard> shards) throws InterruptedException {
+        Set<String> shardIds = new HashSet<String>();
+        for (RowLogShard shard : shards) {
+            shardIds.add(shard.getId());
+        }
+        log.info("Starting row log processor for " + rowLogId + " on " + shards.size() + " shards");
+        rowLogProcessor.setShards(shards);
+        try {
+            rowLogProcessor.start();
+        } catch (IOException e) {
+            log.error("Error starting row log processor for " + rowLogId, e);
+            rowLogProcessor.stop();
+            return;
+        }
+        processedShards = shardIds;
+        setProcessorInfo(true);
+    }
+
+    private void stopProcessor() {
+        if (processedShards.isEmpty()) {
+            return;
+        }
+        log.info("Shutting down row log processor for " + rowLogId);
+        rowLogProcessor.stop();
+        processedShards = new HashSet<String>();
+        setProcessorInfo(false);
+    }
+
+    private void setProcessorInfo(boolean running) {
+        if (rowLogId.equals("mq")) {
+            lilyInfo.setRowLogProcessorMQ(running);
+        } else if (rowLogId.equals("wal")) {
+            lilyInfo.setRowLogProcessorWAL(running);
+        }
+    }
+
+    private class MembersWatcher implements Watcher {
+        @Override
+        public void process(WatchedEvent event) {
+            if (!stopped && event.getType() == EventType.NodeChildrenChanged) {
+                rebalancer.trigger(true);
+            }
+        }
+    }
+
+    private class OwnerWatcher implements Watcher {
+        @Override
+        public void process(WatchedEvent event) {
+            if (!stopped && event.getType() == EventType.NodeDeleted) {
+                rebalancer.trigger(true);
+            }
+        }
+    }
+
+    private class ConnectStateWatcher implements Watcher {
+        @Override
+        public void process(WatchedEvent event) {
+            if (stopped || event.getType() != EventType.None) {
+                return;
+            }
+
+            if (event.getState() == KeeperState.Disconnected || event.getState() == KeeperState.Expired) {
+                log.info("Disconnected from ZooKeeper, suspending row log processor for " + rowLogId);
+                rebalancer.trigger(false);
+            } else if (event.getState() == KeeperState.SyncConnected) {
+                // If our session did not expire, our member and owner nodes still exist
+                rebalancer.trigger(true);
+            }
+        }
+    }
+
+    /**
+     * Performs the rebalancing in a separate thread, so that the ZooKeeper event thread is not blocked while
+     * starting or stopping the processor. As with the LeaderProvisioner in LeaderElection, events which come in
+     * faster than they are handled are collapsed, we are only interested in bringing the processor to the latest
+     * required state.
+     */
+    private class Rebalancer implements Runnable {
+        private static final long RETRY_DELAY = 5000;
+        private static final long REBALANCE_INTERVAL = 60000;
+        private final Object stateLock = new Object();
+        private boolean rebalanceNeeded;
+        private boolean connected = true;
+        private Thread thread;
+        private volatile boolean stop; // do not rely only on Thread.interrupt since some libraries eat interruptions
+
+        public synchronized void start() {
+            stop = false;
+            thread = new Thread(this, "RowLogProcessorPartitioning for " + rowLogId);
+            thread.start();
+        }
+
+        public synchronized void shutdown() throws InterruptedException {
+            if (thread == null || !thread.isAlive()) {
+                return;
+            }
+
+            stop = true;
+            thread.interrupt();
+            Logs.logThreadJoin(thread);
+            thread.join();
+            thread = null;
+        }
+
+        public void trigger(boolean connected) {
+            synchronized (stateLock) {
+                this.connected = connected;
+                this.rebalanceNeeded = true;
+                stateLock.notifyAll();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.interrupted() && !stop) {
+                try {
+                    boolean connected;
+                    synchronized (stateLock) {
+                        if (!rebalanceNeeded && !stop) {
+                            // Also rebalance periodically, to pick up shards added to the rowlog, see
+                            // RowLogShardLayoutManager
+                            stateLock.wait(REBALANCE_INTERVAL);
+                        }
+                        rebalanceNeeded = false;
+                        connected = this.connected;
+                    }
+                    if (stop) {
+                        return;
+                    }
+
+                    if (connected) {
+                        rebalance();
+                    } else {
+                        // Our ownerships might expire, stop processing but remember what we owned: if the
+                        // session survives, the owner nodes are still ours.
+                        stopProcessor();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    // we stop working
+                    return;
+                } catch (Throwable t) {
+                    log.error("Error rebalancing row log processor for " + rowLogId + ", will retry.", t);
+                    try {
+                        Thread.sleep(RETRY_DELAY);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    synchronized (stateLock) {
+                        rebalanceNeeded = true;
+                    }
+                }
+            }
+        }
+    }
+}
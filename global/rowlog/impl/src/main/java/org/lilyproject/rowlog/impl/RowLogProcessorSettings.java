@@ -15,6 +15,10 @@
  */
 package org.lilyproject.rowlog.impl;
 
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.lilyproject.rowlog.api.MessagePriority;
 import org.lilyproject.rowlog.api.RowLogProcessor;
 
 public class RowLogProcessorSettings {
@@ -26,6 +30,15 @@ public class RowLogProcessorSettings {
     
     private int messagesWorkQueueSize = 1000;
 
+    private String localHost;
+
+    private Map<MessagePriority, Integer> priorityWeights = new EnumMap<MessagePriority, Integer>(MessagePriority.class);
+
+    public RowLogProcessorSettings() {
+        priorityWeights.put(MessagePriority.NORMAL, 4);
+        priorityWeights.put(MessagePriority.LOW, 1);
+    }
+
     public int getScanThreadCount() {
         return scanThreadCount;
     }
@@ -79,4 +92,34 @@ public class RowLogProcessorSettings {
     public void setMessagesWorkQueueSize(int messagesWorkQueueSize) {
         this.messagesWorkQueueSize = messagesWorkQueueSize;
     }
+
+    public String getLocalHost() {
+        return localHost;
+    }
+
+    /**
+     * The host name of the node running the processor. When set, messages are only dispatched to the remote
+     * listeners running on this host, as long as there are any. This is useful when processors run on
+     * all nodes, each for a part of the shards, see {@link RowLogProcessorPartitioning}.
+     */
+    public void setLocalHost(String localHost) {
+        this.localHost = localHost;
+    }
+
+    public int getPriorityWeight(MessagePriority priority) {
+        return priorityWeights.get(priority);
+    }
+
+    /**
+     * The share of the scanning and dispatching capacity given to the messages of a priority, relative
+     * to the weights of the other priorities. By default normal priority messages get 4 times the share
+     * of low priority messages. See {@link PriorityLanes}.
+     */
+    public void setPriorityWeight(MessagePriority priority, int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("The weight of a message priority should be at least 1, got: "
+                    + weight + " for " + priority);
+        }
+        priorityWeights.put(priority, weight);
+    }
 }
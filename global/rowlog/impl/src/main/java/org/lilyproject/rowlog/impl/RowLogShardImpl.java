@@ -17,10 +17,15 @@ package org.lilyproject.rowlog.impl;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+import org.apache.hadoop.hbase.HConstants;
 import org.apache.hadoop.hbase.client.*;
+import org.apache.hadoop.hbase.filter.FirstKeyOnlyFilter;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.lilyproject.rowlog.api.MessagePriority;
 import org.lilyproject.rowlog.api.RowLog;
 import org.lilyproject.rowlog.api.RowLogException;
 import org.lilyproject.rowlog.api.RowLogMessage;
@@ -28,6 +33,15 @@ import org.lilyproject.rowlog.api.RowLogShard;
 import org.lilyproject.rowlog.api.RowLogSubscription;
 import org.lilyproject.util.io.Closer;
 
+/**
+ * A shard of the rowlog table. The row key of a message consists of the shard prefix, the subscription id, a
+ * marker, the timestamp, the sequence number and the row key of the message.
+ *
+ * <p>The first byte of the timestamp identifies the lane of the message's {@link MessagePriority}, so that the
+ * messages of each priority of a subscription are sorted together and can be scanned separately. Timestamps
+ * in milliseconds never use this byte, and the lane of the normal priority is 0, so the row keys of messages
+ * put before priorities existed are the ones of normal priority messages.</p>
+ */
 public class RowLogShardImpl implements RowLogShard {
 
     public static final byte[] MESSAGES_CF = Bytes.toBytes("messages");
@@ -41,6 +55,8 @@ public class RowLogShardImpl implements RowLogShard {
     private long lastDelete;
     // while 0 is a valid unicode codepoint, it will only occur in utf-8 when using the NULL char
     private byte[] END_OF_SUBSCRIPTION_NAME_MARKER = new byte[] { (byte)0 };
+    private static final long TIMESTAMP_MASK = 0x00FFFFFFFFFFFFFFL;
+    private static final int LANE_SHIFT = 56;
 
     public RowLogShardImpl(String id, byte[] rowKeyPrefix, HTableInterface table, RowLog rowLog, int deleteBufferSize)
             throws IOException {
@@ -134,12 +150,49 @@ public class RowLogShardImpl implements RowLogShard {
 
     @Override
     public List<RowLogMessage> next(String subscription, Long minimalTimestamp, int batchSize) throws RowLogException {
-        // Before collecting a new batch of messages, any outstanding deletes are executed first. 
-        flushMessageDeleteBuffer();
         byte[] rowPrefix = Bytes.add(rowKeyPrefix, Bytes.toBytes(subscription), END_OF_SUBSCRIPTION_NAME_MARKER);
         byte[] startRow = rowPrefix;
         if (minimalTimestamp != null) 
             startRow = Bytes.add(startRow, Bytes.toBytes(minimalTimestamp));
+        // Set stop row for the scanner. This avoids the scanner to return entries belonging to the
+        // next subscription. In case of rowlog sharding, it also avoids opening a scanner on the next
+        // region just to find there is no interesting data there (which would be the case if we stop
+        // the scanning using a PrefixFilter).
+        byte[] stopRow = new byte[rowPrefix.length];
+        System.arraycopy(rowPrefix, 0, stopRow, 0, rowPrefix.length);
+        stopRow[stopRow.length - 1]++; // increasing END_OF_SUBSCRIPTION_NAME_MARKER, can't overflow
+        return next(rowPrefix, startRow, stopRow, batchSize);
+    }
+
+    @Override
+    public List<RowLogMessage> next(String subscription, MessagePriority priority, Long minimalTimestamp,
+            int batchSize) throws RowLogException {
+        return next(subscription, priority, minimalTimestamp, null, batchSize);
+    }
+
+    @Override
+    public List<RowLogMessage> next(String subscription, MessagePriority priority, Long minimalTimestamp,
+            Long maximalTimestamp, int batchSize) throws RowLogException {
+        byte[] rowPrefix = Bytes.add(rowKeyPrefix, Bytes.toBytes(subscription), END_OF_SUBSCRIPTION_NAME_MARKER);
+        long startTimestamp = minimalTimestamp != null ? Math.max(0, minimalTimestamp) : 0;
+        byte[] startRow = Bytes.add(rowPrefix, Bytes.toBytes(encodeTimestamp(startTimestamp, priority.getLane())));
+        byte[] stopRow;
+        if (maximalTimestamp != null) {
+            if (maximalTimestamp <= startTimestamp) {
+                return new ArrayList<RowLogMessage>();
+            }
+            stopRow = Bytes.add(rowPrefix, Bytes.toBytes(encodeTimestamp(maximalTimestamp, priority.getLane())));
+        } else {
+            // The lanes are single bytes far below 255, so this can't overflow
+            stopRow = Bytes.add(rowPrefix, new byte[] { (byte)(priority.getLane() + 1) });
+        }
+        return next(rowPrefix, startRow, stopRow, batchSize);
+    }
+
+    private List<RowLogMessage> next(byte[] rowPrefix, byte[] startRow, byte[] stopRow, int batchSize)
+            throws RowLogException {
+        // Before collecting a new batch of messages, any outstanding deletes are executed first. 
+        flushMessageDeleteBuffer();
         try {
             List<RowLogMessage> rowLogMessages = new ArrayList<RowLogMessage>();
             Scan scan = new Scan(startRow);
@@ -149,14 +202,7 @@ public class RowLogShardImpl implements RowLogShard {
             //if (minimalTimestamp != null)
             //    scan.setTimeRange(minimalTimestamp, Long.MAX_VALUE);
             scan.addColumn(MESSAGES_CF, MESSAGE_COLUMN);
-            // Set stop row for the scanner. This avoids the scanner to return entries belonging to the
-            // next subscription. In case of rowlog sharding, it also avoids opening a scanner on the next
-            // region just to find there is no interesting data there (which would be the case if we stop
-            // the scanning using a PrefixFilter).
-            byte[] stopRowPrefix = new byte[rowPrefix.length];
-            System.arraycopy(rowPrefix, 0, stopRowPrefix, 0, rowPrefix.length);
-            stopRowPrefix[stopRowPrefix.length - 1]++; // increasing END_OF_SUBSCRIPTION_NAME_MARKER, can't overflow
-            scan.setStopRow(stopRowPrefix);
+            scan.setStopRow(stopRow);
 
             ResultScanner scanner = table.getScanner(scan);
 
@@ -186,6 +232,71 @@ public class RowLogShardImpl implements RowLogShard {
         }
     }
 
+    @Override
+    public Map<String, Long> getOldestMessageTimestamps() throws RowLogException {
+        Map<String, Long> timestamps = new HashMap<String, Long>();
+        // The shard prefixes are single bytes below 255, so this can't overflow
+        byte[] stopRow = rowKeyPrefix.length == 0 ? HConstants.EMPTY_END_ROW :
+                new byte[] { (byte)(rowKeyPrefix[0] + 1) };
+        byte[] startRow = rowKeyPrefix;
+        try {
+            // The messages are sorted on subscription and then on timestamp, so the first message of each
+            // subscription is its oldest one. After reading it, skip to the next subscription.
+            while (true) {
+                Scan scan = new Scan(startRow, stopRow);
+                scan.setCaching(1);
+                scan.setFilter(new FirstKeyOnlyFilter());
+                ResultScanner scanner = table.getScanner(scan);
+                Result result = scanner.next();
+                Closer.close(scanner);
+                if (result == null) {
+                    break;
+                }
+
+                byte[] rowKey = result.getRow();
+                int markerPos = rowKeyPrefix.length;
+                while (rowKey[markerPos] != END_OF_SUBSCRIPTION_NAME_MARKER[0]) {
+                    markerPos++;
+                }
+                String subscription = Bytes.toString(rowKey, rowKeyPrefix.length, markerPos - rowKeyPrefix.length);
+                long timestamp = Bytes.toLong(rowKey, markerPos + 1) & TIMESTAMP_MASK;
+                Long oldestTimestamp = timestamps.get(subscription);
+                if (oldestTimestamp == null || timestamp < oldestTimestamp) {
+                    timestamps.put(subscription, timestamp);
+                }
+
+                // Skip to the next priority lane of the subscription, after the last lane this gives the
+                // next subscription
+                byte lane = rowKey[markerPos + 1];
+                startRow = Bytes.add(Bytes.head(rowKey, markerPos + 1), new byte[] { (byte)(lane + 1) });
+            }
+        } catch (IOException e) {
+            throw new RowLogException("Failed to determine the oldest messages on RowLogShard", e);
+        }
+        return timestamps;
+    }
+
+    @Override
+    public int countMessages(String subscription, int limit) throws RowLogException {
+        byte[] rowPrefix = Bytes.add(rowKeyPrefix, Bytes.toBytes(subscription), END_OF_SUBSCRIPTION_NAME_MARKER);
+        byte[] stopRow = Bytes.add(rowKeyPrefix, Bytes.toBytes(subscription),
+                new byte[] { (byte)(END_OF_SUBSCRIPTION_NAME_MARKER[0] + 1) });
+        try {
+            Scan scan = new Scan(rowPrefix, stopRow);
+            scan.setCaching(Math.min(limit, 1000));
+            scan.setFilter(new FirstKeyOnlyFilter());
+            ResultScanner scanner = table.getScanner(scan);
+            int count = 0;
+            while (count < limit && scanner.next() != null) {
+                count++;
+            }
+            Closer.close(scanner);
+            return count;
+        } catch (IOException e) {
+            throw new RowLogException("Failed to count messages on RowLogShard", e);
+        }
+    }
+
     private byte[] createRowKey(RowLogMessage message, String subscription) {
         byte[] subscriptionBytes = Bytes.toBytes(subscription);
         byte[] msgRowkey = message.getRowKey();
@@ -204,7 +315,7 @@ public class RowLogShardImpl implements RowLogShard {
         offset += subscriptionBytes.length;
         System.arraycopy(END_OF_SUBSCRIPTION_NAME_MARKER, 0, rowKey, offset, END_OF_SUBSCRIPTION_NAME_MARKER.length);
         offset += END_OF_SUBSCRIPTION_NAME_MARKER.length;
-        Bytes.putLong(rowKey, offset, message.getTimestamp());
+        Bytes.putLong(rowKey, offset, encodeTimestamp(message.getTimestamp(), message.getPriority().getLane()));
         offset += Bytes.SIZEOF_LONG;
         Bytes.putLong(rowKey, offset, message.getSeqNr());
         offset += Bytes.SIZEOF_LONG;
@@ -218,10 +329,16 @@ public class RowLogShardImpl implements RowLogShard {
     }
 
     private RowLogMessage decodeMessage(byte[] messageId, byte[] data) {
-        long timestamp = Bytes.toLong(messageId);
+        long encodedTimestamp = Bytes.toLong(messageId);
+        long timestamp = encodedTimestamp & TIMESTAMP_MASK;
+        MessagePriority priority = MessagePriority.fromLane((byte)(encodedTimestamp >>> LANE_SHIFT));
         long seqNr = Bytes.toLong(messageId, Bytes.SIZEOF_LONG);
         byte[] rowKey = Bytes.tail(messageId, messageId.length - (2*Bytes.SIZEOF_LONG));
-        return new RowLogMessageImpl(timestamp, rowKey, seqNr, data, rowLog);
+        return new RowLogMessageImpl(timestamp, rowKey, seqNr, data, null, priority, rowLog);
+    }
+
+    private static long encodeTimestamp(long timestamp, byte lane) {
+        return ((long)lane << LANE_SHIFT) | (timestamp & TIMESTAMP_MASK);
     }
 
 }
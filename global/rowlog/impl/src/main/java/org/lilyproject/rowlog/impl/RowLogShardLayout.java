@@ -0,0 +1,219 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.node.ArrayNode;
+import org.codehaus.jackson.node.JsonNodeFactory;
+import org.codehaus.jackson.node.ObjectNode;
+import org.lilyproject.util.json.JsonFormat;
+import org.lilyproject.util.json.JsonUtil;
+
+/**
+ * Describes how the messages of a rowlog are divided over its shards, and how this changed over time.
+ *
+ * <p>The layout is a list of entries, each specifying a number of shards, a routing algorithm and the hash
+ * function applied to the row keys, valid for
+ * the messages with a timestamp starting from the 'since' of the entry. Since the timestamp is part of
+ * the message, the shard a message was put on can always be found back, also after the number of shards
+ * changed. This allows to change the number of shards without draining the rowlog first.
+ *
+ * <p>Once all messages put according to an older entry have been processed, the older entries can be
+ * removed, see {@link #withoutPreviousEntries()}.
+ */
+public class RowLogShardLayout {
+    public enum Routing {
+        /**
+         * Hash of the row key modulo the number of shards: changing the number of shards moves nearly
+         * all rows to another shard. This is how the shards were always assigned before the layout was
+         * introduced.
+         */
+        MODULO,
+
+        /**
+         * Jump consistent hashing: when shards are added, only the rows moving to the new shards change
+         * shard.
+         */
+        CONSISTENT
+    }
+
+    public enum Hash {
+        /**
+         * MD5 digest of the row key. This is how the row keys were always hashed before the hash function
+         * became configurable, it is the default for layout entries which do not specify a hash function.
+         */
+        MD5,
+
+        /**
+         * MurmurHash3 of the row key, much cheaper to calculate than MD5 and equally well distributed.
+         */
+        MURMUR3
+    }
+
+    private final List<Entry> entries;
+
+    public RowLogShardLayout(List<Entry> entries) {
+        if (entries.isEmpty()) {
+            throw new IllegalArgumentException("A rowlog shard layout needs at least one entry.");
+        }
+        this.entries = Collections.unmodifiableList(new ArrayList<Entry>(entries));
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Returns the entry which applies to messages with the given timestamp.
+     */
+    public Entry getEntry(long timestamp) {
+        return entries.get(getEntryIndex(timestamp));
+    }
+
+    /**
+     * Returns the index of the entry which applies to messages with the given timestamp.
+     */
+    public int getEntryIndex(long timestamp) {
+        for (int i = entries.size() - 1; i > 0; i--) {
+            if (timestamp >= entries.get(i).getSince()) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    public Entry getLatestEntry() {
+        return entries.get(entries.size() - 1);
+    }
+
+    /**
+     * True if there are still messages which might have been put according to an older entry.
+     */
+    public boolean isMigrating() {
+        return entries.size() > 1;
+    }
+
+    public RowLogShardLayout withEntry(Entry entry) {
+        if (entry.getSince() <= getLatestEntry().getSince()) {
+            throw new IllegalArgumentException("A new rowlog shard layout entry should start after the latest one.");
+        }
+        List<Entry> newEntries = new ArrayList<Entry>(entries);
+        newEntries.add(entry);
+        return new RowLogShardLayout(newEntries);
+    }
+
+    /**
+     * Returns a layout only consisting of the latest entry, to be used once there are no messages anymore
+     * which were put according to the previous entries.
+     */
+    public RowLogShardLayout withoutPreviousEntries() {
+        return new RowLogShardLayout(Collections.singletonList(getLatestEntry()));
+    }
+
+    public static RowLogShardLayout fromJsonBytes(String rowLogId, byte[] json) {
+        ObjectNode node;
+        try {
+            node = (ObjectNode)JsonFormat.deserialize(new ByteArrayInputStream(json));
+        } catch (IOException e) {
+            throw new RuntimeException("Error parsing row log shard layout JSON. Row log ID " + rowLogId, e);
+        }
+
+        List<Entry> entries = new ArrayList<Entry>();
+        for (JsonNode entryNode : JsonUtil.getArray(node, "entries")) {
+            int shardCount = JsonUtil.getInt(entryNode, "shardCount");
+            Routing routing = Routing.valueOf(JsonUtil.getString(entryNode, "routing"));
+            long since = JsonUtil.getLong(entryNode, "since");
+            Hash hash = Hash.valueOf(JsonUtil.getString(entryNode, "hash", Hash.MD5.toString()));
+            entries.add(new Entry(shardCount, routing, hash, since));
+        }
+        return new RowLogShardLayout(entries);
+    }
+
+    public byte[] toJsonBytes(String rowLogId) {
+        ObjectNode node = JsonNodeFactory.instance.objectNode();
+        ArrayNode entriesNode = node.putArray("entries");
+        for (Entry entry : entries) {
+            ObjectNode entryNode = entriesNode.addObject();
+            entryNode.put("shardCount", entry.getShardCount());
+            entryNode.put("routing", entry.getRouting().toString());
+            entryNode.put("hash", entry.getHash().toString());
+            entryNode.put("since", entry.getSince());
+        }
+
+        try {
+            return JsonFormat.serializeAsBytes(node);
+        } catch (IOException e) {
+            throw new RuntimeException("Error serializing row log shard layout to JSON. Row log ID " +
+                    rowLogId, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return entries.toString();
+    }
+
+    public static class Entry {
+        private final int shardCount;
+        private final Routing routing;
+        private final Hash hash;
+        private final long since;
+
+        public Entry(int shardCount, Routing routing, long since) {
+            this(shardCount, routing, Hash.MD5, since);
+        }
+
+        public Entry(int shardCount, Routing routing, Hash hash, long since) {
+            if (shardCount < 1) {
+                throw new IllegalArgumentException("Number of rowlog shards should be > 0, but it is: " + shardCount);
+            }
+            this.shardCount = shardCount;
+            this.routing = routing;
+            this.hash = hash;
+            this.since = since;
+        }
+
+        public int getShardCount() {
+            return shardCount;
+        }
+
+        public Routing getRouting() {
+            return routing;
+        }
+
+        public Hash getHash() {
+            return hash;
+        }
+
+        /**
+         * The timestamp of the first messages to which this entry applies.
+         */
+        public long getSince() {
+            return since;
+        }
+
+        @Override
+        public String toString() {
+            return "{shardCount=" + shardCount + ", routing=" + routing + ", hash=" + hash + ", since=" + since + "}";
+        }
+    }
+}
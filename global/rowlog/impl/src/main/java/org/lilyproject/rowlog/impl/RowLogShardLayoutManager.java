@@ -0,0 +1,258 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.impl;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.data.Stat;
+import org.lilyproject.rowlog.api.RowLog;
+import org.lilyproject.rowlog.api.RowLogException;
+import org.lilyproject.rowlog.api.RowLogShard;
+import org.lilyproject.util.hbase.HBaseTableFactory;
+import org.lilyproject.util.zookeeper.ZkUtil;
+import org.lilyproject.util.zookeeper.ZooKeeperItf;
+
+/**
+ * Manages the {@link RowLogShardLayout} of a rowlog, which is stored in ZooKeeper at
+ * <tt>/lily/rowlog/[rowlog id]/shardLayout</tt>, and allows to increase the number of shards of a rowlog
+ * while it is in use.
+ *
+ * <p>The resharding goes as follows:
+ * <ol>
+ * <li>When a node starts with a larger number of shards than the one in the layout, it adds a layout entry
+ * with the new number of shards, which becomes active after {@link #SWITCH_DELAY}. The new entry uses consistent
+ * hashing, so that only the rows moving to the new shards change shard. The same happens when a node starts
+ * with another hash function than the one in the layout, in which case most rows change shard. Rowlogs which do not have a layout yet
+ * start with a layout for the configured number of shards, using the original modulo routing.</li>
+ * <li>All nodes are notified of the new layout, register the new shards, and start processing them. Messages
+ * are put on the shards according to the layout entry which applies to their timestamp. Since the new
+ * entry only becomes active after a delay, all nodes know it before it is used.</li>
+ * <li>The processors first process the messages put according to the old entry: the messages of a row put
+ * after the switch can be on another shard than the older ones, so they are held back until no shard has
+ * messages older than the switch anymore, see {@link ShardRoutingDrain}. Removing a message is done on the
+ * shards of both entries.</li>
+ * <li>Once there are no messages anymore older than the new entry, the old entry is removed from the layout.
+ * This is checked periodically by each node.</li>
+ * </ol>
+ *
+ * <p>Decreasing the number of shards is not supported.
+ */
+public class RowLogShardLayoutManager {
+    /**
+     * Delay after which a new layout entry becomes active, should be (much) larger than the time it takes for
+     * the change to be propagated to all nodes.
+     */
+    public static final long SWITCH_DELAY = 2 * 60 * 1000;
+
+    private static final long MIGRATION_CHECK_INTERVAL = 5 * 60 * 1000;
+
+    private final ZooKeeperItf zk;
+    private final RowLog rowLog;
+    private final RowLogHashShardRouter router;
+    private final HBaseTableFactory tableFactory;
+    private final String layoutPath;
+    private final Watcher layoutWatcher = new LayoutWatcher();
+    private ScheduledExecutorService migrationChecker;
+    private volatile boolean stopped = true;
+    private final Log log = LogFactory.getLog(getClass());
+
+    public RowLogShardLayoutManager(ZooKeeperItf zk, RowLog rowLog, RowLogHashShardRouter router,
+            HBaseTableFactory tableFactory) {
+        this.zk = zk;
+        this.rowLog = rowLog;
+        this.router = router;
+        this.tableFactory = tableFactory;
+        this.layoutPath = "/lily/rowlog/" + rowLog.getId() + "/shardLayout";
+    }
+
+    /**
+     * Loads the layout, registers the shards it requires and starts following changes to it.
+     *
+     * @param shardCount the configured number of shards, if larger than the current number of shards,
+     *                   the rowlog will be resharded
+     * @param hash the configured hash function for the row keys, if different from the current one, the
+     *             rowlog will switch to it in the same way as when the number of shards is increased
+     */
+    public synchronized void start(int shardCount, RowLogShardLayout.Hash hash)
+            throws InterruptedException, KeeperException, IOException {
+        if (!stopped) {
+            return;
+        }
+
+        ZkUtil.createPath(zk, layoutPath);
+        updateLayout(shardCount, hash);
+
+        stopped = false;
+        loadLayout();
+
+        migrationChecker = Executors.newSingleThreadScheduledExecutor();
+        migrationChecker.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    finishMigration();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Throwable t) {
+                    log.error("Error checking migration of the shard layout of rowlog " + rowLog.getId(), t);
+                }
+            }
+        }, MIGRATION_CHECK_INTERVAL, MIGRATION_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        // Note that ZooKeeper does not have a way to remove watches (see ZOOKEEPER-422)
+        stopped = true;
+        if (migrationChecker != null) {
+            migrationChecker.shutdownNow();
+            migrationChecker = null;
+        }
+    }
+
+    /**
+     * Adds a layout entry if the number of shards is larger than the current number of shards, or if the hash
+     * function changed. The layout is updated using the version of its node, so that concurrently starting
+     * nodes don't add multiple entries.
+     */
+    private void updateLayout(int shardCount, RowLogShardLayout.Hash hash) throws InterruptedException,
+            KeeperException {
+        while (true) {
+            Stat stat = new Stat();
+            byte[] data = ZkUtil.getData(zk, layoutPath, null, stat);
+
+            RowLogShardLayout layout;
+            if (data == null || data.length == 0) {
+                // Rowlogs created before the layout existed used modulo routing on the MD5 hash over the
+                // configured number of shards, which could not be changed
+                layout = new RowLogShardLayout(Collections.singletonList(
+                        new RowLogShardLayout.Entry(shardCount, RowLogShardLayout.Routing.MODULO,
+                                RowLogShardLayout.Hash.MD5, 0)));
+                if (hash != RowLogShardLayout.Hash.MD5) {
+                    layout = withEntry(layout, shardCount, hash);
+                }
+            } else {
+                RowLogShardLayout currentLayout = RowLogShardLayout.fromJsonBytes(rowLog.getId(), data);
+                RowLogShardLayout.Entry currentEntry = currentLayout.getLatestEntry();
+                int currentShardCount = currentEntry.getShardCount();
+                if (shardCount < currentShardCount) {
+                    log.warn("The configured number of shards for rowlog " + rowLog.getId() + " (" + shardCount +
+                            ") is lower than the current number of shards (" + currentShardCount + "). Decreasing" +
+                            " the number of shards is not supported, will keep using " + currentShardCount +
+                            " shards.");
+                    shardCount = currentShardCount;
+                }
+                if (shardCount == currentShardCount && hash == currentEntry.getHash()) {
+                    return;
+                } else if (currentLayout.isMigrating()) {
+                    log.warn("Not changing the shard layout of rowlog " + rowLog.getId() + " to " + shardCount +
+                            " shards using " + hash + " hashing since the previous change is still in progress." +
+                            " Restart the node once it is done.");
+                    return;
+                }
+                layout = withEntry(currentLayout, shardCount, hash);
+            }
+
+            try {
+                ZkUtil.update(zk, layoutPath, layout.toJsonBytes(rowLog.getId()), stat.getVersion());
+                log.info("Shard layout of rowlog " + rowLog.getId() + " set to " + layout);
+                return;
+            } catch (KeeperException.BadVersionException e) {
+                // Concurrent update of the layout, try again
+            }
+        }
+    }
+
+    private RowLogShardLayout withEntry(RowLogShardLayout layout, int shardCount, RowLogShardLayout.Hash hash) {
+        long since = System.currentTimeMillis() + SWITCH_DELAY;
+        return layout.withEntry(new RowLogShardLayout.Entry(shardCount, RowLogShardLayout.Routing.CONSISTENT, hash,
+                since));
+    }
+
+    private synchronized void loadLayout() throws InterruptedException, KeeperException, IOException {
+        if (stopped) {
+            return;
+        }
+        byte[] data = ZkUtil.getData(zk, layoutPath, layoutWatcher, new Stat());
+        RowLogShardLayout layout = RowLogShardLayout.fromJsonBytes(rowLog.getId(), data);
+
+        // The shards need to be registered before the router uses them
+        RowLogShardSetup.addShards(layout.getLatestEntry().getShardCount(), rowLog, tableFactory);
+        router.setLayout(layout);
+        log.info("Using shard layout " + layout + " for rowlog " + rowLog.getId());
+    }
+
+    /**
+     * Removes the previous layout entries once there are no messages anymore which might have been put
+     * according to them.
+     */
+    private void finishMigration() throws InterruptedException, KeeperException, RowLogException {
+        Stat stat = new Stat();
+        byte[] data = ZkUtil.getData(zk, layoutPath, null, stat);
+        RowLogShardLayout layout = RowLogShardLayout.fromJsonBytes(rowLog.getId(), data);
+        if (!layout.isMigrating()) {
+            return;
+        }
+
+        long since = layout.getLatestEntry().getSince();
+        if (System.currentTimeMillis() < since) {
+            return;
+        }
+
+        for (RowLogShard shard : rowLog.getShards()) {
+            for (Long timestamp : shard.getOldestMessageTimestamps().values()) {
+                if (timestamp < since) {
+                    return;
+                }
+            }
+        }
+
+        try {
+            ZkUtil.update(zk, layoutPath, layout.withoutPreviousEntries().toJsonBytes(rowLog.getId()),
+                    stat.getVersion());
+            log.info("Finished changing the shard layout of rowlog " + rowLog.getId() + ", now using " +
+                    layout.getLatestEntry());
+        } catch (KeeperException.BadVersionException e) {
+            // Concurrently updated by another node
+        }
+    }
+
+    private class LayoutWatcher implements Watcher {
+        @Override
+        public void process(WatchedEvent event) {
+            if (stopped || event.getType() != EventType.NodeDataChanged) {
+                return;
+            }
+
+            try {
+                loadLayout();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Throwable t) {
+                log.error("Error loading the shard layout of rowlog " + rowLog.getId(), t);
+            }
+        }
+    }
+}
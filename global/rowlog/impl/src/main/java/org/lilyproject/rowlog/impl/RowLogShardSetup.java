@@ -26,6 +26,25 @@ import java.io.IOException;
 
 public class RowLogShardSetup {
     public static void setupShards(int shardCount, RowLog rowLog, HBaseTableFactory tableFactory) throws IOException {
+        HTableInterface table = getTable(shardCount, rowLog, tableFactory);
+        registerShards(shardCount, table, rowLog);
+    }
+
+    /**
+     * Registers additional shards on the rowlog, up to the given number of shards. This is used when the number
+     * of shards is increased, see {@link RowLogShardLayoutManager}. Since the rowlog table is only split on
+     * creation, the new shards end up in the last region of the table.
+     */
+    public static void addShards(int shardCount, RowLog rowLog, HBaseTableFactory tableFactory) throws IOException {
+        if (rowLog.getShards().size() >= shardCount) {
+            return;
+        }
+        HTableInterface table = getTable(shardCount, rowLog, tableFactory);
+        registerShards(shardCount, table, rowLog);
+    }
+
+    private static HTableInterface getTable(int shardCount, RowLog rowLog, HBaseTableFactory tableFactory)
+            throws IOException {
 
         if (shardCount < 1 || shardCount > 255) {
             throw new IllegalArgumentException("Number of rowlog shards should be > 0 and < 255, but it is: "
@@ -53,13 +72,15 @@ public class RowLogShardSetup {
 
         tableDescriptor.addFamily(new HColumnDescriptor(RowLogShardImpl.MESSAGES_CF));
 
-        HTableInterface table = tableFactory.getTable(tableDescriptor, splits);
+        return tableFactory.getTable(tableDescriptor, splits);
+    }
 
-        //
-        // Create the RowLogShard instances
-        //
+    /**
+     * Creates the RowLogShard instances which are not yet registered on the rowlog.
+     */
+    private static void registerShards(int shardCount, HTableInterface table, RowLog rowLog) throws IOException {
         RowLogShardList shards = rowLog.getShardList();
-        for (int i = 0; i < shardCount; i++) {
+        for (int i = shards.getShards().size(); i < shardCount; i++) {
             byte[] rowKeyPrefix = new byte[] { (byte)i };
             shards.addShard(new RowLogShardImpl("shard" + i, rowKeyPrefix, table, rowLog,
                     rowLog.getConfig().getDeleteBufferSize()));
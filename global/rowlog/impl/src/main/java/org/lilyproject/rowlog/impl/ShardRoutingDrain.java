@@ -0,0 +1,85 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.impl;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.lilyproject.rowlog.api.RowLog;
+import org.lilyproject.rowlog.api.RowLogException;
+import org.lilyproject.rowlog.api.RowLogShard;
+
+/**
+ * Keeps the messages of a row in order for a subscription while the shards of a rowlog are changed.
+ *
+ * <p>When the number of shards changes (see {@link RowLogShardLayoutManager}), the messages of a row put before
+ * the change can be on another shard than those put after it. As long as any shard still has messages from
+ * before the change for the subscription, the subscription should only process messages from before the change,
+ * so that the newer messages of a row are not processed before its older ones. Since the shards can be divided
+ * over several processors, all shards are checked, not only those of this processor.</p>
+ *
+ * <p>This class is not thread safe, it is meant to be used by one subscription thread.</p>
+ */
+public class ShardRoutingDrain {
+    private final RowLog rowLog;
+    private final String subscriptionId;
+    private final long timestampMargin;
+    private final long checkInterval;
+    private Long drainedChange;
+    private long lastCheck;
+    private Log log = LogFactory.getLog(getClass());
+
+    /**
+     * @param timestampMargin the time in ms after which a message is surely on the shards, see
+     *                        {@link RowLogProcessorSettings#setMsgTimestampMargin}
+     * @param checkInterval the minimal time in ms between two checks of the shards
+     */
+    public ShardRoutingDrain(RowLog rowLog, String subscriptionId, long timestampMargin, long checkInterval) {
+        this.rowLog = rowLog;
+        this.subscriptionId = subscriptionId;
+        this.timestampMargin = timestampMargin;
+        this.checkInterval = checkInterval;
+    }
+
+    /**
+     * Returns the timestamp before which the messages to process should be, or null if all messages can be
+     * processed.
+     *
+     * @param now the current time
+     */
+    public Long getMaximalTimestamp(long now) throws RowLogException {
+        Long change = rowLog.getShardRoutingChangeTimestamp();
+        if (change == null || change.equals(drainedChange)) {
+            return null;
+        }
+        // Messages from before the change can still be put until some time after it
+        if (now < change + timestampMargin || now - lastCheck < checkInterval) {
+            return change;
+        }
+
+        lastCheck = now;
+        for (RowLogShard shard : rowLog.getShards()) {
+            Long oldestTimestamp = shard.getOldestMessageTimestamps().get(subscriptionId);
+            if (oldestTimestamp != null && oldestTimestamp < change) {
+                return change;
+            }
+        }
+
+        log.info("Rowlog " + rowLog.getId() + " has no more messages for subscription " + subscriptionId +
+                " from before the change of its shards at " + change + ", processing the newer messages.");
+        drainedChange = change;
+        return null;
+    }
+}
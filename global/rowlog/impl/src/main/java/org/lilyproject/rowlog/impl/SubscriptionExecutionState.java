@@ -22,31 +22,48 @@ import org.lilyproject.bytes.api.DataOutput;
 import org.lilyproject.bytes.impl.DataInputImpl;
 import org.lilyproject.bytes.impl.DataOutputImpl;
 import org.lilyproject.rowlog.api.ExecutionState;
+import org.lilyproject.rowlog.api.MessagePriority;
 
 public class SubscriptionExecutionState implements ExecutionState {
 
     private final long timestamp;
     private final String[] subscriptionIds;
     private final boolean[] doneFlags;
+    private final MessagePriority priority;
 
     private static final byte FORMAT_VERSION = 1;
 
     public SubscriptionExecutionState(long timestamp, String[] subscriptionIds) {
-        this.timestamp = timestamp;
-        this.subscriptionIds = subscriptionIds;
-        this.doneFlags = new boolean[subscriptionIds.length];
+        this(timestamp, subscriptionIds, MessagePriority.NORMAL);
+    }
+
+    public SubscriptionExecutionState(long timestamp, String[] subscriptionIds, MessagePriority priority) {
+        this(timestamp, subscriptionIds, new boolean[subscriptionIds.length], priority);
     }
     
     public SubscriptionExecutionState(long timestamp, String[] subscriptionIds, boolean[] doneFlags) {
+        this(timestamp, subscriptionIds, doneFlags, MessagePriority.NORMAL);
+    }
+
+    public SubscriptionExecutionState(long timestamp, String[] subscriptionIds, boolean[] doneFlags,
+            MessagePriority priority) {
         this.timestamp = timestamp;
         this.subscriptionIds = subscriptionIds;
         this.doneFlags = doneFlags;
+        this.priority = priority;
     }
 
     public long getTimestamp() {
         return timestamp;
     }
 
+    /**
+     * The priority of the message, which is needed to find the message on the rowlog shards.
+     */
+    public MessagePriority getPriority() {
+        return priority;
+    }
+
     public String[] getSubscriptionIds() {
         return subscriptionIds;
     }
@@ -83,6 +100,12 @@ public class SubscriptionExecutionState implements ExecutionState {
             dataOutput.writeBoolean(doneFlags[i]);
         }
 
+        // The priority is only written when it is not the default, the execution states of normal priority
+        // messages thus remain readable by older versions
+        if (priority != MessagePriority.NORMAL) {
+            dataOutput.writeByte(priority.getLane());
+        }
+
         return dataOutput.toByteArray();
     }
 
@@ -106,7 +129,12 @@ public class SubscriptionExecutionState implements ExecutionState {
             doneFlags[i] = input.readBoolean();
         }
 
-        return new SubscriptionExecutionState(timestamp, subscriptionIds, doneFlags);
+        MessagePriority priority = MessagePriority.NORMAL;
+        if (input.getPosition() < input.getSize()) {
+            priority = MessagePriority.fromLane(input.readByte());
+        }
+
+        return new SubscriptionExecutionState(timestamp, subscriptionIds, doneFlags, priority);
     }
 
     public boolean allDone() {
@@ -73,7 +73,9 @@ public class WalRowLog extends RowLogImpl {
     @Override
     protected boolean handleAllDone(RowLogMessage message, byte[] rowKey, byte[] executionStateQualifier, byte[] previousValue, RowLock lock) throws IOException, RowLogException {
         // Remove the 'meta' message
-        getShard(message).removeMessage(message, WAL_SUBSCRIPTIONID);
+        for (RowLogShard shard : getShardsOfMessage(message)) {
+            shard.removeMessage(message, WAL_SUBSCRIPTIONID);
+        }
         // Also make sure the execution state and payload are removed from the row-local queue
         return super.handleAllDone(message, rowKey, executionStateQualifier, previousValue, lock);
     }
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.impl.test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.lilyproject.rowlog.api.RowLogShard;
+import org.lilyproject.rowlog.impl.AdaptiveScanScheduler;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+public class AdaptiveScanSchedulerTest {
+
+    @Test
+    public void testBatchSizeFollowsBacklog() throws Exception {
+        RowLogShard shard = createMock(RowLogShard.class);
+        AdaptiveScanScheduler scheduler = new AdaptiveScanScheduler(10, 100, 1000);
+        assertEquals(10, scheduler.getBatchSize(shard));
+
+        // Full batches make the batch size grow, up to the maximum
+        scheduler.scanned(shard, 10, 10, 0);
+        assertEquals(20, scheduler.getBatchSize(shard));
+        assertTrue(scheduler.hasBacklog());
+        scheduler.scanned(shard, 20, 20, 0);
+        scheduler.scanned(shard, 40, 40, 0);
+        scheduler.scanned(shard, 80, 80, 0);
+        assertEquals(100, scheduler.getBatchSize(shard));
+        assertEquals(100, scheduler.getTotalBatchSize());
+
+        // A partially filled batch does not change it
+        scheduler.scanned(shard, 100, 70, 0);
+        assertEquals(100, scheduler.getBatchSize(shard));
+        assertFalse(scheduler.hasBacklog());
+
+        // Less than half a batch makes it shrink, down to the minimum
+        scheduler.scanned(shard, 100, 10, 0);
+        assertEquals(50, scheduler.getBatchSize(shard));
+        scheduler.scanned(shard, 50, 0, 0);
+        scheduler.scanned(shard, 25, 0, 0);
+        scheduler.scanned(shard, 12, 0, 0);
+        assertEquals(10, scheduler.getBatchSize(shard));
+
+        // Scans of a single message (the WAL case) do not influence the batch size
+        scheduler.scanned(shard, 1, 1, 0);
+        assertEquals(10, scheduler.getBatchSize(shard));
+    }
+
+    @Test
+    public void testEmptyShardsScannedLessOftenDuringBacklog() throws Exception {
+        RowLogShard busyShard = createMock(RowLogShard.class);
+        RowLogShard emptyShard = createMock(RowLogShard.class);
+        List<RowLogShard> shards = Arrays.asList(busyShard, emptyShard);
+        AdaptiveScanScheduler scheduler = new AdaptiveScanScheduler(10, 100, 1000);
+
+        int emptyShardScans = 0;
+        for (int round = 0; round < 40; round++) {
+            List<RowLogShard> selected = scheduler.selectShards(shards, round == 0);
+            assertTrue(selected.contains(busyShard));
+            if (selected.contains(emptyShard)) {
+                emptyShardScans++;
+                scheduler.scanned(emptyShard, scheduler.getBatchSize(emptyShard), 0, round);
+            }
+            scheduler.scanned(busyShard, scheduler.getBatchSize(busyShard), scheduler.getBatchSize(busyShard), round);
+            assertTrue(scheduler.hasBacklog());
+        }
+        assertTrue("Empty shard scanned " + emptyShardScans + " times", emptyShardScans > 1 && emptyShardScans < 10);
+        assertEquals(1, scheduler.getShardsWithBacklog());
+
+        // Once there is no backlog anymore, all shards are scanned again
+        assertEquals(shards, scheduler.selectShards(shards, true));
+    }
+
+    @Test
+    public void testEarliestScanStart() throws Exception {
+        RowLogShard shard1 = createMock(RowLogShard.class);
+        RowLogShard shard2 = createMock(RowLogShard.class);
+        AdaptiveScanScheduler scheduler = new AdaptiveScanScheduler(10, 100, 1000);
+
+        scheduler.scanned(shard1, 10, 0, 1000);
+        scheduler.scanned(shard2, 10, 0, 2000);
+        assertEquals(1000, scheduler.getEarliestScanStart(Arrays.asList(shard1, shard2)));
+        assertEquals(2000, scheduler.getEarliestScanStart(Collections.singletonList(shard2)));
+        assertEquals(Long.MAX_VALUE, scheduler.getEarliestScanStart(Collections.<RowLogShard>emptyList()));
+    }
+
+    @Test
+    public void testRemovedShardsAreForgotten() throws Exception {
+        RowLogShard shard1 = createMock(RowLogShard.class);
+        RowLogShard shard2 = createMock(RowLogShard.class);
+        AdaptiveScanScheduler scheduler = new AdaptiveScanScheduler(10, 100, 1000);
+
+        scheduler.selectShards(Arrays.asList(shard1, shard2), true);
+        scheduler.scanned(shard1, 10, 10, 0);
+        scheduler.scanned(shard2, 10, 0, 0);
+        assertTrue(scheduler.hasBacklog());
+
+        // The shard with the backlog is no longer scanned by this processor
+        scheduler.selectShards(Collections.singletonList(shard2), false);
+        assertFalse(scheduler.hasBacklog());
+        assertEquals(10, scheduler.getTotalBatchSize());
+    }
+
+    @Test
+    public void testSetBatchSizes() throws Exception {
+        RowLogShard shard1 = createMock(RowLogShard.class);
+        RowLogShard shard2 = createMock(RowLogShard.class);
+        AdaptiveScanScheduler scheduler = new AdaptiveScanScheduler(10, 100, 1000);
+        scheduler.scanned(shard1, 10, 10, 0);
+        scheduler.scanned(shard1, 20, 20, 0);
+        assertEquals(40, scheduler.getBatchSize(shard1));
+        assertEquals(10, scheduler.getBatchSize(shard2));
+
+        // E.g. twice as many shards: the batch sizes are brought within the new range
+        scheduler.setBatchSizes(5, 30);
+        assertEquals(30, scheduler.getBatchSize(shard1));
+        assertEquals(10, scheduler.getBatchSize(shard2));
+        assertEquals(5, scheduler.getBatchSize(createMock(RowLogShard.class)));
+
+        scheduler.setBatchSizes(20, 30);
+        assertEquals(20, scheduler.getBatchSize(shard2));
+    }
+
+    @Test
+    public void testRefillThresholdFollowsThroughput() throws Exception {
+        AdaptiveScanScheduler scheduler = new AdaptiveScanScheduler(10, 100, 1000);
+        assertEquals(5, scheduler.roundFinished(50, 0, 1000));
+
+        // Listeners consuming 2 messages per ms, with scans of 50 ms: about 200 messages are needed to
+        // bridge two scans
+        long consumed = 0;
+        long now = 1000;
+        for (int i = 0; i < 20; i++) {
+            consumed += 200;
+            now += 100;
+            scheduler.roundFinished(50, consumed, now);
+        }
+        int threshold = scheduler.getRefillThreshold();
+        assertTrue("Refill threshold: " + threshold, threshold > 180 && threshold < 220);
+
+        // Never more than half the work queue
+        for (int i = 0; i < 20; i++) {
+            consumed += 10000;
+            now += 100;
+            scheduler.roundFinished(50, consumed, now);
+        }
+        assertEquals(500, scheduler.getRefillThreshold());
+
+        // Back to the minimum when the listeners are idle
+        for (int i = 0; i < 40; i++) {
+            now += 10000;
+            scheduler.roundFinished(50, consumed, now);
+        }
+        assertEquals(5, scheduler.getRefillThreshold());
+    }
+}
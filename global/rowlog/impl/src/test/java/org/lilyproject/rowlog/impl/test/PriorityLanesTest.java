@@ -0,0 +1,87 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.impl.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+import org.lilyproject.rowlog.api.MessagePriority;
+import org.lilyproject.rowlog.api.RowLogMessage;
+import org.lilyproject.rowlog.impl.PriorityLanes;
+import org.lilyproject.rowlog.impl.RowLogMessageImpl;
+import org.lilyproject.rowlog.impl.RowLogProcessorSettings;
+
+import static org.junit.Assert.*;
+
+public class PriorityLanesTest {
+
+    @Test
+    public void testBatchSizeFollowsWeight() throws Exception {
+        PriorityLanes lanes = new PriorityLanes(new RowLogProcessorSettings());
+        assertEquals(100, lanes.getBatchSize(MessagePriority.NORMAL, 100));
+        assertEquals(25, lanes.getBatchSize(MessagePriority.LOW, 100));
+        // Each lane is always scanned for at least one message
+        assertEquals(1, lanes.getBatchSize(MessagePriority.LOW, 1));
+    }
+
+    @Test
+    public void testWeightedMerge() throws Exception {
+        RowLogProcessorSettings settings = new RowLogProcessorSettings();
+        settings.setPriorityWeight(MessagePriority.NORMAL, 2);
+        PriorityLanes lanes = new PriorityLanes(settings);
+
+        List<RowLogMessage> normal = createMessages(MessagePriority.NORMAL, 5);
+        List<RowLogMessage> low = createMessages(MessagePriority.LOW, 4);
+        Map<MessagePriority, List<RowLogMessage>> laneMessages =
+                new EnumMap<MessagePriority, List<RowLogMessage>>(MessagePriority.class);
+        laneMessages.put(MessagePriority.NORMAL, normal);
+        laneMessages.put(MessagePriority.LOW, low);
+
+        List<RowLogMessage> merged = lanes.merge(laneMessages);
+        assertEquals(9, merged.size());
+        assertEquals(normal.get(0), merged.get(0));
+        assertEquals(normal.get(1), merged.get(1));
+        assertEquals(low.get(0), merged.get(2));
+        assertEquals(normal.get(2), merged.get(3));
+        assertEquals(normal.get(3), merged.get(4));
+        assertEquals(low.get(1), merged.get(5));
+        assertEquals(normal.get(4), merged.get(6));
+        // Once the normal lane is empty, the low priority messages follow directly
+        assertEquals(low.get(2), merged.get(7));
+        assertEquals(low.get(3), merged.get(8));
+
+        laneMessages.put(MessagePriority.NORMAL, Collections.<RowLogMessage>emptyList());
+        assertEquals(low, lanes.merge(laneMessages));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWeightAtLeastOne() throws Exception {
+        new RowLogProcessorSettings().setPriorityWeight(MessagePriority.LOW, 0);
+    }
+
+    private List<RowLogMessage> createMessages(MessagePriority priority, int count) {
+        List<RowLogMessage> messages = new ArrayList<RowLogMessage>();
+        for (int i = 0; i < count; i++) {
+            messages.add(new RowLogMessageImpl(i, Bytes.toBytes(priority + "-" + i), 0L, null, null, priority, null));
+        }
+        return messages;
+    }
+}
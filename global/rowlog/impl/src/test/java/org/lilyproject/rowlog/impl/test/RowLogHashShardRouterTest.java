@@ -0,0 +1,241 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.impl.test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.junit.Test;
+import org.lilyproject.rowlog.api.RowLogMessage;
+import org.lilyproject.rowlog.api.RowLogShard;
+import org.lilyproject.rowlog.api.RowLogShardList;
+import org.lilyproject.rowlog.impl.RowLogHashShardRouter;
+import org.lilyproject.rowlog.impl.RowLogMessageImpl;
+import org.lilyproject.rowlog.impl.RowLogShardLayout;
+import org.lilyproject.rowlog.impl.RowLogShardLayout.Entry;
+import org.lilyproject.rowlog.impl.RowLogShardLayout.Hash;
+import org.lilyproject.rowlog.impl.RowLogShardLayout.Routing;
+import org.lilyproject.util.MurmurHash3;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+public class RowLogHashShardRouterTest {
+
+    private RowLogShardList createShards(int count) {
+        RowLogShardList shardList = new RowLogShardList();
+        for (int i = 0; i < count; i++) {
+            RowLogShard shard = createMock(RowLogShard.class);
+            expect(shard.getId()).andReturn("shard" + i).anyTimes();
+            replay(shard);
+            shardList.addShard(shard);
+        }
+        return shardList;
+    }
+
+    private RowLogMessage message(int row, long timestamp) {
+        return new RowLogMessageImpl(timestamp, Bytes.toBytes("row" + row), 1L, null, null);
+    }
+
+    @Test
+    public void testLayoutWithoutChangesRoutesLikeLegacy() throws Exception {
+        RowLogShardList shards = createShards(4);
+        RowLogHashShardRouter legacyRouter = new RowLogHashShardRouter();
+        RowLogHashShardRouter router = new RowLogHashShardRouter();
+        router.setLayout(new RowLogShardLayout(Collections.singletonList(new Entry(4, Routing.MODULO, 0))));
+
+        for (int i = 0; i < 100; i++) {
+            RowLogMessage message = message(i, 5);
+            assertSame(legacyRouter.getShard(message, shards), router.getShard(message, shards));
+            assertEquals(1, router.getShards(message, shards).size());
+        }
+    }
+
+    @Test
+    public void testConsistentRoutingOnlyMovesToNewShards() throws Exception {
+        RowLogShardList shards = createShards(8);
+        RowLogHashShardRouter router = new RowLogHashShardRouter();
+        RowLogShardLayout layout = new RowLogShardLayout(Arrays.asList(new Entry(4, Routing.MODULO, 0),
+                new Entry(6, Routing.CONSISTENT, 1000), new Entry(8, Routing.CONSISTENT, 2000)));
+        router.setLayout(layout);
+
+        int moved = 0;
+        for (int i = 0; i < 1000; i++) {
+            RowLogShard shard6 = router.getShard(message(i, 1500), shards);
+            RowLogShard shard8 = router.getShard(message(i, 2500), shards);
+            if (shard6 != shard8) {
+                moved++;
+                String id = shard8.getId();
+                assertTrue(id.equals("shard6") || id.equals("shard7"));
+            }
+        }
+        // About a quarter of the rows should move
+        assertTrue(moved > 150 && moved < 350);
+    }
+
+    @Test
+    public void testRemovalDuringMigration() throws Exception {
+        RowLogShardList shards = createShards(8);
+        RowLogHashShardRouter router = new RowLogHashShardRouter();
+        RowLogShardLayout layout = new RowLogShardLayout(Collections.singletonList(new Entry(4, Routing.MODULO, 0)))
+                .withEntry(new Entry(8, Routing.CONSISTENT, 1000));
+        router.setLayout(layout);
+
+        for (int i = 0; i < 100; i++) {
+            // Messages from before the change are only on the shard of the old entry
+            RowLogMessage oldMessage = message(i, 500);
+            assertEquals(Collections.singletonList(router.getShard(oldMessage, shards)),
+                    router.getShards(oldMessage, shards));
+
+            // Messages after the change are on the shard of the new entry, but a node which did not know
+            // the change yet might have put them on the shard of the old one
+            RowLogMessage newMessage = message(i, 1500);
+            assertTrue(router.getShards(newMessage, shards).contains(router.getShard(newMessage, shards)));
+            assertTrue(router.getShards(newMessage, shards).contains(router.getShard(oldMessage, shards)));
+        }
+
+        router.setLayout(layout.withoutPreviousEntries());
+        assertEquals(1, router.getShards(message(1, 1500), shards).size());
+    }
+
+    @Test
+    public void testLayoutJson() throws Exception {
+        RowLogShardLayout layout = new RowLogShardLayout(Collections.singletonList(new Entry(4, Routing.MODULO, 0)))
+                .withEntry(new Entry(8, Routing.CONSISTENT, 1000));
+
+        RowLogShardLayout parsed = RowLogShardLayout.fromJsonBytes("test", layout.toJsonBytes("test"));
+        assertEquals(2, parsed.getEntries().size());
+        assertEquals(8, parsed.getLatestEntry().getShardCount());
+        assertEquals(Routing.CONSISTENT, parsed.getLatestEntry().getRouting());
+        assertEquals(1000, parsed.getLatestEntry().getSince());
+        assertEquals(4, parsed.getEntry(999).getShardCount());
+        assertEquals(Hash.MD5, parsed.getLatestEntry().getHash());
+
+        layout = layout.withEntry(new Entry(8, Routing.CONSISTENT, Hash.MURMUR3, 2000));
+        parsed = RowLogShardLayout.fromJsonBytes("test", layout.toJsonBytes("test"));
+        assertEquals(Hash.MURMUR3, parsed.getLatestEntry().getHash());
+        assertEquals(Hash.MD5, parsed.getEntry(1999).getHash());
+
+        // Layouts stored before the hash function was configurable use MD5
+        parsed = RowLogShardLayout.fromJsonBytes("test",
+                Bytes.toBytes("{\"entries\": [{\"shardCount\": 4, \"routing\": \"MODULO\", \"since\": 0}]}"));
+        assertEquals(Hash.MD5, parsed.getLatestEntry().getHash());
+    }
+
+    @Test
+    public void testHashChangeDuringMigration() throws Exception {
+        RowLogShardList shards = createShards(4);
+        RowLogHashShardRouter router = new RowLogHashShardRouter();
+        RowLogShardLayout layout = new RowLogShardLayout(Collections.singletonList(new Entry(4, Routing.MODULO, 0)))
+                .withEntry(new Entry(4, Routing.CONSISTENT, Hash.MURMUR3, 1000));
+        router.setLayout(layout);
+
+        RowLogHashShardRouter legacyRouter = new RowLogHashShardRouter();
+        int moved = 0;
+        for (int i = 0; i < 100; i++) {
+            RowLogMessage oldMessage = message(i, 500);
+            RowLogMessage newMessage = message(i, 1500);
+            assertSame(legacyRouter.getShard(oldMessage, shards), router.getShard(oldMessage, shards));
+            assertTrue(router.getShards(newMessage, shards).contains(router.getShard(newMessage, shards)));
+            assertTrue(router.getShards(newMessage, shards).contains(router.getShard(oldMessage, shards)));
+            if (router.getShard(newMessage, shards) != router.getShard(oldMessage, shards)) {
+                moved++;
+            }
+        }
+        // With another hash function, most rows change shard
+        assertTrue(moved > 50);
+    }
+
+    @Test
+    public void testMurmur3KnownValues() throws Exception {
+        // Reference values of MurmurHash3_x86_32 and MurmurHash3_x64_128
+        byte[] hello = Bytes.toBytes("hello");
+        assertEquals(0x248bfa47, MurmurHash3.hash32(hello, 0, hello.length, 0));
+        byte[] fox = Bytes.toBytes("The quick brown fox jumps over the lazy dog");
+        assertEquals(0x2e4ff723, MurmurHash3.hash32(fox, 0, fox.length, 0));
+        assertEquals(0xe34bbc7bbc071b6cL, MurmurHash3.hash64(fox, 0, fox.length, 0));
+        assertEquals(0, MurmurHash3.hash32(new byte[0], 0, 0, 0));
+
+        // Hashing a range gives the same result as hashing a copy of it
+        byte[] padded = Bytes.add(new byte[] {1, 2, 3}, fox, new byte[] {4, 5});
+        assertEquals(0xe34bbc7bbc071b6cL, MurmurHash3.hash64(padded, 3, fox.length, 0));
+
+        // Hashing the characters is the same as hashing their UTF-16 encoding
+        String chars = "h\u00e9llo w\u00f6rld";
+        byte[] utf16 = chars.getBytes("UTF-16LE");
+        assertEquals(MurmurHash3.hash32(utf16, 0, utf16.length, 0), MurmurHash3.hash32(chars, 0));
+    }
+
+    @Test
+    public void testShardDistribution() throws Exception {
+        RowLogShardList shards = createShards(16);
+        Random random = new Random(1234);
+
+        for (Hash hash : Hash.values()) {
+            for (Routing routing : Routing.values()) {
+                RowLogHashShardRouter router = new RowLogHashShardRouter();
+                router.setLayout(new RowLogShardLayout(Collections.singletonList(
+                        new Entry(16, routing, hash, 0))));
+
+                Map<RowLogShard, Integer> uuidCounts = new HashMap<RowLogShard, Integer>();
+                Map<RowLogShard, Integer> userCounts = new HashMap<RowLogShard, Integer>();
+                for (int i = 0; i < 16000; i++) {
+                    increment(uuidCounts, router.getShard(recordMessage(uuidRecordId(random)), shards));
+                    increment(userCounts, router.getShard(recordMessage(userRecordId("product-" + i)), shards));
+                }
+
+                // With 1000 rows expected per shard, a deviation of 15% is very unlikely for a good hash
+                for (Map<RowLogShard, Integer> counts : Arrays.asList(uuidCounts, userCounts)) {
+                    assertEquals(16, counts.size());
+                    for (int count : counts.values()) {
+                        assertTrue("Unbalanced shards using " + hash + " " + routing + ": " + counts.values(),
+                                count > 850 && count < 1150);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The row key of a UUID record id, see IdGeneratorImpl.
+     */
+    private byte[] uuidRecordId(Random random) {
+        byte[] rowKey = new byte[17];
+        random.nextBytes(rowKey);
+        rowKey[0] = 1;
+        return rowKey;
+    }
+
+    /**
+     * The row key of a user record id, see IdGeneratorImpl.
+     */
+    private byte[] userRecordId(String id) {
+        return Bytes.add(new byte[] {0}, Bytes.toBytes(id));
+    }
+
+    private RowLogMessage recordMessage(byte[] rowKey) {
+        return new RowLogMessageImpl(5, rowKey, 1L, null, null);
+    }
+
+    private void increment(Map<RowLogShard, Integer> counts, RowLogShard shard) {
+        Integer count = counts.get(shard);
+        counts.put(shard, count == null ? 1 : count + 1);
+    }
+}
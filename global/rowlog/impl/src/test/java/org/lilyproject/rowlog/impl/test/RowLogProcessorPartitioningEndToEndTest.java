@@ -0,0 +1,231 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.impl.test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hbase.client.HTableInterface;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.zookeeper.data.Stat;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.lilyproject.hadooptestfw.HBaseProxy;
+import org.lilyproject.hadooptestfw.TestHelper;
+import org.lilyproject.rowlog.api.RowLog;
+import org.lilyproject.rowlog.api.RowLogConfig;
+import org.lilyproject.rowlog.api.RowLogMessage;
+import org.lilyproject.rowlog.api.RowLogMessageListener;
+import org.lilyproject.rowlog.api.RowLogMessageListenerMapping;
+import org.lilyproject.rowlog.api.RowLogShard;
+import org.lilyproject.rowlog.api.RowLogSubscription;
+import org.lilyproject.rowlog.impl.RowLogConfigurationManagerImpl;
+import org.lilyproject.rowlog.impl.RowLogHashShardRouter;
+import org.lilyproject.rowlog.impl.RowLogImpl;
+import org.lilyproject.rowlog.impl.RowLogProcessorImpl;
+import org.lilyproject.rowlog.impl.RowLogProcessorPartitioning;
+import org.lilyproject.rowlog.impl.RowLogShardSetup;
+import org.lilyproject.util.hbase.HBaseTableFactoryImpl;
+import org.lilyproject.util.io.Closer;
+import org.lilyproject.util.zookeeper.ZkUtil;
+import org.lilyproject.util.zookeeper.ZooKeeperItf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the shards of a rowlog move between partitioned processors without messages being lost or
+ * processed twice.
+ */
+public class RowLogProcessorPartitioningEndToEndTest {
+    private static final String ROWLOG_ID = "PartitionedRowLog";
+    private static final String SUBSCRIPTION_ID = "PartitionedSubscription";
+    private static final int SHARD_COUNT = 4;
+    private static HBaseProxy HBASE_PROXY;
+    private static Configuration configuration;
+    private static HTableInterface rowTable;
+    private static Node nodeA;
+    private static Node nodeB;
+    private static CountingListener listener = new CountingListener();
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws Exception {
+        TestHelper.setupLogging();
+        HBASE_PROXY = new HBaseProxy();
+        HBASE_PROXY.start();
+        configuration = HBASE_PROXY.getConf();
+        rowTable = RowLogTableUtil.getRowTable(configuration);
+
+        // Each node has its own ZooKeeper session, since the partitioning members are identified by it
+        nodeA = new Node("nodeA", true);
+        nodeB = new Node("nodeB", false);
+
+        RowLogMessageListenerMapping.INSTANCE.put(SUBSCRIPTION_ID, listener);
+        nodeA.confMgr.addSubscription(ROWLOG_ID, SUBSCRIPTION_ID, RowLogSubscription.Type.VM, 1);
+        AbstractRowLogEndToEndTest.waitForSubscription(nodeA.rowLog, SUBSCRIPTION_ID);
+        AbstractRowLogEndToEndTest.waitForSubscription(nodeB.rowLog, SUBSCRIPTION_ID);
+        nodeA.confMgr.addListener(ROWLOG_ID, SUBSCRIPTION_ID, "listener1");
+    }
+
+    @AfterClass
+    public static void tearDownAfterClass() throws Exception {
+        if (nodeA != null) {
+            nodeA.close();
+        }
+        if (nodeB != null) {
+            nodeB.close();
+        }
+        RowLogMessageListenerMapping.INSTANCE.remove(SUBSCRIPTION_ID);
+        HBASE_PROXY.stop();
+    }
+
+    @Test(timeout=300000)
+    public void testShardTakeOver() throws Exception {
+        List<RowLogMessage> messages = new ArrayList<RowLogMessage>();
+
+        // A single node processes all shards
+        nodeA.partitioning.start();
+        waitForOwner(nodeA, SHARD_COUNT);
+        putMessages(messages, 0);
+
+        // A second node joins while messages are being processed, the first one releases the shards that are
+        // assigned to the second one
+        nodeB.partitioning.start();
+        putMessages(messages, 1);
+
+        // The first node leaves, the second one takes over all shards
+        nodeA.partitioning.stop();
+        waitForOwner(nodeB, SHARD_COUNT);
+        putMessages(messages, 2);
+
+        waitUntilProcessed(messages, 120000);
+        nodeB.partitioning.stop();
+
+        for (RowLogMessage message : messages) {
+            assertEquals("Number of times message " + message + " was processed", 1, listener.getCount(message));
+        }
+        assertEquals(messages.size(), listener.getTotalCount());
+        assertTrue("No messages should be left on the shards", nodeA.getRemainingMessages().isEmpty());
+    }
+
+    private void putMessages(List<RowLogMessage> messages, int round) throws Exception {
+        for (int rownr = 0; rownr < 20; rownr++) {
+            for (int seqnr = 0; seqnr < 5; seqnr++) {
+                byte[] data = Bytes.add(Bytes.toBytes(round), Bytes.toBytes(seqnr));
+                messages.add(nodeA.rowLog.putMessage(Bytes.toBytes("row" + rownr), data, null, null));
+            }
+        }
+    }
+
+    /**
+     * Waits until the node owns the given number of shards.
+     */
+    private void waitForOwner(Node node, int shardCount) throws Exception {
+        long waitUntil = System.currentTimeMillis() + 60000;
+        while (node.getOwnedShardCount() < shardCount) {
+            assertTrue("Node " + node.name + " did not take ownership of " + shardCount + " shards in time",
+                    System.currentTimeMillis() < waitUntil);
+            Thread.sleep(100);
+        }
+    }
+
+    private void waitUntilProcessed(List<RowLogMessage> messages, long timeout) throws Exception {
+        long waitUntil = System.currentTimeMillis() + timeout;
+        while (listener.getTotalCount() < messages.size() || !nodeA.getRemainingMessages().isEmpty()) {
+            if (System.currentTimeMillis() >= waitUntil) {
+                break;
+            }
+            Thread.sleep(500);
+        }
+        // Allow the processor to finish marking the last messages as done
+        Thread.sleep(2000);
+    }
+
+    private static class Node {
+        private final String name;
+        private final ZooKeeperItf zk;
+        private final RowLogConfigurationManagerImpl confMgr;
+        private final RowLog rowLog;
+        private final RowLogProcessorPartitioning partitioning;
+
+        Node(String name, boolean addRowLog) throws Exception {
+            this.name = name;
+            zk = ZkUtil.connect(HBASE_PROXY.getZkConnectString(), 120000);
+            confMgr = new RowLogConfigurationManagerImpl(zk);
+            if (addRowLog) {
+                confMgr.addRowLog(ROWLOG_ID, new RowLogConfig(true, true, 100L, 0L, 5000L, 5000L, 100));
+            }
+            rowLog = new RowLogImpl(ROWLOG_ID, rowTable, RowLogTableUtil.ROWLOG_COLUMN_FAMILY, (byte)2, confMgr,
+                    null, new RowLogHashShardRouter());
+            RowLogShardSetup.setupShards(SHARD_COUNT, rowLog, new HBaseTableFactoryImpl(configuration));
+            RowLogProcessorImpl processor = new RowLogProcessorImpl(rowLog, confMgr, configuration);
+            // The processor info is only kept for the mq and wal rowlogs, so no LilyInfo is needed
+            partitioning = new RowLogProcessorPartitioning(zk, processor, null, name);
+        }
+
+        int getOwnedShardCount() throws Exception {
+            int count = 0;
+            for (RowLogShard shard : rowLog.getShards()) {
+                Stat stat = zk.exists("/lily/rowlog/" + ROWLOG_ID + "/shardOwners/" + shard.getId(), false);
+                if (stat != null && stat.getEphemeralOwner() == zk.getSessionId()) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        List<RowLogMessage> getRemainingMessages() throws Exception {
+            List<RowLogMessage> messages = new ArrayList<RowLogMessage>();
+            for (RowLogShard shard : rowLog.getShards()) {
+                messages.addAll(shard.next(SUBSCRIPTION_ID, 20));
+            }
+            return messages;
+        }
+
+        void close() {
+            partitioning.stop();
+            Closer.close(rowLog);
+            Closer.close(confMgr);
+            Closer.close(zk);
+        }
+    }
+
+    private static class CountingListener implements RowLogMessageListener {
+        private final Map<RowLogMessage, Integer> counts = new HashMap<RowLogMessage, Integer>();
+        private int totalCount;
+
+        @Override
+        public synchronized boolean processMessage(RowLogMessage message) {
+            Integer count = counts.get(message);
+            counts.put(message, count == null ? 1 : count + 1);
+            totalCount++;
+            return true;
+        }
+
+        synchronized int getCount(RowLogMessage message) {
+            Integer count = counts.get(message);
+            return count == null ? 0 : count;
+        }
+
+        synchronized int getTotalCount() {
+            return totalCount;
+        }
+    }
+}
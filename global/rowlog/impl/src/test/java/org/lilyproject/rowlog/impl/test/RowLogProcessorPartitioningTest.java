@@ -0,0 +1,69 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.rowlog.impl.test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+import org.lilyproject.rowlog.impl.RowLogProcessorPartitioning;
+
+import static org.junit.Assert.*;
+
+public class RowLogProcessorPartitioningTest {
+
+    @Test
+    public void testAllMembersGetShards() {
+        Set<String> members = new HashSet<String>();
+        members.add("a");
+        members.add("b");
+        members.add("c");
+
+        Map<String, String> assignment = assign(members, 60);
+        assertEquals(members, new HashSet<String>(assignment.values()));
+    }
+
+    @Test
+    public void testOnlyShardsOfLeavingMemberMove() {
+        Set<String> members = new HashSet<String>();
+        members.add("a");
+        members.add("b");
+        members.add("c");
+        Map<String, String> before = assign(members, 60);
+
+        members.remove("b");
+        Map<String, String> after = assign(members, 60);
+
+        for (Map.Entry<String, String> entry : before.entrySet()) {
+            if (!entry.getValue().equals("b")) {
+                assertEquals(entry.getValue(), after.get(entry.getKey()));
+            } else {
+                assertFalse("b".equals(after.get(entry.getKey())));
+            }
+        }
+    }
+
+    private Map<String, String> assign(Set<String> members, int shardCount) {
+        Map<String, String> assignment = new HashMap<String, String>();
+        for (int i = 0; i < shardCount; i++) {
+            String shardId = "shard" + i;
+            assignment.put(shardId, RowLogProcessorPartitioning.getAssignedMember(shardId, members));
+        }
+        return assignment;
+    }
+}
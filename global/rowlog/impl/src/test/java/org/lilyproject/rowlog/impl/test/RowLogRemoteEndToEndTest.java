@@ -19,10 +19,13 @@ import org.apache.hadoop.hbase.util.Bytes;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.lilyproject.rowlog.api.MessagePriority;
 import org.lilyproject.rowlog.api.RowLogMessage;
 import org.lilyproject.rowlog.api.RowLogSubscription;
 import org.lilyproject.rowlog.impl.RemoteListenerHandler;
 
+import static org.junit.Assert.assertEquals;
+
 public class RowLogRemoteEndToEndTest extends AbstractRowLogEndToEndTest {
 
     private RemoteListenerHandler remoteListener;
@@ -51,6 +54,20 @@ public class RowLogRemoteEndToEndTest extends AbstractRowLogEndToEndTest {
         System.out.println(">>RowLogRemoteEndToEndTest#"+name.getMethodName() + " teardown done " + (System.currentTimeMillis() - t0));
     }
 
+    @Test(timeout=150000)
+    public void testPriorityIsSentToListener() throws Exception {
+        RowLogMessage message = rowLog.putMessage(Bytes.toBytes("row5"), null, null, null, MessagePriority.LOW);
+        validationListener.expectMessage(message);
+        validationListener.expectMessages(1);
+        processor.start();
+        validationListener.waitUntilMessagesConsumed(120000);
+        // Sleep to allow processor to finish message processing (messageDone marking)
+        Thread.sleep(2000);
+        processor.stop();
+        validationListener.validate();
+        assertEquals(MessagePriority.LOW, validationListener.getReceivedPriority(message));
+    }
+
     @Test(timeout=270000)
     public void testMultipleSubscriptions() throws Exception {
         String subscriptionId2 = "Test2";
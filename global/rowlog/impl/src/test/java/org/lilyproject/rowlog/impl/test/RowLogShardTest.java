@@ -20,9 +20,11 @@ import static java.util.Arrays.asList;
 import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.classextension.EasyMock.createControl;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.hadoop.hbase.HColumnDescriptor;
@@ -35,12 +37,15 @@ import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.lilyproject.rowlog.api.MessagePriority;
 import org.lilyproject.rowlog.api.RowLog;
 import org.lilyproject.rowlog.api.RowLogMessage;
+import org.lilyproject.rowlog.api.RowLogShard;
 import org.lilyproject.rowlog.api.RowLogSubscription;
 import org.lilyproject.rowlog.api.RowLogSubscription.Type;
 import org.lilyproject.rowlog.impl.RowLogMessageImpl;
 import org.lilyproject.rowlog.impl.RowLogShardImpl;
+import org.lilyproject.rowlog.impl.ShardRoutingDrain;
 import org.lilyproject.hadooptestfw.HBaseProxy;
 import org.lilyproject.hadooptestfw.TestHelper;
 import org.lilyproject.util.hbase.HBaseTableFactoryImpl;
@@ -208,6 +213,91 @@ public class RowLogShardTest {
         control.verify();
     }
     
+    @Test
+    public void testPriorityLanes() throws Exception {
+        String subscriptionId = "Subscription1";
+        rowLog.getSubscriptions();
+        expectLastCall().andReturn(asList(new RowLogSubscription("id", subscriptionId, Type.VM, 1))).anyTimes();
+
+        control.replay();
+        shard = new RowLogShardImpl("TestShard", new byte[0], createRowLogTable(), rowLog, batchSize);
+        long timestamp1 = System.currentTimeMillis();
+        RowLogMessageImpl lowMessage = new RowLogMessageImpl(timestamp1, Bytes.toBytes("row1"), 0L, null, null,
+                MessagePriority.LOW, rowLog);
+        RowLogMessageImpl normalMessage = new RowLogMessageImpl(timestamp1 + 1, Bytes.toBytes("row2"), 0L, null, rowLog);
+        shard.putMessage(lowMessage);
+        shard.putMessage(normalMessage);
+
+        List<RowLogMessage> messages = shard.next(subscriptionId, MessagePriority.NORMAL, timestamp1, batchSize);
+        assertEquals(1, messages.size());
+        assertEquals(normalMessage, messages.get(0));
+        assertEquals(MessagePriority.NORMAL, messages.get(0).getPriority());
+
+        messages = shard.next(subscriptionId, MessagePriority.LOW, timestamp1, batchSize);
+        assertEquals(1, messages.size());
+        assertEquals(lowMessage, messages.get(0));
+        assertEquals(MessagePriority.LOW, messages.get(0).getPriority());
+        assertEquals(timestamp1, messages.get(0).getTimestamp());
+        assertTrue(shard.next(subscriptionId, MessagePriority.LOW, timestamp1 + 1, batchSize).isEmpty());
+
+        // Without priority, the messages of all lanes are returned, normal priority first
+        messages = shard.next(subscriptionId, batchSize);
+        assertEquals(asList(normalMessage, lowMessage), messages);
+
+        // The oldest message of a subscription can be in any lane
+        assertEquals(Long.valueOf(timestamp1), shard.getOldestMessageTimestamps().get(subscriptionId));
+
+        shard.removeMessage(lowMessage, subscriptionId);
+        shard.removeMessage(normalMessage, subscriptionId);
+        assertTrue(shard.next(subscriptionId, batchSize).isEmpty());
+        control.verify();
+    }
+
+    @Test
+    public void testMessagesOfRowSpanningShardChange() throws Exception {
+        String subscriptionId = "Subscription1";
+        rowLog.getSubscriptions();
+        expectLastCall().andReturn(asList(new RowLogSubscription("id", subscriptionId, Type.VM, 1))).anyTimes();
+        List<RowLogShard> shards = new ArrayList<RowLogShard>();
+        rowLog.getShards();
+        expectLastCall().andReturn(shards).anyTimes();
+        long change = System.currentTimeMillis() - 1000;
+        rowLog.getShardRoutingChangeTimestamp();
+        expectLastCall().andReturn(change).anyTimes();
+
+        control.replay();
+        HTableInterface table = createRowLogTable();
+        RowLogShardImpl oldShard = new RowLogShardImpl("OldShard", new byte[] {1}, table, rowLog, batchSize);
+        RowLogShardImpl newShard = new RowLogShardImpl("NewShard", new byte[] {2}, table, rowLog, batchSize);
+        shards.add(oldShard);
+        shards.add(newShard);
+        // The older message of the row was put before the change of the shards, the newer one after it
+        byte[] row = Bytes.toBytes("row1");
+        RowLogMessageImpl oldMessage = new RowLogMessageImpl(change - 500, row, 0L, null, rowLog);
+        RowLogMessageImpl newMessage = new RowLogMessageImpl(change + 500, row, 1L, null, rowLog);
+        oldShard.putMessage(oldMessage);
+        newShard.putMessage(newMessage);
+
+        ShardRoutingDrain drain = new ShardRoutingDrain(rowLog, subscriptionId, 0, 0);
+        Long maximalTimestamp = drain.getMaximalTimestamp(System.currentTimeMillis());
+        assertEquals(Long.valueOf(change), maximalTimestamp);
+        assertEquals(asList(oldMessage), oldShard.next(subscriptionId, MessagePriority.NORMAL, null,
+                maximalTimestamp, batchSize));
+        assertTrue(newShard.next(subscriptionId, MessagePriority.NORMAL, null, maximalTimestamp,
+                batchSize).isEmpty());
+
+        // Once the older message is processed, the newer one is handed out
+        oldShard.removeMessage(oldMessage, subscriptionId);
+        maximalTimestamp = drain.getMaximalTimestamp(System.currentTimeMillis());
+        assertNull(maximalTimestamp);
+        assertEquals(asList(newMessage), newShard.next(subscriptionId, MessagePriority.NORMAL, null,
+                maximalTimestamp, batchSize));
+
+        newShard.removeMessage(newMessage, subscriptionId);
+        assertTrue(newShard.next(subscriptionId, batchSize).isEmpty());
+        control.verify();
+    }
+
     @Test
     public void testMessageDoesNotExistForConsumer() throws Exception {
         String subscriptionId1 = "Subscription1";
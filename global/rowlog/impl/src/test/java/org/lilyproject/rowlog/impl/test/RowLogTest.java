@@ -145,6 +145,27 @@ public class RowLogTest {
         control.verify();
     }
     
+    @Test
+    public void testMessagePriority() throws Exception {
+        shard.putMessage(isA(RowLogMessage.class), eq(subscriptionIds));
+        expectLastCall().times(2);
+        control.replay();
+        rowLog.getShardList().addShard(shard);
+        byte[] rowKey = Bytes.toBytes("row2B");
+        RowLogMessage message1 = rowLog.putMessage(rowKey, null, null, null, MessagePriority.LOW);
+        RowLogMessage message2 = rowLog.putMessage(rowKey, null, null, null);
+        assertEquals(MessagePriority.LOW, message1.getPriority());
+
+        // The priority is kept in the execution state, so it is known when the messages are read again
+        List<RowLogMessage> messages = rowLog.getMessages(rowKey, subscriptionId1);
+        assertEquals(2, messages.size());
+        assertEquals(message1, messages.get(0));
+        assertEquals(MessagePriority.LOW, messages.get(0).getPriority());
+        assertEquals(message2, messages.get(1));
+        assertEquals(MessagePriority.NORMAL, messages.get(1).getPriority());
+        control.verify();
+    }
+
     @Test
     public void testNoShardsRegistered() throws Exception {
 
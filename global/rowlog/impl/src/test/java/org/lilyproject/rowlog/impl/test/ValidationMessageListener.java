@@ -22,6 +22,7 @@ import java.util.Map;
 import java.util.Map.Entry;
 
 import org.junit.Assert;
+import org.lilyproject.rowlog.api.MessagePriority;
 import org.lilyproject.rowlog.api.RowLog;
 import org.lilyproject.rowlog.api.RowLogMessage;
 import org.lilyproject.rowlog.api.RowLogMessageListener;
@@ -70,6 +71,18 @@ public class ValidationMessageListener implements RowLogMessageListener {
         return true;
     }
 
+    /**
+     * Returns the priority of the message as it was received by this listener, null if it was not received.
+     */
+    public synchronized MessagePriority getReceivedPriority(RowLogMessage message) {
+        for (RowLogMessage processedMessage : processedMessages.keySet()) {
+            if (processedMessage.equals(message)) {
+                return processedMessage.getPriority();
+            }
+        }
+        return null;
+    }
+
     public void waitUntilMessagesConsumed(long timeout) throws Exception {
         long waitUntil = System.currentTimeMillis() + timeout;
         RowLogShard shard = rowLog.getShards().get(0);
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2012 NGDATA nv
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.lilyproject.util;
+
+/**
+ * MurmurHash3 (Austin Appleby, public domain), a fast non-cryptographic hash function with a good
+ * distribution, to be used for spreading keys over shards or buckets.
+ *
+ * <p>The hashes are calculated directly over a range of a byte array or over the characters of a string,
+ * without copying or encoding them, and do not allocate anything.</p>
+ *
+ * <p>The results are the same as those of the reference implementation, and hence of other implementations
+ * such as the one in Guava: {@link #hash32(byte[], int, int, int)} is MurmurHash3_x86_32,
+ * {@link #hash64(byte[], int, int, int)} is the first half of MurmurHash3_x64_128, and
+ * {@link #hash32(CharSequence, int)} is MurmurHash3_x86_32 over the UTF-16 code units of the characters.
+ * Since these hashes are used to assign data to shards, they should never be changed.</p>
+ */
+public class MurmurHash3 {
+    private static final int C1_32 = 0xcc9e2d51;
+    private static final int C2_32 = 0x1b873593;
+
+    private static final long C1_64 = 0x87c37b91114253d5L;
+    private static final long C2_64 = 0x4cf5ad432745937fL;
+
+    private MurmurHash3() {
+    }
+
+    /**
+     * 32 bit hash of the given range of bytes (MurmurHash3_x86_32).
+     */
+    public static int hash32(byte[] data, int offset, int length, int seed) {
+        int h1 = seed;
+        int end = offset + (length & ~3);
+
+        for (int i = offset; i < end; i += 4) {
+            int k1 = (data[i] & 0xFF) | ((data[i + 1] & 0xFF) << 8) | ((data[i + 2] & 0xFF) << 16) |
+                    (data[i + 3] << 24);
+            h1 = mixH1(h1, mixK1(k1));
+        }
+
+        int k1 = 0;
+        switch (length & 3) {
+            case 3:
+                k1 ^= (data[end + 2] & 0xFF) << 16;
+            case 2:
+                k1 ^= (data[end + 1] & 0xFF) << 8;
+            case 1:
+                k1 ^= data[end] & 0xFF;
+                h1 ^= mixK1(k1);
+        }
+
+        return fmix32(h1 ^ length);
+    }
+
+    /**
+     * 32 bit hash of the characters of the given string, two characters per block of four bytes, without
+     * encoding the characters first.
+     */
+    public static int hash32(CharSequence chars, int seed) {
+        int h1 = seed;
+        int length = chars.length();
+
+        for (int i = 1; i < length; i += 2) {
+            int k1 = chars.charAt(i - 1) | (chars.charAt(i) << 16);
+            h1 = mixH1(h1, mixK1(k1));
+        }
+
+        if ((length & 1) == 1) {
+            h1 ^= mixK1(chars.charAt(length - 1));
+        }
+
+        return fmix32(h1 ^ (2 * length));
+    }
+
+    /**
+     * 64 bit hash of the given range of bytes: the first 64 bits of MurmurHash3_x64_128.
+     */
+    public static long hash64(byte[] data, int offset, int length, int seed) {
+        long h1 = seed & 0xFFFFFFFFL;
+        long h2 = seed & 0xFFFFFFFFL;
+        int end = offset + (length & ~15);
+
+        for (int i = offset; i < end; i += 16) {
+            long k1 = getLongLittleEndian(data, i);
+            long k2 = getLongLittleEndian(data, i + 8);
+
+            k1 *= C1_64;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2_64;
+            h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            k2 *= C2_64;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1_64;
+            h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        long k1 = 0;
+        long k2 = 0;
+        switch (length & 15) {
+            case 15:
+                k2 ^= (long)(data[end + 14] & 0xFF) << 48;
+            case 14:
+                k2 ^= (long)(data[end + 13] & 0xFF) << 40;
+            case 13:
+                k2 ^= (long)(data[end + 12] & 0xFF) << 32;
+            case 12:
+                k2 ^= (long)(data[end + 11] & 0xFF) << 24;
+            case 11:
+                k2 ^= (long)(data[end + 10] & 0xFF) << 16;
+            case 10:
+                k2 ^= (long)(data[end + 9] & 0xFF) << 8;
+            case 9:
+                k2 ^= (long)(data[end + 8] & 0xFF);
+                k2 *= C2_64;
+                k2 = Long.rotateLeft(k2, 33);
+                k2 *= C1_64;
+                h2 ^= k2;
+            case 8:
+                k1 ^= (long)(data[end + 7] & 0xFF) << 56;
+            case 7:
+                k1 ^= (long)(data[end + 6] & 0xFF) << 48;
+            case 6:
+                k1 ^= (long)(data[end + 5] & 0xFF) << 40;
+            case 5:
+                k1 ^= (long)(data[end + 4] & 0xFF) << 32;
+            case 4:
+                k1 ^= (long)(data[end + 3] & 0xFF) << 24;
+            case 3:
+                k1 ^= (long)(data[end + 2] & 0xFF) << 16;
+            case 2:
+                k1 ^= (long)(data[end + 1] & 0xFF) << 8;
+            case 1:
+                k1 ^= (long)(data[end] & 0xFF);
+                k1 *= C1_64;
+                k1 = Long.rotateLeft(k1, 31);
+                k1 *= C2_64;
+                h1 ^= k1;
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        return h1 + h2;
+    }
+
+    private static int mixK1(int k1) {
+        k1 *= C1_32;
+        k1 = Integer.rotateLeft(k1, 15);
+        k1 *= C2_32;
+        return k1;
+    }
+
+    private static int mixH1(int h1, int k1) {
+        h1 ^= k1;
+        h1 = Integer.rotateLeft(h1, 13);
+        h1 = h1 * 5 + 0xe6546b64;
+        return h1;
+    }
+
+    private static int fmix32(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private static long getLongLittleEndian(byte[] data, int offset) {
+        return (data[offset] & 0xFFL) | ((data[offset + 1] & 0xFFL) << 8) | ((data[offset + 2] & 0xFFL) << 16) |
+                ((data[offset + 3] & 0xFFL) << 24) | ((data[offset + 4] & 0xFFL) << 32) |
+                ((data[offset + 5] & 0xFFL) << 40) | ((data[offset + 6] & 0xFFL) << 48) |
+                ((data[offset + 7] & 0xFFL) << 56);
+    }
+}
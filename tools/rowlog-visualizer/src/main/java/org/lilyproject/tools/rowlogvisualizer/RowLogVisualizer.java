@@ -28,6 +28,7 @@ import org.lilyproject.repository.api.IdGenerator;
 import org.lilyproject.repository.api.RecordId;
 import org.lilyproject.repository.impl.id.IdGeneratorImpl;
 import org.lilyproject.rowlog.api.ExecutionState;
+import org.lilyproject.rowlog.api.MessagePriority;
 import org.lilyproject.rowlog.impl.SubscriptionExecutionState;
 import org.lilyproject.util.Version;
 import org.lilyproject.util.hbase.HBaseAdminFactory;
@@ -141,7 +142,9 @@ public class RowLogVisualizer extends BaseZkCliTool {
 
             // Copied from RowLogShardImpl.decodeMessage
             byte[] messageId = Bytes.tail(rowkey, rowkey.length - (endOfPrefixPos + 1));
-            long timestamp = Bytes.toLong(messageId);
+            long encodedTimestamp = Bytes.toLong(messageId);
+            long timestamp = encodedTimestamp & 0x00FFFFFFFFFFFFFFL;
+            MessagePriority priority = MessagePriority.fromLane((byte)(encodedTimestamp >>> 56));
             long seqNr = Bytes.toLong(messageId, Bytes.SIZEOF_LONG);
             byte[] recordRowkey = Bytes.tail(messageId, messageId.length - (2 * Bytes.SIZEOF_LONG));
 
@@ -172,6 +175,7 @@ public class RowLogVisualizer extends BaseZkCliTool {
             System.out.println("      Timestamp: " + new LocalDateTime(timestamp) + " - " + timestamp);
             System.out.println("HBase timestamp: " + new LocalDateTime(hbaseTimestamp) + " - " + hbaseTimestamp);
             System.out.println("          Seqnr: " + seqNr);
+            System.out.println("       Priority: " + priority);
             System.out.println();
             if (execState == null) {
                 System.out.println("No execution state found.");